@@ -0,0 +1,196 @@
+package com.example.nativecodec;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+//只监听127.0.0.1的最小HTTP/1.1服务器，把一个不压缩的asset当作文件提供，支持Range和keep-alive。
+//PlayerBenchmark在设备上用它测试HTTP数据源，latencyMs模拟每个请求的网络往返时间。测试运行在应用的进程里，用应用的网络权限
+class LoopbackHttpServer {
+    static final String TAG = "NativeCodecHttp";
+
+    private static final int MAX_HEADER_LINE = 1024;
+
+    private final AssetFileDescriptor mAsset;
+    private final FileChannel mChannel;
+    private final long mStart;
+    private final long mLength;
+    private final long mLatencyMs;
+    private final ServerSocket mServer;
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+    private volatile boolean mClosed = false;
+
+    LoopbackHttpServer(AssetManager assets, String clip, long latencyMs) throws IOException {
+        mAsset = assets.openFd(clip);
+        mChannel = new FileInputStream(mAsset.getFileDescriptor()).getChannel();
+        mStart = mAsset.getStartOffset();
+        mLength = mAsset.getLength();
+        mLatencyMs = latencyMs;
+        mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("LoopbackHttpAccept") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptor.start();
+    }
+
+    //clip的地址，路径部分不参与匹配
+    String url(String clip) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + "/" + clip;
+    }
+
+    long requests() {
+        return mRequests.get();
+    }
+
+    long bytesServed() {
+        return mBytesServed.get();
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            mServer.close();
+            mChannel.close();
+            mAsset.close();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to close", e);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.e(TAG, "accept failed", e);
+                }
+                return;
+            }
+            new Thread("LoopbackHttpConnection") {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException | InterruptedException e) {
+                        Log.v(TAG, "connection closed: " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }.start();
+        }
+    }
+
+    //一条连接上依次处理请求，直到对方关闭
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!mClosed) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return;
+            }
+            long first = 0;
+            long last = mLength - 1;
+            boolean ranged = false;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Range: bytes=", 0, 13)) {
+                    String[] range = line.substring(13).trim().split("-", 2);
+                    first = Long.parseLong(range[0]);
+                    if (range.length > 1 && !range[1].isEmpty()) {
+                        last = Math.min(Long.parseLong(range[1]), mLength - 1);
+                    }
+                    ranged = true;
+                }
+            }
+            if (line == null) {
+                return;
+            }
+            mRequests.incrementAndGet();
+            if (mLatencyMs > 0) {
+                Thread.sleep(mLatencyMs);
+            }
+            if (!requestLine.startsWith("GET ") || first >= mLength || first > last) {
+                out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + mLength
+                        + "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                continue;
+            }
+            long length = last - first + 1;
+            StringBuilder header = new StringBuilder();
+            header.append(ranged ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            if (ranged) {
+                header.append("Content-Range: bytes ").append(first).append('-').append(last)
+                        .append('/').append(mLength).append("\r\n");
+            }
+            header.append("Content-Length: ").append(length).append("\r\n");
+            header.append("Accept-Ranges: bytes\r\nConnection: keep-alive\r\n\r\n");
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+            ByteBuffer body = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+            long position = mStart + first;
+            long remaining = length;
+            while (remaining > 0) {
+                body.clear();
+                body.limit((int) Math.min(body.capacity(), remaining));
+                int n = mChannel.read(body, position);
+                if (n <= 0) {
+                    return;
+                }
+                body.flip();
+                while (body.hasRemaining()) {
+                    channel.write(body);
+                }
+                position += n;
+                remaining -= n;
+            }
+            out.flush();
+            mBytesServed.addAndGet(length);
+        }
+    }
+
+    //读一行ASCII，去掉结尾的\r\n，连接关闭时返回null
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_HEADER_LINE) {
+                throw new IOException("header line too long");
+            }
+            sb.append((char) c);
+        }
+        return null;
+    }
+}
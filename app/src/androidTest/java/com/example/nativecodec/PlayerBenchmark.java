@@ -0,0 +1,1453 @@
+package com.example.nativecodec;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import android.widget.Spinner;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//播放器基准测试(instrumented)，每个测试的结果以JSON输出到logcat和getExternalFilesDir()/benchmark-<名字>.json。
+//测试都很耗时，一般单独运行一个：
+//./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.example.nativecodec.PlayerBenchmark#instances
+//或者安装测试APK后：
+//adb shell am instrument -w -e class com.example.nativecodec.PlayerBenchmark#instances com.example.nativecodec.test/androidx.test.runner.AndroidJUnitRunner
+//各个测试：instances(多实例解码吞吐量)、decode(clips下每个片段的首帧耗时、帧率、每帧解码耗时和GC)、
+//seek(seek耗时)、surface(切换输出surface的耗时，和重新打开对比)、mp4index(Java样本表解析耗时和内存)、
+//open(不使用和使用空闲解码器池时，从创建播放器到打开完成、到首帧的耗时)、
+//frames(ByteBuffer输出模式下逐帧计算亮度直方图的帧率和GC)、
+//thumbnails(不同解码器个数下冷启动、磁盘缓存、内存缓存的缩略图速度和命中率，以及取消)、
+//playlist(无缝播放列表每次交接时上一个片段最后一帧到下一个片段第一帧的间隔，和帧间隔对比)、
+//trickplay(各种快进快退速度下每秒解码的帧数、丢掉的样本数，以及播放位置是否跟得上速度)、
+//datasource(asset、app私有目录的文件、本机回环HTTP服务器三种数据源不按时间戳解码的帧率、读取速度和块缓存命中率)、
+//transcode(原尺寸和一半尺寸转码的速度(实时的倍数)、帧数、输出码率，以及输出文件的轨道)、
+//profiles(同一个片段在默认、硬件、软件解码器上用各种性能配置不按时间戳解码的帧率、每帧解码耗时和CPU时间)、
+//glsink(输出到GLSurfaceView时原来的持续绘制和按需绘制每显示一帧的CPU、GPU时间和电池电流，播放和暂停分开统计)、
+//control(按时间戳播放和不按时间戳全速解码时，暂停和seek从请求到生效的耗时)、
+//loop(循环播放时回绕处前后两帧的间隔和帧间隔对比、循环缓存占用的内存，以及有缓存和没有缓存时跳回开头的耗时)
+@RunWith(AndroidJUnit4.class)
+public class PlayerBenchmark {
+    private static final String TAG = "NativeCodecBench";
+
+    private static final String CLIP_DIR = "clips";
+    private static final String CLIP = CLIP_DIR + "/testfile.mp4";
+    private static final int MAX_INSTANCES = 8;
+    //共享线程池的线程数，0表示每个播放器一个线程
+    private static final int[] THREAD_POLICIES = {0, 2};
+    private static final long TIMEOUT_MS = 60000;
+    private static final long POLL_MS = 20;
+    //seek测试：每种方式均匀分布的seek次数，以及模拟拖动进度条时的请求间隔
+    private static final int SEEK_COUNT = 20;
+    private static final long SCRUB_INTERVAL_MS = 16;
+    //控制测试：暂停、seek的次数，以及每次之前播放的时间
+    private static final int CONTROL_COUNT = 30;
+    private static final long CONTROL_PLAY_MS = 50;
+    //样本表解析测试的重复次数
+    private static final int PARSE_ITERATIONS = 20;
+    //解码测试的输出方式：不输出到surface，或者输出到ImageReader
+    private static final String[] DECODE_SINKS = {"none", "imagereader"};
+    //surface切换测试：切换次数和间隔
+    private static final int SURFACE_SWITCHES = 12;
+    private static final long SURFACE_SWITCH_INTERVAL_MS = 250;
+    //打开测试：每种方式的打开次数，以及空闲解码器池的大小
+    private static final int OPEN_RUNS = 10;
+    private static final int DECODER_POOL_SIZE = 2;
+    //ByteBuffer输出模式同时交出的帧数
+    private static final int FRAMES_IN_FLIGHT = 4;
+    //缩略图测试：时间轴上的张数、尺寸、并行的解码器个数和缓存大小
+    private static final int THUMBNAILS = 30;
+    private static final int THUMBNAIL_WIDTH = 160;
+    private static final int THUMBNAIL_HEIGHT = 90;
+    private static final int[] THUMBNAIL_DECODERS = {1, 2, 4};
+    private static final int THUMBNAIL_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static final long THUMBNAIL_DISK_BYTES = 32 * 1024 * 1024;
+    //快进快退测试：各种速度(负数为倒放)和每种速度播放的时间
+    private static final float[] TRICK_RATES = {1, 2, 4, 8, 16, -4, -16};
+    private static final long TRICK_PLAY_MS = 3000;
+    //数据源测试：三种数据源，以及回环HTTP服务器模拟的每个请求的往返时间
+    private static final String[] DATA_SOURCES = {"asset", "file", "http"};
+    private static final long HTTP_LATENCY_MS = 20;
+    //转码测试：输出高度是原来的几分之一(1为原尺寸，不经过GL缩放)，以及码率上限
+    private static final int[] TRANSCODE_DIVISORS = {1, 2};
+    private static final int TRANSCODE_BITRATE = 1000000;
+    //性能配置测试：各种配置，以及解码器的选择方式(default按mime，hardware/software按名字指定)
+    private static final int[] PROFILES = {MainActivity.PROFILE_DEFAULT, MainActivity.PROFILE_LOW_LATENCY,
+            MainActivity.PROFILE_THROUGHPUT, MainActivity.PROFILE_POWER_SAVER};
+    private static final String[] PROFILE_NAMES = {"default", "lowLatency", "throughput", "powerSaver"};
+    private static final String[] DECODER_KINDS = {"default", "hardware", "software"};
+    //GL输出测试：两种画法，每种按时间戳播放和暂停的时间，以及读电池电流的间隔
+    private static final String[] GL_MODES = {"legacy", "onDemand"};
+    private static final long GL_PLAY_MS = 8000;
+    private static final long GL_IDLE_MS = 3000;
+    private static final long BATTERY_POLL_MS = 250;
+    //播放列表测试：同一个片段连续播放的次数
+    private static final int PLAYLIST_ITEMS = 3;
+
+    private static final int LOOP_COUNT = 3;
+    private static final int REWIND_COUNT = 10;
+    private static final long REWIND_PLAY_MS = 200;
+    //和native层的kMaxLatencySamples一致
+    private static final int MAX_LATENCIES = 4096;
+
+    private Context mContext;
+    private MyGLSurfaceView mGLView;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @Test
+    public void instances() throws Exception {
+        report("instances", runInstanceScaling());
+    }
+
+    @Test
+    public void decode() throws Exception {
+        report("decode", runDecodeThroughput());
+    }
+
+    @Test
+    public void thumbnails() throws Exception {
+        report("thumbnails", runThumbnails());
+    }
+
+    @Test
+    public void frames() throws Exception {
+        report("frames", runFrameAnalysis());
+    }
+
+    @Test
+    public void open() throws Exception {
+        report("open", runOpenLatency());
+    }
+
+    //要在屏幕上显示GL输出：启动MainActivity并切到GL纹理输出
+    @Test
+    public void glsink() throws Exception {
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            scenario.onActivity(new ActivityScenario.ActivityAction<MainActivity>() {
+                @Override
+                public void perform(MainActivity activity) {
+                    ((Spinner) activity.findViewById(R.id.sink_spinner)).setSelection(1);
+                    activity.mSelectedVideoSink = activity.mGLView1VideoSink;
+                    activity.switchSurface();
+                    mGLView = activity.mGLView1;
+                }
+            });
+            report("glsink", runGLSink());
+        } finally {
+            mGLView = null;
+        }
+    }
+
+    @Test
+    public void profiles() throws Exception {
+        report("profiles", runProfiles());
+    }
+
+    @Test
+    public void transcode() throws Exception {
+        report("transcode", runTranscode());
+    }
+
+    @Test
+    public void datasource() throws Exception {
+        report("datasource", runDataSources());
+    }
+
+    @Test
+    public void trickplay() throws Exception {
+        report("trickplay", runTrickPlay());
+    }
+
+    @Test
+    public void playlist() throws Exception {
+        report("playlist", runPlaylist());
+    }
+
+    @Test
+    public void loop() throws Exception {
+        report("loop", runLoop());
+    }
+
+    @Test
+    public void surface() throws Exception {
+        report("surface", runSurfaceSwitch());
+    }
+
+    @Test
+    public void seek() throws Exception {
+        report("seek", runSeekLatency());
+    }
+
+    @Test
+    public void control() throws Exception {
+        report("control", runControlLatency());
+    }
+
+    @Test
+    public void mp4index() throws Exception {
+        report("mp4index", runSampleTableParse());
+    }
+
+    //实例个数从1增加到MAX_INSTANCES，不按时间戳等待、不输出到surface，统计所有实例加起来的解码帧率
+    private JSONArray runInstanceScaling() throws JSONException, InterruptedException {
+        JSONArray results = new JSONArray();
+        for (int threads : THREAD_POLICIES) {
+            MainActivity.setThreadPolicy(threads);
+            for (int instances = 1; instances <= MAX_INSTANCES; instances++) {
+                long[] starvations = new long[1];
+                double fps = measureAggregateFps(instances, starvations);
+                Log.i(TAG, "threads=" + threads + " instances=" + instances + " fps=" + fps
+                        + " starvations=" + starvations[0]);
+                JSONObject row = new JSONObject();
+                row.put("threads", threads);
+                row.put("instances", instances);
+                row.put("aggregateFps", fps);
+                row.put("demuxStarvations", starvations[0]);
+                results.put(row);
+            }
+        }
+        MainActivity.setThreadPolicy(0);
+        return results;
+    }
+
+    private double measureAggregateFps(int instances, long[] starvations) throws InterruptedException {
+        AssetManager assets = mContext.getAssets();
+        long[] players = new long[instances];
+        long[] stats = new long[PlayerStats.COUNT];
+        try {
+            for (int i = 0; i < instances; i++) {
+                players[i] = openPlayer(assets, CLIP, null);
+                if (players[i] == 0) {
+                    Log.e(TAG, "failed to create player " + i);
+                    return 0;
+                }
+                MainActivity.setPacingEnabled(players[i], false);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            for (long player : players) {
+                MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            }
+            long elapsed;
+            while (true) {
+                elapsed = SystemClock.elapsedRealtime() - start;
+                if (allFinished(players) || elapsed > TIMEOUT_MS) {
+                    break;
+                }
+                Thread.sleep(POLL_MS);
+            }
+
+            long frames = 0;
+            for (long player : players) {
+                MainActivity.getStats(player, stats);
+                frames += stats[PlayerStats.FRAMES_RENDERED];
+                starvations[0] += stats[PlayerStats.DEMUX_STARVATIONS];
+            }
+            return elapsed > 0 ? frames * 1000.0 / elapsed : 0;
+        } finally {
+            for (long player : players) {
+                if (player != 0) {
+                    MainActivity.shutdown(player);
+                }
+            }
+        }
+    }
+
+    //clips下的每个片段分别以每种输出方式不按时间戳等待解码到结尾
+    private JSONArray runDecodeThroughput() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        for (String name : mContext.getAssets().list(CLIP_DIR)) {
+            String clip = CLIP_DIR + "/" + name;
+            for (String sink : DECODE_SINKS) {
+                JSONObject row = measureDecode(clip, "imagereader".equals(sink));
+                row.put("clip", clip);
+                row.put("sink", sink);
+                Log.i(TAG, row.toString());
+                results.put(row);
+            }
+        }
+        return results;
+    }
+
+    private JSONObject measureDecode(String clip, boolean imageReader)
+            throws JSONException, InterruptedException, IOException {
+        JSONObject row = new JSONObject();
+        ImageReader reader = null;
+        HandlerThread readerThread = null;
+        Surface surface = null;
+        if (imageReader) {
+            Mp4SampleIndex.Track video = videoTrack(clip);
+            if (video == null || video.width <= 0 || video.height <= 0) {
+                row.put("error", "no video size");
+                return row;
+            }
+            readerThread = new HandlerThread("BenchmarkImageReader");
+            readerThread.start();
+            reader = newDrainingReader(video, new Handler(readerThread.getLooper()));
+            surface = reader.getSurface();
+        }
+
+        long player = 0;
+        try {
+            long gcStart = runtimeStat("art.gc.gc-count");
+            long allocStart = runtimeStat("art.gc.bytes-allocated");
+            long start = SystemClock.elapsedRealtime();
+            player = openPlayer(mContext.getAssets(), clip, surface);
+            if (player == 0) {
+                row.put("error", "failed to create player");
+                return row;
+            }
+            MainActivity.setPacingEnabled(player, false);
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            long elapsed;
+            while (true) {
+                elapsed = SystemClock.elapsedRealtime() - start;
+                if (MainActivity.isEndOfStream(player) || elapsed > TIMEOUT_MS) {
+                    break;
+                }
+                Thread.sleep(POLL_MS);
+            }
+
+            long[] stats = new long[PlayerStats.COUNT];
+            MainActivity.getStats(player, stats);
+            long frames = stats[PlayerStats.FRAMES_RENDERED];
+            long firstFrameUs = MainActivity.getFirstFrameLatencyUs(player);
+            //持续帧率不含首帧之前的打开和启动解码器的时间
+            long sustainedUs = elapsed * 1000 - firstFrameUs;
+            row.put("timeToFirstFrameUs", firstFrameUs);
+            row.put("frames", frames);
+            row.put("sustainedFps", frames > 1 && firstFrameUs >= 0 && sustainedUs > 0
+                    ? (frames - 1) * 1000000.0 / sustainedUs : 0);
+            row.put("timedOut", elapsed > TIMEOUT_MS);
+
+            long[] latencies = new long[MAX_LATENCIES];
+            int count = MainActivity.getDecodeLatencies(player, latencies);
+            if (count > 0) {
+                row.put("decodeLatency", summarize(Arrays.copyOf(latencies, count)));
+            }
+            row.put("stats", PlayerStats.toJson(stats));
+            row.put("gcCount", runtimeStat("art.gc.gc-count") - gcStart);
+            row.put("allocatedBytes", runtimeStat("art.gc.bytes-allocated") - allocStart);
+            return row;
+        } finally {
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+            if (reader != null) {
+                reader.close();
+                readerThread.quitSafely();
+            }
+        }
+    }
+
+    //只取出并立即释放图像，让解码器的输出缓冲区能循环使用
+    private static ImageReader newDrainingReader(Mp4SampleIndex.Track video, Handler handler) {
+        ImageReader reader = ImageReader.newInstance(video.width, video.height, ImageFormat.YUV_420_888, 4);
+        reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader r) {
+                Image image = r.acquireLatestImage();
+                if (image != null) {
+                    image.close();
+                }
+            }
+        }, handler);
+        return reader;
+    }
+
+    //同一个片段分别用两种画法输出到GLSurfaceView，每显示一帧的开销按SurfaceTexture取到的新帧平均。
+    //电流只在没有充电时有意义，各厂商的符号不一致，取绝对值
+    private JSONArray runGLSink() throws JSONException, InterruptedException {
+        JSONArray results = new JSONArray();
+        if (mGLView == null) {
+            Log.e(TAG, "no GL view");
+            return results;
+        }
+        long start = SystemClock.elapsedRealtime();
+        while (mGLView.getSurfaceTexture() == null && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            Thread.sleep(POLL_MS);
+        }
+        SurfaceTexture texture = mGLView.getSurfaceTexture();
+        BatteryManager battery = (BatteryManager) mContext.getSystemService(Context.BATTERY_SERVICE);
+        for (String mode : GL_MODES) {
+            JSONObject row = new JSONObject();
+            row.put("mode", mode);
+            results.put(row);
+            if (texture == null) {
+                row.put("error", "no surface texture");
+                continue;
+            }
+            mGLView.setLegacyRendering("legacy".equals(mode));
+            Surface surface = new Surface(texture);
+            long player = openPlayer(mContext.getAssets(), CLIP, surface);
+            surface.release();
+            if (player == 0) {
+                row.put("error", "failed to create player");
+                continue;
+            }
+            try {
+                row.put("playing", measureGLPhase(player, battery, true, GL_PLAY_MS));
+                row.put("paused", measureGLPhase(player, battery, false, GL_IDLE_MS));
+            } finally {
+                MainActivity.shutdown(player);
+            }
+            Log.i(TAG, row.toString());
+        }
+        mGLView.setLegacyRendering(false);
+        return results;
+    }
+
+    private JSONObject measureGLPhase(long player, BatteryManager battery, boolean playing, long durationMs)
+            throws JSONException, InterruptedException {
+        long[] before = new long[RenderStats.COUNT];
+        long[] after = new long[RenderStats.COUNT];
+        mGLView.getRenderStats(before);
+        long cpuStart = Process.getElapsedCpuTime();
+        long chargeStart = battery.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        long currentSum = 0;
+        int currentSamples = 0;
+        long start = SystemClock.elapsedRealtime();
+        MainActivity.setPlayingStreamingMediaPlayer(player, playing);
+        long elapsed;
+        while (true) {
+            elapsed = SystemClock.elapsedRealtime() - start;
+            if (elapsed >= durationMs || (playing && MainActivity.isEndOfStream(player))) {
+                break;
+            }
+            currentSum += Math.abs(battery.getLongProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW));
+            currentSamples++;
+            Thread.sleep(BATTERY_POLL_MS);
+        }
+        long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+        mGLView.getRenderStats(after);
+        RenderStats.subtract(after, before);
+        JSONObject phase = RenderStats.toJson(after);
+        long frames = after[RenderStats.FRAMES_LATCHED];
+        phase.put("elapsedMs", elapsed);
+        //进程CPU时间，包括解码、播放调度和GL线程
+        phase.put("processCpuMs", cpuMs);
+        phase.put("processCpuUsPerFrame", frames > 0 ? cpuMs * 1000.0 / frames : 0);
+        phase.put("avgCurrentUa", currentSamples > 0 ? currentSum / currentSamples : 0);
+        phase.put("chargeUah", chargeStart - battery.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER));
+        phase.put("charging", battery.isCharging());
+        return phase;
+    }
+
+    //按时间戳播放时在两个ImageReader和null(模拟surface销毁)之间轮流切换，统计每次切换的耗时和
+    //切换期间渲染的帧数；再和关闭后重新打开到首帧的耗时对比
+    private JSONObject runSurfaceSwitch() throws JSONException, InterruptedException, IOException {
+        JSONObject results = new JSONObject();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        if (video == null || video.width <= 0 || video.height <= 0) {
+            results.put("error", "no video size");
+            return results;
+        }
+        HandlerThread readerThread = new HandlerThread("BenchmarkImageReader");
+        readerThread.start();
+        Handler handler = new Handler(readerThread.getLooper());
+        ImageReader[] readers = {newDrainingReader(video, handler), newDrainingReader(video, handler)};
+        long player = 0;
+        try {
+            player = openPlayer(mContext.getAssets(), CLIP, readers[0].getSurface());
+            if (player == 0) {
+                results.put("error", "failed to create player");
+                return results;
+            }
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            Thread.sleep(SURFACE_SWITCH_INTERVAL_MS);
+
+            long[] before = new long[PlayerStats.COUNT];
+            long[] after = new long[PlayerStats.COUNT];
+            MainActivity.getStats(player, before);
+            long positionBeforeUs = MainActivity.getPositionUs(player);
+            for (int i = 1; i <= SURFACE_SWITCHES; i++) {
+                Surface next = i % 3 == 2 ? null : readers[i % 2].getSurface();
+                MainActivity.setSurface(player, next);
+                Thread.sleep(SURFACE_SWITCH_INTERVAL_MS);
+            }
+            MainActivity.getStats(player, after);
+            long switches = after[PlayerStats.SURFACE_SWITCHES] - before[PlayerStats.SURFACE_SWITCHES];
+            results.put("switches", switches);
+            results.put("reconfigures",
+                    after[PlayerStats.SURFACE_RECONFIGURES] - before[PlayerStats.SURFACE_RECONFIGURES]);
+            results.put("avgSwitchUs", switches > 0 ? (after[PlayerStats.SURFACE_SWITCH_US]
+                    - before[PlayerStats.SURFACE_SWITCH_US]) / switches : 0);
+            results.put("framesRendered",
+                    after[PlayerStats.FRAMES_RENDERED] - before[PlayerStats.FRAMES_RENDERED]);
+            results.put("positionAdvancedUs", MainActivity.getPositionUs(player) - positionBeforeUs);
+            MainActivity.shutdown(player);
+            player = 0;
+
+            //对比：关闭后重新打开，从头解码到首帧
+            player = openPlayer(mContext.getAssets(), CLIP, readers[1].getSurface());
+            if (player != 0) {
+                long start = SystemClock.elapsedRealtime();
+                long firstFrameUs;
+                while ((firstFrameUs = MainActivity.getFirstFrameLatencyUs(player)) < 0
+                        && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+                    Thread.sleep(1);
+                }
+                results.put("reopenFirstFrameUs", firstFrameUs);
+            }
+            return results;
+        } finally {
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+            for (ImageReader reader : readers) {
+                reader.close();
+            }
+            readerThread.quitSafely();
+        }
+    }
+
+    //同一个片段按时间戳连续播放PLAYLIST_ITEMS次，每一项播放时预加载下一项，统计每次交接的显示间隔。
+    //间隔接近帧间隔说明没有多出来的停顿
+    private JSONObject runPlaylist() throws JSONException, InterruptedException, IOException {
+        JSONObject results = new JSONObject();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        if (video == null || video.width <= 0 || video.height <= 0) {
+            results.put("error", "no video size");
+            return results;
+        }
+        HandlerThread readerThread = new HandlerThread("BenchmarkImageReader");
+        readerThread.start();
+        ImageReader reader = newDrainingReader(video, new Handler(readerThread.getLooper()));
+        AssetManager assets = mContext.getAssets();
+        long player = 0;
+        long next = 0;
+        try {
+            player = openPlayer(assets, CLIP, reader.getSurface());
+            if (player == 0) {
+                results.put("error", "failed to create player");
+                return results;
+            }
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            JSONArray transitions = new JSONArray();
+            long[] stats = new long[PlayerStats.COUNT];
+            for (int i = 1; i < PLAYLIST_ITEMS; i++) {
+                PreparedLatch prepared = new PreparedLatch();
+                next = MainActivity.preloadStreamingMediaPlayer(assets, CLIP, prepared);
+                if (next == 0 || !prepared.await()) {
+                    results.put("error", "failed to preload item " + i);
+                    return results;
+                }
+                MainActivity.setNextPlayer(player, next);
+                long start = SystemClock.elapsedRealtime();
+                //交出surface之前关闭会取消交接
+                while (!MainActivity.isHandedOff(player) && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+                    Thread.sleep(POLL_MS);
+                }
+                MainActivity.getStats(player, stats);
+                long frameIntervalUs = stats[PlayerStats.FRAME_INTERVAL_US];
+                MainActivity.shutdown(player);
+                player = next;
+                next = 0;
+                //交接后第一帧渲染时记录间隔
+                do {
+                    Thread.sleep(POLL_MS);
+                    MainActivity.getStats(player, stats);
+                } while (stats[PlayerStats.FRAMES_RENDERED] == 0
+                        && SystemClock.elapsedRealtime() - start < TIMEOUT_MS);
+                JSONObject row = new JSONObject();
+                row.put("item", i);
+                row.put("handoverGapUs", stats[PlayerStats.HANDOVER_GAP_US]);
+                row.put("frameIntervalUs", frameIntervalUs);
+                row.put("nextOpenUs", stats[PlayerStats.OPEN_US]);
+                row.put("nextCodecPooled", stats[PlayerStats.CODEC_POOLED]);
+                Log.i(TAG, "playlist item " + i + " gap=" + stats[PlayerStats.HANDOVER_GAP_US]
+                        + "us interval=" + frameIntervalUs + "us");
+                transitions.put(row);
+            }
+            results.put("transitions", transitions);
+            return results;
+        } finally {
+            if (next != 0) {
+                MainActivity.setNextPlayer(player, 0);
+                MainActivity.shutdown(next);
+            }
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+            reader.close();
+            readerThread.quitSafely();
+        }
+    }
+
+    //循环播放LOOP_COUNT圈，回绕时解码器不flush，间隔应该和平时的帧间隔一样；
+    //之后分别在循环缓存生效和关掉循环时跳回开头，对比两者的耗时
+    private JSONObject runLoop() throws JSONException, InterruptedException, IOException {
+        JSONObject results = new JSONObject();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        if (video == null || video.width <= 0 || video.height <= 0) {
+            results.put("error", "no video size");
+            return results;
+        }
+        HandlerThread readerThread = new HandlerThread("BenchmarkImageReader");
+        readerThread.start();
+        ImageReader reader = newDrainingReader(video, new Handler(readerThread.getLooper()));
+        long player = 0;
+        try {
+            player = openPlayer(mContext.getAssets(), CLIP, reader.getSurface());
+            if (player == 0) {
+                results.put("error", "failed to create player");
+                return results;
+            }
+            MainActivity.setLooping(player, true);
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            long[] stats = new long[PlayerStats.COUNT];
+            long start = SystemClock.elapsedRealtime();
+            do {
+                Thread.sleep(POLL_MS);
+                MainActivity.getStats(player, stats);
+            } while (stats[PlayerStats.LOOPS] < LOOP_COUNT && !MainActivity.isEndOfStream(player)
+                    && SystemClock.elapsedRealtime() - start < TIMEOUT_MS * LOOP_COUNT);
+            results.put("durationUs", MainActivity.getDurationUs(player));
+            results.put("loops", stats[PlayerStats.LOOPS]);
+            results.put("loopGapUs", stats[PlayerStats.LOOP_GAP_US]);
+            results.put("loopGapMaxUs", stats[PlayerStats.LOOP_GAP_MAX_US]);
+            results.put("frameIntervalUs", stats[PlayerStats.FRAME_INTERVAL_US]);
+            results.put("framesDropped", stats[PlayerStats.FRAMES_DROPPED]);
+            results.put("avDriftUs", stats[PlayerStats.AV_DRIFT_US]);
+            results.put("loopCacheBytes", stats[PlayerStats.LOOP_CACHE_BYTES]);
+            results.put("audioLoopCacheBytes", stats[PlayerStats.AUDIO_LOOP_CACHE_BYTES]);
+            results.put("audioLoopAlignUs", stats[PlayerStats.AUDIO_LOOP_ALIGN_US]);
+            Log.i(TAG, "loop gap=" + stats[PlayerStats.LOOP_GAP_MAX_US] + "us interval="
+                    + stats[PlayerStats.FRAME_INTERVAL_US] + "us cache=" + stats[PlayerStats.LOOP_CACHE_BYTES]);
+
+            for (boolean cached : new boolean[]{true, false}) {
+                MainActivity.setLooping(player, cached);
+                long[] latencies = new long[REWIND_COUNT];
+                for (int i = 0; i < REWIND_COUNT; i++) {
+                    Thread.sleep(REWIND_PLAY_MS);
+                    MainActivity.seekTo(player, 0, MainActivity.SEEK_NEAREST_SYNC);
+                    latencies[i] = waitForSeek(player);
+                }
+                JSONObject summary = summarize(latencies);
+                Log.i(TAG, (cached ? "cached" : "uncached") + " rewind " + summary);
+                results.put(cached ? "cachedRewindUs" : "uncachedRewindUs", summary);
+            }
+            MainActivity.getStats(player, stats);
+            results.put("loopCacheSeeks", stats[PlayerStats.LOOP_CACHE_SEEKS]);
+            return results;
+        } finally {
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+            reader.close();
+            readerThread.quitSafely();
+        }
+    }
+
+    //逐帧计算亮度直方图，在looper线程上处理完立即归还，回调中不分配对象
+    private static class LumaHistogram implements MainActivity.FrameListener {
+        final long[] histogram = new long[256];
+        volatile int width;
+        volatile int height;
+        volatile int stride;
+        volatile int colorFormat;
+        volatile long frames;
+        volatile double fps;
+
+        @Override
+        public void onFormatChanged(int width, int height, int stride, int sliceHeight, int colorFormat) {
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.colorFormat = colorFormat;
+        }
+
+        @Override
+        public void onFrame(long player, long token, ByteBuffer frame, long ptsUs, double fps) {
+            //YUV420各种排列的Y平面都在最前面
+            int rows = Math.min(height, frame.capacity() / Math.max(stride, 1));
+            for (int y = 0; y < rows; y++) {
+                int row = y * stride;
+                for (int x = 0; x < width; x++) {
+                    histogram[frame.get(row + x) & 0xff]++;
+                }
+            }
+            frames++;
+            this.fps = fps;
+            MainActivity.releaseFrame(player, token);
+        }
+
+        double meanLuma() {
+            long count = 0;
+            long sum = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                count += histogram[i];
+                sum += histogram[i] * i;
+            }
+            return count > 0 ? (double) sum / count : 0;
+        }
+    }
+
+    //ByteBuffer输出模式解码到结尾，每帧在Java里读一遍Y平面
+    private JSONObject runFrameAnalysis() throws JSONException, InterruptedException {
+        JSONObject row = new JSONObject();
+        LumaHistogram analysis = new LumaHistogram();
+        PreparedLatch prepared = new PreparedLatch();
+        long gcStart = runtimeStat("art.gc.gc-count");
+        long allocStart = runtimeStat("art.gc.bytes-allocated");
+        long player = MainActivity.createFramePlayer(mContext.getAssets(), CLIP, FRAMES_IN_FLIGHT,
+                analysis, prepared);
+        if (player == 0) {
+            row.put("error", "failed to create player");
+            return row;
+        }
+        try {
+            if (!prepared.await()) {
+                row.put("error", "failed to open player");
+                return row;
+            }
+            long start = SystemClock.elapsedRealtime();
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            while (!MainActivity.isEndOfStream(player) && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+                Thread.sleep(POLL_MS);
+            }
+            long[] stats = new long[PlayerStats.COUNT];
+            MainActivity.getStats(player, stats);
+            row.put("width", analysis.width);
+            row.put("height", analysis.height);
+            row.put("stride", analysis.stride);
+            row.put("colorFormat", analysis.colorFormat);
+            row.put("frames", analysis.frames);
+            row.put("sustainedFps", analysis.fps);
+            row.put("meanLuma", analysis.meanLuma());
+            row.put("timeToFirstFrameUs", MainActivity.getFirstFrameLatencyUs(player));
+            row.put("stats", PlayerStats.toJson(stats));
+            row.put("gcCount", runtimeStat("art.gc.gc-count") - gcStart);
+            row.put("allocatedBytes", runtimeStat("art.gc.bytes-allocated") - allocStart);
+            Log.i(TAG, row.toString());
+            return row;
+        } finally {
+            MainActivity.shutdown(player);
+        }
+    }
+
+    //等待一组缩略图完成，cancelAfter张之后取消，-1表示不取消
+    private static class ThumbnailLatch implements ThumbnailEngine.Callback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int cancelAfter;
+
+        ThumbnailLatch(int cancelAfter) {
+            this.cancelAfter = cancelAfter;
+        }
+
+        @Override
+        public void onThumbnail(ThumbnailEngine.Request request, int index, long timeUs, Bitmap bitmap) {
+            if (cancelAfter >= 0 && request.completed() >= cancelAfter) {
+                request.cancel();
+            }
+        }
+
+        @Override
+        public void onFinished(ThumbnailEngine.Request request) {
+            latch.countDown();
+        }
+    }
+
+    private static JSONObject runThumbnailRequest(ThumbnailEngine engine, long[] timesUs, int cancelAfter)
+            throws JSONException, InterruptedException {
+        ThumbnailLatch done = new ThumbnailLatch(cancelAfter);
+        ThumbnailEngine.Request request = engine.request(CLIP, timesUs, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, done);
+        JSONObject row = new JSONObject();
+        row.put("finished", done.latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        row.put("completed", request.completed());
+        row.put("thumbnailsPerSecond", request.thumbnailsPerSecond());
+        return row;
+    }
+
+    //时间轴上均匀分布的缩略图：先清空两级缓存冷启动，再只清内存测磁盘缓存，最后直接从内存取；
+    //最后一轮在第一张之后取消，看取消后还会解码多少张
+    private JSONArray runThumbnails() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        if (video == null) {
+            return results;
+        }
+        long[] timesUs = new long[THUMBNAILS];
+        for (int i = 0; i < THUMBNAILS; i++) {
+            timesUs[i] = video.durationUs * i / THUMBNAILS;
+        }
+        for (int decoders : THUMBNAIL_DECODERS) {
+            ThumbnailEngine engine = new ThumbnailEngine(mContext, decoders, THUMBNAIL_MEMORY_BYTES,
+                    THUMBNAIL_DISK_BYTES);
+            try {
+                JSONObject row = new JSONObject();
+                row.put("decoders", decoders);
+                engine.clearDisk();
+                engine.clearMemory();
+                row.put("cold", runThumbnailRequest(engine, timesUs, -1));
+                engine.clearMemory();
+                row.put("disk", runThumbnailRequest(engine, timesUs, -1));
+                row.put("memory", runThumbnailRequest(engine, timesUs, -1));
+                engine.clearDisk();
+                engine.clearMemory();
+                row.put("cancelled", runThumbnailRequest(engine, timesUs, 1));
+                row.put("engine", engine.toJson());
+                Log.i(TAG, row.toString());
+                results.put(row);
+            } finally {
+                engine.shutdown();
+            }
+        }
+        return results;
+    }
+
+    //等待打开完成的回调
+    private static class PreparedLatch implements MainActivity.PlayerListener {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile boolean success;
+        volatile long preparedNs;
+
+        @Override
+        public void onPrepared(long player, boolean success) {
+            preparedNs = SystemClock.elapsedRealtimeNanos();
+            this.success = success;
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS) && success;
+        }
+    }
+
+    //创建播放器并等待打开完成，失败返回0
+    private static long openPlayer(AssetManager assets, String clip, Surface surface) throws InterruptedException {
+        PreparedLatch prepared = new PreparedLatch();
+        long player = MainActivity.createStreamingMediaPlayer(assets, clip, surface, prepared);
+        if (player != 0 && !prepared.await()) {
+            MainActivity.shutdown(player);
+            return 0;
+        }
+        return player;
+    }
+
+    //分别不使用和使用空闲解码器池，反复打开同一个片段并播放到首帧。createCallUs是调用线程(UI线程)被阻塞的时间，
+    //preparedUs和firstFrameUs都从调用createStreamingMediaPlayer算起，相当于从点击到打开完成、到首帧显示
+    private JSONArray runOpenLatency() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        if (video == null) {
+            return results;
+        }
+        String mime = "hvc1".equals(video.format) || "hev1".equals(video.format) ? "video/hevc" : "video/avc";
+        AssetManager assets = mContext.getAssets();
+        for (int poolSize : new int[]{0, DECODER_POOL_SIZE}) {
+            MainActivity.setDecoderPoolSize(poolSize);
+            if (poolSize > 0) {
+                MainActivity.prewarmDecoders(mime, video.width, video.height, poolSize);
+                long start = SystemClock.elapsedRealtime();
+                while (MainActivity.getPooledDecoderCount() < poolSize
+                        && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+                    Thread.sleep(POLL_MS);
+                }
+            }
+            long[] callUs = new long[OPEN_RUNS];
+            long[] preparedUs = new long[OPEN_RUNS];
+            long[] firstFrameUs = new long[OPEN_RUNS];
+            long[] codecUs = new long[OPEN_RUNS];
+            long[] stats = new long[PlayerStats.COUNT];
+            int pooled = 0;
+            for (int i = 0; i < OPEN_RUNS; i++) {
+                PreparedLatch prepared = new PreparedLatch();
+                long start = SystemClock.elapsedRealtimeNanos();
+                long player = MainActivity.createStreamingMediaPlayer(assets, CLIP, null, prepared);
+                callUs[i] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                if (player == 0) {
+                    Log.e(TAG, "failed to create player");
+                    return results;
+                }
+                try {
+                    //和点击播放一样，在打开完成之前就请求播放
+                    MainActivity.setPlayingStreamingMediaPlayer(player, true);
+                    if (!prepared.await()) {
+                        Log.e(TAG, "failed to open player");
+                        return results;
+                    }
+                    preparedUs[i] = (prepared.preparedNs - start) / 1000;
+                    long waitStart = SystemClock.elapsedRealtime();
+                    while ((firstFrameUs[i] = MainActivity.getFirstFrameLatencyUs(player)) < 0
+                            && SystemClock.elapsedRealtime() - waitStart < TIMEOUT_MS) {
+                        Thread.sleep(1);
+                    }
+                    MainActivity.getStats(player, stats);
+                    codecUs[i] = stats[PlayerStats.CODEC_CREATE_US];
+                    pooled += stats[PlayerStats.CODEC_POOLED];
+                } finally {
+                    //解码器放回池里(池大小为0时删除)，下一次打开可以取用
+                    MainActivity.shutdown(player);
+                }
+            }
+            JSONObject row = new JSONObject();
+            row.put("decoderPoolSize", poolSize);
+            row.put("pooledOpens", pooled);
+            row.put("createCallUs", summarize(callUs));
+            row.put("codecCreateUs", summarize(codecUs));
+            row.put("preparedUs", summarize(preparedUs));
+            row.put("firstFrameUs", summarize(firstFrameUs));
+            Log.i(TAG, row.toString());
+            results.put(row);
+        }
+        return results;
+    }
+
+    private Mp4SampleIndex.Track videoTrack(String clip) throws IOException {
+        AssetFileDescriptor afd = mContext.getAssets().openFd(clip);
+        try (FileInputStream in = afd.createInputStream()) {
+            return Mp4SampleIndex.parse(in.getChannel(), afd.getStartOffset(), afd.getLength())
+                    .findTrack("vide");
+        } finally {
+            afd.close();
+        }
+    }
+
+    //ART的运行时统计，取不到时返回0
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    //分别用两种方式依次seek到均匀分布的位置，统计从请求到目标帧显示的耗时；
+    //最后模拟拖动进度条，每16ms发一次快速seek，松手后发一次精确seek，只统计最后一次的耗时
+    private JSONObject runSeekLatency() throws JSONException, InterruptedException {
+        JSONObject results = new JSONObject();
+        long player = openPlayer(mContext.getAssets(), CLIP, null);
+        if (player == 0) {
+            Log.e(TAG, "failed to create player");
+            return results;
+        }
+        try {
+            long durationUs = MainActivity.getDurationUs(player);
+            results.put("durationUs", durationUs);
+            String[] names = {"nearestSync", "accurate"};
+            int[] modes = {MainActivity.SEEK_NEAREST_SYNC, MainActivity.SEEK_ACCURATE};
+            for (int m = 0; m < modes.length; m++) {
+                long[] latencies = new long[SEEK_COUNT];
+                for (int i = 0; i < SEEK_COUNT; i++) {
+                    long targetUs = durationUs * ((i * 7) % SEEK_COUNT) / SEEK_COUNT;
+                    MainActivity.seekTo(player, targetUs, modes[m]);
+                    latencies[i] = waitForSeek(player);
+                }
+                JSONObject summary = summarize(latencies);
+                Log.i(TAG, names[m] + " " + summary);
+                results.put(names[m], summary);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            long targetUs = 0;
+            for (int i = 0; SystemClock.elapsedRealtime() - start < 1000; i++) {
+                targetUs = durationUs * (i % 100) / 100;
+                MainActivity.seekTo(player, targetUs, MainActivity.SEEK_NEAREST_SYNC);
+                Thread.sleep(SCRUB_INTERVAL_MS);
+            }
+            MainActivity.seekTo(player, targetUs, MainActivity.SEEK_ACCURATE);
+            results.put("scrubSettleUs", waitForSeek(player));
+            return results;
+        } finally {
+            MainActivity.shutdown(player);
+        }
+    }
+
+    //播放一小段后暂停，统计从请求到looper线程处理、不再渲染新帧的耗时；再播放一小段后精确seek，统计到目标帧显示的耗时。
+    //不按时间戳时looper线程上一直有解码消息，控制消息排在它们前面，耗时应该和按时间戳播放时差不多
+    private JSONArray runControlLatency() throws JSONException, InterruptedException {
+        JSONArray results = new JSONArray();
+        for (boolean paced : new boolean[]{true, false}) {
+            long player = openPlayer(mContext.getAssets(), CLIP, null);
+            if (player == 0) {
+                Log.e(TAG, "failed to create player");
+                return results;
+            }
+            try {
+                MainActivity.setPacingEnabled(player, paced);
+                long durationUs = MainActivity.getDurationUs(player);
+                long[] before = new long[PlayerStats.COUNT];
+                long[] after = new long[PlayerStats.COUNT];
+                long[] pauses = new long[CONTROL_COUNT];
+                long[] seeks = new long[CONTROL_COUNT];
+                MainActivity.getStats(player, before);
+                long start = SystemClock.elapsedRealtime();
+                for (int i = 0; i < CONTROL_COUNT; i++) {
+                    MainActivity.setPlayingStreamingMediaPlayer(player, true);
+                    Thread.sleep(CONTROL_PLAY_MS);
+                    MainActivity.pauseStreamingMediaPlayer(player);
+                    pauses[i] = waitForPause(player);
+                    MainActivity.setPlayingStreamingMediaPlayer(player, true);
+                    Thread.sleep(CONTROL_PLAY_MS);
+                    //只在前半段seek，全速解码时也不会播完
+                    long targetUs = durationUs / 2 * ((i * 7) % CONTROL_COUNT) / CONTROL_COUNT;
+                    MainActivity.seekTo(player, targetUs, MainActivity.SEEK_ACCURATE);
+                    seeks[i] = waitForSeek(player);
+                }
+                long elapsedMs = SystemClock.elapsedRealtime() - start;
+                MainActivity.getStats(player, after);
+                JSONObject row = new JSONObject();
+                row.put("mode", paced ? "paced" : "unpaced");
+                row.put("decodedPerSecond",
+                        (after[PlayerStats.FRAMES_DECODED] - before[PlayerStats.FRAMES_DECODED]) * 1000.0 / elapsedMs);
+                row.put("pause", summarize(pauses));
+                row.put("seek", summarize(seeks));
+                Log.i(TAG, "control " + row);
+                results.put(row);
+            } finally {
+                MainActivity.shutdown(player);
+            }
+        }
+        return results;
+    }
+
+    //找不到某一类解码器时那一行只有error；指定的解码器configure失败时codecFallbacks大于0，
+    //codecKeys为空说明解码器不接受这些key、退回了原始格式
+    private JSONArray runProfiles() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        String mime = video != null ? CodecSelector.mimeForFormat(video.format) : null;
+        for (String kind : DECODER_KINDS) {
+            String codecName = null;
+            if (!"default".equals(kind)) {
+                codecName = mime != null ? CodecSelector.findDecoder(mime, "hardware".equals(kind)) : null;
+                if (codecName == null) {
+                    JSONObject row = new JSONObject();
+                    row.put("decoder", kind);
+                    row.put("error", "no " + kind + " decoder for " + mime);
+                    results.put(row);
+                    continue;
+                }
+            }
+            for (int i = 0; i < PROFILES.length; i++) {
+                JSONObject row = measureProfile(PROFILES[i], codecName);
+                row.put("decoder", kind);
+                row.put("profile", PROFILE_NAMES[i]);
+                Log.i(TAG, "profile " + row);
+                results.put(row);
+            }
+        }
+        return results;
+    }
+
+    private JSONObject measureProfile(int profile, String codecName) throws JSONException, InterruptedException {
+        JSONObject row = new JSONObject();
+        PreparedLatch prepared = new PreparedLatch();
+        long player = MainActivity.createPlayerWithProfile(mContext.getAssets(), CLIP, null, profile, codecName,
+                prepared);
+        try {
+            if (player == 0 || !prepared.await()) {
+                row.put("error", "failed to create player");
+                return row;
+            }
+            row.put("requestedCodec", codecName);
+            row.put("codecName", MainActivity.getCodecName(player));
+            row.put("codecKeys", MainActivity.getCodecKeys(player));
+            MainActivity.setPacingEnabled(player, false);
+            long cpuStart = Process.getElapsedCpuTime();
+            long start = SystemClock.elapsedRealtime();
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            long elapsed;
+            while (true) {
+                elapsed = SystemClock.elapsedRealtime() - start;
+                if (MainActivity.isEndOfStream(player) || elapsed > TIMEOUT_MS) {
+                    break;
+                }
+                Thread.sleep(POLL_MS);
+            }
+            long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+            long[] stats = new long[PlayerStats.COUNT];
+            MainActivity.getStats(player, stats);
+            long frames = stats[PlayerStats.FRAMES_RENDERED];
+            row.put("frames", frames);
+            row.put("fps", elapsed > 0 ? frames * 1000.0 / elapsed : 0);
+            //进程CPU时间，包括解码器在本进程里的线程(软件解码器)
+            row.put("cpuMsPerFrame", frames > 0 ? cpuMs / (double) frames : 0);
+            row.put("timedOut", elapsed > TIMEOUT_MS);
+            long[] latencies = new long[MAX_LATENCIES];
+            int count = MainActivity.getDecodeLatencies(player, latencies);
+            if (count > 0) {
+                row.put("decodeLatency", summarize(Arrays.copyOf(latencies, count)));
+            }
+            row.put("codecProfile", stats[PlayerStats.CODEC_PROFILE]);
+            row.put("codecFallbacks", stats[PlayerStats.CODEC_FALLBACKS]);
+            row.put("inputThrottled", stats[PlayerStats.INPUT_THROTTLED]);
+            return row;
+        } finally {
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+        }
+    }
+
+    private static class TranscodeLatch implements MainActivity.TranscodeListener {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile boolean success;
+
+        @Override
+        public void onTranscodeDone(long transcoder, boolean success) {
+            this.success = success;
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS) && success;
+        }
+    }
+
+    //同一个数据源转码到app私有目录，输出文件再用Mp4SampleIndex解析，检查视频轨的尺寸、样本数和有没有音频轨
+    private JSONArray runTranscode() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        Mp4SampleIndex.Track video = videoTrack(CLIP);
+        long source = MainActivity.openDataSource(mContext.getAssets(), CLIP);
+        if (source == 0) {
+            throw new IOException("failed to open " + CLIP);
+        }
+        try {
+            for (int divisor : TRANSCODE_DIVISORS) {
+                JSONObject row = new JSONObject();
+                int height = divisor == 1 ? 0 : video.height / divisor;
+                row.put("scaled", divisor != 1);
+                row.put("bitrateCap", TRANSCODE_BITRATE);
+                File output = new File(mContext.getFilesDir(), "transcode-" + divisor + ".mp4");
+                TranscodeLatch done = new TranscodeLatch();
+                long transcoder = MainActivity.startTranscode(source, output.getAbsolutePath(), 0, height,
+                        TRANSCODE_BITRATE, done);
+                if (transcoder == 0) {
+                    row.put("error", "failed to start transcoder");
+                    results.put(row);
+                    continue;
+                }
+                boolean success;
+                try {
+                    success = done.await();
+                    long[] stats = new long[TranscodeStats.COUNT];
+                    MainActivity.getTranscodeStats(transcoder, stats);
+                    row.put("success", success);
+                    row.put("stats", TranscodeStats.toJson(stats));
+                } finally {
+                    MainActivity.releaseTranscoder(transcoder);
+                }
+                row.put("fileBytes", output.length());
+                if (success) {
+                    Mp4SampleIndex index = Mp4SampleIndex.parse(output.getAbsolutePath());
+                    Mp4SampleIndex.Track encoded = index.findTrack("vide");
+                    if (encoded != null) {
+                        row.put("outputWidth", encoded.width);
+                        row.put("outputHeight", encoded.height);
+                        row.put("outputFrames", encoded.sampleCount);
+                    }
+                    Mp4SampleIndex.Track audio = index.findTrack("soun");
+                    row.put("outputAudioSamples", audio != null ? audio.sampleCount : 0);
+                }
+                Log.i(TAG, "transcode " + row);
+                results.put(row);
+            }
+        } finally {
+            MainActivity.closeDataSource(source);
+        }
+        return results;
+    }
+
+    //同一个数据源先后创建两个播放器，第二个不用重新打开文件；都不按时间戳解码到结尾
+    private JSONArray runDataSources() throws JSONException, InterruptedException, IOException {
+        JSONArray results = new JSONArray();
+        AssetManager assets = mContext.getAssets();
+        for (String kind : DATA_SOURCES) {
+            JSONObject row = new JSONObject();
+            row.put("source", kind);
+            LoopbackHttpServer server = null;
+            String uri = CLIP;
+            if ("file".equals(kind)) {
+                File copy = new File(mContext.getFilesDir(), "datasource.mp4");
+                copyAsset(CLIP, copy);
+                uri = copy.getAbsolutePath();
+            } else if ("http".equals(kind)) {
+                server = new LoopbackHttpServer(assets, CLIP, HTTP_LATENCY_MS);
+                uri = server.url(CLIP);
+            }
+            long source = 0;
+            try {
+                long start = SystemClock.elapsedRealtime();
+                source = MainActivity.openDataSource(assets, uri);
+                row.put("openMs", SystemClock.elapsedRealtime() - start);
+                if (source == 0) {
+                    row.put("error", "failed to open " + uri);
+                    results.put(row);
+                    continue;
+                }
+                JSONArray runs = new JSONArray();
+                for (int i = 0; i < 2; i++) {
+                    runs.put(decodeFromSource(source));
+                }
+                row.put("runs", runs);
+                long[] stats = new long[DataSourceStats.COUNT];
+                MainActivity.getDataSourceStats(source, stats);
+                row.put("stats", DataSourceStats.toJson(stats));
+                if (server != null) {
+                    row.put("httpRequests", server.requests());
+                    row.put("httpBytesServed", server.bytesServed());
+                }
+                Log.i(TAG, "datasource " + row);
+            } finally {
+                if (source != 0) {
+                    MainActivity.closeDataSource(source);
+                }
+                if (server != null) {
+                    server.close();
+                }
+            }
+            results.put(row);
+        }
+        return results;
+    }
+
+    private JSONObject decodeFromSource(long source) throws JSONException, InterruptedException {
+        JSONObject run = new JSONObject();
+        PreparedLatch prepared = new PreparedLatch();
+        long start = SystemClock.elapsedRealtime();
+        long player = MainActivity.createPlayerFromSource(source, null, prepared);
+        try {
+            if (player == 0 || !prepared.await()) {
+                run.put("error", "failed to create player");
+                return run;
+            }
+            run.put("preparedMs", SystemClock.elapsedRealtime() - start);
+            MainActivity.setPacingEnabled(player, false);
+            MainActivity.setPlayingStreamingMediaPlayer(player, true);
+            long elapsed;
+            while (true) {
+                elapsed = SystemClock.elapsedRealtime() - start;
+                if (MainActivity.isEndOfStream(player) || elapsed > TIMEOUT_MS) {
+                    break;
+                }
+                Thread.sleep(POLL_MS);
+            }
+            long[] stats = new long[PlayerStats.COUNT];
+            MainActivity.getStats(player, stats);
+            run.put("frames", stats[PlayerStats.FRAMES_RENDERED]);
+            run.put("fps", elapsed > 0 ? stats[PlayerStats.FRAMES_RENDERED] * 1000.0 / elapsed : 0);
+            run.put("demuxStarvations", stats[PlayerStats.DEMUX_STARVATIONS]);
+            run.put("readUs", stats[PlayerStats.READ_US]);
+            run.put("timedOut", elapsed > TIMEOUT_MS);
+            return run;
+        } finally {
+            if (player != 0) {
+                MainActivity.shutdown(player);
+            }
+        }
+    }
+
+    private void copyAsset(String clip, File dst) throws IOException {
+        InputStream in = mContext.getAssets().open(clip);
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    //每种速度从片段中间附近开始按时间戳播放TRICK_PLAY_MS，decodedPerSecond应该有上限，
+    //positionRatio是播放位置实际前进(倒放时后退)的距离和速度乘时间之比，接近1说明跟得上
+    private JSONArray runTrickPlay() throws JSONException, InterruptedException {
+        JSONArray results = new JSONArray();
+        long[] before = new long[PlayerStats.COUNT];
+        long[] after = new long[PlayerStats.COUNT];
+        for (float rate : TRICK_RATES) {
+            JSONObject row = new JSONObject();
+            row.put("rate", rate);
+            long player = openPlayer(mContext.getAssets(), CLIP, null);
+            if (player == 0) {
+                row.put("error", "failed to create player");
+                results.put(row);
+                continue;
+            }
+            try {
+                long durationUs = MainActivity.getDurationUs(player);
+                //倒放从靠近结尾的位置开始，留出倒放的距离
+                MainActivity.seekTo(player, rate < 0 ? durationUs * 9 / 10 : durationUs / 10,
+                        MainActivity.SEEK_NEAREST_SYNC);
+                waitForSeek(player);
+                MainActivity.setPlaybackRate(player, rate);
+                long startUs = MainActivity.getPositionUs(player);
+                MainActivity.getStats(player, before);
+                long start = SystemClock.elapsedRealtime();
+                MainActivity.setPlayingStreamingMediaPlayer(player, true);
+                Thread.sleep(TRICK_PLAY_MS);
+                long elapsedMs = SystemClock.elapsedRealtime() - start;
+                MainActivity.getStats(player, after);
+                long movedUs = MainActivity.getPositionUs(player) - startUs;
+                //到了开头或结尾之后不再前进，只和能走的距离比
+                long expectedUs = Math.min((long) (elapsedMs * 1000 * Math.abs(rate)),
+                        rate < 0 ? startUs : durationUs - startUs);
+                long decoded = after[PlayerStats.FRAMES_DECODED] - before[PlayerStats.FRAMES_DECODED];
+                row.put("decodedPerSecond", decoded * 1000.0 / elapsedMs);
+                row.put("rendered", after[PlayerStats.FRAMES_RENDERED] - before[PlayerStats.FRAMES_RENDERED]);
+                row.put("dropped", after[PlayerStats.FRAMES_DROPPED] - before[PlayerStats.FRAMES_DROPPED]);
+                row.put("samplesSkipped",
+                        after[PlayerStats.SAMPLES_SKIPPED] - before[PlayerStats.SAMPLES_SKIPPED]);
+                row.put("keyframeJumps",
+                        after[PlayerStats.KEYFRAME_JUMPS] - before[PlayerStats.KEYFRAME_JUMPS]);
+                row.put("positionRatio", expectedUs > 0 ? Math.abs(movedUs) / (double) expectedUs : 0);
+                Log.i(TAG, "trickplay " + row);
+            } finally {
+                MainActivity.shutdown(player);
+            }
+            results.put(row);
+        }
+        return results;
+    }
+
+    //等待最近一次seek的目标帧显示，返回耗时，超时返回-1
+    private static long waitForSeek(long player) throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            long latencyUs = MainActivity.getSeekLatencyUs(player);
+            if (latencyUs >= 0) {
+                return latencyUs;
+            }
+            Thread.sleep(1);
+        }
+        return -1;
+    }
+
+    //等待最近一次暂停生效，返回耗时，超时返回-1
+    private static long waitForPause(long player) throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            long latencyUs = MainActivity.getPauseLatencyUs(player);
+            if (latencyUs >= 0) {
+                return latencyUs;
+            }
+            Thread.sleep(1);
+        }
+        return -1;
+    }
+
+    private static JSONObject summarize(long[] latencies) throws JSONException {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        JSONObject summary = new JSONObject();
+        summary.put("p50Us", sorted[sorted.length / 2]);
+        summary.put("p90Us", sorted[sorted.length * 9 / 10]);
+        summary.put("p99Us", sorted[sorted.length * 99 / 100]);
+        summary.put("maxUs", sorted[sorted.length - 1]);
+        return summary;
+    }
+
+    //在设备上反复解析测试片段，统计解析耗时和索引占用的堆内存；大文件的解析和分配由Mp4SampleIndexTest检查
+    private JSONObject runSampleTableParse() throws JSONException, IOException {
+        JSONObject results = new JSONObject();
+        long[] times = new long[PARSE_ITERATIONS];
+        Mp4SampleIndex index = null;
+        for (int i = 0; i < PARSE_ITERATIONS; i++) {
+            AssetFileDescriptor afd = mContext.getAssets().openFd(CLIP);
+            try (FileInputStream in = afd.createInputStream()) {
+                long start = System.nanoTime();
+                index = Mp4SampleIndex.parse(in.getChannel(), afd.getStartOffset(), afd.getLength());
+                times[i] = (System.nanoTime() - start) / 1000;
+            } finally {
+                afd.close();
+            }
+        }
+        JSONObject clip = summarize(times);
+        clip.put("samples", totalSamples(index));
+        clip.put("footprintBytes", footprint(index));
+        results.put("clip", clip);
+        return results;
+    }
+
+    private static long totalSamples(Mp4SampleIndex index) {
+        long samples = 0;
+        for (Mp4SampleIndex.Track track : index.tracks) {
+            samples += track.sampleCount;
+        }
+        return samples;
+    }
+
+    private static long footprint(Mp4SampleIndex index) {
+        long bytes = 0;
+        for (Mp4SampleIndex.Track track : index.tracks) {
+            bytes += track.footprintBytes();
+        }
+        return bytes;
+    }
+
+    private static boolean allFinished(long[] players) {
+        for (long player : players) {
+            if (!MainActivity.isEndOfStream(player)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void report(String name, Object results) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("benchmark", name);
+        result.put("device", Build.MODEL);
+        result.put("fingerprint", Build.FINGERPRINT);
+        result.put("sdk", Build.VERSION.SDK_INT);
+        result.put("results", results);
+        String json = result.toString(2);
+        Log.i(TAG, json);
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        File out = new File(dir, "benchmark-" + name + ".json");
+        try (FileWriter writer = new FileWriter(out)) {
+            writer.write(json);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to write " + out, e);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+//
+// 音频轨道的实现。音频线程负责解码和所有的流状态变化(开始、暂停、seek时清空、断开后重新打开)，
+// AAudio回调只从环形缓冲区复制PCM并记下播出位置和时间戳的对应关系，不加锁、不分配内存
+//
+
+#include "audiotrack.h"
+#include "playbackclock.h"
+#include "tracing.h"
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <algorithm>
+
+#define TAG "NativeCodec-audio"
+#include "logging.h"
+
+//环形缓冲区能放的PCM时长
+#define kRingDurationMs 250
+//开始播放之前至少缓冲这么多个burst，避免刚开始就欠载
+#define kPrefillBursts 2
+//没有进展时最多等这么久再检查一次环形缓冲区
+#define kIdleWaitNs 5000000LL
+//暂停后等回调停下的时间上限
+#define kPauseTimeoutNs 100000000LL
+//循环播放时PCM和时间戳的偏差超过这么多才补静音或丢掉重叠部分，小于它的是时间戳取整误差
+#define kLoopAlignUs 1000
+
+//
+// pcmring
+//
+
+pcmring::pcmring(){
+    data = NULL;
+    capacity = 0;
+    channels = 0;
+    samplerate = 0;
+    readpos.store(0);
+    writepos.store(0);
+    basepos.store(-1);
+    baseptsUs.store(0);
+}
+
+pcmring::~pcmring(){
+    delete[] data;
+}
+
+void pcmring::init(int32_t frames, int32_t channels, int32_t samplerate) {
+    delete[] data;
+    data = new int16_t[(size_t) frames * channels];
+    capacity = frames;
+    this->channels = channels;
+    this->samplerate = samplerate;
+    readpos.store(0);
+    writepos.store(0);
+    basepos.store(-1);
+}
+
+int32_t pcmring::writable() const {
+    return capacity - (int32_t) (writepos.load(std::memory_order_relaxed) - readpos.load(std::memory_order_acquire));
+}
+
+int32_t pcmring::readable() const {
+    return (int32_t) (writepos.load(std::memory_order_acquire) - readpos.load(std::memory_order_relaxed));
+}
+
+int32_t pcmring::write(const int16_t *pcm, int32_t frames, int64_t ptsUs) {
+    int64_t w = writepos.load(std::memory_order_relaxed);
+    int32_t n = std::min(frames, writable());
+    if (n <= 0){
+        return 0;
+    }
+    if (basepos.load(std::memory_order_relaxed) < 0){
+        //随下面writepos的release一起对消费者可见
+        baseptsUs.store(ptsUs, std::memory_order_relaxed);
+        basepos.store(w, std::memory_order_relaxed);
+    }
+    int32_t start = (int32_t) (w % capacity);
+    int32_t first = std::min(n, capacity - start);
+    if (pcm){
+        memcpy(data + (size_t) start * channels, pcm, (size_t) first * channels * sizeof(int16_t));
+        if (n > first){
+            memcpy(data, pcm + (size_t) first * channels, (size_t) (n - first) * channels * sizeof(int16_t));
+        }
+    } else{
+        memset(data + (size_t) start * channels, 0, (size_t) first * channels * sizeof(int16_t));
+        if (n > first){
+            memset(data, 0, (size_t) (n - first) * channels * sizeof(int16_t));
+        }
+    }
+    writepos.store(w + n, std::memory_order_release);
+    return n;
+}
+
+int64_t pcmring::nextPtsUs() const {
+    int64_t base = basepos.load(std::memory_order_relaxed);
+    if (base < 0){
+        return -1;
+    }
+    return baseptsUs.load(std::memory_order_relaxed)
+           + (writepos.load(std::memory_order_relaxed) - base) * 1000000 / samplerate;
+}
+
+int32_t pcmring::read(int16_t *dst, int32_t frames, int64_t *ptsUs) {
+    int64_t r = readpos.load(std::memory_order_relaxed);
+    int32_t n = std::min(frames, readable());
+    if (n <= 0){
+        return 0;
+    }
+    *ptsUs = baseptsUs.load(std::memory_order_relaxed)
+             + (r - basepos.load(std::memory_order_relaxed)) * 1000000 / samplerate;
+    int32_t start = (int32_t) (r % capacity);
+    int32_t first = std::min(n, capacity - start);
+    memcpy(dst, data + (size_t) start * channels, (size_t) first * channels * sizeof(int16_t));
+    if (n > first){
+        memcpy(dst + (size_t) first * channels, data, (size_t) (n - first) * channels * sizeof(int16_t));
+    }
+    readpos.store(r + n, std::memory_order_release);
+    return n;
+}
+
+void pcmring::clear() {
+    readpos.store(writepos.load());
+    basepos.store(-1);
+}
+
+//
+// audiotrack
+//
+
+void* audiotrack::trampoline(void *p) {
+    ((audiotrack*)p)->loop();
+    return NULL;
+}
+
+audiotrack::audiotrack(playerstats *stats){
+    this->stats = stats;
+    codec = NULL;
+    demux = NULL;
+    samplerate = 0;
+    channels = 0;
+    trackdurationUs = 0;
+    looping.store(false);
+    pthread_mutex_init(&streamlock, NULL);
+    stream = NULL;
+    burstframes = 0;
+    lastxruns = 0;
+    running = false;
+    pthread_mutex_init(&lock, NULL);
+    pthread_cond_init(&cond, NULL);
+    quit = false;
+    playing = false;
+    enabled = true;
+    seekpending = false;
+    seekUs = 0;
+    wake = false;
+    started = false;
+    sawInputEOS = false;
+    sawOutputEOS = false;
+    pendinginput = -1;
+    pendingoutput = -1;
+    outputoffset = 0;
+    skipuntilUs = -1;
+    silenceframes = 0;
+    clockvalid.store(false);
+    startNs.store(0);
+    anchorseq.store(0);
+    anchorframe.store(-1);
+    anchorptsUs.store(0);
+    eos.store(false);
+    disconnected.store(false);
+}
+
+audiotrack::~audiotrack(){
+    pthread_mutex_lock(&lock);
+    quit = true;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+    if (running){
+        pthread_join(worker, NULL);
+    }
+    closeStream();
+    //删除预读线程和extractor，之后不会再有onDemuxData
+    delete demux;
+    if (codec){
+        AMediaCodec_stop(codec);
+        AMediaCodec_delete(codec);
+    }
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&lock);
+    pthread_mutex_destroy(&streamlock);
+}
+
+bool audiotrack::open(datasource *source, int track) {
+    AMediaExtractor *ex = openExtractor(source);
+    if (!ex){
+        return false;
+    }
+    AMediaFormat *format = AMediaExtractor_getTrackFormat(ex, track);
+    const char *mime = NULL;
+    if (AMediaFormat_getString(format, AMEDIAFORMAT_KEY_MIME, &mime)
+            && AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, &samplerate)
+            && AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, &channels)){
+        AMediaFormat_getInt64(format, AMEDIAFORMAT_KEY_DURATION, &trackdurationUs);
+        codec = AMediaCodec_createDecoderByType(mime);
+        if (codec && AMediaCodec_configure(codec, format, NULL, NULL, 0) != AMEDIA_OK){
+            LOGE("failed to configure %s decoder", mime);
+            AMediaCodec_delete(codec);
+            codec = NULL;
+        }
+    }
+    AMediaFormat_delete(format);
+    if (!codec || !openStream()){
+        LOGE("audio track %d unavailable, playing video only", track);
+        closeExtractor(ex);
+        return false;
+    }
+
+    AMediaExtractor_selectTrack(ex, track);
+    demux = new demuxer(ex, &demuxstats);
+    demux->setDataCallback(onDemuxData, this);
+    ring.init(samplerate * kRingDurationMs / 1000, channels, samplerate);
+    AMediaCodec_start(codec);
+    demux->start();
+    running = pthread_create(&worker, NULL, trampoline, this) == 0;
+    return running;
+}
+
+bool audiotrack::openStream() {
+    AAudioStreamBuilder *builder = NULL;
+    if (AAudio_createStreamBuilder(&builder) != AAUDIO_OK){
+        return false;
+    }
+    AAudioStreamBuilder_setPerformanceMode(builder, AAUDIO_PERFORMANCE_MODE_LOW_LATENCY);
+    //独占模式拿不到时AAudio自动退回共享模式
+    AAudioStreamBuilder_setSharingMode(builder, AAUDIO_SHARING_MODE_EXCLUSIVE);
+    AAudioStreamBuilder_setFormat(builder, AAUDIO_FORMAT_PCM_I16);
+    AAudioStreamBuilder_setSampleRate(builder, samplerate);
+    AAudioStreamBuilder_setChannelCount(builder, channels);
+    AAudioStreamBuilder_setDataCallback(builder, onData, this);
+    AAudioStreamBuilder_setErrorCallback(builder, onError, this);
+    AAudioStream *s = NULL;
+    aaudio_result_t result = AAudioStreamBuilder_openStream(builder, &s);
+    AAudioStreamBuilder_delete(builder);
+    if (result != AAUDIO_OK){
+        LOGE("failed to open audio stream: %s", AAudio_convertResultToText(result));
+        return false;
+    }
+    burstframes = AAudioStream_getFramesPerBurst(s);
+    //从两个burst的设备缓冲区开始，欠载时在tuneBufferSize里加大
+    AAudioStream_setBufferSizeInFrames(s, burstframes * 2);
+    lastxruns = AAudioStream_getXRunCount(s);
+    LOGI("audio stream %d Hz %d ch, burst %d frames, %s", AAudioStream_getSampleRate(s),
+         AAudioStream_getChannelCount(s), burstframes,
+         AAudioStream_getSharingMode(s) == AAUDIO_SHARING_MODE_EXCLUSIVE ? "exclusive" : "shared");
+    pthread_mutex_lock(&streamlock);
+    stream = s;
+    pthread_mutex_unlock(&streamlock);
+    return true;
+}
+
+void audiotrack::closeStream() {
+    clockvalid.store(false);
+    started = false;
+    pthread_mutex_lock(&streamlock);
+    AAudioStream *s = stream;
+    stream = NULL;
+    pthread_mutex_unlock(&streamlock);
+    if (s){
+        AAudioStream_requestStop(s);
+        AAudioStream_close(s);
+    }
+}
+
+void audiotrack::stopStream() {
+    clockvalid.store(false);
+    if (!stream){
+        return;
+    }
+    if (started){
+        started = false;
+        AAudioStream_requestPause(stream);
+        aaudio_stream_state_t state = AAUDIO_STREAM_STATE_PAUSING;
+        while (state == AAUDIO_STREAM_STATE_PAUSING){
+            if (AAudioStream_waitForStateChange(stream, state, &state, kPauseTimeoutNs) != AAUDIO_OK){
+                break;
+            }
+        }
+    }
+    //暂停状态下才能flush，设备里还没播出的数据一起丢弃
+    AAudioStream_requestFlush(stream);
+}
+
+void audiotrack::setPlaying(bool playing) {
+    pthread_mutex_lock(&lock);
+    this->playing = playing;
+    wake = true;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
+
+void audiotrack::seekTo(int64_t timeUs) {
+    pthread_mutex_lock(&lock);
+    seekpending = true;
+    seekUs = timeUs;
+    wake = true;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
+
+void audiotrack::setRate(float rate, int64_t positionUs) {
+    pthread_mutex_lock(&lock);
+    bool normal = rate == 1.0f;
+    if (normal && !enabled){
+        //静音期间视频已经走到别处，从视频的位置重新开始
+        seekpending = true;
+        seekUs = positionUs;
+    }
+    enabled = normal;
+    wake = true;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
+
+void audiotrack::setLoop(bool loop, int64_t periodUs) {
+    looping.store(loop);
+    if (demux){
+        demux->setLoop(loop, periodUs);
+    }
+}
+
+int64_t audiotrack::durationUs() const {
+    return trackdurationUs;
+}
+
+int64_t audiotrack::masterTime(void *userdata, int64_t nowNs) {
+    return ((audiotrack*)userdata)->mediaTimeUs(nowNs);
+}
+
+int64_t audiotrack::mediaTimeUs(int64_t nowNs) {
+    if (!clockvalid.load(std::memory_order_acquire)){
+        return -1;
+    }
+    int64_t frame = 0;
+    int64_t timeNs = 0;
+    int64_t written = 0;
+    aaudio_result_t result = AAUDIO_ERROR_INVALID_STATE;
+    pthread_mutex_lock(&streamlock);
+    if (stream){
+        result = AAudioStream_getTimestamp(stream, CLOCK_MONOTONIC, &frame, &timeNs);
+        written = AAudioStream_getFramesWritten(stream);
+    }
+    pthread_mutex_unlock(&streamlock);
+    //恢复播放后设备还没给出新的时间戳时，旧的时间戳不能用来外推
+    if (result != AAUDIO_OK || timeNs < startNs.load(std::memory_order_relaxed)){
+        return -1;
+    }
+    int64_t aframe, aptsUs;
+    uint32_t seq;
+    do {
+        seq = anchorseq.load(std::memory_order_acquire);
+        aframe = anchorframe.load(std::memory_order_relaxed);
+        aptsUs = anchorptsUs.load(std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_acquire);
+    } while ((seq & 1) || seq != anchorseq.load(std::memory_order_relaxed));
+    if (aframe < 0){
+        return -1;
+    }
+    stats->set(kStatAudioLatencyUs, (written - frame) * 1000000 / samplerate - (nowNs - timeNs) / 1000);
+    return aptsUs + (frame - aframe) * 1000000 / samplerate + (nowNs - timeNs) / 1000;
+}
+
+//回调线程是唯一的写者，seek时音频线程在回调停下之后才重置
+static void publishAnchor(std::atomic<uint32_t> *seq, std::atomic<int64_t> *frame, std::atomic<int64_t> *ptsUs,
+                          int64_t f, int64_t p){
+    uint32_t s = seq->load(std::memory_order_relaxed);
+    seq->store(s + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+    frame->store(f, std::memory_order_relaxed);
+    ptsUs->store(p, std::memory_order_relaxed);
+    seq->store(s + 2, std::memory_order_release);
+}
+
+aaudio_data_callback_result_t audiotrack::onData(AAudioStream *stream, void *userdata, void *audioData,
+        int32_t numFrames) {
+    audiotrack *t = (audiotrack*) userdata;
+    int64_t startNs = systemnanotime();
+    int16_t *out = (int16_t*) audioData;
+    //这次回调写的第一帧在流里的序号，和getTimestamp返回的位置是同一个序号
+    int64_t written = AAudioStream_getFramesWritten(stream);
+    int64_t ptsUs = 0;
+    int32_t n = t->ring.read(out, numFrames, &ptsUs);
+    if (n > 0){
+        publishAnchor(&t->anchorseq, &t->anchorframe, &t->anchorptsUs, written, ptsUs);
+    }
+    if (n < numFrames){
+        memset(out + (size_t) n * t->channels, 0, (size_t) (numFrames - n) * t->channels * sizeof(int16_t));
+        if (!t->eos.load(std::memory_order_relaxed)){
+            t->stats->add(kStatAudioUnderruns, 1);
+        }
+    }
+    int64_t elapsedUs = (systemnanotime() - startNs) / 1000;
+    if (elapsedUs > t->stats->get(kStatAudioCallbackUs)){
+        t->stats->set(kStatAudioCallbackUs, elapsedUs);
+    }
+    return AAUDIO_CALLBACK_RESULT_CONTINUE;
+}
+
+//不能在错误回调里关闭流，交给音频线程
+void audiotrack::onError(AAudioStream *stream, void *userdata, aaudio_result_t error) {
+    audiotrack *t = (audiotrack*) userdata;
+    LOGW("audio stream error: %s", AAudio_convertResultToText(error));
+    if (error == AAUDIO_ERROR_DISCONNECTED){
+        t->disconnected.store(true);
+        pthread_mutex_lock(&t->lock);
+        t->wake = true;
+        pthread_cond_signal(&t->cond);
+        pthread_mutex_unlock(&t->lock);
+    }
+}
+
+void audiotrack::onDemuxData(void *userdata) {
+    audiotrack *t = (audiotrack*) userdata;
+    pthread_mutex_lock(&t->lock);
+    t->wake = true;
+    pthread_cond_signal(&t->cond);
+    pthread_mutex_unlock(&t->lock);
+}
+
+void audiotrack::flushForSeek(int64_t timeUs) {
+    stopStream();
+    //回调已经停下，可以在这个线程上重置锚点和环形缓冲区
+    publishAnchor(&anchorseq, &anchorframe, &anchorptsUs, -1, 0);
+    ring.clear();
+    AMediaCodec_flush(codec);
+    pendinginput = -1;
+    pendingoutput = -1;
+    demux->seekTo(timeUs, AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+    skipuntilUs = timeUs;
+    silenceframes = 0;
+    sawInputEOS = false;
+    sawOutputEOS = false;
+    eos.store(false);
+    LOGD("audio restart at %lld", (long long) timeUs);
+}
+
+//设备缓冲区欠载时加大一个burst，用尽量小的延迟换不欠载
+void audiotrack::tuneBufferSize() {
+    int32_t xruns = AAudioStream_getXRunCount(stream);
+    if (xruns <= lastxruns){
+        return;
+    }
+    stats->add(kStatAudioXRuns, xruns - lastxruns);
+    lastxruns = xruns;
+    int32_t size = AAudioStream_getBufferSizeInFrames(stream);
+    if (size + burstframes <= AAudioStream_getBufferCapacityInFrames(stream)){
+        size = AAudioStream_setBufferSizeInFrames(stream, size + burstframes);
+        LOGI("audio underrun, buffer now %d frames", size);
+    }
+}
+
+bool audiotrack::pump() {
+    bool progress = false;
+    if (!sawInputEOS){
+        if (pendinginput < 0){
+            pendinginput = AMediaCodec_dequeueInputBuffer(codec, 0);
+        }
+        if (pendinginput >= 0){
+            size_t capacity = 0;
+            uint8_t *buf = AMediaCodec_getInputBuffer(codec, pendinginput, &capacity);
+            demuxslot sample;
+            if (buf && demux->read(buf, capacity, &sample)){
+                AMediaCodec_queueInputBuffer(codec, pendinginput, 0, sample.size, sample.eos ? 0 : sample.ptsUs,
+                        sample.eos ? AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM : 0);
+                sawInputEOS = sample.eos;
+                pendinginput = -1;
+                progress = true;
+                stats->set(kStatAudioLoopCacheBytes, demuxstats.get(kStatLoopCacheBytes));
+            }
+        }
+    }
+
+    if (!sawOutputEOS && pendingoutput < 0){
+        ssize_t status = AMediaCodec_dequeueOutputBuffer(codec, &pendinginfo, 0);
+        if (status >= 0){
+            pendingoutput = status;
+            outputoffset = 0;
+            progress = true;
+        } else if (status == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED){
+            AMediaFormat *format = AMediaCodec_getOutputFormat(codec);
+            int32_t rate = samplerate;
+            int32_t count = channels;
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, &rate);
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, &count);
+            AMediaFormat_delete(format);
+            if (rate != samplerate || count != channels){
+                //比如HE-AAC解码后的采样率是容器里写的两倍，按实际输出重新打开流
+                LOGI("audio output %d Hz %d ch, reopening stream", rate, count);
+                closeStream();
+                samplerate = rate;
+                channels = count;
+                ring.init(samplerate * kRingDurationMs / 1000, channels, samplerate);
+                publishAnchor(&anchorseq, &anchorframe, &anchorptsUs, -1, 0);
+                silenceframes = 0;
+                if (!openStream()){
+                    LOGE("audio stream unavailable");
+                }
+            }
+            progress = true;
+        }
+    }
+
+    if (pendingoutput >= 0){
+        size_t size = 0;
+        uint8_t *buf = AMediaCodec_getOutputBuffer(codec, pendingoutput, &size);
+        int32_t total = buf ? pendinginfo.size / (channels * (int32_t) sizeof(int16_t)) : 0;
+        if (skipuntilUs >= 0 && outputoffset == 0 && total > 0){
+            //精确seek：目标之前的PCM不播放
+            int64_t skip = (skipuntilUs - pendinginfo.presentationTimeUs) * samplerate / 1000000;
+            outputoffset = (int32_t) std::min(std::max(skip, (int64_t) 0), (int64_t) total);
+            if (outputoffset < total){
+                skipuntilUs = -1;
+            }
+        } else if (looping.load(std::memory_order_relaxed) && outputoffset == 0 && total > 0
+                && ring.nextPtsUs() >= 0){
+            //环形缓冲区按帧数推算时间戳，每圈的音频和周期对不齐时补静音或丢掉重叠的部分，声音不会越来越偏离画面
+            int64_t driftUs = pendinginfo.presentationTimeUs - ring.nextPtsUs();
+            if (driftUs >= kLoopAlignUs){
+                silenceframes = (int32_t) (driftUs * samplerate / 1000000);
+                stats->set(kStatAudioLoopAlignUs, driftUs);
+            } else if (driftUs <= -kLoopAlignUs){
+                outputoffset = (int32_t) std::min(-driftUs * samplerate / 1000000, (int64_t) total);
+                stats->set(kStatAudioLoopAlignUs, driftUs);
+            }
+        }
+        if (silenceframes > 0){
+            int32_t n = ring.write(NULL, silenceframes, 0);
+            silenceframes -= n;
+            progress = progress || n > 0;
+        }
+        if (silenceframes == 0 && outputoffset < total){
+            const int16_t *pcm = (const int16_t*) (buf + pendinginfo.offset);
+            int64_t ptsUs = pendinginfo.presentationTimeUs + (int64_t) outputoffset * 1000000 / samplerate;
+            int32_t n = ring.write(pcm + (size_t) outputoffset * channels, total - outputoffset, ptsUs);
+            outputoffset += n;
+            progress = progress || n > 0;
+            traceCounter("audio ring frames", ring.readable());
+        }
+        if (silenceframes == 0 && outputoffset >= total){
+            AMediaCodec_releaseOutputBuffer(codec, pendingoutput, false);
+            if (pendinginfo.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM){
+                sawOutputEOS = true;
+                eos.store(true);
+                LOGD("audio output EOS");
+            }
+            pendingoutput = -1;
+            progress = true;
+        }
+    }
+    return progress;
+}
+
+void audiotrack::loop() {
+    pthread_mutex_lock(&lock);
+    while (!quit){
+        bool seek = seekpending;
+        int64_t targetUs = seekUs;
+        seekpending = false;
+        bool play = playing && enabled;
+        wake = false;
+        pthread_mutex_unlock(&lock);
+
+        if (disconnected.exchange(false)){
+            //换了输出设备，缓冲的PCM留着，在新的流上接着播
+            LOGW("audio stream disconnected, reopening");
+            closeStream();
+            publishAnchor(&anchorseq, &anchorframe, &anchorptsUs, -1, 0);
+            if (!openStream()){
+                LOGE("audio stream unavailable");
+            }
+        }
+        if (seek){
+            flushForSeek(targetUs);
+        }
+        if (!play && started){
+            //不flush，恢复时设备里没播完的数据接着播
+            clockvalid.store(false);
+            started = false;
+            AAudioStream_requestPause(stream);
+        }
+        if (play && !started && stream && (ring.readable() >= burstframes * kPrefillBursts || sawOutputEOS)){
+            startNs.store(systemnanotime());
+            if (AAudioStream_requestStart(stream) == AAUDIO_OK){
+                started = true;
+                clockvalid.store(true);
+            }
+        }
+        if (started){
+            tuneBufferSize();
+        }
+        bool progress;
+        {
+            TRACE_SCOPE("audio decode");
+            progress = pump();
+        }
+
+        pthread_mutex_lock(&lock);
+        if (!progress && !wake && !quit && !started && ring.writable() == 0){
+            //暂停并且缓冲满了，等命令
+            pthread_cond_wait(&cond, &lock);
+        } else if (!progress && !wake && !quit){
+            //环形缓冲区满了或者在等样本、等解码，过一会儿再看回调取走了多少
+            timespec deadline;
+            clock_gettime(CLOCK_REALTIME, &deadline);
+            deadline.tv_nsec += kIdleWaitNs;
+            if (deadline.tv_nsec >= 1000000000){
+                deadline.tv_sec++;
+                deadline.tv_nsec -= 1000000000;
+            }
+            pthread_cond_timedwait(&cond, &lock, &deadline);
+        }
+    }
+    pthread_mutex_unlock(&lock);
+}
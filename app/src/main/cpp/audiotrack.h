@@ -0,0 +1,147 @@
+//
+// 音频轨道：在自己的线程上把音频样本解码成PCM，经过无锁环形缓冲区交给AAudio的低延迟回调播放。
+// AAudioStream_getTimestamp换算出的播放位置作为主时钟，视频按它安排显示时间
+//
+
+#pragma once
+
+#include <pthread.h>
+#include <stdint.h>
+#include <atomic>
+
+#include <aaudio/AAudio.h>
+
+#include "datasource.h"
+#include "demuxer.h"
+#include "playerstats.h"
+#include "media/NdkMediaCodec.h"
+
+//PCM环形缓冲区：一个生产者(音频解码线程)、一个消费者(AAudio回调)，读写位置都是只增不减的帧序号，不加锁。
+//缓冲区里的PCM按时间戳连续，第一帧的时间戳在clear之后第一次写入时记下，之后的帧按采样率推算
+class pcmring {
+    public:pcmring();
+        pcmring& operator = (const pcmring& ) = delete;
+        pcmring(pcmring&) = delete;
+        ~pcmring();
+
+        void init(int32_t frames, int32_t channels, int32_t samplerate);
+        //以下只在生产者线程调用
+        int32_t writable() const;
+        //写入最多frames帧，返回写入的帧数；ptsUs为pcm第一帧的时间戳，pcm为NULL时写入静音
+        int32_t write(const int16_t *pcm, int32_t frames, int64_t ptsUs);
+        //下一帧写入的PCM按缓冲区的时间线推算的时间戳，clear之后还没写入时返回-1
+        int64_t nextPtsUs() const;
+        //以下只在消费者线程调用，回调不运行时也可以在生产者线程调用
+        int32_t readable() const;
+        //读出最多frames帧，返回读出的帧数，ptsUs为读出的第一帧的时间戳
+        int32_t read(int16_t *dst, int32_t frames, int64_t *ptsUs);
+        //丢弃所有数据，只能在回调停下时调用
+        void clear();
+
+    private:
+        int16_t *data;
+        int32_t capacity;
+        int32_t channels;
+        int32_t samplerate;
+        std::atomic<int64_t> readpos;
+        std::atomic<int64_t> writepos;
+        //basepos处那一帧的时间戳，clear之后第一次写入时设置
+        std::atomic<int64_t> basepos;
+        std::atomic<int64_t> baseptsUs;
+};
+
+class audiotrack {
+    public:audiotrack(playerstats *stats);
+        audiotrack& operator = (const audiotrack& ) = delete;
+        audiotrack(audiotrack&) = delete;
+        //停止音频线程，关闭AAudio流、解码器和extractor
+        ~audiotrack();
+
+        //在looper线程上打开第track个轨道，建立解码器和AAudio流并启动音频线程，失败返回false
+        bool open(datasource *source, int track);
+        //以下可以在任意线程调用，实际操作在音频线程上进行
+        void setPlaying(bool playing);
+        //丢弃缓冲的音频，从timeUs处(之前的PCM不播放)重新开始
+        void seekTo(int64_t timeUs);
+        //音频不做变速，非1倍速时静音、不再作为主时钟；回到1倍速时从positionUs重新开始
+        void setRate(float rate, int64_t positionUs);
+        //循环播放，periodUs和视频用同一个周期，每圈之间的空隙补静音、重叠的部分丢掉，PCM始终和时间戳对齐
+        void setLoop(bool loop, int64_t periodUs);
+        //容器里记录的轨道时长，没有时为0
+        int64_t durationUs() const;
+
+        //按音频实际播出的位置，nowNs时刻应该显示的时间戳。暂停、seek之后还没出声、流还没有时间戳时返回-1
+        int64_t mediaTimeUs(int64_t nowNs);
+        //playbackclock的主时钟回调，userdata为audiotrack
+        static int64_t masterTime(void *userdata, int64_t nowNs);
+
+    private:
+        static void* trampoline(void *p);
+        static aaudio_data_callback_result_t onData(AAudioStream *stream, void *userdata, void *audioData,
+                int32_t numFrames);
+        static void onError(AAudioStream *stream, void *userdata, aaudio_result_t error);
+        static void onDemuxData(void *userdata);
+        void loop();
+        bool openStream();
+        void closeStream();
+        //暂停并清空设备里的数据，返回时回调已经停下
+        void stopStream();
+        //送一个样本、取一个输出缓冲区写进环形缓冲区，有进展返回true
+        bool pump();
+        void flushForSeek(int64_t timeUs);
+        void tuneBufferSize();
+
+        playerstats *stats;
+        //音频预读线程的计数，不混进视频的统计
+        playerstats demuxstats;
+        AMediaCodec *codec;
+        demuxer *demux;
+        pcmring ring;
+        int32_t samplerate;
+        int32_t channels;
+        int64_t trackdurationUs;
+        std::atomic<bool> looping;
+
+        //stream在重新打开时由streamlock保护，回调里不加锁
+        pthread_mutex_t streamlock;
+        AAudioStream *stream;
+        int32_t burstframes;
+        int32_t lastxruns;
+
+        pthread_t worker;
+        bool running;
+        //以下由lock保护
+        pthread_mutex_t lock;
+        pthread_cond_t cond;
+        bool quit;
+        bool playing;
+        bool enabled;
+        bool seekpending;
+        int64_t seekUs;
+        bool wake;
+
+        //以下只在音频线程上访问
+        bool started;
+        bool sawInputEOS;
+        bool sawOutputEOS;
+        ssize_t pendinginput;
+        ssize_t pendingoutput;
+        AMediaCodecBufferInfo pendinginfo;
+        int32_t outputoffset;
+        int64_t skipuntilUs;
+        //循环播放回绕处还要补的静音帧数
+        int32_t silenceframes;
+
+        //音频线程开始播放后置位，暂停和seek时清除；为false时mediaTimeUs返回-1
+        std::atomic<bool> clockvalid;
+        //最近一次开始播放的时间，之前的时间戳是暂停前的，不能用来外推
+        std::atomic<int64_t> startNs;
+        //回调写进设备的第anchorframe帧的时间戳是anchorptsUs，按序号的奇偶判断是否在更新中
+        std::atomic<uint32_t> anchorseq;
+        std::atomic<int64_t> anchorframe;
+        std::atomic<int64_t> anchorptsUs;
+        //PCM已经全部写进环形缓冲区，之后读空不算欠载
+        std::atomic<bool> eos;
+        //流断开(比如拔出耳机)，由音频线程重新打开
+        std::atomic<bool> disconnected;
+};
@@ -0,0 +1,216 @@
+//
+// looper压力测试：多个生产者线程并发post，统计吞吐量(posts/sec)和投递延迟分布；
+// 然后在积压了解码消息的队列上测高优先级消息的投递延迟，以及定时消息的到期误差；
+// 最后让looper线程给自己投递超过环容量的消息，检查溢出队列的处理顺序。
+// 用法：adb push looperbench /data/local/tmp && adb shell /data/local/tmp/looperbench [生产者数] [每个生产者的消息数]
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <stdint.h>
+#include <time.h>
+#include <pthread.h>
+#include <sched.h>
+#include <unistd.h>
+#include <algorithm>
+#include <atomic>
+#include <vector>
+
+#include "../looper.h"
+
+static int64_t nowns(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+//消息的data字段携带发送时刻(相对起点的微秒数)，handle中计算投递延迟
+class benchlooper: public looper{
+public:
+    benchlooper(int64_t base, size_t total): looper(1024), base(base), latencies(total), count(0){}
+    virtual void handle(int what, void *obj){
+        int64_t sentus = (int64_t)(intptr_t) obj;
+        int64_t latency = (nowns() - base) / 1000 - sentus;
+        size_t i = count.load(std::memory_order_relaxed);
+        if (i < latencies.size()){
+            latencies[i] = latency;
+        }
+        count.store(i + 1, std::memory_order_release);
+    }
+    int64_t base;
+    std::vector<int64_t> latencies;
+    std::atomic<size_t> count;
+};
+
+//积压测试：kWork模拟一次解码消息的耗时，kControl和kTimer的data携带发送时刻或到期时刻(相对起点的微秒数)
+enum {
+    kWork,
+    kControl,
+    kTimer,
+};
+
+#define kWorkUs 200
+#define kBacklog 100
+#define kRounds 200
+
+class controllooper: public looper{
+public:
+    controllooper(int64_t base): looper(1024), base(base), done(0){}
+    virtual void handle(int what, void *obj){
+        int64_t nowus = (nowns() - base) / 1000;
+        if (what == kWork){
+            while ((nowns() - base) / 1000 - nowus < kWorkUs){
+            }
+            return;
+        }
+        samples.push_back(nowus - (int64_t)(intptr_t) obj);
+        done.store(done.load(std::memory_order_relaxed) + 1, std::memory_order_release);
+    }
+    int64_t base;
+    std::vector<int64_t> samples;
+    std::atomic<int> done;
+};
+
+static void printLatency(const char *name, std::vector<int64_t> &lat){
+    std::sort(lat.begin(), lat.end());
+    size_t n = lat.size();
+    printf("%s us: p50=%lld p99=%lld max=%lld\n", name, (long long) lat[n / 2],
+           (long long) lat[n * 99 / 100], (long long) lat[n - 1]);
+}
+
+//每轮先积压kBacklog条解码消息，再投递一条控制消息；普通优先级要排在全部积压之后
+static void measureControl(int flags, const char *name){
+    int64_t base = nowns();
+    controllooper *l = new controllooper(base);
+    for (int i = 0; i < kRounds; ++i) {
+        for (int j = 0; j < kBacklog; ++j) {
+            l->post(kWork, NULL);
+        }
+        l->post(kControl, (void*)(intptr_t) ((nowns() - base) / 1000), flags);
+        while (l->done.load(std::memory_order_acquire) <= i){
+            sched_yield();
+        }
+    }
+    l->quit();
+    printLatency(name, l->samples);
+    delete l;
+}
+
+//解码消息不停的同时投递定时消息，统计实际处理时刻晚于到期时刻多少
+static void measureTimers(){
+    int64_t base = nowns();
+    controllooper *l = new controllooper(base);
+    for (int i = 0; i < kRounds; ++i) {
+        int64_t delayus = 1000 + i % 10 * 500;
+        l->postDelayed(kTimer, (void*)(intptr_t) ((nowns() - base) / 1000 + delayus), delayus * 1000);
+        while (l->done.load(std::memory_order_acquire) <= i){
+            l->post(kWork, NULL);
+            usleep(kWorkUs);
+        }
+    }
+    l->quit();
+    printLatency("timer lateness", l->samples);
+    delete l;
+}
+
+//looper线程一次给自己投递比环大得多的消息：多出来的进溢出队列，处理顺序不变
+#define kSelfBurst 1000
+
+class selflooper: public looper{
+public:
+    selflooper(): looper(16), next(0), outoforder(0), done(false){}
+    virtual void handle(int what, void *obj){
+        if (what == kControl){
+            for (int i = 0; i < kSelfBurst; ++i) {
+                post(kWork, (void*)(intptr_t) i);
+            }
+            return;
+        }
+        if ((intptr_t) obj != next){
+            outoforder++;
+        }
+        next++;
+        if (next == kSelfBurst){
+            done.store(true, std::memory_order_release);
+        }
+    }
+    intptr_t next;
+    int outoforder;
+    std::atomic<bool> done;
+};
+
+static void measureSelfPost(){
+    selflooper *l = new selflooper();
+    l->post(kControl, NULL);
+    while (!l->done.load(std::memory_order_acquire)){
+        sched_yield();
+    }
+    printf("self post: handled=%ld out of order=%d overflows=%lld\n",
+           (long) l->next, l->outoforder, (long long) l->overflowCount());
+    l->quit();
+    delete l;
+}
+
+typedef struct {
+    benchlooper *l;
+    int id;
+    int n;
+} producerarg;
+
+static void* producer(void *p){
+    producerarg *a = (producerarg*) p;
+    for (int i = 0; i < a->n; ++i) {
+        int64_t sentus = (nowns() - a->l->base) / 1000;
+        a->l->post(a->id, (void*)(intptr_t) sentus);
+    }
+    return NULL;
+}
+
+int main(int argc, char **argv){
+    int producers = argc > 1 ? atoi(argv[1]) : 4;
+    int perproducer = argc > 2 ? atoi(argv[2]) : 250000;
+    size_t total = (size_t) producers * perproducer;
+
+    int64_t base = nowns();
+    benchlooper *l = new benchlooper(base, total);
+
+    std::vector<pthread_t> threads(producers);
+    std::vector<producerarg> args(producers);
+    int64_t start = nowns();
+    for (int i = 0; i < producers; ++i) {
+        args[i].l = l;
+        args[i].id = i;
+        args[i].n = perproducer;
+        pthread_create(&threads[i], NULL, producer, &args[i]);
+    }
+    for (int i = 0; i < producers; ++i) {
+        pthread_join(threads[i], NULL);
+    }
+    int64_t posted = nowns();
+    while (l->count.load(std::memory_order_acquire) < total){
+        sched_yield();
+    }
+    int64_t drained = nowns();
+
+    std::vector<int64_t> &lat = l->latencies;
+    std::sort(lat.begin(), lat.end());
+    printf("producers=%d messages=%zu\n", producers, total);
+    printf("posts/sec=%.0f handled/sec=%.0f\n",
+           total * 1e9 / (posted - start), total * 1e9 / (drained - start));
+    printf("latency us: p50=%lld p99=%lld p99.9=%lld max=%lld\n",
+           (long long) lat[total / 2],
+           (long long) lat[total * 99 / 100],
+           (long long) lat[total * 999 / 1000],
+           (long long) lat[total - 1]);
+    printf("overflows=%lld\n", (long long) l->overflowCount());
+
+    l->quit();
+    delete l;
+
+    printf("backlog=%d work=%dus\n", kBacklog, kWorkUs);
+    measureControl(0, "control latency (normal)");
+    measureControl(kPostUrgent, "control latency (urgent)");
+    measureTimers();
+    measureSelfPost();
+    return 0;
+}
@@ -0,0 +1,62 @@
+//
+// 样本性质判断的实现：只扫描NAL头，不解析slice
+//
+
+#include "bitstream.h"
+
+#include <string.h>
+
+int codecTypeForMime(const char *mime) {
+    if (!mime){
+        return kCodecOther;
+    }
+    if (!strcmp(mime, "video/avc")){
+        return kCodecAvc;
+    }
+    if (!strcmp(mime, "video/hevc")){
+        return kCodecHevc;
+    }
+    return kCodecOther;
+}
+
+//H.264：nal_ref_idc为0的slice不被参考
+static bool isAvcReference(uint8_t header, bool *vcl) {
+    int type = header & 0x1f;
+    if (type < 1 || type > 5){
+        return false;
+    }
+    *vcl = true;
+    return (header >> 5) & 3;
+}
+
+//H.265：类型0~14中的偶数(TRAIL_N、TSA_N、STSA_N、RADL_N、RASL_N等)是子层非参考图像
+static bool isHevcReference(uint8_t header, bool *vcl) {
+    int type = (header >> 1) & 0x3f;
+    if (type > 31){
+        return false;
+    }
+    *vcl = true;
+    return type > 14 || (type & 1);
+}
+
+bool isReferenceSample(int codectype, const uint8_t *data, size_t size) {
+    if (codectype == kCodecOther){
+        return true;
+    }
+    bool vcl = false;
+    size_t i = 0;
+    while (i + 3 < size){
+        if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1){
+            i++;
+            continue;
+        }
+        uint8_t header = data[i + 3];
+        bool reference = codectype == kCodecAvc ? isAvcReference(header, &vcl) : isHevcReference(header, &vcl);
+        if (reference){
+            return true;
+        }
+        i += 4;
+    }
+    //没有起始码(比如长度前缀格式)时不能判断
+    return !vcl;
+}
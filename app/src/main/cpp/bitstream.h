@@ -0,0 +1,19 @@
+//
+// 不经过解码器判断样本的性质：快进时在送进解码器之前丢掉不被参考的帧
+//
+
+#pragma once
+
+#include <stddef.h>
+#include <stdint.h>
+
+//能解析的码流格式，extractor读出的H.264/H.265样本是带起始码(Annex B)的
+enum {
+    kCodecOther,
+    kCodecAvc,
+    kCodecHevc,
+};
+
+int codecTypeForMime(const char *mime);
+//样本中是否有会被其他帧参考的图像；不能解析的格式和找不到图像数据时都当作参考帧
+bool isReferenceSample(int codectype, const uint8_t *data, size_t size);
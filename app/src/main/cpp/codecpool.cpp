@@ -0,0 +1,142 @@
+//
+// 空闲解码器池的实现
+//
+
+#include "codecpool.h"
+
+#include <pthread.h>
+#include <string.h>
+#include <vector>
+
+#define TAG "NativeCodec-pool"
+#include "logging.h"
+
+//mime字符串的最大长度(含结尾)，如video/avc、video/hevc
+#define kMaxMimeLength 32
+
+//池里的一个解码器，以mime和分辨率为键
+typedef struct {
+    AMediaCodec *codec;
+    char mime[kMaxMimeLength];
+    int32_t width;
+    int32_t height;
+} pooleddecoder;
+
+//预创建线程的参数
+typedef struct {
+    char mime[kMaxMimeLength];
+    int32_t width;
+    int32_t height;
+    int count;
+} prewarmrequest;
+
+static pthread_mutex_t decoderlock = PTHREAD_MUTEX_INITIALIZER;
+//默认保留两个，关闭播放器后马上重新打开(切换片段、重播)时不用重新创建
+static int maxpooled = 2;
+static std::vector<pooleddecoder> decoderpool;
+
+//放进池里，池满时返回false，由调用者删除
+static bool addDecoder(AMediaCodec *codec, const char *mime, int32_t width, int32_t height){
+    pthread_mutex_lock(&decoderlock);
+    bool added = (int) decoderpool.size() < maxpooled && mime && strlen(mime) < kMaxMimeLength;
+    if (added){
+        pooleddecoder p;
+        p.codec = codec;
+        strcpy(p.mime, mime);
+        p.width = width;
+        p.height = height;
+        decoderpool.push_back(p);
+    }
+    pthread_mutex_unlock(&decoderlock);
+    return added;
+}
+
+void setDecoderPoolSize(int max){
+    std::vector<pooleddecoder> removed;
+    pthread_mutex_lock(&decoderlock);
+    maxpooled = max > 0 ? max : 0;
+    while ((int) decoderpool.size() > maxpooled){
+        removed.push_back(decoderpool.back());
+        decoderpool.pop_back();
+    }
+    pthread_mutex_unlock(&decoderlock);
+    //删除解码器比较慢，不在锁里做
+    for (size_t i = 0; i < removed.size(); ++i) {
+        AMediaCodec_delete(removed[i].codec);
+    }
+}
+
+static void* prewarm(void *p){
+    prewarmrequest *r = (prewarmrequest*) p;
+    for (int i = 0; i < r->count; ++i) {
+        AMediaCodec *codec = AMediaCodec_createDecoderByType(r->mime);
+        if (!codec){
+            LOGE("failed to prewarm %s decoder", r->mime);
+            break;
+        }
+        if (!addDecoder(codec, r->mime, r->width, r->height)){
+            AMediaCodec_delete(codec);
+            break;
+        }
+    }
+    LOGD("prewarmed %s %dx%d, %d decoders pooled", r->mime, r->width, r->height, pooledDecoderCount());
+    delete r;
+    return NULL;
+}
+
+void prewarmDecoders(const char *mime, int32_t width, int32_t height, int count){
+    if (count <= 0 || strlen(mime) >= kMaxMimeLength){
+        return;
+    }
+    prewarmrequest *r = new prewarmrequest();
+    strcpy(r->mime, mime);
+    r->width = width;
+    r->height = height;
+    r->count = count;
+    pthread_t worker;
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    if (pthread_create(&worker, &attr, prewarm, r) != 0){
+        LOGE("failed to start prewarm thread");
+        delete r;
+    }
+    pthread_attr_destroy(&attr);
+}
+
+AMediaCodec* claimDecoder(const char *mime, int32_t width, int32_t height){
+    pthread_mutex_lock(&decoderlock);
+    int found = -1;
+    for (size_t i = 0; i < decoderpool.size(); ++i) {
+        if (strcmp(decoderpool[i].mime, mime) != 0){
+            continue;
+        }
+        if (found < 0){
+            found = (int) i;
+        }
+        if (decoderpool[i].width == width && decoderpool[i].height == height){
+            found = (int) i;
+            break;
+        }
+    }
+    AMediaCodec *codec = NULL;
+    if (found >= 0){
+        codec = decoderpool[found].codec;
+        decoderpool.erase(decoderpool.begin() + found);
+    }
+    pthread_mutex_unlock(&decoderlock);
+    return codec;
+}
+
+void recycleDecoder(AMediaCodec *codec, const char *mime, int32_t width, int32_t height){
+    if (!addDecoder(codec, mime, width, height)){
+        AMediaCodec_delete(codec);
+    }
+}
+
+int pooledDecoderCount(){
+    pthread_mutex_lock(&decoderlock);
+    int count = (int) decoderpool.size();
+    pthread_mutex_unlock(&decoderlock);
+    return count;
+}
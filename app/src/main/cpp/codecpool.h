@@ -0,0 +1,20 @@
+//
+// 空闲解码器池：创建解码器(分配解码组件)通常要几十毫秒，预先在后台创建或者回收关闭的播放器的解码器，
+// 新的播放器打开时直接取用。池里的解码器都处于未configure的状态
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#include "media/NdkMediaCodec.h"
+
+//池里最多保留的解码器个数，0表示不使用池，已有的解码器全部删除
+void setDecoderPoolSize(int max);
+//在后台线程预先创建count个mime类型的解码器，width/height为预计的分辨率，不知道时传0
+void prewarmDecoders(const char *mime, int32_t width, int32_t height, int count);
+//取一个mime类型的空闲解码器，分辨率相同的优先，没有返回NULL
+AMediaCodec* claimDecoder(const char *mime, int32_t width, int32_t height);
+//stop之后的解码器交回池里，池满或不使用池时删除
+void recycleDecoder(AMediaCodec *codec, const char *mime, int32_t width, int32_t height);
+int pooledDecoderCount();
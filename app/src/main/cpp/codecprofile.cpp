@@ -0,0 +1,77 @@
+//
+// 性能配置的实现。这些key在不支持的系统和解码器上会被忽略，configure失败时由调用者去掉key重试
+//
+
+#include "codecprofile.h"
+
+#include <dlfcn.h>
+#include <stdio.h>
+#include <string.h>
+
+#define TAG "NativeCodec-profile"
+#include "logging.h"
+
+//AMEDIAFORMAT_KEY_LOW_LATENCY从API 30、KEY_OPERATING_RATE和KEY_PRIORITY从API 28开始提供
+#define kKeyLowLatency "low-latency"
+#define kKeyOperatingRate "operating-rate"
+#define kKeyPriority "priority"
+//Short.MAX_VALUE：让解码器尽可能快地运行
+#define kMaxOperatingRate 32767
+//低延迟时解码器里同时放的样本数，够解码器流水一帧
+#define kLowLatencyInputs 2
+#define kDefaultFrameRate 30
+
+//AMediaCodec_getName从API 28开始提供，minSdk为27，所以运行时查找
+typedef media_status_t (*getname_t)(AMediaCodec*, char**);
+typedef void (*releasename_t)(AMediaCodec*, char*);
+
+int profileMaxInputsInFlight(int profile){
+    return profile == kProfileLowLatency ? kLowLatencyInputs : 0;
+}
+
+static void appendKey(char *applied, size_t size, const char *key, int value){
+    size_t used = strlen(applied);
+    snprintf(applied + used, size - used, "%s%s=%d", used ? "," : "", key, value);
+}
+
+static void setKey(AMediaFormat *format, const char *key, int value, char *applied, size_t size){
+    AMediaFormat_setInt32(format, key, value);
+    appendKey(applied, size, key, value);
+}
+
+void applyProfile(AMediaFormat *format, int profile, char *applied, size_t size){
+    applied[0] = '\0';
+    switch (profile){
+        case kProfileLowLatency:
+            setKey(format, kKeyLowLatency, 1, applied, size);
+            setKey(format, kKeyPriority, 0, applied, size);
+            break;
+
+        case kProfileThroughput:
+            setKey(format, kKeyOperatingRate, kMaxOperatingRate, applied, size);
+            setKey(format, kKeyPriority, 1, applied, size);
+            break;
+
+        case kProfilePowerSaver:{
+            //按内容的帧率解码，不超前
+            int32_t framerate = kDefaultFrameRate;
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_FRAME_RATE, &framerate);
+            setKey(format, kKeyOperatingRate, framerate > 0 ? framerate : kDefaultFrameRate, applied, size);
+            setKey(format, kKeyPriority, 1, applied, size);
+        }break;
+    }
+    if (applied[0]){
+        LOGD("profile %d: %s", profile, applied);
+    }
+}
+
+void codecName(AMediaCodec *codec, char *out, size_t size){
+    static getname_t getName = (getname_t) dlsym(RTLD_DEFAULT, "AMediaCodec_getName");
+    static releasename_t releaseName = (releasename_t) dlsym(RTLD_DEFAULT, "AMediaCodec_releaseName");
+    out[0] = '\0';
+    char *name = NULL;
+    if (codec && getName && releaseName && getName(codec, &name) == AMEDIA_OK && name){
+        snprintf(out, size, "%s", name);
+        releaseName(codec, name);
+    }
+}
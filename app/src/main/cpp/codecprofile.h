@@ -0,0 +1,32 @@
+//
+// 解码器的性能配置：configure之前往轨道格式里加的key，以及按名字指定解码器
+//
+
+#pragma once
+
+#include <stddef.h>
+
+#include "media/NdkMediaCodec.h"
+#include "media/NdkMediaFormat.h"
+
+//和MainActivity中的PROFILE_*常量对应
+enum {
+    kProfileDefault,        //轨道格式原样交给解码器
+    kProfileLowLatency,     //low-latency=1、priority=0(实时)，解码器里同时只放很少的样本
+    kProfileThroughput,     //operating-rate设成最高、priority=1(非实时)，用于批量处理
+    kProfilePowerSaver,     //operating-rate等于视频帧率、priority=1，解码器不用提高频率
+    kProfileCount,
+};
+
+typedef struct {
+    int profile;
+    //指定的解码器，比如c2.android.avc.decoder(软件)或者厂商的硬件解码器；空字符串表示按mime选择
+    char codecname[128];
+} codecoptions;
+
+//送进解码器、还没有输出的样本数上限，0表示不限
+int profileMaxInputsInFlight(int profile);
+//把profile的key写进format，applied写入逗号分隔的"key=value"(kProfileDefault时为空字符串)
+void applyProfile(AMediaFormat *format, int profile, char *applied, size_t size);
+//解码器的组件名，取不到(API 27)时写入空字符串
+void codecName(AMediaCodec *codec, char *out, size_t size);
@@ -0,0 +1,764 @@
+//
+// 数据源的实现：mmap的本地文件，和带块缓存、后台预读的HTTP Range读取。
+// AMediaDataSource的readAt要求把数据复制进extractor给的缓冲区，这里只复制这一次：
+// 本地文件直接从映射复制，HTTP直接从缓存块复制，中间不经过其他缓冲区
+//
+
+#include "datasource.h"
+
+#include <dlfcn.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <netdb.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <map>
+#include <vector>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+
+#include "media/NdkMediaDataSource.h"
+
+#define TAG "NativeCodec-source"
+#include "logging.h"
+
+//HTTP：顺序读时最多预读的块数、收发超时和出错重试次数
+#define kReadAheadBlocks 4
+#define kSocketTimeoutSec 10
+#define kFetchAttempts 2
+#define kMaxHeaderLine 1024
+
+static int64_t nowNs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+datasource::datasource(){
+    for (int i = 0; i < kSourceStatCount; ++i) {
+        stats[i].store(0);
+    }
+    refs.store(1);
+    openNs = nowNs();
+}
+
+datasource::~datasource(){
+}
+
+void datasource::acquire() {
+    refs.fetch_add(1);
+}
+
+void datasource::release() {
+    if (refs.fetch_sub(1) == 1){
+        delete this;
+    }
+}
+
+ssize_t datasource::readAt(off64_t offset, void *buf, size_t size) {
+    int64_t startNs = nowNs();
+    ssize_t n = doRead(offset, buf, size);
+    stats[kSourceReadUs].fetch_add((nowNs() - startNs) / 1000, std::memory_order_relaxed);
+    stats[kSourceReads].fetch_add(1, std::memory_order_relaxed);
+    if (n > 0){
+        stats[kSourceBytesRead].fetch_add(n, std::memory_order_relaxed);
+    }
+    return n;
+}
+
+int datasource::fd(off64_t *offset, off64_t *length) {
+    return -1;
+}
+
+const char* datasource::uri() {
+    return NULL;
+}
+
+void datasource::snapshot(int64_t *out) {
+    for (int i = 0; i < kSourceStatCount; ++i) {
+        out[i] = stats[i].load(std::memory_order_relaxed);
+    }
+    out[kSourceElapsedUs] = (nowNs() - openNs) / 1000;
+}
+
+//本地文件
+
+class filesource : public datasource {
+    public:filesource(int fd, off64_t offset, off64_t length);
+
+        off64_t size() override {
+            return length;
+        }
+        int fd(off64_t *offset, off64_t *length) override {
+            *offset = this->offset;
+            *length = this->length;
+            return file;
+        }
+
+    protected:
+        ~filesource() override;
+        ssize_t doRead(off64_t offset, void *buf, size_t size) override;
+
+    private:
+        int file;
+        off64_t offset;
+        off64_t length;
+        //mmap要求偏移按页对齐，base是映射的起点，data指向offset处
+        void *base;
+        size_t mapped;
+        const uint8_t *data;
+};
+
+filesource::filesource(int fd, off64_t offset, off64_t length){
+    file = fd;
+    this->offset = offset;
+    this->length = length;
+    long page = sysconf(_SC_PAGESIZE);
+    off64_t aligned = offset / page * page;
+    mapped = length + (offset - aligned);
+    base = mmap64(NULL, mapped, PROT_READ, MAP_SHARED, fd, aligned);
+    if (base == MAP_FAILED){
+        LOGE("mmap failed (%s), using pread", strerror(errno));
+        base = NULL;
+        data = NULL;
+    } else{
+        //播放时基本是顺序读，让内核多预读一些
+        madvise(base, mapped, MADV_SEQUENTIAL);
+        data = (const uint8_t*) base + (offset - aligned);
+    }
+}
+
+filesource::~filesource(){
+    if (base){
+        munmap(base, mapped);
+    }
+    close(file);
+}
+
+ssize_t filesource::doRead(off64_t pos, void *buf, size_t size) {
+    if (pos < 0){
+        return -1;
+    }
+    if (pos >= length){
+        return 0;
+    }
+    if ((off64_t) size > length - pos){
+        size = length - pos;
+    }
+    if (data){
+        memcpy(buf, data + pos, size);
+        return size;
+    }
+    return pread64(file, buf, size, offset + pos);
+}
+
+datasource* newFileSource(int fd, off64_t offset, off64_t length) {
+    return new filesource(fd, offset, length);
+}
+
+datasource* openFileSource(const char *path) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0){
+        LOGE("failed to open %s (%s)", path, strerror(errno));
+        return NULL;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0){
+        close(fd);
+        return NULL;
+    }
+    return new filesource(fd, 0, st.st_size);
+}
+
+//HTTP Range读取。只有一个后台线程和服务器保持一条keep-alive连接，按需的块优先于预读的块
+
+typedef struct {
+    int64_t index;      //文件中的第几块，-1表示空闲
+    uint8_t *data;
+    size_t size;
+    bool ready;         //false表示正在下载
+    uint64_t lastuse;
+} cacheblock;
+
+class httpsource : public datasource {
+    public:httpsource();
+
+        bool open(const char *url, int blockSize, int cacheBlocks);
+        off64_t size() override {
+            return total;
+        }
+        const char* uri() override {
+            return url;
+        }
+
+    protected:
+        ~httpsource() override;
+        ssize_t doRead(off64_t offset, void *buf, size_t size) override;
+
+    private:
+        static void* trampoline(void *p);
+        void loop();
+        cacheblock* findBlock(int64_t index);
+        cacheblock* claimBlock();
+        int64_t nextWanted();
+        //以下只在下载线程上调用(open时在调用线程上)
+        bool fetch(int64_t index, cacheblock *block);
+        bool request(off64_t start, off64_t end, cacheblock *block);
+        bool connectServer();
+        void disconnect();
+        bool readLine(char *line, size_t capacity);
+        bool readBody(uint8_t *dst, size_t size);
+
+        char *url;
+        char host[256];
+        char port[8];
+        const char *path;
+        int sock;
+        //接收缓冲区，响应头按行读取
+        uint8_t inbuf[4096];
+        size_t inpos;
+        size_t inlen;
+
+        off64_t total;
+        size_t blocksize;
+        std::vector<cacheblock> blocks;
+        uint64_t usecounter;
+        pthread_mutex_t lock;
+        pthread_cond_t cond;
+        pthread_t worker;
+        bool running;
+        bool quit;
+        //读取线程在等的块，-1表示没有；下载失败的块，读取线程看到后返回错误
+        int64_t demand;
+        int64_t failed;
+        //最近读到的块，顺序读时预读从它后面开始，随机读时不预读
+        int64_t readposition;
+        bool sequential;
+};
+
+httpsource::httpsource(){
+    url = NULL;
+    path = NULL;
+    sock = -1;
+    inpos = inlen = 0;
+    total = -1;
+    blocksize = 0;
+    usecounter = 0;
+    pthread_mutex_init(&lock, NULL);
+    pthread_cond_init(&cond, NULL);
+    running = false;
+    quit = false;
+    demand = -1;
+    failed = -1;
+    readposition = -1;
+    sequential = false;
+}
+
+httpsource::~httpsource(){
+    pthread_mutex_lock(&lock);
+    quit = true;
+    pthread_cond_broadcast(&cond);
+    pthread_mutex_unlock(&lock);
+    if (running){
+        pthread_join(worker, NULL);
+    }
+    disconnect();
+    for (size_t i = 0; i < blocks.size(); ++i) {
+        free(blocks[i].data);
+    }
+    free(url);
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&lock);
+}
+
+bool httpsource::open(const char *u, int blockSize, int cacheBlocks) {
+    if (strncmp(u, "http://", 7) != 0){
+        LOGE("unsupported url %s", u);
+        return false;
+    }
+    url = strdup(u);
+    const char *authority = url + 7;
+    const char *slash = strchr(authority, '/');
+    path = slash ? slash : "/";
+    size_t hostlen = slash ? (size_t) (slash - authority) : strlen(authority);
+    const char *colon = (const char*) memchr(authority, ':', hostlen);
+    size_t namelen = colon ? (size_t) (colon - authority) : hostlen;
+    if (namelen == 0 || namelen >= sizeof(host)){
+        LOGE("bad host in %s", u);
+        return false;
+    }
+    memcpy(host, authority, namelen);
+    host[namelen] = 0;
+    snprintf(port, sizeof(port), "%.*s", colon ? (int) (hostlen - namelen - 1) : 2,
+             colon ? colon + 1 : "80");
+
+    blocksize = blockSize;
+    blocks.resize(cacheBlocks < 2 ? 2 : cacheBlocks);
+    for (size_t i = 0; i < blocks.size(); ++i) {
+        blocks[i].index = -1;
+        blocks[i].data = (uint8_t*) malloc(blocksize);
+        blocks[i].size = 0;
+        blocks[i].ready = false;
+        blocks[i].lastuse = 0;
+        if (!blocks[i].data){
+            return false;
+        }
+    }
+    //第一块的响应里有总长度
+    if (!fetch(0, &blocks[0])){
+        return false;
+    }
+    blocks[0].index = 0;
+    blocks[0].ready = true;
+    running = true;
+    pthread_create(&worker, NULL, trampoline, this);
+    LOGD("opened %s, %lld bytes", url, (long long) total);
+    return true;
+}
+
+void* httpsource::trampoline(void *p) {
+    ((httpsource*)p)->loop();
+    return NULL;
+}
+
+cacheblock* httpsource::findBlock(int64_t index) {
+    for (size_t i = 0; i < blocks.size(); ++i) {
+        if (blocks[i].index == index){
+            return &blocks[i];
+        }
+    }
+    return NULL;
+}
+
+//空闲的块，没有时淘汰最久没用的块，正在读的块和要等的块不淘汰
+cacheblock* httpsource::claimBlock() {
+    cacheblock *victim = NULL;
+    for (size_t i = 0; i < blocks.size(); ++i) {
+        cacheblock *b = &blocks[i];
+        if (b->index < 0){
+            return b;
+        }
+        if (b->index == readposition || b->index == demand){
+            continue;
+        }
+        if (!victim || b->lastuse < victim->lastuse){
+            victim = b;
+        }
+    }
+    return victim;
+}
+
+//下一个要下载的块：先是读取线程在等的块，再是读取位置后面还没有缓存的块
+int64_t httpsource::nextWanted() {
+    if (demand >= 0 && demand != failed && !findBlock(demand)){
+        return demand;
+    }
+    if (readposition < 0 || !sequential){
+        return -1;
+    }
+    //预读不能挤掉读取位置和正在等的块
+    int ahead = (int) blocks.size() - 2;
+    if (ahead > kReadAheadBlocks){
+        ahead = kReadAheadBlocks;
+    }
+    for (int i = 1; i <= ahead; ++i) {
+        int64_t index = readposition + i;
+        if ((off64_t) (index * blocksize) >= total){
+            break;
+        }
+        if (!findBlock(index)){
+            return index;
+        }
+    }
+    return -1;
+}
+
+void httpsource::loop() {
+    pthread_mutex_lock(&lock);
+    while (!quit){
+        int64_t index = nextWanted();
+        cacheblock *block = index >= 0 ? claimBlock() : NULL;
+        if (!block){
+            pthread_cond_wait(&cond, &lock);
+            continue;
+        }
+        block->index = index;
+        block->ready = false;
+        pthread_mutex_unlock(&lock);
+        bool ok = fetch(index, block);
+        pthread_mutex_lock(&lock);
+        if (ok){
+            block->ready = true;
+            block->lastuse = ++usecounter;
+        } else{
+            block->index = -1;
+            if (index == demand){
+                failed = index;
+            }
+        }
+        pthread_cond_broadcast(&cond);
+    }
+    pthread_mutex_unlock(&lock);
+}
+
+ssize_t httpsource::doRead(off64_t offset, void *buf, size_t size) {
+    if (offset < 0){
+        return -1;
+    }
+    if (offset >= total){
+        return 0;
+    }
+    if ((off64_t) size > total - offset){
+        size = total - offset;
+    }
+    size_t copied = 0;
+    pthread_mutex_lock(&lock);
+    while (copied < size){
+        off64_t pos = offset + copied;
+        int64_t index = pos / blocksize;
+        cacheblock *block = findBlock(index);
+        if (block && block->ready){
+            stats[kSourceCacheHits].fetch_add(1, std::memory_order_relaxed);
+        } else{
+            stats[kSourceCacheMisses].fetch_add(1, std::memory_order_relaxed);
+            while (!quit && failed != index && !(block && block->ready)){
+                //有多个线程在等不同的块时轮流下载
+                demand = index;
+                pthread_cond_broadcast(&cond);
+                pthread_cond_wait(&cond, &lock);
+                block = findBlock(index);
+            }
+            if (failed == index || quit){
+                failed = -1;
+                demand = -1;
+                break;
+            }
+        }
+        block->lastuse = ++usecounter;
+        if (demand == index){
+            demand = -1;
+        }
+        if (readposition != index){
+            sequential = index == readposition + 1;
+            readposition = index;
+            pthread_cond_broadcast(&cond);
+        }
+        size_t within = pos - index * blocksize;
+        size_t n = block->size > within ? block->size - within : 0;
+        if (n == 0){
+            break;
+        }
+        if (n > size - copied){
+            n = size - copied;
+        }
+        //块在持有锁期间不会被淘汰
+        memcpy((uint8_t*) buf + copied, block->data + within, n);
+        copied += n;
+    }
+    pthread_mutex_unlock(&lock);
+    return copied > 0 ? (ssize_t) copied : -1;
+}
+
+bool httpsource::fetch(int64_t index, cacheblock *block) {
+    off64_t start = index * blocksize;
+    off64_t end = start + blocksize - 1;
+    if (total >= 0 && end >= total){
+        end = total - 1;
+    }
+    int64_t startNs = nowNs();
+    for (int attempt = 0; attempt < kFetchAttempts; ++attempt) {
+        //keep-alive连接可能已经被服务器关掉，重新连接后再试一次
+        if (request(start, end, block)){
+            stats[kSourceFetchUs].fetch_add((nowNs() - startNs) / 1000, std::memory_order_relaxed);
+            stats[kSourceFetchedBytes].fetch_add(block->size, std::memory_order_relaxed);
+            return true;
+        }
+        disconnect();
+    }
+    LOGE("failed to fetch block %lld of %s", (long long) index, url);
+    return false;
+}
+
+bool httpsource::request(off64_t start, off64_t end, cacheblock *block) {
+    if (sock < 0 && !connectServer()){
+        return false;
+    }
+    char req[2048];
+    int len = snprintf(req, sizeof(req), "GET %s HTTP/1.1\r\nHost: %s\r\nRange: bytes=%lld-%lld\r\n"
+                       "Connection: keep-alive\r\n\r\n", path, host, (long long) start, (long long) end);
+    if (len <= 0 || len >= (int) sizeof(req) || send(sock, req, len, MSG_NOSIGNAL) != len){
+        return false;
+    }
+
+    char line[kMaxHeaderLine];
+    int status = 0;
+    if (!readLine(line, sizeof(line)) || sscanf(line, "HTTP/%*d.%*d %d", &status) != 1){
+        return false;
+    }
+    long long contentlength = -1;
+    long long length = -1;
+    bool keepalive = true;
+    while (true){
+        if (!readLine(line, sizeof(line))){
+            return false;
+        }
+        if (!line[0]){
+            break;
+        }
+        if (!strncasecmp(line, "Content-Length:", 15)){
+            contentlength = atoll(line + 15);
+        } else if (!strncasecmp(line, "Content-Range:", 14)){
+            const char *slash = strchr(line, '/');
+            if (slash && slash[1] != '*'){
+                length = atoll(slash + 1);
+            }
+        } else if (!strncasecmp(line, "Connection:", 11) && strcasestr(line + 11, "close")){
+            keepalive = false;
+        }
+    }
+    if (status == 200 && start == 0){
+        //服务器不支持Range，返回整个文件：只要第一块，之后断开连接
+        length = contentlength;
+        keepalive = false;
+    } else if (status != 206){
+        LOGE("unexpected status %d for range %lld-%lld", status, (long long) start, (long long) end);
+        return false;
+    }
+    if (total < 0){
+        if (length <= 0){
+            LOGE("unknown content length");
+            return false;
+        }
+        total = length;
+        if (end >= total){
+            end = total - 1;
+        }
+    }
+    size_t size = end - start + 1;
+    if (contentlength >= 0 && (size_t) contentlength < size){
+        size = contentlength;
+    }
+    if (!readBody(block->data, size)){
+        return false;
+    }
+    block->size = size;
+    if (!keepalive){
+        disconnect();
+    }
+    return true;
+}
+
+bool httpsource::connectServer() {
+    addrinfo hints;
+    memset(&hints, 0, sizeof(hints));
+    hints.ai_family = AF_UNSPEC;
+    hints.ai_socktype = SOCK_STREAM;
+    addrinfo *result = NULL;
+    int err = getaddrinfo(host, port, &hints, &result);
+    if (err != 0){
+        LOGE("failed to resolve %s: %s", host, gai_strerror(err));
+        return false;
+    }
+    for (addrinfo *ai = result; ai && sock < 0; ai = ai->ai_next) {
+        sock = socket(ai->ai_family, ai->ai_socktype | SOCK_CLOEXEC, ai->ai_protocol);
+        if (sock < 0){
+            continue;
+        }
+        timeval timeout = {kSocketTimeoutSec, 0};
+        setsockopt(sock, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+        setsockopt(sock, SOL_SOCKET, SO_SNDTIMEO, &timeout, sizeof(timeout));
+        int nodelay = 1;
+        setsockopt(sock, IPPROTO_TCP, TCP_NODELAY, &nodelay, sizeof(nodelay));
+        if (connect(sock, ai->ai_addr, ai->ai_addrlen) != 0){
+            close(sock);
+            sock = -1;
+        }
+    }
+    freeaddrinfo(result);
+    if (sock < 0){
+        LOGE("failed to connect to %s:%s (%s)", host, port, strerror(errno));
+        return false;
+    }
+    inpos = inlen = 0;
+    return true;
+}
+
+void httpsource::disconnect() {
+    if (sock >= 0){
+        close(sock);
+        sock = -1;
+    }
+    inpos = inlen = 0;
+}
+
+//读一行响应头，去掉结尾的\r\n
+bool httpsource::readLine(char *line, size_t capacity) {
+    size_t len = 0;
+    while (true){
+        if (inpos == inlen){
+            ssize_t n = recv(sock, inbuf, sizeof(inbuf), 0);
+            if (n <= 0){
+                return false;
+            }
+            inpos = 0;
+            inlen = n;
+        }
+        char c = inbuf[inpos++];
+        if (c == '\n'){
+            if (len > 0 && line[len - 1] == '\r'){
+                len--;
+            }
+            line[len] = 0;
+            return true;
+        }
+        if (len + 1 >= capacity){
+            return false;
+        }
+        line[len++] = c;
+    }
+}
+
+//先取接收缓冲区里剩下的，其余直接收进块里
+bool httpsource::readBody(uint8_t *dst, size_t size) {
+    size_t n = inlen - inpos < size ? inlen - inpos : size;
+    memcpy(dst, inbuf + inpos, n);
+    inpos += n;
+    while (n < size){
+        ssize_t got = recv(sock, dst + n, size - n, 0);
+        if (got <= 0){
+            return false;
+        }
+        n += got;
+    }
+    return true;
+}
+
+datasource* openHttpSource(const char *url, int blockSize, int cacheBlocks) {
+    httpsource *source = new httpsource();
+    if (!source->open(url, blockSize, cacheBlocks)){
+        source->release();
+        return NULL;
+    }
+    return source;
+}
+
+//AMediaDataSource从API 28开始提供，minSdkVersion更低，用dlsym查找
+typedef AMediaDataSource* (*datasourcenew_t)();
+typedef void (*datasourcedelete_t)(AMediaDataSource*);
+typedef void (*datasourcesetuserdata_t)(AMediaDataSource*, void*);
+typedef void (*datasourcesetreadat_t)(AMediaDataSource*, AMediaDataSourceReadAt);
+typedef void (*datasourcesetgetsize_t)(AMediaDataSource*, AMediaDataSourceGetSize);
+typedef void (*datasourcesetclose_t)(AMediaDataSource*, AMediaDataSourceClose);
+typedef media_status_t (*setdatasourcecustom_t)(AMediaExtractor*, AMediaDataSource*);
+
+typedef struct {
+    datasourcenew_t create;
+    datasourcedelete_t destroy;
+    datasourcesetuserdata_t setUserdata;
+    datasourcesetreadat_t setReadAt;
+    datasourcesetgetsize_t setGetSize;
+    datasourcesetclose_t setClose;
+    setdatasourcecustom_t setDataSourceCustom;
+} mediadatasourceapi;
+
+static pthread_once_t apionce = PTHREAD_ONCE_INIT;
+static mediadatasourceapi api;
+
+static void findMediaDataSource(){
+    api.create = (datasourcenew_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_new");
+    api.destroy = (datasourcedelete_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_delete");
+    api.setUserdata = (datasourcesetuserdata_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_setUserdata");
+    api.setReadAt = (datasourcesetreadat_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_setReadAt");
+    api.setGetSize = (datasourcesetgetsize_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_setGetSize");
+    api.setClose = (datasourcesetclose_t) dlsym(RTLD_DEFAULT, "AMediaDataSource_setClose");
+    api.setDataSourceCustom = (setdatasourcecustom_t) dlsym(RTLD_DEFAULT, "AMediaExtractor_setDataSourceCustom");
+    if (!api.create || !api.destroy || !api.setUserdata || !api.setReadAt || !api.setGetSize
+            || !api.setClose || !api.setDataSourceCustom){
+        LOGI("AMediaDataSource not available, using fd/url");
+        api.create = NULL;
+    }
+}
+
+static ssize_t onReadAt(void *userdata, off64_t offset, void *buffer, size_t size){
+    return ((datasource*) userdata)->readAt(offset, buffer, size);
+}
+
+static ssize_t onGetSize(void *userdata){
+    return ((datasource*) userdata)->size();
+}
+
+//extractor删除时调用，数据源由closeExtractor释放
+static void onClose(void *userdata){
+}
+
+typedef struct {
+    datasource *source;
+    AMediaDataSource *media;
+} extractorsource;
+
+//extractor删除之后才能删除它的AMediaDataSource和释放数据源
+static pthread_mutex_t extractorlock = PTHREAD_MUTEX_INITIALIZER;
+static std::map<AMediaExtractor*, extractorsource> extractors;
+
+AMediaExtractor* openExtractor(datasource *source) {
+    pthread_once(&apionce, findMediaDataSource);
+    AMediaExtractor *ex = AMediaExtractor_new();
+    AMediaDataSource *media = NULL;
+    media_status_t err = AMEDIA_ERROR_UNSUPPORTED;
+    off64_t offset, length;
+    int fd;
+    if (api.create){
+        media = api.create();
+        api.setUserdata(media, source);
+        api.setReadAt(media, onReadAt);
+        api.setGetSize(media, onGetSize);
+        api.setClose(media, onClose);
+        err = api.setDataSourceCustom(ex, media);
+    } else if ((fd = source->fd(&offset, &length)) >= 0){
+        err = AMediaExtractor_setDataSourceFd(ex, fd, offset, length);
+    } else if (source->uri()){
+        err = AMediaExtractor_setDataSource(ex, source->uri());
+    }
+    if (err != AMEDIA_OK){
+        LOGE("setDataSource error: %d", err);
+        AMediaExtractor_delete(ex);
+        if (media){
+            api.destroy(media);
+        }
+        return NULL;
+    }
+    source->acquire();
+    extractorsource entry = {source, media};
+    pthread_mutex_lock(&extractorlock);
+    extractors[ex] = entry;
+    pthread_mutex_unlock(&extractorlock);
+    return ex;
+}
+
+void closeExtractor(AMediaExtractor *ex) {
+    if (!ex){
+        return;
+    }
+    pthread_mutex_lock(&extractorlock);
+    std::map<AMediaExtractor*, extractorsource>::iterator it = extractors.find(ex);
+    extractorsource entry = {NULL, NULL};
+    if (it != extractors.end()){
+        entry = it->second;
+        extractors.erase(it);
+    }
+    pthread_mutex_unlock(&extractorlock);
+    AMediaExtractor_delete(ex);
+    if (entry.media){
+        api.destroy(entry.media);
+    }
+    if (entry.source){
+        entry.source->release();
+    }
+}
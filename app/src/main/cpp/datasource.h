@@ -0,0 +1,65 @@
+//
+// 数据源：播放器、关键帧索引和缩略图通过它读取媒体文件，API 28以上以AMediaDataSource的形式交给extractor，
+// 更早的系统退回到fd或者URL。同一个数据源可以被多个播放器共享，引用计数为0时关闭
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+#include <atomic>
+
+#include "media/NdkMediaExtractor.h"
+
+//统计快照中各项的位置，和DataSourceStats.java中的常量一一对应，只能在末尾追加
+enum {
+    kSourceBytesRead,       //交给extractor的字节数
+    kSourceReads,           //readAt次数
+    kSourceReadUs,          //readAt花的总时间，包括等网络
+    kSourceCacheHits,       //块缓存命中的块数(只有HTTP)
+    kSourceCacheMisses,
+    kSourceFetchedBytes,    //从网络读到的字节数，包括预读
+    kSourceFetchUs,         //网络请求花的总时间
+    kSourceElapsedUs,       //从打开到现在的时间，和kSourceBytesRead一起算平均读取速度
+    kSourceStatCount,
+};
+
+class datasource {
+    public:datasource();
+        datasource& operator = (const datasource& ) = delete;
+        datasource(datasource&) = delete;
+
+        void acquire();
+        void release();
+        //读offset处最多size个字节，返回读到的字节数，到结尾返回0，出错返回-1。可以在多个线程上同时调用
+        ssize_t readAt(off64_t offset, void *buf, size_t size);
+        //总长度，不知道时返回-1
+        virtual off64_t size() = 0;
+        //不支持AMediaDataSource时的退路：本地文件返回fd和范围，其他返回-1
+        virtual int fd(off64_t *offset, off64_t *length);
+        //不支持AMediaDataSource时交给extractor自己读的URL，本地文件返回NULL
+        virtual const char* uri();
+        void snapshot(int64_t *out);
+
+    protected:
+        virtual ~datasource();
+        //实际的读取，统计由readAt完成
+        virtual ssize_t doRead(off64_t offset, void *buf, size_t size) = 0;
+        std::atomic<int64_t> stats[kSourceStatCount];
+
+    private:
+        std::atomic<int> refs;
+        int64_t openNs;
+};
+
+//本地文件(包括不压缩的asset)，整个范围mmap后直接从映射复制，mmap失败时用pread。fd的引用交给数据源
+datasource* newFileSource(int fd, off64_t offset, off64_t length);
+//app私有目录或其他本地路径，打不开返回NULL
+datasource* openFileSource(const char *path);
+//http://host[:port]/path，用HTTP/1.1 Range请求按blockSize分块读取，最多缓存cacheBlocks块，
+//顺序读时在后台预读后面的块。打开时同步请求第一块取得总长度，不要在UI线程上调用；失败返回NULL
+datasource* openHttpSource(const char *url, int blockSize, int cacheBlocks);
+
+//新建extractor并设置数据源，extractor持有数据源的引用，失败返回NULL。要用closeExtractor删除
+AMediaExtractor* openExtractor(datasource *source);
+void closeExtractor(AMediaExtractor *ex);
@@ -0,0 +1,485 @@
+//
+// 预读线程的实现。只有一个生产者(预读线程)和一个消费者(looper线程)：
+// 生产者只写head+count处的槽位，消费者只读head处的槽位，复制数据时不用持有锁
+//
+
+#include "demuxer.h"
+
+#include <dlfcn.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <algorithm>
+
+#define TAG "NativeCodec-demux"
+#include "logging.h"
+#include "tracing.h"
+
+//槽位缓冲区的初始大小和上限，超过上限的样本当作读取错误
+#define kMinSampleBytes (64 * 1024)
+#define kMaxSampleBytes (32 * 1024 * 1024)
+
+//AMediaExtractor_getSampleSize从API 28开始提供，没有时按需加倍缓冲区重试
+typedef ssize_t (*getsamplesize_t)(AMediaExtractor*);
+
+static getsamplesize_t findGetSampleSize(){
+    return (getsamplesize_t) dlsym(RTLD_DEFAULT, "AMediaExtractor_getSampleSize");
+}
+
+static int64_t nowUs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
+}
+
+void* demuxer::trampoline(void *p) {
+    ((demuxer*)p)->loop();
+    return NULL;
+}
+
+demuxer::demuxer(AMediaExtractor *ex, playerstats *stats){
+    this->ex = ex;
+    this->stats = stats;
+    running = false;
+    pthread_mutex_init(&lock, NULL);
+    pthread_cond_init(&cond, NULL);
+    memset(slots, 0, sizeof(slots));
+    head = 0;
+    count = 0;
+    bytes = 0;
+    highwater = kDemuxHighWaterBytes;
+    eos = false;
+    quit = false;
+    waiting = false;
+    generation = 0;
+    seekpending = false;
+    seekUs = 0;
+    seekmode = AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC;
+    looping = false;
+    loopperiodUs = 0;
+    atstart = true;
+    cachebytes = 0;
+    caching = false;
+    cacheready = false;
+    cachefailed = false;
+    cacheendUs = -1;
+    cachepos = -1;
+    offsetUs = 0;
+    firstptsUs = -1;
+    maxptsUs = -1;
+    lastreadUs = -1;
+    mindeltaUs = -1;
+    callback = NULL;
+    userdata = NULL;
+}
+
+demuxer::~demuxer(){
+    pthread_mutex_lock(&lock);
+    quit = true;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+    if (running){
+        pthread_join(worker, NULL);
+    }
+    for (int i = 0; i < kDemuxSlots; ++i) {
+        free(slots[i].data);
+    }
+    clearCache();
+    closeExtractor(ex);
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&lock);
+}
+
+void demuxer::setDataCallback(void (*callback)(void *), void *userdata) {
+    this->callback = callback;
+    this->userdata = userdata;
+}
+
+void demuxer::start() {
+    running = true;
+    pthread_create(&worker, NULL, trampoline, this);
+}
+
+//槽位缓冲区至少要能放下needed字节，也不小于kMinSampleBytes
+static bool growSlot(demuxslot *slot, size_t needed){
+    if (slot->capacity >= needed && slot->capacity >= kMinSampleBytes){
+        return true;
+    }
+    size_t capacity = needed > kMinSampleBytes ? needed : kMinSampleBytes;
+    uint8_t *data = (uint8_t*) realloc(slot->data, capacity);
+    if (!data){
+        return false;
+    }
+    slot->data = data;
+    slot->capacity = capacity;
+    return true;
+}
+
+//在预读线程上读取extractor当前位置的样本并前进，到结尾时返回eos样本
+bool demuxer::readSample(demuxslot *slot) {
+    TRACE_SCOPE("extractor read");
+    static getsamplesize_t getSampleSize = findGetSampleSize();
+    slot->size = 0;
+    slot->flags = 0;
+    slot->eos = false;
+    slot->ptsUs = AMediaExtractor_getSampleTime(ex);
+    if (slot->ptsUs < 0){
+        slot->eos = true;
+        return true;
+    }
+
+    size_t needed = getSampleSize ? (size_t) getSampleSize(ex) : 0;
+    while (growSlot(slot, needed)){
+        ssize_t size = AMediaExtractor_readSampleData(ex, slot->data, slot->capacity);
+        if (size >= 0){
+            slot->size = size;
+            slot->flags = AMediaExtractor_getSampleFlags(ex);
+            AMediaExtractor_advance(ex);
+            return true;
+        }
+        //缓冲区太小时readSampleData也返回-1，加倍后重试
+        if (slot->capacity >= kMaxSampleBytes){
+            break;
+        }
+        needed = slot->capacity * 2;
+    }
+    LOGE("failed to read sample at %lld", (long long) slot->ptsUs);
+    slot->eos = true;
+    return false;
+}
+
+//从extractor读一个样本：记下推算循环周期用的时间戳，需要时放进循环缓存，最后加上这一圈的偏移
+bool demuxer::readExtractor(demuxslot *slot, bool looping) {
+    bool start = atstart;
+    atstart = false;
+    bool ok = readSample(slot);
+    if (slot->eos){
+        return ok;
+    }
+    int64_t ptsUs = slot->ptsUs;
+    if (start){
+        firstptsUs = ptsUs;
+    }
+    if (lastreadUs >= 0 && ptsUs > lastreadUs && (mindeltaUs < 0 || ptsUs - lastreadUs < mindeltaUs)){
+        mindeltaUs = ptsUs - lastreadUs;
+    }
+    lastreadUs = ptsUs;
+    maxptsUs = std::max(maxptsUs, ptsUs);
+    if (start && looping && !cacheready && !cachefailed && (slot->flags & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC)){
+        caching = true;
+    }
+    if (caching){
+        cacheSample(slot);
+    }
+    slot->ptsUs += offsetUs;
+    return true;
+}
+
+//缓存只在同步样本处结束，保证回绕后送进解码器的是完整的GOP
+void demuxer::cacheSample(const demuxslot *slot) {
+    bool sync = (slot->flags & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC) != 0;
+    bool full = cachebytes + (int64_t) slot->size > kLoopCacheBytes;
+    if (sync && !cache.empty() && (full || slot->ptsUs - cache[0].ptsUs >= kLoopCacheLeadUs)){
+        finishCache(slot->ptsUs);
+        return;
+    }
+    if (full){
+        //放不下，去掉最后一个不完整的GOP
+        size_t gop = cache.size();
+        while (gop > 0 && !(cache[gop - 1].flags & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC)){
+            gop--;
+        }
+        if (gop <= 1){
+            LOGW("first GOP exceeds %d bytes, looping without cache", kLoopCacheBytes);
+            clearCache();
+            cachefailed = true;
+            return;
+        }
+        int64_t endUs = cache[gop - 1].ptsUs;
+        for (size_t i = gop - 1; i < cache.size(); ++i) {
+            cachebytes -= cache[i].size;
+            free(cache[i].data);
+        }
+        cache.resize(gop - 1);
+        finishCache(endUs);
+        return;
+    }
+    cachedsample sample;
+    sample.data = (uint8_t*) malloc(slot->size > 0 ? slot->size : 1);
+    if (!sample.data){
+        clearCache();
+        cachefailed = true;
+        return;
+    }
+    memcpy(sample.data, slot->data, slot->size);
+    sample.size = slot->size;
+    sample.ptsUs = slot->ptsUs;
+    sample.flags = slot->flags;
+    cache.push_back(sample);
+    cachebytes += slot->size;
+    stats->set(kStatLoopCacheBytes, cachebytes);
+}
+
+void demuxer::finishCache(int64_t endUs) {
+    caching = false;
+    cacheready = true;
+    cacheendUs = endUs;
+    stats->set(kStatLoopCacheBytes, cachebytes);
+    LOGI("loop cache %zu samples, %lld bytes, %s", cache.size(), (long long) cachebytes,
+         endUs < 0 ? "whole clip" : "head of stream");
+}
+
+void demuxer::clearCache() {
+    for (size_t i = 0; i < cache.size(); ++i) {
+        free(cache[i].data);
+    }
+    cache.clear();
+    cachebytes = 0;
+    caching = false;
+    cacheready = false;
+    cachepos = -1;
+    stats->set(kStatLoopCacheBytes, 0);
+}
+
+//送出缓存里的下一个样本。送完时extractor跳到缓存之后接着读；整个片段都在缓存里时cachepos停在末尾，由调用者回绕
+void demuxer::replay(demuxslot *slot) {
+    const cachedsample *sample = &cache[cachepos++];
+    slot->size = 0;
+    slot->eos = false;
+    slot->flags = sample->flags;
+    slot->ptsUs = sample->ptsUs + offsetUs;
+    if (growSlot(slot, sample->size)){
+        memcpy(slot->data, sample->data, sample->size);
+        slot->size = sample->size;
+    }
+    if (cachepos == (int) cache.size() && cacheendUs >= 0){
+        cachepos = -1;
+        AMediaExtractor_seekTo(ex, cacheendUs, AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+    }
+}
+
+//seek目标在缓存范围内时从缓存里的同步样本开始送，不用等extractor seek和读取
+bool demuxer::seekCache(int64_t timeUs, SeekMode mode) {
+    if (!cacheready || cache.empty() || mode != AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC
+            || (cacheendUs >= 0 && timeUs >= cacheendUs)){
+        return false;
+    }
+    int pos = 0;
+    for (size_t i = 0; i < cache.size(); ++i) {
+        if ((cache[i].flags & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC) && cache[i].ptsUs <= timeUs){
+            pos = (int) i;
+        }
+    }
+    cachepos = pos;
+    return true;
+}
+
+//每圈的时长：没有指定时按最后一个样本的时间戳加上样本间隔推算，推算不出返回0
+int64_t demuxer::loopPeriodUs(int64_t periodUs) const {
+    if (periodUs > 0){
+        return periodUs;
+    }
+    if (maxptsUs < 0 || mindeltaUs <= 0){
+        return 0;
+    }
+    return maxptsUs - std::max(firstptsUs, (int64_t) 0) + mindeltaUs;
+}
+
+//预读线程上取下一个样本：缓存里的、extractor里的，或者循环播放时读到结尾后回绕到开头
+bool demuxer::nextSample(demuxslot *slot, bool looping, int64_t periodUs) {
+    if (!looping && cachepos < 0 && (caching || cacheready)){
+        //不再循环，缓存的内存还回去
+        clearCache();
+    }
+    if (cachepos >= 0 && cachepos < (int) cache.size()){
+        replay(slot);
+        return true;
+    }
+    if (cachepos >= 0){
+        //整个片段都在缓存里并且已经送完
+        cachepos = -1;
+        slot->size = 0;
+        slot->flags = 0;
+        slot->ptsUs = -1;
+        slot->eos = true;
+    } else{
+        bool ok = readExtractor(slot, looping);
+        if (!slot->eos || !ok){
+            return ok;
+        }
+    }
+    if (!looping){
+        return true;
+    }
+    if (caching){
+        //读到结尾还没超过上限，整个片段都缓存下了，之后不用再读extractor
+        finishCache(-1);
+    }
+    int64_t period = loopPeriodUs(periodUs);
+    if (period <= 0){
+        LOGW("unknown loop period, stopping at end of stream");
+        return true;
+    }
+    //回绕：不出eos样本，时间戳接着上一圈往后排，解码器不用flush
+    offsetUs += period;
+    lastreadUs = -1;
+    if (cacheready){
+        cachepos = 0;
+        replay(slot);
+        return true;
+    }
+    AMediaExtractor_seekTo(ex, std::max(firstptsUs, (int64_t) 0), AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+    atstart = true;
+    return readExtractor(slot, looping);
+}
+
+void demuxer::loop() {
+    pthread_mutex_lock(&lock);
+    while (true){
+        bool full = false;
+        while (!quit && !seekpending && (eos || count >= kDemuxSlots || bytes >= highwater)){
+            if (!eos && !full){
+                full = true;
+                stats->add(kStatDemuxFullWaits, 1);
+            }
+            pthread_cond_wait(&cond, &lock);
+        }
+        if (quit){
+            break;
+        }
+        if (seekpending){
+            int64_t timeUs = seekUs;
+            SeekMode mode = seekmode;
+            bool loopmode = looping;
+            seekpending = false;
+            pthread_mutex_unlock(&lock);
+            //seek之后从第0圈开始，建到一半的缓存作废
+            offsetUs = 0;
+            lastreadUs = -1;
+            cachepos = -1;
+            if (caching || !loopmode){
+                clearCache();
+            }
+            if (seekCache(timeUs, mode)){
+                stats->add(kStatLoopCacheSeeks, 1);
+            } else{
+                AMediaExtractor_seekTo(ex, timeUs, mode);
+                atstart = timeUs <= std::max(firstptsUs, (int64_t) 0);
+            }
+            pthread_mutex_lock(&lock);
+            continue;
+        }
+
+        //消费者出队和seek都不改变head+count，读取时不持有锁
+        uint64_t gen = generation;
+        bool loopmode = looping;
+        int64_t periodUs = loopperiodUs;
+        demuxslot *slot = &slots[(head + count) % kDemuxSlots];
+        pthread_mutex_unlock(&lock);
+        int64_t readstartUs = nowUs();
+        nextSample(slot, loopmode, periodUs);
+        stats->add(kStatReadUs, nowUs() - readstartUs);
+        pthread_mutex_lock(&lock);
+        if (gen != generation){
+            //读取期间发生了seek，这个样本作废
+            continue;
+        }
+        count++;
+        bytes += slot->size;
+        stats->add(kStatSamplesRead, 1);
+        stats->set(kStatDemuxCount, count);
+        stats->set(kStatDemuxBytes, bytes);
+        traceCounter("demux samples", count);
+        if (slot->eos){
+            eos = true;
+        }
+        if (waiting){
+            waiting = false;
+            void (*cb)(void*) = callback;
+            pthread_mutex_unlock(&lock);
+            if (cb){
+                cb(userdata);
+            }
+            pthread_mutex_lock(&lock);
+        }
+    }
+    pthread_mutex_unlock(&lock);
+}
+
+bool demuxer::read(uint8_t *dst, size_t capacity, demuxslot *sample) {
+    pthread_mutex_lock(&lock);
+    if (count == 0){
+        //没有可用的样本，等预读线程读到后通过回调通知
+        if (!eos){
+            stats->add(kStatDemuxStarvations, 1);
+        }
+        waiting = true;
+        pthread_mutex_unlock(&lock);
+        return false;
+    }
+    stats->add(kStatDemuxReads, 1);
+    stats->add(kStatDemuxOccupancySum, count);
+    demuxslot *slot = &slots[head];
+    pthread_mutex_unlock(&lock);
+
+    *sample = *slot;
+    sample->data = NULL;
+    sample->capacity = 0;
+    if (slot->size > capacity){
+        LOGE("sample of %zu bytes truncated to %zu", slot->size, capacity);
+        sample->size = capacity;
+    }
+    if (sample->size > 0){
+        memcpy(dst, slot->data, sample->size);
+    }
+
+    pthread_mutex_lock(&lock);
+    head = (head + 1) % kDemuxSlots;
+    count--;
+    bytes -= slot->size;
+    stats->set(kStatDemuxCount, count);
+    stats->set(kStatDemuxBytes, bytes);
+    traceCounter("demux samples", count);
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+    return true;
+}
+
+void demuxer::seekTo(int64_t timeUs, SeekMode mode) {
+    pthread_mutex_lock(&lock);
+    generation++;
+    head = (head + count) % kDemuxSlots;
+    count = 0;
+    bytes = 0;
+    stats->set(kStatDemuxCount, 0);
+    stats->set(kStatDemuxBytes, 0);
+    eos = false;
+    seekpending = true;
+    seekUs = timeUs;
+    seekmode = mode;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
+
+void demuxer::setHighWater(int64_t bytes) {
+    pthread_mutex_lock(&lock);
+    highwater = bytes;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
+
+void demuxer::setLoop(bool loop, int64_t periodUs) {
+    pthread_mutex_lock(&lock);
+    looping = loop;
+    loopperiodUs = periodUs;
+    //短片段可能已经读到结尾，消费者还没取到的eos样本收回来，预读线程接着回绕。
+    //只剩这一个样本时消费者可能正在复制它，交给调用者从头开始
+    int tail = (head + count - 1) % kDemuxSlots;
+    if (loop && eos && count >= 2 && slots[tail].eos){
+        count--;
+        eos = false;
+        stats->set(kStatDemuxCount, count);
+    }
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+}
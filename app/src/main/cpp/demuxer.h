@@ -0,0 +1,130 @@
+//
+// 预读线程：在单独的线程上从extractor读取压缩样本放进环形缓冲区，解码器的输入从缓冲区取，
+// 存储读取慢的时候不会直接卡住looper线程
+//
+
+#pragma once
+
+#include <pthread.h>
+#include <stdint.h>
+#include <sys/types.h>
+#include <atomic>
+#include <vector>
+
+#include "datasource.h"
+#include "playerstats.h"
+#include "media/NdkMediaExtractor.h"
+
+//预读的样本个数和字节数上限，任意一个达到就暂停读取
+#define kDemuxSlots 32
+#define kDemuxHighWaterBytes (4 * 1024 * 1024)
+//循环播放时缓存开头完整的GOP，缓存的时长达到kLoopCacheLeadUs就停止，字节数不超过kLoopCacheBytes
+#define kLoopCacheLeadUs 1000000LL
+#define kLoopCacheBytes (4 * 1024 * 1024)
+
+//一个预读的样本，data在槽位复用时保留，只在样本变大时重新分配
+typedef struct {
+    uint8_t *data;
+    size_t capacity;
+    size_t size;
+    int64_t ptsUs;
+    uint32_t flags;     //AMEDIAEXTRACTOR_SAMPLE_FLAG_*
+    bool eos;           //之后没有样本了，size为0
+} demuxslot;
+
+//循环缓存里的一个样本，时间戳是extractor里的原始值
+typedef struct {
+    uint8_t *data;
+    size_t size;
+    int64_t ptsUs;
+    uint32_t flags;
+} cachedsample;
+
+class demuxer {
+    public:demuxer(AMediaExtractor *ex, playerstats *stats);
+        demuxer& operator = (const demuxer& ) = delete;
+        demuxer(demuxer&) = delete;
+        //停止预读线程并删除extractor
+        ~demuxer();
+
+        //缓冲区从空变为非空、而解码器在等输入时调用，运行在预读线程上
+        void setDataCallback(void (*callback)(void *userdata), void *userdata);
+        void start();
+
+        //以下在消费者(looper)线程调用
+        //把队首的样本复制到dst并出队，缓冲区为空返回false；dst不够大时截断
+        bool read(uint8_t *dst, size_t capacity, demuxslot *sample);
+        //丢弃所有预读的样本，预读线程seek后从新位置继续读
+        void seekTo(int64_t timeUs, SeekMode mode);
+        //预读字节数上限，默认kDemuxHighWaterBytes，可以在任意线程调用
+        void setHighWater(int64_t bytes);
+        //循环播放：读到结尾时不出eos样本，从开头接着读，时间戳每圈加上periodUs(0表示按样本的时间戳推算)。
+        //开头的GOP缓存在内存里，回绕和seek到开头时不用等extractor。可以在任意线程调用，之后的seek从第0圈开始
+        void setLoop(bool loop, int64_t periodUs);
+
+    private:
+        static void* trampoline(void *p);
+        void loop();
+        bool readSample(demuxslot *slot);
+        //以下只在预读线程上调用
+        bool nextSample(demuxslot *slot, bool looping, int64_t periodUs);
+        bool readExtractor(demuxslot *slot, bool looping);
+        void replay(demuxslot *slot);
+        void cacheSample(const demuxslot *slot);
+        void finishCache(int64_t endUs);
+        void clearCache();
+        bool seekCache(int64_t timeUs, SeekMode mode);
+        int64_t loopPeriodUs(int64_t periodUs) const;
+
+        AMediaExtractor *ex;
+        pthread_t worker;
+        bool running;
+        pthread_mutex_t lock;
+        pthread_cond_t cond;
+
+        //以下由lock保护
+        demuxslot slots[kDemuxSlots];
+        int head;
+        int count;
+        int64_t bytes;
+        int64_t highwater;
+        bool eos;
+        bool quit;
+        bool waiting;
+        //每次seek加一，预读线程读到一半的样本如果代数不同就丢弃
+        uint64_t generation;
+        bool seekpending;
+        int64_t seekUs;
+        SeekMode seekmode;
+        bool looping;
+        int64_t loopperiodUs;
+
+        //以下只在预读线程上访问
+        //extractor在第一个样本处，从这里开始可以建立循环缓存
+        bool atstart;
+        //开头的样本，回绕时先送这些，同时extractor在后台seek到cacheendUs
+        std::vector<cachedsample> cache;
+        int64_t cachebytes;
+        //正在缓存；缓存完成；第一个GOP就超过上限，不再尝试
+        bool caching;
+        bool cacheready;
+        bool cachefailed;
+        //缓存之后的第一个样本(同步样本)的时间戳，-1表示整个片段都在缓存里
+        int64_t cacheendUs;
+        //正在从缓存送出的样本序号，-1表示从extractor读
+        int cachepos;
+        //当前这一圈的时间戳偏移
+        int64_t offsetUs;
+        //推算周期用：开头的时间戳、最大的时间戳、相邻样本最小的时间戳间隔
+        int64_t firstptsUs;
+        int64_t maxptsUs;
+        int64_t lastreadUs;
+        int64_t mindeltaUs;
+
+        //读取耗时、缓冲区占用等计入播放器的计数器
+        playerstats *stats;
+
+        void (*callback)(void *userdata);
+        void *userdata;
+};
+
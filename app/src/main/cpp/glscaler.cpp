@@ -0,0 +1,306 @@
+//
+// GL缩放的实现。不经过Java的SurfaceTexture：AImage_getHardwareBuffer取出解码器写好的缓冲区，
+// eglGetNativeClientBufferANDROID包装成EGLImage后绑定到GL_TEXTURE_EXTERNAL_OES纹理
+//
+
+#include "glscaler.h"
+
+#include <errno.h>
+#include <time.h>
+
+#define TAG "NativeCodec-glscale"
+#include "logging.h"
+#include "tracing.h"
+
+//AImageReader最多同时持有的帧数，解码器最多领先这么多帧
+#define kMaxImages 4
+//缓存的EGLImage超过这个数说明缓冲区重新分配过，全部重建
+#define kMaxCachedImages 16
+
+static const char *kVertexShader =
+        "attribute vec4 aPosition;\n"
+        "attribute vec2 aTexCoord;\n"
+        "uniform vec2 uCropScale;\n"
+        "uniform vec2 uCropOffset;\n"
+        "varying vec2 vTexCoord;\n"
+        "void main() {\n"
+        "    gl_Position = aPosition;\n"
+        "    vTexCoord = aTexCoord * uCropScale + uCropOffset;\n"
+        "}\n";
+
+static const char *kFragmentShader =
+        "#extension GL_OES_EGL_image_external : require\n"
+        "precision mediump float;\n"
+        "varying vec2 vTexCoord;\n"
+        "uniform samplerExternalOES sTexture;\n"
+        "void main() {\n"
+        "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+        "}\n";
+
+//整个窗口的两个三角形。缓冲区第一行是画面顶部，纹理坐标上下翻转
+static const GLfloat kPositions[] = { -1.f, -1.f, 1.f, -1.f, -1.f, 1.f, 1.f, 1.f };
+static const GLfloat kTexCoords[] = { 0.f, 1.f, 1.f, 1.f, 0.f, 0.f, 1.f, 0.f };
+
+glscaler::glscaler(){
+    reader = NULL;
+    input = NULL;
+    pthread_mutex_init(&lock, NULL);
+    pthread_cond_init(&cond, NULL);
+    pending = 0;
+    display = EGL_NO_DISPLAY;
+    context = EGL_NO_CONTEXT;
+    surface = EGL_NO_SURFACE;
+    width = height = 0;
+    program = 0;
+    texture = 0;
+    positionloc = texcoordloc = cropscaleloc = cropoffsetloc = -1;
+    getNativeClientBuffer = NULL;
+    createImage = NULL;
+    destroyImage = NULL;
+    imageTargetTexture = NULL;
+    presentationTime = NULL;
+}
+
+//解码器要在这之前停止，它还在往reader的surface里写
+glscaler::~glscaler(){
+    if (display != EGL_NO_DISPLAY){
+        if (context != EGL_NO_CONTEXT){
+            eglMakeCurrent(display, surface, surface, context);
+            clearImages();
+            if (texture){
+                glDeleteTextures(1, &texture);
+            }
+            if (program){
+                glDeleteProgram(program);
+            }
+        }
+        eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+        if (surface != EGL_NO_SURFACE){
+            eglDestroySurface(display, surface);
+        }
+        if (context != EGL_NO_CONTEXT){
+            eglDestroyContext(display, context);
+        }
+        //不调用eglTerminate，默认display在进程里共享
+        eglReleaseThread();
+    }
+    if (reader){
+        AImageReader_delete(reader);
+    }
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&lock);
+}
+
+bool glscaler::open(ANativeWindow *output, int32_t srcwidth, int32_t srcheight, int32_t width, int32_t height){
+    this->width = width;
+    this->height = height;
+    if (AImageReader_newWithUsage(srcwidth, srcheight, AIMAGE_FORMAT_PRIVATE,
+            AHARDWAREBUFFER_USAGE_GPU_SAMPLED_IMAGE, kMaxImages, &reader) != AMEDIA_OK
+            || AImageReader_getWindow(reader, &input) != AMEDIA_OK){
+        LOGE("failed to create image reader %dx%d", srcwidth, srcheight);
+        return false;
+    }
+    AImageReader_ImageListener listener = { this, onImageAvailable };
+    AImageReader_setImageListener(reader, &listener);
+
+    display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+    if (display == EGL_NO_DISPLAY || !eglInitialize(display, NULL, NULL)){
+        LOGE("eglInitialize failed: %#x", eglGetError());
+        display = EGL_NO_DISPLAY;
+        return false;
+    }
+    //编码器的输入surface要求EGL_RECORDABLE_ANDROID
+    const EGLint configattribs[] = {
+            EGL_RED_SIZE, 8,
+            EGL_GREEN_SIZE, 8,
+            EGL_BLUE_SIZE, 8,
+            EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL_NONE
+    };
+    EGLConfig config;
+    EGLint numconfigs = 0;
+    if (!eglChooseConfig(display, configattribs, &config, 1, &numconfigs) || numconfigs < 1){
+        LOGE("no recordable EGL config");
+        return false;
+    }
+    const EGLint contextattribs[] = { EGL_CONTEXT_CLIENT_VERSION, 2, EGL_NONE };
+    context = eglCreateContext(display, config, EGL_NO_CONTEXT, contextattribs);
+    const EGLint surfaceattribs[] = { EGL_NONE };
+    surface = context != EGL_NO_CONTEXT ? eglCreateWindowSurface(display, config, output, surfaceattribs)
+                                        : EGL_NO_SURFACE;
+    if (surface == EGL_NO_SURFACE || !eglMakeCurrent(display, surface, surface, context)){
+        LOGE("failed to create EGL surface on encoder input: %#x", eglGetError());
+        return false;
+    }
+
+    getNativeClientBuffer = (PFNEGLGETNATIVECLIENTBUFFERANDROIDPROC)
+            eglGetProcAddress("eglGetNativeClientBufferANDROID");
+    createImage = (PFNEGLCREATEIMAGEKHRPROC) eglGetProcAddress("eglCreateImageKHR");
+    destroyImage = (PFNEGLDESTROYIMAGEKHRPROC) eglGetProcAddress("eglDestroyImageKHR");
+    imageTargetTexture = (PFNGLEGLIMAGETARGETTEXTURE2DOESPROC) eglGetProcAddress("glEGLImageTargetTexture2DOES");
+    presentationTime = (PFNEGLPRESENTATIONTIMEANDROIDPROC) eglGetProcAddress("eglPresentationTimeANDROID");
+    if (!getNativeClientBuffer || !createImage || !destroyImage || !imageTargetTexture || !presentationTime){
+        LOGE("missing EGL/GLES extensions");
+        return false;
+    }
+    if (!createProgram()){
+        return false;
+    }
+    LOGD("scaling %dx%d to %dx%d", srcwidth, srcheight, width, height);
+    return true;
+}
+
+ANativeWindow* glscaler::inputWindow(){
+    return input;
+}
+
+//在AImageReader的回调线程上运行
+void glscaler::onImageAvailable(void *context, AImageReader *reader){
+    glscaler *s = (glscaler*) context;
+    pthread_mutex_lock(&s->lock);
+    s->pending++;
+    pthread_cond_signal(&s->cond);
+    pthread_mutex_unlock(&s->lock);
+}
+
+static GLuint compileShader(GLenum type, const char *source){
+    GLuint shader = glCreateShader(type);
+    glShaderSource(shader, 1, &source, NULL);
+    glCompileShader(shader);
+    GLint compiled = GL_FALSE;
+    glGetShaderiv(shader, GL_COMPILE_STATUS, &compiled);
+    if (!compiled){
+        char log[512];
+        glGetShaderInfoLog(shader, sizeof(log), NULL, log);
+        LOGE("shader compile failed: %s", log);
+        glDeleteShader(shader);
+        return 0;
+    }
+    return shader;
+}
+
+bool glscaler::createProgram(){
+    GLuint vs = compileShader(GL_VERTEX_SHADER, kVertexShader);
+    GLuint fs = compileShader(GL_FRAGMENT_SHADER, kFragmentShader);
+    if (!vs || !fs){
+        return false;
+    }
+    program = glCreateProgram();
+    glAttachShader(program, vs);
+    glAttachShader(program, fs);
+    glLinkProgram(program);
+    glDeleteShader(vs);
+    glDeleteShader(fs);
+    GLint linked = GL_FALSE;
+    glGetProgramiv(program, GL_LINK_STATUS, &linked);
+    if (!linked){
+        LOGE("program link failed");
+        return false;
+    }
+    positionloc = glGetAttribLocation(program, "aPosition");
+    texcoordloc = glGetAttribLocation(program, "aTexCoord");
+    cropscaleloc = glGetUniformLocation(program, "uCropScale");
+    cropoffsetloc = glGetUniformLocation(program, "uCropOffset");
+
+    glGenTextures(1, &texture);
+    glBindTexture(GL_TEXTURE_EXTERNAL_OES, texture);
+    glTexParameteri(GL_TEXTURE_EXTERNAL_OES, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_EXTERNAL_OES, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_EXTERNAL_OES, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_EXTERNAL_OES, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+    glUseProgram(program);
+    glUniform1i(glGetUniformLocation(program, "sTexture"), 0);
+    glVertexAttribPointer(positionloc, 2, GL_FLOAT, GL_FALSE, 0, kPositions);
+    glEnableVertexAttribArray(positionloc);
+    glVertexAttribPointer(texcoordloc, 2, GL_FLOAT, GL_FALSE, 0, kTexCoords);
+    glEnableVertexAttribArray(texcoordloc);
+    glViewport(0, 0, width, height);
+    return glGetError() == GL_NO_ERROR;
+}
+
+EGLImageKHR glscaler::imageFor(AHardwareBuffer *buffer){
+    std::map<AHardwareBuffer*, EGLImageKHR>::iterator it = images.find(buffer);
+    if (it != images.end()){
+        return it->second;
+    }
+    if (images.size() >= kMaxCachedImages){
+        clearImages();
+    }
+    const EGLint attribs[] = { EGL_IMAGE_PRESERVED_KHR, EGL_TRUE, EGL_NONE };
+    EGLImageKHR image = createImage(display, EGL_NO_CONTEXT, EGL_NATIVE_BUFFER_ANDROID,
+                                    getNativeClientBuffer(buffer), attribs);
+    if (image == EGL_NO_IMAGE_KHR){
+        LOGE("eglCreateImageKHR failed: %#x", eglGetError());
+        return EGL_NO_IMAGE_KHR;
+    }
+    images[buffer] = image;
+    return image;
+}
+
+void glscaler::clearImages(){
+    for (std::map<AHardwareBuffer*, EGLImageKHR>::iterator it = images.begin(); it != images.end(); ++it) {
+        destroyImage(display, it->second);
+    }
+    images.clear();
+}
+
+bool glscaler::drawNext(int timeoutMs){
+    TRACE_SCOPE("scale frame");
+    pthread_mutex_lock(&lock);
+    if (pending == 0){
+        struct timespec deadline;
+        clock_gettime(CLOCK_REALTIME, &deadline);
+        deadline.tv_sec += timeoutMs / 1000;
+        deadline.tv_nsec += (timeoutMs % 1000) * 1000000L;
+        if (deadline.tv_nsec >= 1000000000L){
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000L;
+        }
+        while (pending == 0 && pthread_cond_timedwait(&cond, &lock, &deadline) != ETIMEDOUT) {
+        }
+    }
+    bool available = pending > 0;
+    if (available){
+        pending--;
+    }
+    pthread_mutex_unlock(&lock);
+    if (!available){
+        return false;
+    }
+
+    AImage *image = NULL;
+    if (AImageReader_acquireNextImage(reader, &image) != AMEDIA_OK){
+        LOGE("acquireNextImage failed");
+        return false;
+    }
+    AHardwareBuffer *buffer = NULL;
+    int64_t timestampNs = 0;
+    AImageCropRect crop;
+    AImage_getHardwareBuffer(image, &buffer);
+    AImage_getTimestamp(image, &timestampNs);
+    AImage_getCropRect(image, &crop);
+    EGLImageKHR eglimage = buffer ? imageFor(buffer) : EGL_NO_IMAGE_KHR;
+    if (eglimage == EGL_NO_IMAGE_KHR){
+        AImage_delete(image);
+        return false;
+    }
+    //解码器的缓冲区可能比画面大，只采样裁剪区域
+    AHardwareBuffer_Desc desc;
+    AHardwareBuffer_describe(buffer, &desc);
+    glUniform2f(cropscaleloc, (GLfloat) (crop.right - crop.left) / desc.width,
+                (GLfloat) (crop.bottom - crop.top) / desc.height);
+    glUniform2f(cropoffsetloc, (GLfloat) crop.left / desc.width, (GLfloat) crop.top / desc.height);
+
+    glActiveTexture(GL_TEXTURE0);
+    glBindTexture(GL_TEXTURE_EXTERNAL_OES, texture);
+    imageTargetTexture(GL_TEXTURE_EXTERNAL_OES, (GLeglImageOES) eglimage);
+    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    //等GPU读完再把缓冲区还给解码器
+    glFinish();
+    AImage_delete(image);
+    //编码器按这个时间戳给输出帧打时间
+    presentationTime(display, surface, timestampNs);
+    return eglSwapBuffers(display, surface) == EGL_TRUE;
+}
@@ -0,0 +1,66 @@
+//
+// 转码时的GL缩放：解码器输出到AImageReader，每一帧通过AHardwareBuffer绑定成外部纹理，
+// 缩放后画到编码器的输入surface上。只在转码线程上使用，EGL上下文绑定在这个线程
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <pthread.h>
+#include <map>
+
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+#include <android/hardware_buffer.h>
+#include <android/native_window.h>
+
+#include "media/NdkImageReader.h"
+
+class glscaler {
+    public:glscaler();
+        glscaler& operator = (const glscaler& ) = delete;
+        glscaler(glscaler&) = delete;
+        ~glscaler();
+
+        //output是编码器的输入surface，画面缩放到width*height，调用者保留output的引用
+        bool open(ANativeWindow *output, int32_t srcwidth, int32_t srcheight, int32_t width, int32_t height);
+        //解码器的输出surface
+        ANativeWindow* inputWindow();
+        //等解码器送来的下一帧，最多timeoutMs毫秒，缩放后带着原来的时间戳交给编码器。没等到返回false
+        bool drawNext(int timeoutMs);
+
+    private:
+        static void onImageAvailable(void *context, AImageReader *reader);
+        bool createProgram();
+        EGLImageKHR imageFor(AHardwareBuffer *buffer);
+        void clearImages();
+
+        AImageReader *reader;
+        ANativeWindow *input;
+        pthread_mutex_t lock;
+        pthread_cond_t cond;
+        //已经送到但还没取走的帧数
+        int pending;
+
+        EGLDisplay display;
+        EGLContext context;
+        EGLSurface surface;
+        int32_t width;
+        int32_t height;
+        GLuint program;
+        GLuint texture;
+        GLint positionloc;
+        GLint texcoordloc;
+        GLint cropscaleloc;
+        GLint cropoffsetloc;
+        //AImageReader循环使用同一组缓冲区，EGLImage按缓冲区缓存
+        std::map<AHardwareBuffer*, EGLImageKHR> images;
+
+        PFNEGLGETNATIVECLIENTBUFFERANDROIDPROC getNativeClientBuffer;
+        PFNEGLCREATEIMAGEKHRPROC createImage;
+        PFNEGLDESTROYIMAGEKHRPROC destroyImage;
+        PFNGLEGLIMAGETARGETTEXTURE2DOESPROC imageTargetTexture;
+        PFNEGLPRESENTATIONTIMEANDROIDPROC presentationTime;
+};
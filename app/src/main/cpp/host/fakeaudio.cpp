@@ -0,0 +1,300 @@
+//
+// 宿主机上的AAudio替身：每个流一个线程，按burst的间隔调用数据回调，时钟可以比系统时间快或慢(场景的audioppm)，
+// 写进去的帧经过缓冲区大小的延迟后算作播出。暂停、flush、停止的状态变化和设备上一样由流线程完成
+//
+
+#include "fakemedia.h"
+
+#include <pthread.h>
+#include <string.h>
+#include <time.h>
+#include <atomic>
+#include <vector>
+
+#include <aaudio/AAudio.h>
+
+#define kFakeBurstFrames 192
+#define kFakeCapacityBursts 16
+
+static int64_t nowNs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+static void deadlineAt(int64_t ns, timespec *out){
+    out->tv_sec = ns / 1000000000LL;
+    out->tv_nsec = ns % 1000000000LL;
+}
+
+struct AAudioStreamBuilderStruct {
+    int32_t samplerate;
+    int32_t channels;
+    aaudio_format_t format;
+    aaudio_sharing_mode_t sharing;
+    AAudioStream_dataCallback datacallback;
+    void *datauserdata;
+    AAudioStream_errorCallback errorcallback;
+    void *erroruserdata;
+};
+
+struct AAudioStreamStruct {
+    int32_t samplerate;
+    int32_t channels;
+    //设备时钟相对系统时间的速度
+    double speed;
+    AAudioStream_dataCallback datacallback;
+    void *datauserdata;
+    std::vector<int16_t> buffer;
+
+    pthread_t thread;
+    //以下由lock保护
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    aaudio_stream_state_t state;
+    bool closing;
+    int32_t buffersize;
+    int64_t nextNs;
+    bool tsvalid;
+    int64_t tsframe;
+    int64_t tsNs;
+    std::atomic<int64_t> written;
+};
+
+const char* AAudio_convertResultToText(aaudio_result_t returnCode){
+    switch (returnCode){
+        case AAUDIO_OK: return "AAUDIO_OK";
+        case AAUDIO_ERROR_DISCONNECTED: return "AAUDIO_ERROR_DISCONNECTED";
+        case AAUDIO_ERROR_ILLEGAL_ARGUMENT: return "AAUDIO_ERROR_ILLEGAL_ARGUMENT";
+        case AAUDIO_ERROR_INVALID_STATE: return "AAUDIO_ERROR_INVALID_STATE";
+        case AAUDIO_ERROR_TIMEOUT: return "AAUDIO_ERROR_TIMEOUT";
+        default: return "AAUDIO_ERROR";
+    }
+}
+
+aaudio_result_t AAudio_createStreamBuilder(AAudioStreamBuilder **builder){
+    AAudioStreamBuilder *b = new AAudioStreamBuilder();
+    memset(b, 0, sizeof(*b));
+    b->samplerate = 48000;
+    b->channels = 2;
+    b->format = AAUDIO_FORMAT_PCM_I16;
+    b->sharing = AAUDIO_SHARING_MODE_SHARED;
+    *builder = b;
+    return AAUDIO_OK;
+}
+
+void AAudioStreamBuilder_setSampleRate(AAudioStreamBuilder *builder, int32_t sampleRate){
+    builder->samplerate = sampleRate;
+}
+
+void AAudioStreamBuilder_setChannelCount(AAudioStreamBuilder *builder, int32_t channelCount){
+    builder->channels = channelCount;
+}
+
+void AAudioStreamBuilder_setFormat(AAudioStreamBuilder *builder, aaudio_format_t format){
+    builder->format = format;
+}
+
+void AAudioStreamBuilder_setSharingMode(AAudioStreamBuilder *builder, aaudio_sharing_mode_t sharingMode){
+    builder->sharing = sharingMode;
+}
+
+void AAudioStreamBuilder_setPerformanceMode(AAudioStreamBuilder *builder, aaudio_performance_mode_t mode){
+}
+
+void AAudioStreamBuilder_setDataCallback(AAudioStreamBuilder *builder, AAudioStream_dataCallback callback,
+        void *userData){
+    builder->datacallback = callback;
+    builder->datauserdata = userData;
+}
+
+void AAudioStreamBuilder_setErrorCallback(AAudioStreamBuilder *builder, AAudioStream_errorCallback callback,
+        void *userData){
+    builder->errorcallback = callback;
+    builder->erroruserdata = userData;
+}
+
+aaudio_result_t AAudioStreamBuilder_delete(AAudioStreamBuilder *builder){
+    delete builder;
+    return AAUDIO_OK;
+}
+
+//流线程：完成暂停、停止的状态变化，STARTED时按burst的间隔回调
+static void* streamloop(void *p){
+    AAudioStream *s = (AAudioStream*) p;
+    pthread_mutex_lock(&s->lock);
+    while (!s->closing) {
+        if (s->state == AAUDIO_STREAM_STATE_PAUSING || s->state == AAUDIO_STREAM_STATE_STOPPING){
+            s->state = s->state == AAUDIO_STREAM_STATE_PAUSING ? AAUDIO_STREAM_STATE_PAUSED
+                                                               : AAUDIO_STREAM_STATE_STOPPED;
+            pthread_cond_broadcast(&s->cond);
+            continue;
+        }
+        if (s->state != AAUDIO_STREAM_STATE_STARTED){
+            pthread_cond_wait(&s->cond, &s->lock);
+            continue;
+        }
+        int64_t now = nowNs();
+        if (now < s->nextNs){
+            timespec deadline;
+            deadlineAt(s->nextNs, &deadline);
+            pthread_cond_timedwait(&s->cond, &s->lock, &deadline);
+            continue;
+        }
+        pthread_mutex_unlock(&s->lock);
+        s->datacallback(s, s->datauserdata, s->buffer.data(), kFakeBurstFrames);
+        pthread_mutex_lock(&s->lock);
+        int64_t written = s->written.fetch_add(kFakeBurstFrames) + kFakeBurstFrames;
+        //写进去的帧要等缓冲区里之前的帧播完
+        s->tsframe = written - s->buffersize;
+        s->tsNs = now;
+        s->tsvalid = s->tsframe >= 0;
+        s->nextNs += (int64_t) (kFakeBurstFrames * 1000000000.0 / (s->samplerate * s->speed));
+    }
+    pthread_mutex_unlock(&s->lock);
+    return NULL;
+}
+
+aaudio_result_t AAudioStreamBuilder_openStream(AAudioStreamBuilder *builder, AAudioStream **stream){
+    if (builder->format != AAUDIO_FORMAT_PCM_I16 || builder->samplerate <= 0 || builder->channels <= 0
+            || !builder->datacallback){
+        return AAUDIO_ERROR_ILLEGAL_ARGUMENT;
+    }
+    fakescenario scenario = currentFakeScenario();
+    AAudioStream *s = new AAudioStream();
+    s->samplerate = builder->samplerate;
+    s->channels = builder->channels;
+    s->speed = 1.0 + scenario.audioppm / 1000000.0;
+    s->datacallback = builder->datacallback;
+    s->datauserdata = builder->datauserdata;
+    s->buffer.assign((size_t) kFakeBurstFrames * s->channels, 0);
+    pthread_mutex_init(&s->lock, NULL);
+    pthread_cond_init(&s->cond, NULL);
+    s->state = AAUDIO_STREAM_STATE_OPEN;
+    s->closing = false;
+    s->buffersize = kFakeBurstFrames * kFakeCapacityBursts;
+    s->nextNs = 0;
+    s->tsvalid = false;
+    s->tsframe = 0;
+    s->tsNs = 0;
+    s->written.store(0);
+    pthread_create(&s->thread, NULL, streamloop, s);
+    *stream = s;
+    return AAUDIO_OK;
+}
+
+aaudio_result_t AAudioStream_close(AAudioStream *stream){
+    pthread_mutex_lock(&stream->lock);
+    stream->closing = true;
+    pthread_cond_broadcast(&stream->cond);
+    pthread_mutex_unlock(&stream->lock);
+    pthread_join(stream->thread, NULL);
+    pthread_cond_destroy(&stream->cond);
+    pthread_mutex_destroy(&stream->lock);
+    delete stream;
+    return AAUDIO_OK;
+}
+
+static aaudio_result_t changeState(AAudioStream *stream, aaudio_stream_state_t state){
+    pthread_mutex_lock(&stream->lock);
+    if (state == AAUDIO_STREAM_STATE_STARTED && stream->state != AAUDIO_STREAM_STATE_STARTED){
+        stream->nextNs = nowNs();
+        stream->tsvalid = false;
+    }
+    if (state == AAUDIO_STREAM_STATE_FLUSHED){
+        if (stream->state != AAUDIO_STREAM_STATE_PAUSED && stream->state != AAUDIO_STREAM_STATE_FLUSHED){
+            pthread_mutex_unlock(&stream->lock);
+            return AAUDIO_ERROR_INVALID_STATE;
+        }
+        stream->tsvalid = false;
+    }
+    stream->state = state;
+    pthread_cond_broadcast(&stream->cond);
+    pthread_mutex_unlock(&stream->lock);
+    return AAUDIO_OK;
+}
+
+aaudio_result_t AAudioStream_requestStart(AAudioStream *stream){
+    return changeState(stream, AAUDIO_STREAM_STATE_STARTED);
+}
+
+aaudio_result_t AAudioStream_requestPause(AAudioStream *stream){
+    return changeState(stream, AAUDIO_STREAM_STATE_PAUSING);
+}
+
+aaudio_result_t AAudioStream_requestFlush(AAudioStream *stream){
+    return changeState(stream, AAUDIO_STREAM_STATE_FLUSHED);
+}
+
+aaudio_result_t AAudioStream_requestStop(AAudioStream *stream){
+    return changeState(stream, AAUDIO_STREAM_STATE_STOPPING);
+}
+
+aaudio_result_t AAudioStream_waitForStateChange(AAudioStream *stream, aaudio_stream_state_t inputState,
+        aaudio_stream_state_t *nextState, int64_t timeoutNanoseconds){
+    int64_t deadlineNs = nowNs() + timeoutNanoseconds;
+    pthread_mutex_lock(&stream->lock);
+    while (stream->state == inputState && nowNs() < deadlineNs) {
+        timespec deadline;
+        deadlineAt(deadlineNs, &deadline);
+        pthread_cond_timedwait(&stream->cond, &stream->lock, &deadline);
+    }
+    *nextState = stream->state;
+    aaudio_result_t result = stream->state == inputState ? AAUDIO_ERROR_TIMEOUT : AAUDIO_OK;
+    pthread_mutex_unlock(&stream->lock);
+    return result;
+}
+
+aaudio_result_t AAudioStream_setBufferSizeInFrames(AAudioStream *stream, int32_t numFrames){
+    int32_t capacity = kFakeBurstFrames * kFakeCapacityBursts;
+    pthread_mutex_lock(&stream->lock);
+    stream->buffersize = numFrames < kFakeBurstFrames ? kFakeBurstFrames : (numFrames > capacity ? capacity : numFrames);
+    int32_t size = stream->buffersize;
+    pthread_mutex_unlock(&stream->lock);
+    return size;
+}
+
+int32_t AAudioStream_getBufferSizeInFrames(AAudioStream *stream){
+    pthread_mutex_lock(&stream->lock);
+    int32_t size = stream->buffersize;
+    pthread_mutex_unlock(&stream->lock);
+    return size;
+}
+
+int32_t AAudioStream_getFramesPerBurst(AAudioStream *stream){
+    return kFakeBurstFrames;
+}
+
+int32_t AAudioStream_getBufferCapacityInFrames(AAudioStream *stream){
+    return kFakeBurstFrames * kFakeCapacityBursts;
+}
+
+int32_t AAudioStream_getXRunCount(AAudioStream *stream){
+    return 0;
+}
+
+int32_t AAudioStream_getSampleRate(AAudioStream *stream){
+    return stream->samplerate;
+}
+
+int32_t AAudioStream_getChannelCount(AAudioStream *stream){
+    return stream->channels;
+}
+
+aaudio_sharing_mode_t AAudioStream_getSharingMode(AAudioStream *stream){
+    return AAUDIO_SHARING_MODE_SHARED;
+}
+
+int64_t AAudioStream_getFramesWritten(AAudioStream *stream){
+    return stream->written.load();
+}
+
+aaudio_result_t AAudioStream_getTimestamp(AAudioStream *stream, clockid_t clockid, int64_t *framePosition,
+        int64_t *timeNanoseconds){
+    pthread_mutex_lock(&stream->lock);
+    bool valid = stream->tsvalid && stream->state == AAUDIO_STREAM_STATE_STARTED;
+    *framePosition = stream->tsframe;
+    *timeNanoseconds = stream->tsNs;
+    pthread_mutex_unlock(&stream->lock);
+    return valid ? AAUDIO_OK : AAUDIO_ERROR_INVALID_STATE;
+}
@@ -0,0 +1,1037 @@
+//
+// NDK媒体接口替身的实现。只模拟核心代码依赖的行为：缓冲区的所有权、flush和stop的语义、
+// 异步模式下flush之后要重新start、一个window同一时间只能连一个解码器
+//
+
+#include "fakemedia.h"
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <atomic>
+#include <deque>
+#include <map>
+#include <string>
+#include <vector>
+
+#include "media/NdkImageReader.h"
+#include "media/NdkMediaCodec.h"
+#include "media/NdkMediaDataSource.h"
+#include "media/NdkMediaExtractor.h"
+
+#define kFakeMime "video/avc"
+#define kFakeCodecName "c2.fake.avc.decoder"
+#define kFakeAudioMime "audio/mp4a-latm"
+#define kFakeAudioChannels 2
+#define kFakeAudioCodecName "c2.fake.aac.decoder"
+//音频每个样本的解码耗时，不受场景影响
+#define kAudioDecodeUs 300
+//每个输入缓冲区的大小
+#define kInputBufferBytes (1024 * 1024)
+//COLOR_FormatYUV420Flexible
+#define kColorFormatYUV420Flexible 0x7F420888
+
+const char *AMEDIAFORMAT_KEY_CHANNEL_COUNT = "channel-count";
+const char *AMEDIAFORMAT_KEY_COLOR_FORMAT = "color-format";
+const char *AMEDIAFORMAT_KEY_DURATION = "durationUs";
+const char *AMEDIAFORMAT_KEY_FRAME_RATE = "frame-rate";
+const char *AMEDIAFORMAT_KEY_HEIGHT = "height";
+const char *AMEDIAFORMAT_KEY_MIME = "mime";
+const char *AMEDIAFORMAT_KEY_SAMPLE_RATE = "sample-rate";
+const char *AMEDIAFORMAT_KEY_WIDTH = "width";
+
+static pthread_mutex_t scenariolock = PTHREAD_MUTEX_INITIALIZER;
+static fakescenario scenario = {640, 360, 30, 90, 30, true, 16384, 4096, 5000, 0, 1, 8, 1, 0, 0};
+
+void setFakeScenario(const fakescenario *s){
+    pthread_mutex_lock(&scenariolock);
+    scenario = *s;
+    pthread_mutex_unlock(&scenariolock);
+}
+
+fakescenario currentFakeScenario(){
+    pthread_mutex_lock(&scenariolock);
+    fakescenario s = scenario;
+    pthread_mutex_unlock(&scenariolock);
+    return s;
+}
+
+static int64_t nowNs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+static void deadlineAt(int64_t ns, timespec *out){
+    out->tv_sec = ns / 1000000000LL;
+    out->tv_nsec = ns % 1000000000LL;
+}
+
+//只由种子和key决定的伪随机数，和调用的先后无关
+static uint32_t mix(uint32_t seed, int64_t key){
+    uint64_t x = (uint64_t) seed * 0x9E3779B97F4A7C15ULL ^ (uint64_t) key;
+    x ^= x >> 33;
+    x *= 0xff51afd7ed558ccdULL;
+    x ^= x >> 33;
+    x *= 0xc4ceb9fe1a85ec53ULL;
+    x ^= x >> 33;
+    return (uint32_t) x;
+}
+
+static int64_t framePtsUs(const fakescenario *s, int64_t frame){
+    return frame * 1000000LL / s->fps;
+}
+
+//
+// AMediaFormat
+//
+
+struct AMediaFormat {
+    std::map<std::string, int32_t> int32s;
+    std::map<std::string, int64_t> int64s;
+    std::map<std::string, std::string> strings;
+    std::string text;
+};
+
+AMediaFormat* AMediaFormat_new(){
+    return new AMediaFormat();
+}
+
+media_status_t AMediaFormat_delete(AMediaFormat *format){
+    delete format;
+    return AMEDIA_OK;
+}
+
+const char* AMediaFormat_toString(AMediaFormat *format){
+    format->text.clear();
+    char item[256];
+    for (std::map<std::string, std::string>::iterator it = format->strings.begin(); it != format->strings.end(); ++it) {
+        snprintf(item, sizeof(item), "%s%s: string(%s)", format->text.empty() ? "" : ", ",
+                 it->first.c_str(), it->second.c_str());
+        format->text += item;
+    }
+    for (std::map<std::string, int32_t>::iterator it = format->int32s.begin(); it != format->int32s.end(); ++it) {
+        snprintf(item, sizeof(item), "%s%s: int32(%d)", format->text.empty() ? "" : ", ",
+                 it->first.c_str(), it->second);
+        format->text += item;
+    }
+    for (std::map<std::string, int64_t>::iterator it = format->int64s.begin(); it != format->int64s.end(); ++it) {
+        snprintf(item, sizeof(item), "%s%s: int64(%lld)", format->text.empty() ? "" : ", ",
+                 it->first.c_str(), (long long) it->second);
+        format->text += item;
+    }
+    return format->text.c_str();
+}
+
+bool AMediaFormat_getInt32(AMediaFormat *format, const char *name, int32_t *out){
+    std::map<std::string, int32_t>::iterator it = format->int32s.find(name);
+    if (it == format->int32s.end()){
+        return false;
+    }
+    *out = it->second;
+    return true;
+}
+
+bool AMediaFormat_getInt64(AMediaFormat *format, const char *name, int64_t *out){
+    std::map<std::string, int64_t>::iterator it = format->int64s.find(name);
+    if (it == format->int64s.end()){
+        return false;
+    }
+    *out = it->second;
+    return true;
+}
+
+bool AMediaFormat_getString(AMediaFormat *format, const char *name, const char **out){
+    std::map<std::string, std::string>::iterator it = format->strings.find(name);
+    if (it == format->strings.end()){
+        return false;
+    }
+    *out = it->second.c_str();
+    return true;
+}
+
+void AMediaFormat_setInt32(AMediaFormat *format, const char *name, int32_t value){
+    format->int32s[name] = value;
+}
+
+void AMediaFormat_setInt64(AMediaFormat *format, const char *name, int64_t value){
+    format->int64s[name] = value;
+}
+
+void AMediaFormat_setString(AMediaFormat *format, const char *name, const char *value){
+    format->strings[name] = value;
+}
+
+//
+// ANativeWindow和AImageReader
+//
+
+struct ANativeWindow {
+    std::atomic<int> refs;
+    //以下由windowlock保护
+    AImageReader *reader;
+    AMediaCodec *owner;
+    std::atomic<int64_t> frames;
+    std::atomic<int64_t> conflicts;
+};
+
+struct AImageReader {
+    ANativeWindow *window;
+    AImageReader_ImageListener listener;
+    std::atomic<int> pending;
+};
+
+struct AImage {
+    int64_t timestampNs;
+};
+
+static pthread_mutex_t windowlock = PTHREAD_MUTEX_INITIALIZER;
+
+ANativeWindow* newFakeWindow(){
+    ANativeWindow *w = new ANativeWindow();
+    w->refs.store(1);
+    w->reader = NULL;
+    w->owner = NULL;
+    w->frames.store(0);
+    w->conflicts.store(0);
+    return w;
+}
+
+int64_t fakeWindowFrames(ANativeWindow *window){
+    return window->frames.load();
+}
+
+int64_t fakeWindowConflicts(ANativeWindow *window){
+    return window->conflicts.load();
+}
+
+void ANativeWindow_acquire(ANativeWindow *window){
+    window->refs.fetch_add(1);
+}
+
+void ANativeWindow_release(ANativeWindow *window){
+    if (window->refs.fetch_sub(1) == 1){
+        delete window;
+    }
+}
+
+//解码器连上window，已经连着别的解码器时失败。持有window的引用直到断开
+static bool attachWindow(ANativeWindow *window, AMediaCodec *codec){
+    pthread_mutex_lock(&windowlock);
+    bool ok = !window->owner || window->owner == codec;
+    if (ok){
+        window->owner = codec;
+    } else{
+        window->conflicts.fetch_add(1);
+        fprintf(stderr, "fakemedia: window %p already connected to codec %p\n", window, window->owner);
+    }
+    pthread_mutex_unlock(&windowlock);
+    if (ok){
+        ANativeWindow_acquire(window);
+    }
+    return ok;
+}
+
+static void detachWindow(ANativeWindow *window, AMediaCodec *codec){
+    if (!window){
+        return;
+    }
+    pthread_mutex_lock(&windowlock);
+    if (window->owner == codec){
+        window->owner = NULL;
+    }
+    pthread_mutex_unlock(&windowlock);
+    ANativeWindow_release(window);
+}
+
+//一帧显示到window上；reader的window上有新图像时回调listener
+static void presentFrame(ANativeWindow *window, int64_t timestampNs){
+    window->frames.fetch_add(1);
+    pthread_mutex_lock(&windowlock);
+    AImageReader *reader = window->reader;
+    AImageReader_ImageListener listener = {NULL, NULL};
+    if (reader){
+        reader->pending.fetch_add(1);
+        listener = reader->listener;
+    }
+    pthread_mutex_unlock(&windowlock);
+    if (listener.onImageAvailable){
+        listener.onImageAvailable(listener.context, reader);
+    }
+}
+
+media_status_t AImageReader_new(int32_t width, int32_t height, int32_t format, int32_t maxImages,
+        AImageReader **reader){
+    if (width <= 0 || height <= 0 || maxImages <= 0){
+        return AMEDIA_ERROR_INVALID_PARAMETER;
+    }
+    AImageReader *r = new AImageReader();
+    r->window = newFakeWindow();
+    r->window->reader = r;
+    r->listener.context = NULL;
+    r->listener.onImageAvailable = NULL;
+    r->pending.store(0);
+    *reader = r;
+    return AMEDIA_OK;
+}
+
+void AImageReader_delete(AImageReader *reader){
+    pthread_mutex_lock(&windowlock);
+    reader->window->reader = NULL;
+    pthread_mutex_unlock(&windowlock);
+    ANativeWindow_release(reader->window);
+    delete reader;
+}
+
+//window属于reader，调用者不持有引用
+media_status_t AImageReader_getWindow(AImageReader *reader, ANativeWindow **window){
+    *window = reader->window;
+    return AMEDIA_OK;
+}
+
+media_status_t AImageReader_acquireLatestImage(AImageReader *reader, AImage **image){
+    if (reader->pending.exchange(0) <= 0){
+        *image = NULL;
+        return AMEDIA_IMGREADER_NO_BUFFER_AVAILABLE;
+    }
+    *image = new AImage();
+    (*image)->timestampNs = nowNs();
+    return AMEDIA_OK;
+}
+
+media_status_t AImageReader_setImageListener(AImageReader *reader, AImageReader_ImageListener *listener){
+    pthread_mutex_lock(&windowlock);
+    reader->listener = *listener;
+    pthread_mutex_unlock(&windowlock);
+    return AMEDIA_OK;
+}
+
+void AImage_delete(AImage *image){
+    delete image;
+}
+
+//
+// AMediaDataSource
+//
+
+struct AMediaDataSource {
+    void *userdata;
+    AMediaDataSourceReadAt readAt;
+    AMediaDataSourceGetSize getSize;
+    AMediaDataSourceClose close;
+};
+
+AMediaDataSource* AMediaDataSource_new(){
+    AMediaDataSource *s = new AMediaDataSource();
+    memset(s, 0, sizeof(*s));
+    return s;
+}
+
+void AMediaDataSource_delete(AMediaDataSource *source){
+    delete source;
+}
+
+void AMediaDataSource_setUserdata(AMediaDataSource *source, void *userdata){
+    source->userdata = userdata;
+}
+
+void AMediaDataSource_setReadAt(AMediaDataSource *source, AMediaDataSourceReadAt readAt){
+    source->readAt = readAt;
+}
+
+void AMediaDataSource_setGetSize(AMediaDataSource *source, AMediaDataSourceGetSize getSize){
+    source->getSize = getSize;
+}
+
+void AMediaDataSource_setClose(AMediaDataSource *source, AMediaDataSourceClose close){
+    source->close = close;
+}
+
+//
+// AMediaExtractor：场景有采样率时轨道0是音频、轨道1是视频，否则只有视频轨道。
+// 一次只读一条选中的轨道。视频样本数据从数据源读，再写上起始码和NAL头
+//
+
+//每个音频样本(AAC帧)的PCM帧数和样本大小
+#define kAudioFrameSamples 1024
+#define kAudioSampleBytes 384
+
+struct AMediaExtractor {
+    fakescenario s;
+    AMediaDataSource *source;
+    bool hassource;
+    //选中的轨道，-1表示没有
+    int track;
+    int64_t sample;
+};
+
+static int videoTrack(AMediaExtractor *ex){
+    return ex->s.samplerate > 0 ? 1 : 0;
+}
+
+static bool isAudio(AMediaExtractor *ex){
+    return ex->s.samplerate > 0 && ex->track == 0;
+}
+
+static int64_t audioSamples(const fakescenario *s){
+    int64_t pcmframes = framePtsUs(s, s->frames) * s->samplerate / 1000000;
+    return (pcmframes + kAudioFrameSamples - 1) / kAudioFrameSamples;
+}
+
+static int64_t audioPtsUs(const fakescenario *s, int64_t sample){
+    return sample * kAudioFrameSamples * 1000000LL / s->samplerate;
+}
+
+AMediaExtractor* AMediaExtractor_new(){
+    AMediaExtractor *ex = new AMediaExtractor();
+    ex->s = currentFakeScenario();
+    ex->source = NULL;
+    ex->hassource = false;
+    ex->track = -1;
+    ex->sample = 0;
+    return ex;
+}
+
+media_status_t AMediaExtractor_delete(AMediaExtractor *ex){
+    if (ex->source && ex->source->close){
+        ex->source->close(ex->source->userdata);
+    }
+    delete ex;
+    return AMEDIA_OK;
+}
+
+//没有AMediaDataSource时样本数据全为0
+media_status_t AMediaExtractor_setDataSourceFd(AMediaExtractor *ex, int fd, off64_t offset, off64_t length){
+    ex->hassource = fd >= 0;
+    return ex->hassource ? AMEDIA_OK : AMEDIA_ERROR_INVALID_PARAMETER;
+}
+
+media_status_t AMediaExtractor_setDataSource(AMediaExtractor *ex, const char *location){
+    ex->hassource = location != NULL;
+    return ex->hassource ? AMEDIA_OK : AMEDIA_ERROR_INVALID_PARAMETER;
+}
+
+media_status_t AMediaExtractor_setDataSourceCustom(AMediaExtractor *ex, AMediaDataSource *src){
+    ex->source = src;
+    ex->hassource = true;
+    return AMEDIA_OK;
+}
+
+size_t AMediaExtractor_getTrackCount(AMediaExtractor *ex){
+    return ex->hassource ? videoTrack(ex) + 1 : 0;
+}
+
+AMediaFormat* AMediaExtractor_getTrackFormat(AMediaExtractor *ex, size_t idx){
+    AMediaFormat *format = AMediaFormat_new();
+    int64_t durationUs = framePtsUs(&ex->s, ex->s.frames);
+    if ((int) idx != videoTrack(ex)){
+        AMediaFormat_setString(format, AMEDIAFORMAT_KEY_MIME, kFakeAudioMime);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, ex->s.samplerate);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, kFakeAudioChannels);
+    } else{
+        AMediaFormat_setString(format, AMEDIAFORMAT_KEY_MIME, kFakeMime);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_WIDTH, ex->s.width);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_HEIGHT, ex->s.height);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_FRAME_RATE, ex->s.fps);
+    }
+    AMediaFormat_setInt64(format, AMEDIAFORMAT_KEY_DURATION, durationUs);
+    return format;
+}
+
+media_status_t AMediaExtractor_selectTrack(AMediaExtractor *ex, size_t idx){
+    if ((int) idx > videoTrack(ex)){
+        return AMEDIA_ERROR_INVALID_PARAMETER;
+    }
+    ex->track = (int) idx;
+    ex->sample = 0;
+    return AMEDIA_OK;
+}
+
+static bool hasSample(AMediaExtractor *ex){
+    if (ex->track < 0){
+        return false;
+    }
+    return ex->sample < (isAudio(ex) ? audioSamples(&ex->s) : ex->s.frames);
+}
+
+//音频样本都是同步样本
+static bool isSync(AMediaExtractor *ex){
+    return isAudio(ex) || ex->sample % ex->s.gop == 0;
+}
+
+ssize_t AMediaExtractor_getSampleSize(AMediaExtractor *ex){
+    if (!hasSample(ex)){
+        return -1;
+    }
+    if (isAudio(ex)){
+        return kAudioSampleBytes;
+    }
+    return isSync(ex) ? ex->s.keybytes : ex->s.framebytes;
+}
+
+ssize_t AMediaExtractor_readSampleData(AMediaExtractor *ex, uint8_t *buffer, size_t capacity){
+    ssize_t size = AMediaExtractor_getSampleSize(ex);
+    if (size < 0 || (size_t) size > capacity){
+        return -1;
+    }
+    if (ex->source && !isAudio(ex)){
+        ssize_t total = ex->source->getSize(ex->source->userdata);
+        off64_t offset = total > size ? (off64_t) (ex->sample * ex->s.framebytes % (total - size)) : 0;
+        if (ex->source->readAt(ex->source->userdata, offset, buffer, size) < 0){
+            return -1;
+        }
+    } else{
+        memset(buffer, 0, size);
+    }
+    if (isAudio(ex)){
+        return size;
+    }
+    //Annex B起始码和NAL头：IDR、被参考的slice、不被参考的slice
+    bool reference = !ex->s.nonreference || (ex->sample % ex->s.gop) % 2 == 0;
+    if (size >= 5){
+        buffer[0] = buffer[1] = buffer[2] = 0;
+        buffer[3] = 1;
+        buffer[4] = isSync(ex) ? 0x65 : (reference ? 0x41 : 0x01);
+    }
+    return size;
+}
+
+uint32_t AMediaExtractor_getSampleFlags(AMediaExtractor *ex){
+    return hasSample(ex) && isSync(ex) ? AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC : 0;
+}
+
+int64_t AMediaExtractor_getSampleTime(AMediaExtractor *ex){
+    if (!hasSample(ex)){
+        return -1;
+    }
+    return isAudio(ex) ? audioPtsUs(&ex->s, ex->sample) : framePtsUs(&ex->s, ex->sample);
+}
+
+bool AMediaExtractor_advance(AMediaExtractor *ex){
+    if (!hasSample(ex)){
+        return false;
+    }
+    ex->sample++;
+    return hasSample(ex);
+}
+
+media_status_t AMediaExtractor_seekTo(AMediaExtractor *ex, int64_t seekPosUs, SeekMode mode){
+    if (isAudio(ex)){
+        int64_t sample = seekPosUs * ex->s.samplerate / kAudioFrameSamples / 1000000;
+        int64_t last = audioSamples(&ex->s) - 1;
+        ex->sample = sample < 0 ? 0 : (sample > last ? last : sample);
+        return AMEDIA_OK;
+    }
+    int64_t frame = seekPosUs * ex->s.fps / 1000000;
+    if (frame < 0){
+        frame = 0;
+    }
+    if (frame >= ex->s.frames){
+        frame = ex->s.frames - 1;
+    }
+    int64_t previous = frame - frame % ex->s.gop;
+    int64_t next = previous + ex->s.gop < ex->s.frames ? previous + ex->s.gop : previous;
+    switch (mode){
+        case AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC:
+            ex->sample = previous;
+            break;
+        case AMEDIAEXTRACTOR_SEEK_NEXT_SYNC:
+            ex->sample = frame == previous ? previous : next;
+            break;
+        case AMEDIAEXTRACTOR_SEEK_CLOSEST_SYNC:
+            ex->sample = frame - previous <= next - frame ? previous : next;
+            break;
+    }
+    return AMEDIA_OK;
+}
+
+//
+// AMediaCodec：一次解码一帧，解码完成的帧占用一个输出缓冲区，没有空闲的输出缓冲区时解码停下。
+// 输入缓冲区在它的帧解码完成后才归还，所以送进解码器的样本数不超过输入缓冲区个数。
+// 音频解码器每个样本输出一块PCM，不攒着成组输出
+//
+
+typedef struct {
+    int32_t input;
+    int64_t ptsUs;
+    uint32_t flags;
+    int64_t readyNs;
+} fakeframe;
+
+struct AMediaCodec {
+    fakescenario s;
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    pthread_t worker;
+    bool workerrunning;
+    bool configured;
+    bool started;
+    //异步模式下flush之后要等start才继续回调
+    bool paused;
+    ANativeWindow *window;
+    int32_t width;
+    int32_t height;
+    bool audio;
+    int32_t samplerate;
+    int32_t channels;
+    //攒够这么多帧才一起输出
+    int32_t burst;
+    bool async;
+    AMediaCodecOnAsyncNotifyCallback callback;
+    void *userdata;
+
+    std::vector<std::vector<uint8_t> > inputs;
+    std::vector<std::vector<uint8_t> > outputs;
+    std::vector<fakeframe> outputframes;
+    std::deque<int32_t> freeinputs;
+    std::deque<int32_t> freeoutputs;
+    std::deque<fakeframe> decoding;
+    //解码完成、攒着等成组输出的输出缓冲区
+    std::deque<int32_t> finished;
+    std::deque<int32_t> ready;
+    bool formatreported;
+    int64_t lastreadyNs;
+};
+
+static std::atomic<int> livecodecs(0);
+
+int fakeCodecCount(){
+    return livecodecs.load();
+}
+
+AMediaCodec* AMediaCodec_createDecoderByType(const char *mime_type){
+    if (!mime_type || (strcmp(mime_type, kFakeMime) != 0 && strcmp(mime_type, kFakeAudioMime) != 0)){
+        return NULL;
+    }
+    AMediaCodec *codec = new AMediaCodec();
+    pthread_mutex_init(&codec->lock, NULL);
+    pthread_cond_init(&codec->cond, NULL);
+    codec->workerrunning = false;
+    codec->configured = false;
+    codec->started = false;
+    codec->paused = false;
+    codec->window = NULL;
+    codec->width = codec->height = 0;
+    codec->audio = strcmp(mime_type, kFakeAudioMime) == 0;
+    codec->samplerate = codec->channels = 0;
+    codec->burst = 1;
+    codec->async = false;
+    memset(&codec->callback, 0, sizeof(codec->callback));
+    codec->userdata = NULL;
+    codec->formatreported = false;
+    codec->lastreadyNs = 0;
+    livecodecs.fetch_add(1);
+    return codec;
+}
+
+AMediaCodec* AMediaCodec_createCodecByName(const char *name){
+    if (!name || strcmp(name, kFakeCodecName) != 0){
+        return NULL;
+    }
+    return AMediaCodec_createDecoderByType(kFakeMime);
+}
+
+media_status_t AMediaCodec_getName(AMediaCodec *codec, char **out_name){
+    *out_name = strdup(codec->audio ? kFakeAudioCodecName : kFakeCodecName);
+    return AMEDIA_OK;
+}
+
+void AMediaCodec_releaseName(AMediaCodec *codec, char *name){
+    free(name);
+}
+
+//所有缓冲区回到空闲状态，要持有lock
+static void resetBuffers(AMediaCodec *codec){
+    codec->freeinputs.clear();
+    codec->freeoutputs.clear();
+    for (int i = 0; i < codec->s.buffers; ++i) {
+        codec->freeinputs.push_back(i);
+        codec->freeoutputs.push_back(i);
+    }
+    codec->decoding.clear();
+    codec->finished.clear();
+    codec->ready.clear();
+    codec->lastreadyNs = 0;
+}
+
+media_status_t AMediaCodec_configure(AMediaCodec *codec, const AMediaFormat *format, ANativeWindow *surface,
+        AMediaCrypto *crypto, uint32_t flags){
+    pthread_mutex_lock(&codec->lock);
+    bool busy = codec->started || codec->configured;
+    pthread_mutex_unlock(&codec->lock);
+    if (busy){
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    if (surface && !attachWindow(surface, codec)){
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    AMediaFormat *f = (AMediaFormat*) format;
+    pthread_mutex_lock(&codec->lock);
+    codec->s = currentFakeScenario();
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_WIDTH, &codec->width);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_HEIGHT, &codec->height);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_SAMPLE_RATE, &codec->samplerate);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_CHANNEL_COUNT, &codec->channels);
+    codec->burst = codec->audio ? 1 : codec->s.burst;
+    codec->window = surface;
+    codec->inputs.assign(codec->s.buffers, std::vector<uint8_t>(kInputBufferBytes));
+    codec->outputs.assign(codec->s.buffers, std::vector<uint8_t>());
+    codec->outputframes.assign(codec->s.buffers, fakeframe());
+    resetBuffers(codec);
+    codec->formatreported = false;
+    codec->configured = true;
+    pthread_mutex_unlock(&codec->lock);
+    return AMEDIA_OK;
+}
+
+media_status_t AMediaCodec_setAsyncNotifyCallback(AMediaCodec *codec, AMediaCodecOnAsyncNotifyCallback callback,
+        void *userdata){
+    pthread_mutex_lock(&codec->lock);
+    codec->async = true;
+    codec->callback = callback;
+    codec->userdata = userdata;
+    pthread_mutex_unlock(&codec->lock);
+    return AMEDIA_OK;
+}
+
+static AMediaFormat* outputFormat(AMediaCodec *codec){
+    AMediaFormat *format = AMediaFormat_new();
+    if (codec->audio){
+        AMediaFormat_setString(format, AMEDIAFORMAT_KEY_MIME, "audio/raw");
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_SAMPLE_RATE, codec->samplerate);
+        AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_CHANNEL_COUNT, codec->channels);
+        return format;
+    }
+    AMediaFormat_setString(format, AMEDIAFORMAT_KEY_MIME, "video/raw");
+    AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_WIDTH, codec->width);
+    AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_HEIGHT, codec->height);
+    AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_COLOR_FORMAT, kColorFormatYUV420Flexible);
+    AMediaFormat_setInt32(format, "stride", codec->width);
+    AMediaFormat_setInt32(format, "slice-height", codec->height);
+    return format;
+}
+
+AMediaFormat* AMediaCodec_getOutputFormat(AMediaCodec *codec){
+    return outputFormat(codec);
+}
+
+//要持有lock。解码完成的帧占用输出缓冲区，攒够一组后变为可以取出
+static void advanceDecoding(AMediaCodec *codec, int64_t now){
+    while (!codec->decoding.empty() && codec->decoding.front().readyNs <= now && !codec->freeoutputs.empty()) {
+        fakeframe f = codec->decoding.front();
+        codec->decoding.pop_front();
+        int32_t out = codec->freeoutputs.front();
+        codec->freeoutputs.pop_front();
+        codec->outputframes[out] = f;
+        codec->finished.push_back(out);
+        codec->freeinputs.push_back(f.input);
+    }
+    if (codec->finished.empty()){
+        return;
+    }
+    fakeframe &oldest = codec->outputframes[codec->finished.front()];
+    fakeframe &newest = codec->outputframes[codec->finished.back()];
+    int64_t holdNs = (int64_t) codec->burst * 1000000000LL / codec->s.fps;
+    if ((int) codec->finished.size() >= codec->burst || (newest.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM)
+            || now - oldest.readyNs >= holdNs){
+        codec->ready.insert(codec->ready.end(), codec->finished.begin(), codec->finished.end());
+        codec->finished.clear();
+    }
+}
+
+//要持有lock。下一次有事可做的时间，没有时返回-1
+static int64_t nextEventNs(AMediaCodec *codec){
+    int64_t next = -1;
+    if (!codec->decoding.empty() && !codec->freeoutputs.empty()){
+        next = codec->decoding.front().readyNs;
+    }
+    if (!codec->finished.empty()){
+        int64_t holdNs = (int64_t) codec->burst * 1000000000LL / codec->s.fps;
+        int64_t release = codec->outputframes[codec->finished.front()].readyNs + holdNs;
+        next = next < 0 || release < next ? release : next;
+    }
+    return next;
+}
+
+//一个输出缓冲区的字节数：一帧YUV420或者一个样本的PCM
+static int32_t outputBytes(AMediaCodec *codec){
+    if (codec->audio){
+        return kAudioFrameSamples * codec->channels * 2;
+    }
+    return codec->width * codec->height * 3 / 2;
+}
+
+static void fillInfo(AMediaCodec *codec, int32_t index, AMediaCodecBufferInfo *info){
+    fakeframe &f = codec->outputframes[index];
+    bool eos = (f.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM) != 0;
+    info->offset = 0;
+    info->size = eos ? 0 : outputBytes(codec);
+    info->presentationTimeUs = f.ptsUs;
+    info->flags = f.flags;
+}
+
+//解码器线程：推进解码进度，异步模式下在这里回调，回调时不持有lock
+static void* codecloop(void *p){
+    AMediaCodec *codec = (AMediaCodec*) p;
+    pthread_mutex_lock(&codec->lock);
+    while (codec->started) {
+        advanceDecoding(codec, nowNs());
+        if (codec->async && !codec->paused){
+            bool formatchanged = !codec->formatreported && !codec->ready.empty();
+            codec->formatreported = codec->formatreported || formatchanged;
+            std::vector<int32_t> inputs(codec->freeinputs.begin(), codec->freeinputs.end());
+            codec->freeinputs.clear();
+            std::vector<int32_t> outputs(codec->ready.begin(), codec->ready.end());
+            codec->ready.clear();
+            std::vector<AMediaCodecBufferInfo> infos(outputs.size());
+            for (size_t i = 0; i < outputs.size(); ++i) {
+                fillInfo(codec, outputs[i], &infos[i]);
+            }
+            if (formatchanged || !inputs.empty() || !outputs.empty()){
+                AMediaCodecOnAsyncNotifyCallback cb = codec->callback;
+                pthread_mutex_unlock(&codec->lock);
+                if (formatchanged){
+                    AMediaFormat *format = outputFormat(codec);
+                    cb.onAsyncFormatChanged(codec, codec->userdata, format);
+                    AMediaFormat_delete(format);
+                }
+                for (size_t i = 0; i < inputs.size(); ++i) {
+                    cb.onAsyncInputAvailable(codec, codec->userdata, inputs[i]);
+                }
+                for (size_t i = 0; i < outputs.size(); ++i) {
+                    cb.onAsyncOutputAvailable(codec, codec->userdata, outputs[i], &infos[i]);
+                }
+                pthread_mutex_lock(&codec->lock);
+                continue;
+            }
+        }
+        int64_t next = nextEventNs(codec);
+        if (next < 0){
+            pthread_cond_wait(&codec->cond, &codec->lock);
+        } else{
+            timespec deadline;
+            deadlineAt(next, &deadline);
+            pthread_cond_timedwait(&codec->cond, &codec->lock, &deadline);
+        }
+    }
+    pthread_mutex_unlock(&codec->lock);
+    return NULL;
+}
+
+media_status_t AMediaCodec_start(AMediaCodec *codec){
+    pthread_mutex_lock(&codec->lock);
+    if (!codec->configured){
+        pthread_mutex_unlock(&codec->lock);
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    codec->started = true;
+    codec->paused = false;
+    bool spawn = !codec->workerrunning;
+    codec->workerrunning = true;
+    pthread_cond_broadcast(&codec->cond);
+    pthread_mutex_unlock(&codec->lock);
+    if (spawn){
+        pthread_create(&codec->worker, NULL, codecloop, codec);
+    }
+    return AMEDIA_OK;
+}
+
+//回到未configure的状态，返回之后不会再有回调
+media_status_t AMediaCodec_stop(AMediaCodec *codec){
+    pthread_mutex_lock(&codec->lock);
+    codec->started = false;
+    codec->configured = false;
+    bool join = codec->workerrunning;
+    codec->workerrunning = false;
+    pthread_cond_broadcast(&codec->cond);
+    pthread_mutex_unlock(&codec->lock);
+    if (join){
+        pthread_join(codec->worker, NULL);
+    }
+    pthread_mutex_lock(&codec->lock);
+    resetBuffers(codec);
+    ANativeWindow *window = codec->window;
+    codec->window = NULL;
+    codec->async = false;
+    memset(&codec->callback, 0, sizeof(codec->callback));
+    pthread_mutex_unlock(&codec->lock);
+    detachWindow(window, codec);
+    return AMEDIA_OK;
+}
+
+media_status_t AMediaCodec_delete(AMediaCodec *codec){
+    AMediaCodec_stop(codec);
+    pthread_cond_destroy(&codec->cond);
+    pthread_mutex_destroy(&codec->lock);
+    delete codec;
+    livecodecs.fetch_sub(1);
+    return AMEDIA_OK;
+}
+
+//所有缓冲区归还解码器；异步模式下要重新start才继续回调
+media_status_t AMediaCodec_flush(AMediaCodec *codec){
+    pthread_mutex_lock(&codec->lock);
+    if (!codec->started){
+        pthread_mutex_unlock(&codec->lock);
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    resetBuffers(codec);
+    codec->paused = codec->async;
+    pthread_cond_broadcast(&codec->cond);
+    pthread_mutex_unlock(&codec->lock);
+    return AMEDIA_OK;
+}
+
+uint8_t* AMediaCodec_getInputBuffer(AMediaCodec *codec, size_t idx, size_t *out_size){
+    if (idx >= codec->inputs.size()){
+        return NULL;
+    }
+    *out_size = codec->inputs[idx].size();
+    return codec->inputs[idx].data();
+}
+
+uint8_t* AMediaCodec_getOutputBuffer(AMediaCodec *codec, size_t idx, size_t *out_size){
+    if (idx >= codec->outputs.size()){
+        return NULL;
+    }
+    std::vector<uint8_t> &buffer = codec->outputs[idx];
+    buffer.resize(outputBytes(codec));
+    *out_size = buffer.size();
+    return buffer.data();
+}
+
+ssize_t AMediaCodec_dequeueInputBuffer(AMediaCodec *codec, int64_t timeoutUs){
+    pthread_mutex_lock(&codec->lock);
+    int64_t deadlineNs = nowNs() + (timeoutUs > 0 ? timeoutUs * 1000 : 0);
+    while (codec->started && codec->freeinputs.empty() && timeoutUs != 0) {
+        if (timeoutUs > 0 && nowNs() >= deadlineNs){
+            break;
+        }
+        timespec deadline;
+        deadlineAt(deadlineNs, &deadline);
+        if (timeoutUs < 0){
+            pthread_cond_wait(&codec->cond, &codec->lock);
+        } else{
+            pthread_cond_timedwait(&codec->cond, &codec->lock, &deadline);
+        }
+    }
+    ssize_t index = AMEDIACODEC_INFO_TRY_AGAIN_LATER;
+    if (codec->started && !codec->freeinputs.empty()){
+        index = codec->freeinputs.front();
+        codec->freeinputs.pop_front();
+    }
+    pthread_mutex_unlock(&codec->lock);
+    return index;
+}
+
+media_status_t AMediaCodec_queueInputBuffer(AMediaCodec *codec, size_t idx, off_t offset, size_t size,
+        uint64_t time, uint32_t flags){
+    pthread_mutex_lock(&codec->lock);
+    if (!codec->started || idx >= codec->inputs.size()){
+        pthread_mutex_unlock(&codec->lock);
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    //一次解码一帧：这一帧在上一帧解码完、并且送进来之后才开始
+    int64_t now = nowNs();
+    int64_t startNs = codec->lastreadyNs > now ? codec->lastreadyNs : now;
+    int64_t costUs = codec->audio ? kAudioDecodeUs : codec->s.decodeUs;
+    if (!codec->audio && codec->s.jitterUs > 0){
+        costUs += mix(codec->s.seed, (int64_t) time) % (codec->s.jitterUs + 1);
+    }
+    fakeframe f;
+    f.input = (int32_t) idx;
+    f.ptsUs = (int64_t) time;
+    f.flags = flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM;
+    f.readyNs = startNs + (f.flags ? 0 : costUs * 1000);
+    codec->lastreadyNs = f.readyNs;
+    codec->decoding.push_back(f);
+    pthread_cond_broadcast(&codec->cond);
+    pthread_mutex_unlock(&codec->lock);
+    return AMEDIA_OK;
+}
+
+ssize_t AMediaCodec_dequeueOutputBuffer(AMediaCodec *codec, AMediaCodecBufferInfo *info, int64_t timeoutUs){
+    pthread_mutex_lock(&codec->lock);
+    int64_t deadlineNs = nowNs() + (timeoutUs > 0 ? timeoutUs * 1000 : 0);
+    advanceDecoding(codec, nowNs());
+    while (codec->started && codec->ready.empty() && timeoutUs != 0) {
+        int64_t now = nowNs();
+        if (timeoutUs > 0 && now >= deadlineNs){
+            break;
+        }
+        int64_t next = nextEventNs(codec);
+        int64_t wake = timeoutUs < 0 ? next : (next < 0 || deadlineNs < next ? deadlineNs : next);
+        if (wake < 0){
+            pthread_cond_wait(&codec->cond, &codec->lock);
+        } else{
+            timespec deadline;
+            deadlineAt(wake, &deadline);
+            pthread_cond_timedwait(&codec->cond, &codec->lock, &deadline);
+        }
+        advanceDecoding(codec, nowNs());
+    }
+    ssize_t index = AMEDIACODEC_INFO_TRY_AGAIN_LATER;
+    if (codec->started && !codec->ready.empty()){
+        if (!codec->formatreported){
+            codec->formatreported = true;
+            index = AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED;
+        } else{
+            index = codec->ready.front();
+            codec->ready.pop_front();
+            fillInfo(codec, (int32_t) index, info);
+        }
+    }
+    pthread_mutex_unlock(&codec->lock);
+    return index;
+}
+
+static media_status_t releaseOutput(AMediaCodec *codec, size_t idx, bool render, int64_t timestampNs){
+    pthread_mutex_lock(&codec->lock);
+    if (!codec->started || idx >= codec->outputs.size()){
+        pthread_mutex_unlock(&codec->lock);
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    codec->freeoutputs.push_back((int32_t) idx);
+    ANativeWindow *window = render ? codec->window : NULL;
+    if (window){
+        ANativeWindow_acquire(window);
+    }
+    pthread_cond_broadcast(&codec->cond);
+    pthread_mutex_unlock(&codec->lock);
+    if (window){
+        presentFrame(window, timestampNs);
+        ANativeWindow_release(window);
+    }
+    return AMEDIA_OK;
+}
+
+media_status_t AMediaCodec_releaseOutputBuffer(AMediaCodec *codec, size_t idx, bool render){
+    return releaseOutput(codec, idx, render, nowNs());
+}
+
+media_status_t AMediaCodec_releaseOutputBufferAtTime(AMediaCodec *codec, size_t idx, int64_t timestampNs){
+    return releaseOutput(codec, idx, true, timestampNs);
+}
+
+//只有configure时带了surface才能切换，和设备上一样
+media_status_t AMediaCodec_setOutputSurface(AMediaCodec *codec, ANativeWindow *surface){
+    pthread_mutex_lock(&codec->lock);
+    ANativeWindow *old = codec->window;
+    pthread_mutex_unlock(&codec->lock);
+    if (!old || !surface){
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    if (surface == old){
+        return AMEDIA_OK;
+    }
+    if (!attachWindow(surface, codec)){
+        return AMEDIA_ERROR_INVALID_OPERATION;
+    }
+    pthread_mutex_lock(&codec->lock);
+    codec->window = surface;
+    pthread_mutex_unlock(&codec->lock);
+    detachWindow(old, codec);
+    return AMEDIA_OK;
+}
@@ -0,0 +1,45 @@
+//
+// 宿主机上的NDK媒体接口替身：extractor按场景生成H.264和AAC样本，解码器按场景模拟解码耗时、缓冲区个数和成组输出，
+// 异步回调和设备上一样运行在解码器自己的线程上。每一帧的耗时只由种子和帧序号决定，同一场景每次产生同样的负载
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#include <android/native_window.h>
+
+typedef struct {
+    int32_t width;
+    int32_t height;
+    int32_t fps;
+    int32_t frames;         //视频帧数
+    int32_t gop;            //关键帧间隔(帧)
+    bool nonreference;      //关键帧之间奇数位置的帧不被参考，快进时可以不解码
+    int32_t keybytes;       //关键帧和其他帧的样本大小
+    int32_t framebytes;
+    int64_t decodeUs;       //每帧解码耗时，解码器一次只解码一帧
+    int64_t jitterUs;       //每帧再加0~jitterUs
+    int32_t burst;          //解码出的帧攒够这么多才一起输出，最多攒burst个帧间隔；1表示不攒
+    int32_t buffers;        //输入、输出缓冲区各多少个
+    uint32_t seed;
+    int32_t samplerate;     //音频采样率，0表示没有音频轨道
+    int32_t audioppm;       //音频设备的时钟比系统时间快多少(百万分之一)，模拟音视频时钟的漂移
+} fakescenario;
+
+//之后新建的extractor和解码器使用这个场景
+void setFakeScenario(const fakescenario *s);
+fakescenario currentFakeScenario();
+//__system_property_get读到的值，比如debug.nativecodec.sync
+void setFakeProperty(const char *name, const char *value);
+//__android_log_print只输出不低于这一级的日志，默认ANDROID_LOG_WARN
+void setFakeLogLevel(int priority);
+
+//新建一个显示用的window，引用计数为1
+ANativeWindow* newFakeWindow();
+//解码器提交到window显示的帧数
+int64_t fakeWindowFrames(ANativeWindow *window);
+//window已经连着一个解码器时又被另一个解码器使用的次数，设备上这会失败
+int64_t fakeWindowConflicts(ANativeWindow *window);
+//还没有删除的解码器个数
+int fakeCodecCount();
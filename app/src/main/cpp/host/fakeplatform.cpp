@@ -0,0 +1,218 @@
+//
+// 宿主机上的平台接口替身：日志输出到stderr，trace不抓，系统属性由harness设置，
+// AChoreographer按60Hz的整周期在ALooper_pollOnce里回调，和设备上一样只在请求过回调时唤醒
+//
+
+#include "fakemedia.h"
+
+#include <pthread.h>
+#include <stdarg.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+#include <map>
+#include <string>
+#include <vector>
+
+#include <android/choreographer.h>
+#include <android/log.h>
+#include <android/looper.h>
+#include <android/trace.h>
+#include <sys/system_properties.h>
+
+#define kVsyncPeriodNs 16666667LL
+
+static int64_t nowNs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+//
+// 日志、trace和系统属性
+//
+
+static int loglevel = ANDROID_LOG_WARN;
+
+void setFakeLogLevel(int priority){
+    loglevel = priority;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...){
+    if (prio < loglevel){
+        return 0;
+    }
+    static const char kLevels[] = "??VDIWEFS";
+    char line[1024];
+    va_list args;
+    va_start(args, fmt);
+    vsnprintf(line, sizeof(line), fmt, args);
+    va_end(args);
+    return fprintf(stderr, "%c/%s: %s\n", prio >= 0 && prio <= ANDROID_LOG_SILENT ? kLevels[prio] : '?', tag, line);
+}
+
+bool ATrace_isEnabled(){
+    return false;
+}
+
+void ATrace_beginSection(const char *sectionName){
+}
+
+void ATrace_endSection(){
+}
+
+void ATrace_setCounter(const char *counterName, int64_t counterValue){
+}
+
+static pthread_mutex_t propertylock = PTHREAD_MUTEX_INITIALIZER;
+static std::map<std::string, std::string> properties;
+
+void setFakeProperty(const char *name, const char *value){
+    pthread_mutex_lock(&propertylock);
+    properties[name] = value;
+    pthread_mutex_unlock(&propertylock);
+}
+
+int __system_property_get(const char *name, char *value){
+    pthread_mutex_lock(&propertylock);
+    std::map<std::string, std::string>::iterator it = properties.find(name);
+    int length = 0;
+    value[0] = '\0';
+    if (it != properties.end()){
+        snprintf(value, PROP_VALUE_MAX, "%s", it->second.c_str());
+        length = (int) strlen(value);
+    }
+    pthread_mutex_unlock(&propertylock);
+    return length;
+}
+
+//
+// ALooper和AChoreographer：每个线程一个，只处理vsync回调和唤醒
+//
+
+typedef struct {
+    AChoreographer_frameCallback callback;
+    AChoreographer_frameCallback64 callback64;
+    void *data;
+} framecallback;
+
+struct ALooper {
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    bool woken;
+    std::vector<framecallback> callbacks;
+};
+
+struct AChoreographer {
+    ALooper *looper;
+};
+
+static __thread ALooper *threadlooper = NULL;
+static __thread AChoreographer *threadchoreographer = NULL;
+
+ALooper* ALooper_forThread(){
+    return threadlooper;
+}
+
+ALooper* ALooper_prepare(int opts){
+    if (!threadlooper){
+        threadlooper = new ALooper();
+        pthread_mutex_init(&threadlooper->lock, NULL);
+        pthread_cond_init(&threadlooper->cond, NULL);
+        threadlooper->woken = false;
+    }
+    return threadlooper;
+}
+
+//vsync线程常驻，looper不删除
+void ALooper_acquire(ALooper *looper){
+}
+
+void ALooper_release(ALooper *looper){
+}
+
+int ALooper_pollOnce(int timeoutMillis, int *outFd, int *outEvents, void **outData){
+    ALooper *l = threadlooper;
+    if (!l){
+        return ALOOPER_POLL_ERROR;
+    }
+    int64_t timeoutNs = timeoutMillis >= 0 ? nowNs() + timeoutMillis * 1000000LL : -1;
+    pthread_mutex_lock(&l->lock);
+    while (true) {
+        if (l->woken){
+            l->woken = false;
+            pthread_mutex_unlock(&l->lock);
+            return ALOOPER_POLL_WAKE;
+        }
+        int64_t now = nowNs();
+        //请求过回调时等到下一个vsync
+        int64_t vsyncNs = l->callbacks.empty() ? -1 : (now / kVsyncPeriodNs + 1) * kVsyncPeriodNs;
+        if (vsyncNs < 0 && timeoutNs >= 0 && now >= timeoutNs){
+            pthread_mutex_unlock(&l->lock);
+            return ALOOPER_POLL_TIMEOUT;
+        }
+        int64_t wakeNs = vsyncNs;
+        if (timeoutNs >= 0 && (wakeNs < 0 || timeoutNs < wakeNs)){
+            wakeNs = timeoutNs;
+        }
+        if (wakeNs < 0){
+            pthread_cond_wait(&l->cond, &l->lock);
+            continue;
+        }
+        timespec deadline;
+        deadline.tv_sec = wakeNs / 1000000000LL;
+        deadline.tv_nsec = wakeNs % 1000000000LL;
+        pthread_cond_timedwait(&l->cond, &l->lock, &deadline);
+        if (vsyncNs >= 0 && nowNs() >= vsyncNs && !l->woken){
+            std::vector<framecallback> callbacks;
+            callbacks.swap(l->callbacks);
+            pthread_mutex_unlock(&l->lock);
+            for (size_t i = 0; i < callbacks.size(); ++i) {
+                if (callbacks[i].callback64){
+                    callbacks[i].callback64(vsyncNs, callbacks[i].data);
+                } else{
+                    callbacks[i].callback((long) vsyncNs, callbacks[i].data);
+                }
+            }
+            return ALOOPER_POLL_CALLBACK;
+        }
+    }
+}
+
+void ALooper_wake(ALooper *looper){
+    pthread_mutex_lock(&looper->lock);
+    looper->woken = true;
+    pthread_cond_broadcast(&looper->cond);
+    pthread_mutex_unlock(&looper->lock);
+}
+
+AChoreographer* AChoreographer_getInstance(){
+    if (!threadlooper){
+        return NULL;
+    }
+    if (!threadchoreographer){
+        threadchoreographer = new AChoreographer();
+        threadchoreographer->looper = threadlooper;
+    }
+    return threadchoreographer;
+}
+
+static void postFrameCallback(AChoreographer *choreographer, framecallback cb){
+    ALooper *l = choreographer->looper;
+    pthread_mutex_lock(&l->lock);
+    l->callbacks.push_back(cb);
+    pthread_cond_broadcast(&l->cond);
+    pthread_mutex_unlock(&l->lock);
+}
+
+void AChoreographer_postFrameCallback(AChoreographer *choreographer,
+        AChoreographer_frameCallback callback, void *data){
+    framecallback cb = {callback, NULL, data};
+    postFrameCallback(choreographer, cb);
+}
+
+void AChoreographer_postFrameCallback64(AChoreographer *choreographer,
+        AChoreographer_frameCallback64 callback, void *data){
+    framecallback cb = {NULL, callback, data};
+    postFrameCallback(choreographer, cb);
+}
@@ -0,0 +1,112 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakeaudio.cpp。只有播放用到的输出流接口，
+// 回调在流自己的线程上按burst的间隔调用
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <time.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+typedef int32_t aaudio_result_t;
+enum {
+    AAUDIO_OK = 0,
+    AAUDIO_ERROR_DISCONNECTED = -899,
+    AAUDIO_ERROR_ILLEGAL_ARGUMENT = -898,
+    AAUDIO_ERROR_INTERNAL = -896,
+    AAUDIO_ERROR_INVALID_STATE = -895,
+    AAUDIO_ERROR_NULL = -892,
+    AAUDIO_ERROR_TIMEOUT = -885,
+};
+
+typedef int32_t aaudio_format_t;
+enum {
+    AAUDIO_FORMAT_PCM_I16 = 1,
+    AAUDIO_FORMAT_PCM_FLOAT = 2,
+};
+
+typedef int32_t aaudio_stream_state_t;
+enum {
+    AAUDIO_STREAM_STATE_UNINITIALIZED = 0,
+    AAUDIO_STREAM_STATE_UNKNOWN,
+    AAUDIO_STREAM_STATE_OPEN,
+    AAUDIO_STREAM_STATE_STARTING,
+    AAUDIO_STREAM_STATE_STARTED,
+    AAUDIO_STREAM_STATE_PAUSING,
+    AAUDIO_STREAM_STATE_PAUSED,
+    AAUDIO_STREAM_STATE_FLUSHING,
+    AAUDIO_STREAM_STATE_FLUSHED,
+    AAUDIO_STREAM_STATE_STOPPING,
+    AAUDIO_STREAM_STATE_STOPPED,
+    AAUDIO_STREAM_STATE_CLOSING,
+    AAUDIO_STREAM_STATE_CLOSED,
+    AAUDIO_STREAM_STATE_DISCONNECTED,
+};
+
+typedef int32_t aaudio_sharing_mode_t;
+enum {
+    AAUDIO_SHARING_MODE_EXCLUSIVE,
+    AAUDIO_SHARING_MODE_SHARED,
+};
+
+typedef int32_t aaudio_performance_mode_t;
+enum {
+    AAUDIO_PERFORMANCE_MODE_NONE = 10,
+    AAUDIO_PERFORMANCE_MODE_POWER_SAVING,
+    AAUDIO_PERFORMANCE_MODE_LOW_LATENCY,
+};
+
+typedef int32_t aaudio_data_callback_result_t;
+enum {
+    AAUDIO_CALLBACK_RESULT_CONTINUE = 0,
+    AAUDIO_CALLBACK_RESULT_STOP,
+};
+
+typedef struct AAudioStreamStruct AAudioStream;
+typedef struct AAudioStreamBuilderStruct AAudioStreamBuilder;
+
+typedef aaudio_data_callback_result_t (*AAudioStream_dataCallback)(AAudioStream *stream, void *userData,
+        void *audioData, int32_t numFrames);
+typedef void (*AAudioStream_errorCallback)(AAudioStream *stream, void *userData, aaudio_result_t error);
+
+const char* AAudio_convertResultToText(aaudio_result_t returnCode);
+aaudio_result_t AAudio_createStreamBuilder(AAudioStreamBuilder **builder);
+
+void AAudioStreamBuilder_setSampleRate(AAudioStreamBuilder *builder, int32_t sampleRate);
+void AAudioStreamBuilder_setChannelCount(AAudioStreamBuilder *builder, int32_t channelCount);
+void AAudioStreamBuilder_setFormat(AAudioStreamBuilder *builder, aaudio_format_t format);
+void AAudioStreamBuilder_setSharingMode(AAudioStreamBuilder *builder, aaudio_sharing_mode_t sharingMode);
+void AAudioStreamBuilder_setPerformanceMode(AAudioStreamBuilder *builder, aaudio_performance_mode_t mode);
+void AAudioStreamBuilder_setDataCallback(AAudioStreamBuilder *builder, AAudioStream_dataCallback callback,
+        void *userData);
+void AAudioStreamBuilder_setErrorCallback(AAudioStreamBuilder *builder, AAudioStream_errorCallback callback,
+        void *userData);
+aaudio_result_t AAudioStreamBuilder_openStream(AAudioStreamBuilder *builder, AAudioStream **stream);
+aaudio_result_t AAudioStreamBuilder_delete(AAudioStreamBuilder *builder);
+
+aaudio_result_t AAudioStream_close(AAudioStream *stream);
+aaudio_result_t AAudioStream_requestStart(AAudioStream *stream);
+aaudio_result_t AAudioStream_requestPause(AAudioStream *stream);
+aaudio_result_t AAudioStream_requestFlush(AAudioStream *stream);
+aaudio_result_t AAudioStream_requestStop(AAudioStream *stream);
+aaudio_result_t AAudioStream_waitForStateChange(AAudioStream *stream, aaudio_stream_state_t inputState,
+        aaudio_stream_state_t *nextState, int64_t timeoutNanoseconds);
+aaudio_result_t AAudioStream_setBufferSizeInFrames(AAudioStream *stream, int32_t numFrames);
+int32_t AAudioStream_getBufferSizeInFrames(AAudioStream *stream);
+int32_t AAudioStream_getFramesPerBurst(AAudioStream *stream);
+int32_t AAudioStream_getBufferCapacityInFrames(AAudioStream *stream);
+int32_t AAudioStream_getXRunCount(AAudioStream *stream);
+int32_t AAudioStream_getSampleRate(AAudioStream *stream);
+int32_t AAudioStream_getChannelCount(AAudioStream *stream);
+aaudio_sharing_mode_t AAudioStream_getSharingMode(AAudioStream *stream);
+int64_t AAudioStream_getFramesWritten(AAudioStream *stream);
+aaudio_result_t AAudioStream_getTimestamp(AAudioStream *stream, clockid_t clockid, int64_t *framePosition,
+        int64_t *timeNanoseconds);
+
+#ifdef __cplusplus
+}
+#endif
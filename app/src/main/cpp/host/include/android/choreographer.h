@@ -0,0 +1,27 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakeplatform.cpp。vsync按60Hz对齐到CLOCK_MONOTONIC的整周期
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AChoreographer;
+typedef struct AChoreographer AChoreographer;
+
+typedef void (*AChoreographer_frameCallback)(long frameTimeNanos, void *data);
+typedef void (*AChoreographer_frameCallback64)(int64_t frameTimeNanos, void *data);
+
+AChoreographer* AChoreographer_getInstance();
+void AChoreographer_postFrameCallback(AChoreographer *choreographer,
+        AChoreographer_frameCallback callback, void *data);
+void AChoreographer_postFrameCallback64(AChoreographer *choreographer,
+        AChoreographer_frameCallback64 callback, void *data);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,34 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakeplatform.cpp。只支持vsync线程用到的轮询和唤醒
+//
+
+#pragma once
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct ALooper;
+typedef struct ALooper ALooper;
+
+enum {
+    ALOOPER_PREPARE_ALLOW_NON_CALLBACKS = 1 << 0,
+};
+
+enum {
+    ALOOPER_POLL_WAKE = -1,
+    ALOOPER_POLL_CALLBACK = -2,
+    ALOOPER_POLL_TIMEOUT = -3,
+    ALOOPER_POLL_ERROR = -4,
+};
+
+ALooper* ALooper_forThread();
+ALooper* ALooper_prepare(int opts);
+void ALooper_acquire(ALooper *looper);
+void ALooper_release(ALooper *looper);
+int ALooper_pollOnce(int timeoutMillis, int *outFd, int *outEvents, void **outData);
+void ALooper_wake(ALooper *looper);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,21 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakemedia.cpp。window只记录显示的帧数和被哪个解码器使用
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct ANativeWindow;
+typedef struct ANativeWindow ANativeWindow;
+
+void ANativeWindow_acquire(ANativeWindow *window);
+void ANativeWindow_release(ANativeWindow *window);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,20 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakeplatform.cpp，宿主机上不抓trace
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+bool ATrace_isEnabled();
+void ATrace_beginSection(const char *sectionName);
+void ATrace_endSection();
+void ATrace_setCounter(const char *counterName, int64_t counterValue);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,27 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakemedia.cpp
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#include "NdkMediaError.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AImage;
+typedef struct AImage AImage;
+
+enum AIMAGE_FORMATS {
+    AIMAGE_FORMAT_YUV_420_888 = 0x23,
+    AIMAGE_FORMAT_PRIVATE = 0x22,
+};
+
+void AImage_delete(AImage *image);
+
+#ifdef __cplusplus
+}
+#endif
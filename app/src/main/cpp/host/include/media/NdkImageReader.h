@@ -0,0 +1,37 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakemedia.cpp。解码器渲染到reader的window时回调listener
+//
+
+#pragma once
+
+#include <stdint.h>
+
+#include <android/native_window.h>
+
+#include "NdkImage.h"
+#include "NdkMediaError.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AImageReader;
+typedef struct AImageReader AImageReader;
+
+typedef void (*AImageReader_ImageCallback)(void *context, AImageReader *reader);
+
+typedef struct AImageReader_ImageListener {
+    void *context;
+    AImageReader_ImageCallback onImageAvailable;
+} AImageReader_ImageListener;
+
+media_status_t AImageReader_new(int32_t width, int32_t height, int32_t format, int32_t maxImages,
+        AImageReader **reader);
+void AImageReader_delete(AImageReader *reader);
+media_status_t AImageReader_getWindow(AImageReader *reader, ANativeWindow **window);
+media_status_t AImageReader_acquireLatestImage(AImageReader *reader, AImage **image);
+media_status_t AImageReader_setImageListener(AImageReader *reader, AImageReader_ImageListener *listener);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,8 @@
+//
+// 宿主机构建用的NDK头文件替身，核心代码只传NULL
+//
+
+#pragma once
+
+struct AMediaCrypto;
+typedef struct AMediaCrypto AMediaCrypto;
@@ -0,0 +1,30 @@
+//
+// 宿主机构建用的NDK头文件替身，实现在host/fakemedia.cpp，extractor替身通过它从数据源读样本
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AMediaDataSource;
+typedef struct AMediaDataSource AMediaDataSource;
+
+typedef ssize_t (*AMediaDataSourceReadAt)(void *userdata, off64_t offset, void *buffer, size_t size);
+typedef ssize_t (*AMediaDataSourceGetSize)(void *userdata);
+typedef void (*AMediaDataSourceClose)(void *userdata);
+
+AMediaDataSource* AMediaDataSource_new();
+void AMediaDataSource_delete(AMediaDataSource*);
+void AMediaDataSource_setUserdata(AMediaDataSource*, void *userdata);
+void AMediaDataSource_setReadAt(AMediaDataSource*, AMediaDataSourceReadAt);
+void AMediaDataSource_setGetSize(AMediaDataSource*, AMediaDataSourceGetSize);
+void AMediaDataSource_setClose(AMediaDataSource*, AMediaDataSourceClose);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,49 @@
+//
+// 宿主机构建用的NDK头文件替身：只声明核心代码用到的部分，签名和NDK一致，实现在host/fakemedia.cpp
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+
+#include "NdkMediaDataSource.h"
+#include "NdkMediaError.h"
+#include "NdkMediaFormat.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AMediaExtractor;
+typedef struct AMediaExtractor AMediaExtractor;
+
+enum {
+    AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC = 1,
+    AMEDIAEXTRACTOR_SAMPLE_FLAG_ENCRYPTED = 2,
+};
+
+typedef enum {
+    AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC,
+    AMEDIAEXTRACTOR_SEEK_NEXT_SYNC,
+    AMEDIAEXTRACTOR_SEEK_CLOSEST_SYNC,
+} SeekMode;
+
+AMediaExtractor* AMediaExtractor_new();
+media_status_t AMediaExtractor_delete(AMediaExtractor*);
+media_status_t AMediaExtractor_setDataSourceFd(AMediaExtractor*, int fd, off64_t offset, off64_t length);
+media_status_t AMediaExtractor_setDataSource(AMediaExtractor*, const char *location);
+media_status_t AMediaExtractor_setDataSourceCustom(AMediaExtractor*, AMediaDataSource *src);
+size_t AMediaExtractor_getTrackCount(AMediaExtractor*);
+AMediaFormat* AMediaExtractor_getTrackFormat(AMediaExtractor*, size_t idx);
+media_status_t AMediaExtractor_selectTrack(AMediaExtractor*, size_t idx);
+ssize_t AMediaExtractor_readSampleData(AMediaExtractor*, uint8_t *buffer, size_t capacity);
+uint32_t AMediaExtractor_getSampleFlags(AMediaExtractor*);
+int64_t AMediaExtractor_getSampleTime(AMediaExtractor*);
+ssize_t AMediaExtractor_getSampleSize(AMediaExtractor*);
+bool AMediaExtractor_advance(AMediaExtractor*);
+media_status_t AMediaExtractor_seekTo(AMediaExtractor*, int64_t seekPosUs, SeekMode mode);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,41 @@
+//
+// 宿主机构建用的NDK头文件替身：只声明核心代码用到的部分，签名和NDK一致，实现在host/fakemedia.cpp
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+
+#include "NdkMediaError.h"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+struct AMediaFormat;
+typedef struct AMediaFormat AMediaFormat;
+
+AMediaFormat* AMediaFormat_new();
+media_status_t AMediaFormat_delete(AMediaFormat*);
+//返回的字符串在format删除或者下一次调用之前有效
+const char* AMediaFormat_toString(AMediaFormat*);
+bool AMediaFormat_getInt32(AMediaFormat*, const char *name, int32_t *out);
+bool AMediaFormat_getInt64(AMediaFormat*, const char *name, int64_t *out);
+bool AMediaFormat_getString(AMediaFormat*, const char *name, const char **out);
+void AMediaFormat_setInt32(AMediaFormat*, const char *name, int32_t value);
+void AMediaFormat_setInt64(AMediaFormat*, const char *name, int64_t value);
+void AMediaFormat_setString(AMediaFormat*, const char *name, const char *value);
+
+extern const char *AMEDIAFORMAT_KEY_CHANNEL_COUNT;
+extern const char *AMEDIAFORMAT_KEY_COLOR_FORMAT;
+extern const char *AMEDIAFORMAT_KEY_DURATION;
+extern const char *AMEDIAFORMAT_KEY_FRAME_RATE;
+extern const char *AMEDIAFORMAT_KEY_HEIGHT;
+extern const char *AMEDIAFORMAT_KEY_MIME;
+extern const char *AMEDIAFORMAT_KEY_SAMPLE_RATE;
+extern const char *AMEDIAFORMAT_KEY_WIDTH;
+
+#ifdef __cplusplus
+}
+#endif
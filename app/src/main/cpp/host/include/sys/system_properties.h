@@ -0,0 +1,17 @@
+//
+// 宿主机构建用的bionic头文件替身，属性由host/fakeplatform.cpp的setFakeProperty设置
+//
+
+#pragma once
+
+#define PROP_VALUE_MAX 92
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+int __system_property_get(const char *name, char *value);
+
+#ifdef __cplusplus
+}
+#endif
@@ -0,0 +1,873 @@
+//
+// 宿主机上的播放调度模拟：真实的looper、播放器、预读线程和播放时钟，跑在fakemedia模拟的extractor、解码器
+// 和vsync上。每个场景施加确定的负载(解码耗时、读取卡顿、成组输出)并检查调度结果，输出耗时和计数器用于对比。
+// 用法：playersim [场景名|all] [轮数] [--sync] [-v]
+//   轮数大于1时每轮换一个种子，做压力测试；--sync强制同步轮询模式(debug.nativecodec.sync)；-v输出播放器日志
+// 有场景失败时返回1，卡死时由alarm结束进程
+//
+
+#include <semaphore.h>
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <fcntl.h>
+#include <time.h>
+#include <unistd.h>
+#include <algorithm>
+#include <atomic>
+#include <string>
+#include <vector>
+
+#include "../player.h"
+#include "fakemedia.h"
+
+#include <android/log.h>
+
+//单个场景最多运行的秒数，超过说明调度卡死
+#define kCaseTimeoutSec 60
+//等打开完成的时间
+#define kPrepareTimeoutMs 2000
+//播完的判断：最后一帧显示后还要等的时间上限之外再留的余量
+#define kEndSlackMs 3000
+
+static int64_t nowMs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000LL + now.tv_nsec / 1000000;
+}
+
+static void sleepMs(int64_t ms){
+    usleep(ms * 1000);
+}
+
+//场景用的数据源：内容全为0，每读stallevery次卡stallUs，模拟存储或网络的卡顿
+class simsource : public datasource {
+    public:simsource(off64_t length, int stallevery, int64_t stallUs);
+
+        off64_t size() override {
+            return length;
+        }
+        //返回/dev/zero的fd，播放器当作本地文件扫描关键帧索引
+        int fd(off64_t *offset, off64_t *length) override {
+            *offset = 0;
+            *length = this->length;
+            return zerofd;
+        }
+
+    protected:
+        ~simsource() override;
+        ssize_t doRead(off64_t offset, void *buf, size_t size) override;
+
+    private:
+        off64_t length;
+        int stallevery;
+        int64_t stallUs;
+        std::atomic<int> reads;
+        int zerofd;
+};
+
+simsource::simsource(off64_t length, int stallevery, int64_t stallUs){
+    this->length = length;
+    this->stallevery = stallevery;
+    this->stallUs = stallUs;
+    reads.store(0);
+    zerofd = open("/dev/zero", O_RDONLY);
+}
+
+simsource::~simsource(){
+    if (zerofd >= 0){
+        close(zerofd);
+    }
+}
+
+ssize_t simsource::doRead(off64_t offset, void *buf, size_t size){
+    int n = reads.fetch_add(1) + 1;
+    if (stallevery > 0 && n % stallevery == 0){
+        usleep(stallUs);
+    }
+    if (offset >= length){
+        return 0;
+    }
+    size = std::min((off64_t) size, length - offset);
+    memset(buf, 0, size);
+    return size;
+}
+
+//一次运行的结果
+typedef struct {
+    bool pass;
+    char reason[256];
+    int64_t wallMs;
+    int64_t stats[kStatCount];
+    int64_t seekMs;
+    int64_t pauseUs;
+} simresult;
+
+static void fail(simresult *r, const char *fmt, ...){
+    if (!r->pass){
+        return;
+    }
+    r->pass = false;
+    va_list args;
+    va_start(args, fmt);
+    vsnprintf(r->reason, sizeof(r->reason), fmt, args);
+    va_end(args);
+}
+
+#define CHECK(r, cond, ...) do { if (!(cond)) fail(r, __VA_ARGS__); } while (0)
+
+//
+// 播放器的打开、播放控制和等待
+//
+
+typedef struct {
+    workerdata *d;
+    sem_t preparedsem;
+    bool prepared;
+} simplayer;
+
+static void onPrepared(workerdata *d, bool prepared, void *userdata){
+    simplayer *p = (simplayer*) userdata;
+    p->prepared = prepared;
+    sem_post(&p->preparedsem);
+}
+
+static bool waitSem(sem_t *sem, int64_t timeoutMs){
+    timespec deadline;
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += timeoutMs / 1000;
+    deadline.tv_nsec += timeoutMs % 1000 * 1000000;
+    if (deadline.tv_nsec >= 1000000000){
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000;
+    }
+    return sem_timedwait(sem, &deadline) == 0;
+}
+
+//window为NULL时不输出到surface；window的引用交给播放器
+static simplayer* openSim(const fakescenario *s, simsource *source, ANativeWindow *window, int flags){
+    setFakeScenario(s);
+    simplayer *p = new simplayer();
+    sem_init(&p->preparedsem, 0, 0);
+    p->prepared = false;
+    p->d = createPlayer(source, window, onPrepared, p, flags);
+    return p;
+}
+
+static bool waitPrepared(simplayer *p){
+    return waitSem(&p->preparedsem, kPrepareTimeoutMs) && p->prepared;
+}
+
+static void closeSim(simplayer *p){
+    releasePlayer(p->d);
+    sem_destroy(&p->preparedsem);
+    delete p;
+}
+
+static void resume(simplayer *p){
+    requestPlaying(p->d, true);
+}
+
+static void pause(simplayer *p){
+    requestPlaying(p->d, false);
+}
+
+static int64_t lastPtsUs(const fakescenario *s){
+    return (int64_t) (s->frames - 1) * 1000000 / s->fps;
+}
+
+static int64_t durationMs(const fakescenario *s){
+    return (int64_t) s->frames * 1000 / s->fps;
+}
+
+//等到最后一帧显示或者丢弃，超时返回false
+static bool waitForEnd(simplayer *p, const fakescenario *s, int64_t timeoutMs){
+    int64_t deadline = nowMs() + timeoutMs;
+    while (p->d->positionUs.load() < lastPtsUs(s)) {
+        if (nowMs() > deadline){
+            return false;
+        }
+        sleepMs(2);
+    }
+    return true;
+}
+
+static int64_t stat(simplayer *p, int index){
+    int64_t stats[kStatCount];
+    snapshotStats(p->d, stats);
+    return stats[index];
+}
+
+static simsource* newSource(const fakescenario *s, int stallevery, int64_t stallUs){
+    return new simsource((off64_t) s->frames * s->keybytes, stallevery, stallUs);
+}
+
+//30fps、2秒、每秒一个关键帧；解码3~5ms，远快于实时
+static fakescenario baseScenario(uint32_t seed){
+    fakescenario s;
+    s.width = 640;
+    s.height = 360;
+    s.fps = 30;
+    s.frames = 61;
+    s.gop = 30;
+    s.nonreference = true;
+    s.keybytes = 16384;
+    s.framebytes = 4096;
+    s.decodeUs = 3000;
+    s.jitterUs = 2000;
+    s.burst = 1;
+    s.buffers = 8;
+    s.seed = seed;
+    s.samplerate = 0;
+    s.audioppm = 0;
+    return s;
+}
+
+//打开一个输出到新window的播放器，开始播放并等到结尾；window留一个引用给调用者检查
+static simplayer* playToEnd(simresult *r, const fakescenario *s, simsource *source, ANativeWindow **window){
+    *window = newFakeWindow();
+    ANativeWindow_acquire(*window);
+    simplayer *p = openSim(s, source, *window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+        return p;
+    }
+    int64_t startMs = nowMs();
+    resume(p);
+    if (!waitForEnd(p, s, durationMs(s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    return p;
+}
+
+static void finish(simresult *r, simplayer *p){
+    snapshotStats(p->d, r->stats);
+    closeSim(p);
+}
+
+//
+// 场景
+//
+
+//解码远快于实时：每一帧都按时显示，总时长等于片段时长
+static void runSteady(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    ANativeWindow *window;
+    simplayer *p = playToEnd(r, &s, newSource(&s, 0, 0), &window);
+    finish(r, p);
+    CHECK(r, r->stats[kStatFramesRendered] == s.frames, "rendered %lld of %d",
+          (long long) r->stats[kStatFramesRendered], s.frames);
+    CHECK(r, r->stats[kStatFramesDropped] == 0, "dropped %lld", (long long) r->stats[kStatFramesDropped]);
+    CHECK(r, fakeWindowFrames(window) == s.frames, "window got %lld frames", (long long) fakeWindowFrames(window));
+    CHECK(r, r->wallMs <= durationMs(&s) + 400, "took %lld ms", (long long) r->wallMs);
+    CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+    ANativeWindow_release(window);
+}
+
+//解码比实时慢一半：迟到的帧要丢掉，调度不能在解码之外再增加延迟
+static void runSlowDecode(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.decodeUs = 1500000 / s.fps;
+    s.jitterUs = 0;
+    ANativeWindow *window;
+    simplayer *p = playToEnd(r, &s, newSource(&s, 0, 0), &window);
+    finish(r, p);
+    CHECK(r, r->stats[kStatFramesRendered] + r->stats[kStatFramesDropped] == s.frames, "rendered %lld dropped %lld",
+          (long long) r->stats[kStatFramesRendered], (long long) r->stats[kStatFramesDropped]);
+    CHECK(r, r->stats[kStatFramesDropped] > 0, "nothing dropped");
+    CHECK(r, r->wallMs <= s.frames * s.decodeUs / 1000 + 500, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+//读取比实时慢：预读线程读空后解码器等样本，数据来了之后继续，不能卡住
+static void runIoStall(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    int stallevery = 10;
+    int64_t stallUs = 400000;
+    ANativeWindow *window;
+    simplayer *p = playToEnd(r, &s, newSource(&s, stallevery, stallUs), &window);
+    finish(r, p);
+    int64_t stallMs = s.frames / stallevery * stallUs / 1000;
+    CHECK(r, r->stats[kStatDemuxStarvations] > 0, "no starvation");
+    CHECK(r, r->stats[kStatFramesRendered] + r->stats[kStatFramesDropped] == s.frames, "rendered %lld dropped %lld",
+          (long long) r->stats[kStatFramesRendered], (long long) r->stats[kStatFramesDropped]);
+    CHECK(r, r->wallMs <= durationMs(&s) + stallMs + 500, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+//解码器把输出攒成4帧一组：只要解码够快就不应该丢帧
+static void runBursty(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.burst = 4;
+    s.jitterUs = 6000;
+    ANativeWindow *window;
+    simplayer *p = playToEnd(r, &s, newSource(&s, 0, 0), &window);
+    finish(r, p);
+    CHECK(r, r->stats[kStatFramesRendered] == s.frames, "rendered %lld of %d",
+          (long long) r->stats[kStatFramesRendered], s.frames);
+    CHECK(r, r->stats[kStatFramesDropped] == 0, "dropped %lld", (long long) r->stats[kStatFramesDropped]);
+    CHECK(r, r->wallMs <= durationMs(&s) + 400, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+//播放中快速拖动：只执行最新的目标，精确seek后显示的第一帧不早于目标
+static void runSeek(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.frames = 91;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    int64_t startMs = nowMs();
+    resume(p);
+    sleepMs(300);
+    for (int i = 0; i < 40; ++i) {
+        int64_t targetUs = (int64_t) (((uint64_t) seed * 2654435761u + i * 40503u) % 2500) * 1000;
+        requestSeek(p->d, targetUs, kSeekAccurate);
+        usleep(3000);
+    }
+    int64_t finalUs = 2000000;
+    int64_t seekMs = nowMs();
+    requestSeek(p->d, finalUs, kSeekAccurate);
+    while (p->d->seeklatencyNs.load() < 0 && nowMs() - seekMs < kEndSlackMs) {
+        usleep(500);
+    }
+    int64_t positionUs = p->d->positionUs.load();
+    r->seekMs = p->d->seeklatencyNs.load() / 1000000;
+    CHECK(r, p->d->seeklatencyNs.load() >= 0, "seek never finished");
+    CHECK(r, positionUs >= finalUs && positionUs < finalUs + 300000, "position %lld after seek to %lld",
+          (long long) positionUs, (long long) finalUs);
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    CHECK(r, r->seekMs <= 300, "seek took %lld ms", (long long) r->seekMs);
+    CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+    ANativeWindow_release(window);
+}
+
+//暂停期间不能再显示帧；快速切换暂停和播放后正常播完，时钟重新对齐不丢帧
+static void runPause(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    int64_t startMs = nowMs();
+    resume(p);
+    sleepMs(500);
+    pause(p);
+    sleepMs(100);
+    int64_t rendered = stat(p, kStatFramesRendered);
+    int64_t shown = fakeWindowFrames(window);
+    sleepMs(400);
+    CHECK(r, stat(p, kStatFramesRendered) == rendered && fakeWindowFrames(window) == shown,
+          "rendered %lld frames while paused", (long long) (stat(p, kStatFramesRendered) - rendered));
+    for (int i = 0; i < 10; ++i) {
+        resume(p);
+        sleepMs(10);
+        pause(p);
+        sleepMs(10);
+    }
+    resume(p);
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    CHECK(r, r->stats[kStatFramesDropped] <= s.frames / 20, "dropped %lld", (long long) r->stats[kStatFramesDropped]);
+    //暂停的500ms要加在播放时间上，切换期间已经提前提交的帧最多让内容多走一点
+    CHECK(r, r->wallMs >= lastPtsUs(&s) / 1000 + 300, "paused time lost, took %lld ms", (long long) r->wallMs);
+    CHECK(r, r->wallMs <= durationMs(&s) + 500 + 200 + 600, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+//surface销毁后输出到占位surface，回来时直接setOutputSurface，解码器不重建
+static void runSurface(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    ANativeWindow *first = newFakeWindow();
+    ANativeWindow_acquire(first);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), first, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    int64_t startMs = nowMs();
+    resume(p);
+    sleepMs(600);
+    requestSurface(p->d, NULL);
+    sleepMs(300);
+    ANativeWindow *second = newFakeWindow();
+    ANativeWindow_acquire(second);
+    requestSurface(p->d, second);
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    CHECK(r, r->stats[kStatSurfaceSwitches] == 2, "%lld surface switches", (long long) r->stats[kStatSurfaceSwitches]);
+    CHECK(r, r->stats[kStatSurfaceReconfigures] == 0, "%lld reconfigures",
+          (long long) r->stats[kStatSurfaceReconfigures]);
+    CHECK(r, fakeWindowFrames(first) > 0 && fakeWindowFrames(second) > 0, "frames %lld/%lld",
+          (long long) fakeWindowFrames(first), (long long) fakeWindowFrames(second));
+    CHECK(r, fakeWindowConflicts(first) + fakeWindowConflicts(second) == 0, "window connected twice");
+    ANativeWindow_release(first);
+    ANativeWindow_release(second);
+}
+
+//四个播放器共享一个looper线程，互相不能拖慢
+static void runShared(simresult *r, uint32_t seed){
+    const int kPlayers = 4;
+    fakescenario s = baseScenario(seed);
+    setThreadPolicy(1);
+    simplayer *players[kPlayers];
+    ANativeWindow *windows[kPlayers];
+    for (int i = 0; i < kPlayers; ++i) {
+        windows[i] = newFakeWindow();
+        ANativeWindow_acquire(windows[i]);
+        players[i] = openSim(&s, newSource(&s, 0, 0), windows[i], 0);
+    }
+    for (int i = 0; i < kPlayers; ++i) {
+        if (!waitPrepared(players[i])){
+            fail(r, "open %d failed", i);
+        }
+    }
+    int64_t startMs = nowMs();
+    for (int i = 0; i < kPlayers; ++i) {
+        resume(players[i]);
+    }
+    for (int i = 0; i < kPlayers; ++i) {
+        if (!waitForEnd(players[i], &s, durationMs(&s) + kEndSlackMs)){
+            fail(r, "player %d stuck at %lld us", i, (long long) players[i]->d->positionUs.load());
+        }
+    }
+    r->wallMs = nowMs() - startMs;
+    int64_t dropped = 0;
+    for (int i = 0; i < kPlayers; ++i) {
+        int64_t stats[kStatCount];
+        snapshotStats(players[i]->d, stats);
+        for (int j = 0; j < kStatCount; ++j) {
+            r->stats[j] += stats[j];
+        }
+        dropped += stats[kStatFramesDropped];
+        closeSim(players[i]);
+        ANativeWindow_release(windows[i]);
+    }
+    setThreadPolicy(0);
+    CHECK(r, dropped <= kPlayers * s.frames / 20, "dropped %lld", (long long) dropped);
+    CHECK(r, r->wallMs <= durationMs(&s) + 500, "took %lld ms", (long long) r->wallMs);
+    //几个播放器共用一个looper，正常播放时消息环不会满
+    CHECK(r, r->stats[kStatLooperOverflows] == 0, "looper overflowed %lld times",
+          (long long) r->stats[kStatLooperOverflows]);
+}
+
+//播放列表：第一个播完后surface交给预加载的第二个，window同一时间只连一个解码器
+static void runPlaylist(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.frames = 31;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *first = openSim(&s, newSource(&s, 0, 0), window, 0);
+    simplayer *second = openSim(&s, newSource(&s, 0, 0), NULL, kPlayerPreroll);
+    if (!waitPrepared(first) || !waitPrepared(second)){
+        fail(r, "open failed");
+    }
+    setNextPlayer(first->d, second->d);
+    int64_t startMs = nowMs();
+    resume(first);
+    if (!waitForEnd(first, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "first stuck at %lld us", (long long) first->d->positionUs.load());
+    }
+    //和Playlist.poll一样，交出surface后马上关闭第一个播放器
+    int64_t handoffMs = nowMs();
+    while (!first->d->handedoff.load() && nowMs() - handoffMs < kEndSlackMs) {
+        sleepMs(1);
+    }
+    CHECK(r, first->d->handedoff.load(), "never handed off");
+    int64_t rendered = stat(first, kStatFramesRendered);
+    closeSim(first);
+    if (!waitForEnd(second, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "second stuck at %lld us", (long long) second->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    int64_t gapUs = stat(second, kStatHandoverGapUs);
+    finish(r, second);
+    rendered += r->stats[kStatFramesRendered];
+    int64_t intervalUs = 1000000 / s.fps;
+    CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+    CHECK(r, fakeWindowFrames(window) == rendered, "window got %lld of %lld frames",
+          (long long) fakeWindowFrames(window), (long long) rendered);
+    CHECK(r, gapUs > 0 && gapUs <= intervalUs * 3, "handover gap %lld us", (long long) gapUs);
+    CHECK(r, r->wallMs <= durationMs(&s) * 2 + 500, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+//有音频轨道、音频设备的时钟快50%：视频跟着音频走，按音频的速度播完；暂停、seek之后重新对齐
+static void runAvSync(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.frames = 91;
+    s.samplerate = 48000;
+    s.audioppm = 500000;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    resume(p);
+    sleepMs(400);
+    pause(p);
+    sleepMs(100);
+    int64_t shown = fakeWindowFrames(window);
+    int64_t seekUs = 1000000;
+    requestSeek(p->d, seekUs, kSeekAccurate);
+    sleepMs(200);
+    CHECK(r, fakeWindowFrames(window) - shown <= 1, "rendered %lld frames while paused",
+          (long long) (fakeWindowFrames(window) - shown));
+    int64_t startMs = nowMs();
+    resume(p);
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    int64_t rendered = r->stats[kStatFramesRendered];
+    int64_t offsync = r->stats[kStatDriftHist] + r->stats[kStatDriftHist + 6];
+    int64_t expectMs = (lastPtsUs(&s) - seekUs) / 1000 * 1000000 / (1000000 + s.audioppm);
+    CHECK(r, r->wallMs <= expectMs + 120, "took %lld ms, audio clock needs %lld ms",
+          (long long) r->wallMs, (long long) expectMs);
+    CHECK(r, r->stats[kStatAudioLatencyUs] > 0, "audio clock never used");
+    CHECK(r, r->stats[kStatAudioUnderruns] == 0, "%lld audio underruns", (long long) r->stats[kStatAudioUnderruns]);
+    CHECK(r, offsync * 10 <= rendered, "%lld of %lld frames off by more than 16 ms",
+          (long long) offsync, (long long) rendered);
+    CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+    ANativeWindow_release(window);
+}
+
+//4倍速：不被参考的帧不送进解码器，按速度播完
+static void runTrick(simresult *r, uint32_t seed){
+    fakescenario s = baseScenario(seed);
+    s.frames = 91;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    requestPlaybackRate(p->d, 4.0f);
+    int64_t startMs = nowMs();
+    resume(p);
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    CHECK(r, r->stats[kStatSamplesSkipped] > 0, "no samples skipped");
+    CHECK(r, r->wallMs <= durationMs(&s) / 4 + 500, "took %lld ms", (long long) r->wallMs);
+    ANativeWindow_release(window);
+}
+
+typedef struct {
+    const char *name;
+    void (*run)(simresult *r, uint32_t seed);
+} simcase;
+
+//不按时间戳等待、解码全速运行时反复暂停和seek：控制消息排在解码消息前面，暂停和seek的生效时间不随解码负载增长
+static void runControl(simresult *r, uint32_t seed){
+    const int kRounds = 20;
+    fakescenario s = baseScenario(seed);
+    s.frames = 900;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    p->d->unpaced.store(true);
+    int64_t startMs = nowMs();
+    std::vector<int64_t> pauses;
+    std::vector<int64_t> seeks;
+    for (int i = 0; i < kRounds && r->pass; ++i) {
+        resume(p);
+        sleepMs(20);
+        pause(p);
+        int64_t pauseMs = nowMs();
+        while (p->d->pauselatencyNs.load() < 0 && nowMs() - pauseMs < kEndSlackMs) {
+            usleep(100);
+        }
+        CHECK(r, p->d->pauselatencyNs.load() >= 0, "pause %d never took effect", i);
+        pauses.push_back(p->d->pauselatencyNs.load() / 1000);
+        //已经提交的帧之后不能再有新的帧
+        int64_t rendered = stat(p, kStatFramesRendered);
+        sleepMs(10);
+        CHECK(r, stat(p, kStatFramesRendered) == rendered, "rendered %lld frames while paused",
+              (long long) (stat(p, kStatFramesRendered) - rendered));
+
+        resume(p);
+        sleepMs(10);
+        //只在前半段seek，解码一直有事做不会播完
+        int64_t targetUs = (int64_t) (((uint64_t) seed * 2654435761u + i * 40503u) % 15000) * 1000;
+        int64_t seekMs = nowMs();
+        requestSeek(p->d, targetUs, kSeekAccurate);
+        while (p->d->seeklatencyNs.load() < 0 && nowMs() - seekMs < kEndSlackMs) {
+            usleep(100);
+        }
+        CHECK(r, p->d->seeklatencyNs.load() >= 0, "seek %d never finished", i);
+        seeks.push_back(p->d->seeklatencyNs.load() / 1000);
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    std::sort(pauses.begin(), pauses.end());
+    std::sort(seeks.begin(), seeks.end());
+    if (!pauses.empty() && !seeks.empty()){
+        r->pauseUs = pauses.back();
+        r->seekMs = seeks[seeks.size() / 2] / 1000;
+        CHECK(r, pauses.back() <= 20000, "pause took %lld us (p50 %lld us)", (long long) pauses.back(),
+              (long long) pauses[pauses.size() / 2]);
+        CHECK(r, r->seekMs <= 300, "seek p50 %lld ms", (long long) r->seekMs);
+    }
+    CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+    ANativeWindow_release(window);
+}
+
+//循环播放1秒的片段，有音频和没有音频各一次：回绕处解码器不flush，前后两帧的间隔和平时一样、不丢帧，
+//每圈音频和周期对不齐的部分不让音画越来越偏；之后跳回开头从循环缓存里取样本，不seek extractor
+static void runLoop(simresult *r, uint32_t seed){
+    const int kLoops = 3;
+    int64_t startMs = nowMs();
+    for (int audio = 0; audio < 2 && r->pass; ++audio) {
+        fakescenario s = baseScenario(seed);
+        s.frames = 31;
+        s.samplerate = audio ? 48000 : 0;
+        const char *name = audio ? "with audio" : "video only";
+        ANativeWindow *window = newFakeWindow();
+        ANativeWindow_acquire(window);
+        simplayer *p = openSim(&s, newSource(&s, 0, 0), window, 0);
+        if (!waitPrepared(p)){
+            fail(r, "open failed");
+        }
+        setLooping(p->d, true);
+        int64_t playMs = nowMs();
+        resume(p);
+        int64_t deadline = nowMs() + durationMs(&s) * (kLoops + 1) + kEndSlackMs;
+        while (stat(p, kStatLoops) < kLoops && nowMs() < deadline) {
+            sleepMs(5);
+        }
+        playMs = nowMs() - playMs;
+        CHECK(r, stat(p, kStatLoops) >= kLoops, "%s: %lld loops, stuck at %lld us", name,
+              (long long) stat(p, kStatLoops), (long long) p->d->positionUs.load());
+        //回绕时没有停下来重新开始，每圈正好一个片段的时长
+        CHECK(r, playMs <= durationMs(&s) * kLoops + 150, "%s: %d loops took %lld ms", name, kLoops,
+              (long long) playMs);
+        CHECK(r, p->d->positionUs.load() <= lastPtsUs(&s), "%s: position %lld us past the end", name,
+              (long long) p->d->positionUs.load());
+
+        int64_t seekMs = nowMs();
+        requestSeek(p->d, 0, kSeekNearestSync);
+        while (p->d->seeklatencyNs.load() < 0 && nowMs() - seekMs < kEndSlackMs) {
+            usleep(100);
+        }
+        CHECK(r, p->d->seeklatencyNs.load() >= 0, "%s: rewind never finished", name);
+        r->seekMs = std::max(r->seekMs, p->d->seeklatencyNs.load() / 1000000);
+        sleepMs(100);
+        finish(r, p);
+
+        int64_t intervalUs = 1000000 / s.fps;
+        int64_t rendered = r->stats[kStatFramesRendered];
+        CHECK(r, r->stats[kStatLoopGapMaxUs] > 0 && r->stats[kStatLoopGapMaxUs] <= intervalUs * 2,
+              "%s: loop gap %lld us, frame interval %lld us", name, (long long) r->stats[kStatLoopGapMaxUs],
+              (long long) intervalUs);
+        CHECK(r, r->stats[kStatFramesDropped] == 0, "%s: dropped %lld", name,
+              (long long) r->stats[kStatFramesDropped]);
+        CHECK(r, r->stats[kStatLoopCacheBytes] > 0 && r->stats[kStatLoopCacheBytes] <= kLoopCacheBytes,
+              "%s: loop cache %lld bytes", name, (long long) r->stats[kStatLoopCacheBytes]);
+        CHECK(r, r->stats[kStatLoopCacheSeeks] >= 1, "%s: rewind did not use the loop cache", name);
+        CHECK(r, fakeWindowFrames(window) == rendered, "%s: window got %lld of %lld frames", name,
+              (long long) fakeWindowFrames(window), (long long) rendered);
+        if (audio){
+            int64_t offsync = r->stats[kStatDriftHist] + r->stats[kStatDriftHist + 6];
+            //音频样本的时长凑不齐视频的时长，最后一个样本多出来的部分每圈回绕时丢掉
+            int64_t sampleUs = 1024 * 1000000LL / s.samplerate;
+            CHECK(r, r->stats[kStatAudioLoopCacheBytes] > 0, "no audio loop cache");
+            CHECK(r, r->stats[kStatAudioLoopAlignUs] < 0 && r->stats[kStatAudioLoopAlignUs] > -sampleUs,
+                  "audio realigned by %lld us at the loop point", (long long) r->stats[kStatAudioLoopAlignUs]);
+            CHECK(r, r->stats[kStatAudioUnderruns] == 0, "%lld audio underruns",
+                  (long long) r->stats[kStatAudioUnderruns]);
+            CHECK(r, offsync * 10 <= rendered, "%lld of %lld frames off by more than 16 ms",
+                  (long long) offsync, (long long) rendered);
+        }
+        CHECK(r, fakeWindowConflicts(window) == 0, "window connected twice");
+        ANativeWindow_release(window);
+    }
+    r->wallMs = nowMs() - startMs;
+}
+
+//在looper线程上打开的数据源：先卡delayMs模拟网络请求，source为NULL时打开失败
+typedef struct {
+    simsource *source;
+    int64_t delayMs;
+    pthread_t thread;
+} simopener;
+
+static datasource* openSimSource(void *userdata){
+    simopener *o = (simopener*) userdata;
+    o->thread = pthread_self();
+    sleepMs(o->delayMs);
+    return o->source;
+}
+
+//打开数据源不阻塞创建：createPlayer立即返回，数据源在looper线程上打开；打不开时通过onPrepared通知，
+//之后的控制请求都忽略，关闭时没有数据源可以释放
+static void runOpen(simresult *r, uint32_t seed){
+    const int64_t kOpenDelayMs = 150;
+    fakescenario s = baseScenario(seed);
+    s.frames = 31;
+    ANativeWindow *window = newFakeWindow();
+    ANativeWindow_acquire(window);
+    setFakeScenario(&s);
+    simplayer *p = new simplayer();
+    sem_init(&p->preparedsem, 0, 0);
+    p->prepared = false;
+    simopener opener = {newSource(&s, 0, 0), kOpenDelayMs, pthread_self()};
+    int64_t startMs = nowMs();
+    p->d = createPlayer(openSimSource, &opener, window, onPrepared, p);
+    int64_t createMs = nowMs() - startMs;
+    //打开完成之前的请求排在打开之后
+    resume(p);
+    if (!waitPrepared(p)){
+        fail(r, "open failed");
+    }
+    CHECK(r, createMs < kOpenDelayMs / 3, "createPlayer blocked for %lld ms", (long long) createMs);
+    CHECK(r, !pthread_equal(opener.thread, pthread_self()), "source opened on the calling thread");
+    if (!waitForEnd(p, &s, durationMs(&s) + kEndSlackMs)){
+        fail(r, "stuck at %lld us", (long long) p->d->positionUs.load());
+    }
+    r->wallMs = nowMs() - startMs;
+    finish(r, p);
+    CHECK(r, r->stats[kStatFramesRendered] == s.frames, "rendered %lld of %d",
+          (long long) r->stats[kStatFramesRendered], s.frames);
+    ANativeWindow_release(window);
+
+    simplayer *failed = new simplayer();
+    sem_init(&failed->preparedsem, 0, 0);
+    failed->prepared = true;
+    simopener broken = {NULL, 0, pthread_self()};
+    failed->d = createPlayer(openSimSource, &broken, NULL, onPrepared, failed);
+    resume(failed);
+    requestSeek(failed->d, 500000, kSeekAccurate);
+    CHECK(r, waitSem(&failed->preparedsem, kPrepareTimeoutMs) && !failed->prepared,
+          "failed open was not reported");
+    closeSim(failed);
+}
+
+static const simcase kCases[] = {
+        {"steady", runSteady},
+        {"slowdecode", runSlowDecode},
+        {"iostall", runIoStall},
+        {"bursty", runBursty},
+        {"seek", runSeek},
+        {"pause", runPause},
+        {"surface", runSurface},
+        {"shared", runShared},
+        {"playlist", runPlaylist},
+        {"trick", runTrick},
+        {"avsync", runAvSync},
+        {"control", runControl},
+        {"loop", runLoop},
+        {"open", runOpen},
+};
+
+#define kCaseCount ((int) (sizeof(kCases) / sizeof(kCases[0])))
+
+static void report(const char *name, uint32_t seed, const simresult *r){
+    printf("%-10s seed %-3u %s wall %5lld ms  rendered %3lld dropped %3lld late %3lld  "
+           "starved %2lld input wait %5lld ms  seek %lld ms",
+           name, seed, r->pass ? "PASS" : "FAIL", (long long) r->wallMs,
+           (long long) r->stats[kStatFramesRendered], (long long) r->stats[kStatFramesDropped],
+           (long long) r->stats[kStatFramesLate], (long long) r->stats[kStatDemuxStarvations],
+           (long long) r->stats[kStatInputWaitUs] / 1000, (long long) r->seekMs);
+    if (r->pauseUs >= 0){
+        printf("  pause %lld us", (long long) r->pauseUs);
+    }
+    if (r->stats[kStatLoops] > 0){
+        printf("  loop gap %lld us cache %lld KB", (long long) r->stats[kStatLoopGapMaxUs],
+               (long long) r->stats[kStatLoopCacheBytes] / 1024);
+    }
+    printf("%s%s\n", r->pass ? "" : "  : ", r->pass ? "" : r->reason);
+    fflush(stdout);
+}
+
+int main(int argc, char **argv){
+    const char *only = "all";
+    int iterations = 1;
+    bool sync = false;
+    int positional = 0;
+    for (int i = 1; i < argc; ++i) {
+        if (!strcmp(argv[i], "--sync")){
+            sync = true;
+        } else if (!strcmp(argv[i], "-v")){
+            setFakeLogLevel(ANDROID_LOG_VERBOSE);
+        } else if (positional++ == 0){
+            only = argv[i];
+        } else{
+            iterations = std::max(atoi(argv[i]), 1);
+        }
+    }
+    //要在第一个播放器打开之前设置，播放器只在第一次configure时读取
+    if (sync){
+        setFakeProperty("debug.nativecodec.sync", "1");
+    }
+
+    int failures = 0;
+    std::vector<std::vector<int64_t> > walls(kCaseCount);
+    std::vector<int> passes(kCaseCount, 0);
+    bool matched = false;
+    for (int iteration = 0; iteration < iterations; ++iteration) {
+        uint32_t seed = iteration + 1;
+        for (int c = 0; c < kCaseCount; ++c) {
+            if (strcmp(only, "all") != 0 && strcmp(only, kCases[c].name) != 0){
+                continue;
+            }
+            matched = true;
+            simresult r;
+            memset(&r, 0, sizeof(r));
+            r.pass = true;
+            r.seekMs = -1;
+            r.pauseUs = -1;
+            alarm(kCaseTimeoutSec);
+            kCases[c].run(&r, seed);
+            alarm(0);
+            if (fakeCodecCount() > 2){
+                //空闲解码器池最多留两个，其余的应该都已经删除
+                fail(&r, "%d codecs leaked", fakeCodecCount());
+            }
+            report(kCases[c].name, seed, &r);
+            walls[c].push_back(r.wallMs);
+            passes[c] += r.pass ? 1 : 0;
+            failures += r.pass ? 0 : 1;
+        }
+    }
+    if (!matched){
+        fprintf(stderr, "unknown scenario %s\n", only);
+        return 2;
+    }
+    if (iterations > 1){
+        printf("\n%s mode, %d iterations\n", sync ? "sync" : "async", iterations);
+        for (int c = 0; c < kCaseCount; ++c) {
+            std::vector<int64_t> &w = walls[c];
+            if (w.empty()){
+                continue;
+            }
+            std::sort(w.begin(), w.end());
+            printf("%-10s %d/%zu passed  wall p50 %lld ms max %lld ms\n", kCases[c].name, passes[c], w.size(),
+                   (long long) w[w.size() / 2], (long long) w.back());
+        }
+    }
+    return failures > 0 ? 1 : 0;
+}
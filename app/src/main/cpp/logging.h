@@ -0,0 +1,30 @@
+//
+// 分级日志：每个源文件先定义TAG再包含这个头文件。低于NATIVECODEC_LOG_LEVEL的调用在编译时去掉，
+// 参数不求值，但仍然检查格式。级别的数值和android_LogPriority一致：2 VERBOSE、3 DEBUG、4 INFO、5 WARN、6 ERROR，
+// 没有指定时debug构建为DEBUG，release构建(定义了NDEBUG)为INFO。逐帧、逐条消息的日志用LOGV
+//
+
+#pragma once
+
+#include <android/log.h>
+
+#ifndef NATIVECODEC_LOG_LEVEL
+#ifdef NDEBUG
+#define NATIVECODEC_LOG_LEVEL 4
+#else
+#define NATIVECODEC_LOG_LEVEL 3
+#endif
+#endif
+
+#define NATIVECODEC_LOG(priority, ...) \
+    do { \
+        if ((priority) >= NATIVECODEC_LOG_LEVEL) { \
+            __android_log_print(priority, TAG, __VA_ARGS__); \
+        } \
+    } while (0)
+
+#define LOGV(...) NATIVECODEC_LOG(ANDROID_LOG_VERBOSE, __VA_ARGS__)
+#define LOGD(...) NATIVECODEC_LOG(ANDROID_LOG_DEBUG, __VA_ARGS__)
+#define LOGI(...) NATIVECODEC_LOG(ANDROID_LOG_INFO, __VA_ARGS__)
+#define LOGW(...) NATIVECODEC_LOG(ANDROID_LOG_WARN, __VA_ARGS__)
+#define LOGE(...) NATIVECODEC_LOG(ANDROID_LOG_ERROR, __VA_ARGS__)
@@ -5,129 +5,450 @@
 #include "looper.h"
 
 #include <assert.h>
-#include <jni.h>
 #include <pthread.h>
 #include <stdio.h>
 #include <string.h>
+#include <time.h>
 #include <unistd.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <fcntl.h>
 #include <errno.h>
 #include <limits.h>
-#include <semaphore.h>
+#include <algorithm>
+#include <deque>
 
-#include <android/log.h>
 #define TAG "NativeCodec-looper"
-#define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, TAG, __VA_ARGS__)
+#include "logging.h"
+#include "tracing.h"
+
+#include <sched.h>
 
 struct loopermessage;
 typedef struct loopermessage loopermessage;
 
+//消息环满时looper线程以外的生产者最多等这么久，之后放进溢出队列
+#define kMaxFullWaitNs 5000000LL
+
+//seq为Vyukov有界队列的槽位序号：等于入队序号时可写，等于入队序号+1时可读
 struct loopermessage{
+    std::atomic<uint64_t> seq;
     int what;
     void *obj;
-    loopermessage *next;
+    int flags;
     bool quit;
 };
 
+//一个优先级的消息队列，多个生产者、只有looper线程消费。
+//环满时新消息放进overflow，overflowing置位期间的消息都进overflow，环里的处理完再按顺序处理它们
+struct messagering{
+    loopermessage *slots;
+    uint64_t mask;
+    std::atomic<uint64_t> enqueuepos;
+    std::atomic<uint64_t> flushpos;
+    uint64_t dequeuepos;
+    std::atomic<bool> overflowing;
+    std::deque<queuedmessage> overflow;
+};
+
+static messagering* newring(int capacity){
+    uint64_t size = 1;
+    while (size < (uint64_t) capacity){
+        size <<= 1;
+    }
+    messagering *ring = new messagering();
+    ring->slots = new loopermessage[size];
+    for (uint64_t i = 0; i < size; ++i) {
+        ring->slots[i].seq.store(i, std::memory_order_relaxed);
+    }
+    ring->mask = size - 1;
+    ring->enqueuepos.store(0, std::memory_order_relaxed);
+    ring->flushpos.store(0, std::memory_order_relaxed);
+    ring->dequeuepos = 0;
+    ring->overflowing.store(false, std::memory_order_relaxed);
+    return ring;
+}
+
+static void deletering(messagering *ring){
+    delete[] ring->slots;
+    delete ring;
+}
+
+//队首的消息已经写完，生产者可能已占位但尚未写完
+static bool headready(messagering *ring){
+    loopermessage *slot = &ring->slots[ring->dequeuepos & ring->mask];
+    return slot->seq.load(std::memory_order_acquire) == ring->dequeuepos + 1;
+}
+
+static int64_t nowNs(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+//小顶堆的比较：a比b晚到期时返回true
+static bool laterThan(const loopertimer &a, const loopertimer &b){
+    return a.deadlineNs > b.deadlineNs || (a.deadlineNs == b.deadlineNs && a.order > b.order);
+}
+
 void* looper::trampoline(void *p) {
     ((looper*)p)->loop();
     return NULL;
 }
 
-looper::looper(){
-    sem_init(&headdataavailable, 0, 0);
-    sem_init(&headwriteprotect, 0, 1);
+looper::looper(int capacity){
+    normal = newring(capacity);
+    //高优先级的只有控制消息，容量小一些
+    urgent = newring(std::max(capacity / 4, 16));
+
+    pthread_mutex_init(&lock, NULL);
+    pthread_condattr_t condattr;
+    pthread_condattr_init(&condattr);
+    //定时等待不受修改系统时间的影响
+    pthread_condattr_setclock(&condattr, CLOCK_MONOTONIC);
+    pthread_cond_init(&cond, &condattr);
+    pthread_condattr_destroy(&condattr);
+    timers.reserve(16);
+    coalesced.reserve(16);
+    timerorder = 0;
+    nexttimerNs.store(INT64_MAX, std::memory_order_relaxed);
+    sleeping.store(false, std::memory_order_relaxed);
+    overflows.store(0, std::memory_order_relaxed);
+
     pthread_attr_t attr;
     pthread_attr_init(&attr);
 
-    pthread_create(&worker, &attr, trampoline, this);
     running = true;
+    pthread_create(&worker, &attr, trampoline, this);
 }
 
 looper::~looper(){
     if (running){
-        LOGV("Looper deleted while still running.Some messages will not be processed");
+        LOGW("Looper deleted while still running.Some messages will not be processed");
         quit();
     }
+    deletering(normal);
+    deletering(urgent);
+}
+
+void looper::post(int what, void *data, int flags) {
+    if (flags & kPostCoalesce){
+        pthread_mutex_lock(&lock);
+        bool add = addcoalesced(what, data, 0);
+        pthread_mutex_unlock(&lock);
+        if (!add){
+            LOGV("coalesced msg %d", what);
+            return;
+        }
+    }
+    addmsg((flags & kPostUrgent) ? urgent : normal, what, data, flags, false);
+}
+
+void looper::postAt(int what, void *data, int64_t deadlineNs, int flags) {
+    pthread_mutex_lock(&lock);
+    if ((flags & kPostCoalesce) && !addcoalesced(what, data, deadlineNs)){
+        pthread_mutex_unlock(&lock);
+        LOGV("coalesced timed msg %d", what);
+        return;
+    }
+    loopertimer timer = {deadlineNs, timerorder++, what, data, flags};
+    timers.push_back(timer);
+    std::push_heap(timers.begin(), timers.end(), laterThan);
+    if (timers.front().order == timer.order){
+        //比looper线程正在等的更早，叫醒它重新计算等待时间
+        nexttimerNs.store(deadlineNs, std::memory_order_release);
+        pthread_cond_signal(&cond);
+    }
+    pthread_mutex_unlock(&lock);
+}
+
+void looper::postDelayed(int what, void *data, int64_t delayNs, int flags) {
+    postAt(what, data, nowNs() + delayNs, flags);
+}
+
+//持有lock时调用，返回false表示已经有一条同样的消息会更早处理，新消息丢弃
+bool looper::addcoalesced(int what, void *data, int64_t deadlineNs) {
+    for (size_t i = 0; i < coalesced.size(); ++i) {
+        coalescedmessage &pending = coalesced[i];
+        if (pending.what != what || pending.data != data){
+            continue;
+        }
+        if (pending.deadlineNs == 0 || pending.deadlineNs <= deadlineNs){
+            return false;
+        }
+        //原来的定时消息到期更晚，删掉，由新消息代替
+        for (size_t j = 0; j < timers.size(); ++j) {
+            if (timers[j].what == what && timers[j].data == data && (timers[j].flags & kPostCoalesce)){
+                timers.erase(timers.begin() + j);
+                std::make_heap(timers.begin(), timers.end(), laterThan);
+                break;
+            }
+        }
+        nexttimerNs.store(timers.empty() ? INT64_MAX : timers.front().deadlineNs, std::memory_order_release);
+        pending.deadlineNs = deadlineNs;
+        return true;
+    }
+    coalescedmessage pending = {what, data, deadlineNs};
+    coalesced.push_back(pending);
+    return true;
+}
+
+void looper::cancel(void *data) {
+    pthread_mutex_lock(&lock);
+    size_t kept = 0;
+    for (size_t i = 0; i < timers.size(); ++i) {
+        if (timers[i].data != data){
+            timers[kept++] = timers[i];
+        }
+    }
+    timers.resize(kept);
+    std::make_heap(timers.begin(), timers.end(), laterThan);
+    nexttimerNs.store(timers.empty() ? INT64_MAX : timers.front().deadlineNs, std::memory_order_release);
+    //已经在队列里的消息出队时才删除记录
+    kept = 0;
+    for (size_t i = 0; i < coalesced.size(); ++i) {
+        if (coalesced[i].data != data || coalesced[i].deadlineNs == 0){
+            coalesced[kept++] = coalesced[i];
+        }
+    }
+    coalesced.resize(kept);
+    pthread_mutex_unlock(&lock);
+}
+
+void looper::addmsg(messagering *ring, int what, void *data, int flags, bool quit) {
+    queuedmessage msg = {what, data, flags, quit};
+    //looper线程给自己投递时不能等自己腾出槽位
+    bool self = running && pthread_equal(pthread_self(), worker);
+    int64_t fullsinceNs = 0;
+    //多个生产者通过CAS抢占入队序号，不加锁、不分配内存
+    uint64_t pos = ring->enqueuepos.load(std::memory_order_relaxed);
+    loopermessage *slot;
+    while (true){
+        if (ring->overflowing.load(std::memory_order_acquire)){
+            //溢出队列还没处理完，新消息排在它后面
+            addoverflow(ring, msg);
+            return;
+        }
+        slot = &ring->slots[pos & ring->mask];
+        uint64_t seq = slot->seq.load(std::memory_order_acquire);
+        int64_t dif = (int64_t) seq - (int64_t) pos;
+        if (dif == 0){
+            if (ring->enqueuepos.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed)){
+                break;
+            }
+        } else if (dif < 0){
+            //队列已满：其他线程等消费者腾出槽位，给生产者反压；等太久(looper线程可能在等这个生产者)
+            //或者是looper线程自己投递时放进溢出队列
+            int64_t now = nowNs();
+            if (fullsinceNs == 0){
+                fullsinceNs = now;
+            }
+            if (self || now - fullsinceNs >= kMaxFullWaitNs){
+                addoverflow(ring, msg);
+                return;
+            }
+            sched_yield();
+            pos = ring->enqueuepos.load(std::memory_order_relaxed);
+        } else{
+            pos = ring->enqueuepos.load(std::memory_order_relaxed);
+        }
+    }
+
+    if (flags & kPostFlush){
+        //序号小于flushpos的消息在出队时直接丢弃，相当于清空队列
+        uint64_t cur = ring->flushpos.load(std::memory_order_relaxed);
+        while (cur < pos && !ring->flushpos.compare_exchange_weak(cur, pos, std::memory_order_release)){
+        }
+    }
+    slot->what = what;
+    slot->obj = data;
+    slot->flags = flags;
+    slot->quit = quit;
+    slot->seq.store(pos + 1, std::memory_order_release);
+    LOGV("post msg %d", what);
+    wake();
+}
+
+//环满或者溢出队列不为空时投递，持有lock，looper线程在等待时直接唤醒
+void looper::addoverflow(messagering *ring, const queuedmessage &msg) {
+    pthread_mutex_lock(&lock);
+    if (msg.flags & kPostFlush){
+        //之前的消息不管在环里还是在溢出队列里都丢弃
+        ring->overflow.clear();
+        uint64_t pos = ring->enqueuepos.load(std::memory_order_relaxed);
+        uint64_t cur = ring->flushpos.load(std::memory_order_relaxed);
+        while (cur < pos && !ring->flushpos.compare_exchange_weak(cur, pos, std::memory_order_release)){
+        }
+    }
+    ring->overflow.push_back(msg);
+    ring->overflowing.store(true, std::memory_order_release);
+    overflows.fetch_add(1, std::memory_order_relaxed);
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&lock);
+    LOGV("overflow msg %d", msg.what);
+}
+
+//环里的消息都处理完之后在looper线程上取溢出队列的队首，取空时让生产者回到环上
+bool looper::takeoverflow(messagering *ring, queuedmessage *msg) {
+    if (!ring->overflowing.load(std::memory_order_acquire)){
+        return false;
+    }
+    pthread_mutex_lock(&lock);
+    bool taken = !ring->overflow.empty();
+    if (taken){
+        *msg = ring->overflow.front();
+        ring->overflow.pop_front();
+    }
+    if (ring->overflow.empty()){
+        ring->overflowing.store(false, std::memory_order_release);
+    }
+    pthread_mutex_unlock(&lock);
+    return taken;
 }
 
-void looper::post(int what, void *data, bool flush) {
-    loopermessage *msg = new loopermessage();
-    msg->what = what;
-    msg->obj = data;
-    msg->next = NULL;
-    msg->quit = false;
-    addmsg(msg, flush);
+int64_t looper::overflowCount() const {
+    return overflows.load(std::memory_order_relaxed);
 }
 
-void looper::addmsg(loopermessage *msg, bool flush) {
-    sem_wait(&headwriteprotect);
-    loopermessage *h = head;
+void looper::wake() {
+    //和waitForWork配对：要么looper线程等待前看到刚入队的消息，要么这里看到它在等待
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+    if (sleeping.load(std::memory_order_relaxed)){
+        pthread_mutex_lock(&lock);
+        pthread_cond_signal(&cond);
+        pthread_mutex_unlock(&lock);
+    }
+}
 
-    if (flush){
-        while (h){
-            loopermessage *next = h->next;
-            delete h;
-            h = next;
+//取出一条已经到期的定时消息
+bool looper::takeTimer(int64_t now, loopertimer *timer) {
+    pthread_mutex_lock(&lock);
+    bool due = !timers.empty() && timers.front().deadlineNs <= now;
+    if (due){
+        std::pop_heap(timers.begin(), timers.end(), laterThan);
+        *timer = timers.back();
+        timers.pop_back();
+        nexttimerNs.store(timers.empty() ? INT64_MAX : timers.front().deadlineNs, std::memory_order_release);
+        if (timer->flags & kPostCoalesce){
+            for (size_t i = 0; i < coalesced.size(); ++i) {
+                if (coalesced[i].what == timer->what && coalesced[i].data == timer->data){
+                    coalesced.erase(coalesced.begin() + i);
+                    break;
+                }
+            }
         }
-        h = NULL;
     }
-    if (h){
-        while (h->next){
-            h = h->next;
+    pthread_mutex_unlock(&lock);
+    return due;
+}
+
+//两个队列都为空：等新消息或者最早的定时消息到期
+void looper::waitForWork() {
+    sleeping.store(true, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+    pthread_mutex_lock(&lock);
+    if (!headready(urgent) && !headready(normal) && urgent->overflow.empty() && normal->overflow.empty()){
+        if (timers.empty()){
+            pthread_cond_wait(&cond, &lock);
+        } else{
+            int64_t deadlineNs = timers.front().deadlineNs;
+            if (deadlineNs > nowNs()){
+                timespec deadline;
+                deadline.tv_sec = deadlineNs / 1000000000LL;
+                deadline.tv_nsec = deadlineNs % 1000000000LL;
+                pthread_cond_timedwait(&cond, &lock, &deadline);
+            }
         }
-        h->next = msg;
-    } else{
-        head = msg;
     }
-    LOGV("post msg %d", msg->what);
-    sem_post(&headwriteprotect);
-    sem_post(&headdataavailable);
+    pthread_mutex_unlock(&lock);
+    sleeping.store(false, std::memory_order_relaxed);
 }
 
 void looper::loop() {
     while (true){
-        //等待可用消息
-        sem_wait(&headdataavailable);
-
-        //获取下一条可用消息
-        sem_wait(&headwriteprotect);
-        loopermessage *msg = head;
-        if (msg == NULL){
-            LOGV("no msg");
-            sem_post(&headwriteprotect);
+        //高优先级消息，然后是到期的定时消息，最后是普通消息；环里的先于溢出队列里的
+        queuedmessage msg;
+        messagering *ring = headready(urgent) ? urgent : NULL;
+        if (!ring && takeoverflow(urgent, &msg)){
+            if (!dispatch(msg, false)){
+                return;
+            }
+            continue;
+        }
+        if (!ring){
+            int64_t dueNs = nexttimerNs.load(std::memory_order_acquire);
+            loopertimer timer;
+            if (dueNs != INT64_MAX && dueNs <= nowNs() && takeTimer(nowNs(), &timer)){
+                LOGV("processing timed msg %d", timer.what);
+                TRACE_SCOPE("looper dispatch");
+                handle(timer.what, timer.data);
+                continue;
+            }
+            ring = headready(normal) ? normal : NULL;
+        }
+        if (!ring && takeoverflow(normal, &msg)){
+            if (!dispatch(msg, false)){
+                return;
+            }
             continue;
         }
-        head = msg->next;
-        sem_post(&headwriteprotect);
+        if (!ring){
+            waitForWork();
+            continue;
+        }
+
+        loopermessage *slot = &ring->slots[ring->dequeuepos & ring->mask];
+        uint64_t pos = ring->dequeuepos;
+        msg.what = slot->what;
+        msg.obj = slot->obj;
+        msg.flags = slot->flags;
+        msg.quit = slot->quit;
+        //归还槽位供下一轮复用
+        slot->seq.store(pos + ring->mask + 1, std::memory_order_release);
+        ring->dequeuepos = pos + 1;
 
-        if (msg->quit){
-            LOGV("quitting");
-            delete msg;
+        if (!dispatch(msg, pos < ring->flushpos.load(std::memory_order_acquire))){
             return;
         }
-        LOGV("processing msg %d", msg->what);
-        handle(msg->what, msg->obj);
-        delete msg;
     }
 }
 
+//处理一条出队的消息，flushed表示已经被后来的kPostFlush消息清掉。返回false表示退出
+bool looper::dispatch(const queuedmessage &msg, bool flushed) {
+    if (msg.quit){
+        LOGD("quitting");
+        return false;
+    }
+    if (msg.flags & kPostCoalesce){
+        //出队之后再投递的同样消息要重新入队
+        pthread_mutex_lock(&lock);
+        for (size_t i = 0; i < coalesced.size(); ++i) {
+            if (coalesced[i].what == msg.what && coalesced[i].data == msg.obj && coalesced[i].deadlineNs == 0){
+                coalesced.erase(coalesced.begin() + i);
+                break;
+            }
+        }
+        pthread_mutex_unlock(&lock);
+    }
+    if (flushed){
+        LOGV("no msg");
+        return true;
+    }
+    LOGV("processing msg %d", msg.what);
+    TRACE_SCOPE("looper dispatch");
+    handle(msg.what, msg.obj);
+    return true;
+}
+
 void looper::quit() {
-    LOGV("quit");
-    loopermessage *msg = new loopermessage();
-    msg->what = 0;
-    msg->obj = NULL;
-    msg->next = NULL;
-    msg->quit = true;
-    addmsg(msg, false);
+    LOGD("quit");
+    addmsg(normal, 0, NULL, 0, true);
     void *retval;
     pthread_join(worker, &retval);
-    sem_destroy(&headdataavailable);
-    sem_destroy(&headwriteprotect);
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&lock);
     running = false;
 }
 void looper::handle(int what, void* obj) {
     LOGV("dropping msg %d %p", what, obj);
-}
\ No newline at end of file
+}
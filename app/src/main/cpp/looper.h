@@ -2,30 +2,92 @@
 // Created by malres on 2020/7/16.
 //
 
+#pragma once
+
 #include <pthread.h>
-#include <semaphore.h>
+#include <stdint.h>
+#include <atomic>
+#include <vector>
 
 struct loopermessage;
+struct messagering;
+
+//出队后的消息，也是溢出队列里的消息
+struct queuedmessage {
+    int what;
+    void *obj;
+    int flags;
+    bool quit;
+};
+
+//post的flags
+enum {
+    kPostFlush = 1,     //丢弃之前投递到同一优先级、还没处理的消息，不影响定时消息
+    kPostUrgent = 2,    //高优先级：排在普通消息和到期的定时消息前面，高优先级消息之间按投递顺序
+    kPostCoalesce = 4,  //同样what和data的消息还在等待时不再投递；新消息更早到期时把原来的定时消息提前
+};
+
+//定时消息，按到期时间排成小顶堆，同时到期的按投递顺序
+struct loopertimer {
+    int64_t deadlineNs;
+    uint64_t order;
+    int what;
+    void *data;
+    int flags;
+};
+
+//带kPostCoalesce、还在等待的消息，deadlineNs为0表示已经在队列里
+struct coalescedmessage {
+    int what;
+    void *data;
+    int64_t deadlineNs;
+};
 
 class looper {
-    public:looper();
+    public:looper(int capacity = 256);
         looper& operator = (const looper& ) = delete;
         looper(looper&) = delete;
         virtual ~looper();
 
-        void post(int what, void *data, bool flush = false);
+        //消息环满时其他线程最多等5ms，looper线程给自己投递时不等，都放进溢出队列，不会卡住
+        void post(int what, void *data, int flags = 0);
+        //deadlineNs为CLOCK_MONOTONIC时间，到期后排在高优先级消息之后、普通消息之前处理
+        void postAt(int what, void *data, int64_t deadlineNs, int flags = 0);
+        void postDelayed(int what, void *data, int64_t delayNs, int flags = 0);
+        //取消data的定时消息，已经进入队列的消息不受影响
+        void cancel(void *data);
         void quit();
+        //消息环满、消息进了溢出队列的次数，任意线程可读
+        int64_t overflowCount() const;
 
         virtual  void handle(int what, void *data);
 
     private:
-        void addmsg(loopermessage *msg, bool flush);
+        void addmsg(messagering *ring, int what, void *data, int flags, bool quit);
+        void addoverflow(messagering *ring, const queuedmessage &msg);
+        bool takeoverflow(messagering *ring, queuedmessage *msg);
+        bool dispatch(const queuedmessage &msg, bool flushed);
+        bool addcoalesced(int what, void *data, int64_t deadlineNs);
+        void wake();
+        bool takeTimer(int64_t now, loopertimer *timer);
+        void waitForWork();
         static void* trampoline(void* p);
         void loop();
-        loopermessage *head;
+        //预分配的环形消息池：普通消息和高优先级消息各一个，不加锁
+        messagering *normal;
+        messagering *urgent;
+        //定时消息、合并的消息和溢出队列由lock保护；cond使用CLOCK_MONOTONIC，队列为空时looper线程在上面等到最早的定时消息
+        pthread_mutex_t lock;
+        pthread_cond_t cond;
+        std::vector<loopertimer> timers;
+        std::vector<coalescedmessage> coalesced;
+        uint64_t timerorder;
+        //最早的定时消息的到期时间，没有时为INT64_MAX，looper线程不加锁判断有没有到期
+        std::atomic<int64_t> nexttimerNs;
+        //looper线程准备等待，生产者入队后只有这时才需要加锁唤醒
+        std::atomic<bool> sleeping;
+        std::atomic<int64_t> overflows;
         pthread_t worker;
-        sem_t headwriteprotect;
-        sem_t headdataavailable;
         bool running;
 };
 
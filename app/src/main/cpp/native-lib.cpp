@@ -1,7 +1,7 @@
-
 #include <assert.h>
 #include <jni.h>
 #include <stdio.h>
+#include <stdlib.h>
 #include <string.h>
 #include <unistd.h>
 #include <sys/types.h>
@@ -9,347 +9,718 @@
 #include <fcntl.h>
 #include <errno.h>
 #include <limits.h>
+#include <pthread.h>
 
-#include "looper.h"
-#include "media/NdkMediaCodec.h"
-#include "media/NdkMediaExtractor.h"
+#include "codecpool.h"
+#include "datasource.h"
+#include "player.h"
+#include "thumbnailer.h"
+#include "transcoder.h"
 
-#include <android/log.h>
 #define TAG "NativeCodec"
-#define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, TAG, __VA_ARGS__)
-#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
+#include "logging.h"
 
+#include <android/bitmap.h>
 #include <android/native_window_jni.h>
 #include <android/asset_manager.h>
 #include <android/asset_manager_jni.h>
 
-//定义一个结构体，并取名为workerdata。相当于自定义一个数据类型
+//Java层持有的播放器句柄就是workerdata指针
+static inline workerdata* toPlayer(jlong player){
+    return (workerdata*)(intptr_t) player;
+}
+
+//Java层持有的数据源句柄就是datasource指针
+static inline datasource* toSource(jlong source){
+    return (datasource*)(intptr_t) source;
+}
+
+//HTTP数据源按256KB分块，最多缓存32块
+#define kHttpBlockBytes (256 * 1024)
+#define kHttpCacheBlocks 32
+
+//AMEDIAFORMAT_KEY_SLICE_HEIGHT从API 28开始提供
+#define kKeySliceHeight "slice-height"
+
+static JavaVM *javavm = NULL;
+static pthread_key_t envkey;
+static pthread_once_t envkeyonce = PTHREAD_ONCE_INIT;
+
+static void detachThread(void *env){
+    javavm->DetachCurrentThread();
+}
+
+static void createEnvKey(){
+    pthread_key_create(&envkey, detachThread);
+}
+
+//looper线程不是Java线程，第一次回调时attach，线程退出时自动detach
+static JNIEnv* attachedEnv(){
+    JNIEnv *env = NULL;
+    if (javavm->GetEnv((void**) &env, JNI_VERSION_1_6) == JNI_OK){
+        return env;
+    }
+    pthread_once(&envkeyonce, createEnvKey);
+    if (javavm->AttachCurrentThread(&env, NULL) != JNI_OK){
+        LOGE("failed to attach looper thread");
+        return NULL;
+    }
+    pthread_setspecific(envkey, env);
+    return env;
+}
+
+static void clearException(JNIEnv *env){
+    if (env->ExceptionCheck()){
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
+
+//MainActivity.PlayerListener的全局引用，打开完成回调之后删除
+typedef struct {
+    jobject listener;
+    jmethodID onprepared;
+} preparedlistener;
+
+//运行在looper线程上
+static void onPlayerPrepared(workerdata *d, bool prepared, void *userdata){
+    preparedlistener *l = (preparedlistener*) userdata;
+    JNIEnv *env = attachedEnv();
+    if (!env){
+        return;
+    }
+    env->CallVoidMethod(l->listener, l->onprepared, (jlong)(intptr_t) d, prepared ? JNI_TRUE : JNI_FALSE);
+    clearException(env);
+    env->DeleteGlobalRef(l->listener);
+    delete l;
+}
+
+static preparedlistener* newPreparedListener(JNIEnv *env, jobject listener){
+    if (!listener){
+        return NULL;
+    }
+    //looper线程上找不到应用的类，方法在这里先查好
+    preparedlistener *l = new preparedlistener();
+    l->listener = env->NewGlobalRef(listener);
+    l->onprepared = env->GetMethodID(env->GetObjectClass(listener), "onPrepared", "(JZ)V");
+    return l;
+}
+
+//输出缓冲区对应的DirectByteBuffer，解码器的输出缓冲区地址是固定的，每个缓冲区只创建一次
+typedef struct {
+    jobject buffer;
+    uint8_t *data;
+    size_t size;
+} cachedbuffer;
+
+//MainActivity.FrameListener的全局引用，播放器关闭后删除
 typedef struct {
-    int fd;
-    ANativeWindow* window;
-    AMediaExtractor* ex;
-    AMediaCodec *codec;
-    int64_t renderstart;
-    bool sawInputEOS;
-    bool sawOutputEOS;
-    bool isPlaying;
-    bool renderonce;
-} workerdata;
-
-workerdata data = {-1,
-                   NULL,
-                   NULL,
-                   NULL,
-                   0,
-                   false,
-                   false,
-                   false,
-                   false};
-
-//enum：枚举。所谓枚举是指将变量的值一一列举出来，变量只限于列举出来的值的范围内取值。
-enum {
-    kMsgCodecBuffer,
-    kMsgPause,
-    kMsgResume,
-    kMsgPauseAck,
-    kMsgDecodeDone,
-    kMsgSeek,
-};
-
-//mylooper继承自looper
-//virtual：定义虚函数的关键字
-class mylooper: public looper{
-    virtual void handle(int what, void* obj);
-};
-//static在此的作用是静态变量，*是表明mlooper是指针类型
-static mylooper *mlooper = NULL;
-
-//timespec：纳秒，来源于time.h
-//CLOCK_MONOTONIC：从系统启动这一刻起开始计时,不受系统时间被用户改变的影响
-__int64_t systemnanotime(){
-    timespec now;
-    clock_gettime(CLOCK_MONOTONIC, &now);
-    return now.tv_sec * 1000000000LL + now.tv_nsec;
+    jobject listener;
+    jmethodID onformatchanged;
+    jmethodID onframe;
+    cachedbuffer buffers[kMaxCodecBuffers];
+} framelistener;
+
+static void onFrameFormat(workerdata *d, AMediaFormat *format, void *userdata){
+    framelistener *l = (framelistener*) userdata;
+    JNIEnv *env = attachedEnv();
+    if (!env){
+        return;
+    }
+    int32_t width = 0, height = 0, colorformat = 0;
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_WIDTH, &width);
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_HEIGHT, &height);
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_COLOR_FORMAT, &colorformat);
+    //没有给出时行宽和行数就是宽高
+    int32_t stride = width, sliceheight = height;
+    AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_STRIDE, &stride);
+    AMediaFormat_getInt32(format, kKeySliceHeight, &sliceheight);
+    LOGD("frame format %dx%d stride %d slice height %d color %#x", width, height, stride, sliceheight, colorformat);
+    env->CallVoidMethod(l->listener, l->onformatchanged, width, height, stride, sliceheight, colorformat);
+    clearException(env);
 }
 
-void doCodecWork(workerdata *d){
-
-    /**
-     * ssize_t：有符号整形，在32位机器上等同于int,z 64位机器上等同于long int.
-     * queueInputBuffer和dequeueInputBuffer是一对方法，
-     * 应用场景是用于对输入的数据流进行编码或者解码处理的时候，通过各种方法获得一个ByteBuffer的数组,
-     * 然后调用dequeueInputBuffer方法提取出要处理的部分。处理完毕之后通过dequeueInputBuffer把ByteBuffer
-     * 放回队列中，就能释放内存。
-     * dequeueInputBuffer表示等待的时间（毫秒）
-     * size_t：有符号整形，表示操作数据块的大小
-     * */
-    ssize_t bufidx = -1;
-    if(!d->sawInputEOS){
-        //获取缓冲区，设置超时为2000毫秒     dequeueInputBuffer：申请可用的InputBuffer
-        bufidx = AMediaCodec_dequeueInputBuffer(d->codec, 2000);
-        LOGV("input buffer %zd", bufidx);
-        if(bufidx >= 0){
-            size_t bufsize;
-            //取到缓冲区输入流
-            auto buf = AMediaCodec_getInputBuffer(d->codec, bufidx, &bufsize);
-            //开始读取样本,通过readSampleData把视频轨道的数据按偏移量读取到ByteBuffer中
-            auto sampleSize = AMediaExtractor_readSampleData(d->ex, buf ,bufsize);
-            if(sampleSize < 0){
-                sampleSize = 0;
-                d->sawInputEOS = true;
-                LOGV("EOS");
-            }
-            //以微秒为单位返回当前样本的呈现时间
-            auto presentationTimeUs = AMediaExtractor_getSampleTime(d->ex);
-
-            /**将缓冲区传递至解码器
-            //当MediaExtractor读不到数据时，则说明视频流已经到了结尾，此时使用MediaCodec.BUFFER_FLAG_END_OF_STREAM来告知解码器
-            //queueInputBuffer：往InputBuffer中填充解码前的数据
-            //queueInputBufferg格式（
-            // int index：数组的索引值
-            //int offset：写入buffer的起始位置
-            //int size：写入的输出的长度
-            //long presentationTimeUs：该数据显示的时间戳
-            //int flags：该数据的标记位，例如关键帧，结束帧等等)
-            */
-            AMediaCodec_queueInputBuffer(d->codec, bufidx, 0 ,sampleSize, presentationTimeUs,
-                    d->sawInputEOS ? AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM : 0);
-            //AMediaExtractor移动到下一取样处
-            AMediaExtractor_advance(d->ex);
-        }
-    }
-
-    if(!d->sawOutputEOS){
-        AMediaCodecBufferInfo info;
-        /**         缓冲区第一步
-         * dequeueOutputBuffer：读取已经解码后的数据
-         * dequeueOutputBuffer格式：
-         * @NonNull BufferInfo info：这个BufferInfo需要自己手动创建，调用后，会把该索引的数据的信息写在里面
-         * long timeoutUs：等待时间
-         */
-        auto status = AMediaCodec_dequeueOutputBuffer(d->codec, &info, 0);
-        if(status >= 0){
-            if(info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM){
-                LOGV("output EOS");
-                d->sawOutputEOS = true;
-            }
-            int64_t presentationNano = info.presentationTimeUs *1000;
-            if(d->renderstart < 0){                                      //返回的是时间的纳秒值
-                d->renderstart = systemnanotime() - presentationNano;    //systemnanotime提供相对精确的计时，但不能用来计算当前日期
-            }
-            int64_t delay = (d->renderstart + presentationNano) - systemnanotime();
-            if(delay > 0){
-                usleep(delay/1000);//延时操作，如果缓冲区里的可展示时间>当前视频播放的进度，就休眠一下
-            }
-            //渲染，如果info.size != 0等于true，就会渲染到surface上第二步
-            AMediaCodec_releaseOutputBuffer(d->codec, status, info.size != 0);
-            if(d->renderonce){
-                d->renderonce = false;
-                return;
-            }
-        } else if (status == AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED){
-            LOGV("output buffers changed");
-        } else if (status == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED){
-            auto format = AMediaCodec_getOutputFormat(d->codec);
-            LOGV("format changed to: %s", AMediaFormat_toString(format));
-            AMediaFormat_delete(format);
-        } else if (status == AMEDIACODEC_INFO_TRY_AGAIN_LATER){
-            //解码当前帧超时
-            LOGV("no output buffer right now");
-        } else{
-            LOGV("unexpected info code : %zd", status);
+//每帧只有一次CallVoidMethod，缓冲区地址不变时复用同一个ByteBuffer，不分配Java对象
+static void onFrameReady(workerdata *d, int64_t token, int32_t index, uint8_t *data, size_t size,
+        int64_t ptsUs, double fps, void *userdata){
+    framelistener *l = (framelistener*) userdata;
+    JNIEnv *env = attachedEnv();
+    if (!env || index < 0 || index >= kMaxCodecBuffers){
+        releaseFrame(d, token);
+        return;
+    }
+    cachedbuffer *b = &l->buffers[index];
+    if (b->data != data || b->size != size){
+        if (b->buffer){
+            env->DeleteGlobalRef(b->buffer);
         }
+        jobject buffer = env->NewDirectByteBuffer(data, size);
+        b->buffer = env->NewGlobalRef(buffer);
+        env->DeleteLocalRef(buffer);
+        b->data = data;
+        b->size = size;
     }
+    env->CallVoidMethod(l->listener, l->onframe, (jlong)(intptr_t) d, (jlong) token, b->buffer,
+                        (jlong) ptsUs, (jdouble) fps);
+    clearException(env);
+}
 
-    if(!d->sawInputEOS || !d->sawOutputEOS){
-        //如果输入或者输出没有结束，就回调自己
-        mlooper->post(kMsgCodecBuffer, d);
+static void deleteFrameListener(JNIEnv *env, framelistener *l){
+    for (int i = 0; i < kMaxCodecBuffers; ++i) {
+        if (l->buffers[i].buffer){
+            env->DeleteGlobalRef(l->buffers[i].buffer);
+        }
     }
+    env->DeleteGlobalRef(l->listener);
+    delete l;
 }
 
-//此处重写了消息的处理方法
-void mylooper::handle(int what, void *obj) {
-    switch (what){
-        case kMsgCodecBuffer:
-            doCodecWork((workerdata*)obj);
-            break;
-
-        case kMsgDecodeDone:{
-            workerdata *d = ((workerdata*)obj);
-            AMediaCodec_stop(d->codec);
-            AMediaCodec_delete(d->codec);
-            AMediaExtractor_delete(d->ex);
-            d->sawInputEOS = true;
-            d->sawOutputEOS = true;
-            LOGV("关机");
-        }break;
-
-        case kMsgSeek:{
-            workerdata *d = (workerdata*)obj;
-            AMediaExtractor_seekTo(d->ex, 0, AMEDIAEXTRACTOR_SEEK_NEXT_SYNC);
-            AMediaCodec_flush(d->codec);
-            d->renderstart = -1;
-            d->sawInputEOS = false;
-            d->sawOutputEOS = false;
-            if(!d->isPlaying){
-                d->renderonce = true;
-                post(kMsgCodecBuffer, d);
-            }
-            LOGV("seeked");
-        }break;
-
-        case kMsgPause:{
-            workerdata *d = (workerdata*)obj;
-            if (d->isPlaying){
-                d->isPlaying = false;
-                post(kMsgPauseAck, NULL, true);//清空队列
-            }
-        }break;
-
-        case kMsgResume:{
-            workerdata *d = (workerdata*)obj;
-            if (!d->isPlaying){
-                d->renderstart = -1;
-                d->isPlaying = true;
-                post(kMsgCodecBuffer, d);
-            }
-        }break;
+//MainActivity.TranscodeListener的全局引用，转码结束回调之后删除
+typedef struct {
+    jobject listener;
+    jmethodID ondone;
+} transcodelistener;
+
+//运行在转码线程上
+static void onTranscodeDone(transcoder *t, bool success, void *userdata){
+    transcodelistener *l = (transcodelistener*) userdata;
+    JNIEnv *env = attachedEnv();
+    if (!env){
+        return;
+    }
+    env->CallVoidMethod(l->listener, l->ondone, (jlong)(intptr_t) t, success ? JNI_TRUE : JNI_FALSE);
+    clearException(env);
+    env->DeleteGlobalRef(l->listener);
+    delete l;
+}
+
+//打开asset对应的文件，asset要不压缩地打包(mp4默认不压缩)，失败返回NULL
+static datasource* openAssetSource(AAssetManager *assets, const char *name){
+    AAsset *asset = AAssetManager_open(assets, name, 0);
+    off_t start, length;
+    int fd = asset ? AAsset_openFileDescriptor(asset, &start, &length) : -1;//打开视频文件
+    if (asset){
+        AAsset_close(asset);
+    }
+    if (fd < 0){
+        LOGE("failed to open file: %s %d (%s)", name, fd, strerror(errno));
+        return NULL;
+    }
+    return newFileSource(fd, static_cast<off64_t>(start), static_cast<off64_t>(length));
+}
+
+//http://开头的用HTTP读取，file://或/开头的是本地路径(比如app私有目录)，其余是asset，可以带asset:///前缀
+static datasource* openUriSource(AAssetManager *assets, const char *uri){
+    LOGD("opening %s", uri);
+    if (!strncmp(uri, "http://", 7)){
+        return openHttpSource(uri, kHttpBlockBytes, kHttpCacheBlocks);
+    } else if (!strncmp(uri, "file://", 7)){
+        return openFileSource(uri + 7);
+    } else if (uri[0] == '/'){
+        return openFileSource(uri);
+    }
+    return openAssetSource(assets, strncmp(uri, "asset:///", 9) ? uri : uri + 9);
+}
+
+//在调用线程上打开，HTTP会同步请求第一块
+static datasource* openSource(JNIEnv *env, jobject assetMgr, jstring uri){
+    //string转UTF-8
+    const char *utf8 = env->GetStringUTFChars(uri, NULL);
+    datasource *source = openUriSource(AAssetManager_fromJava(env, assetMgr), utf8);
+    env->ReleaseStringUTFChars(uri, utf8);
+    return source;
+}
+
+//交给播放器在looper线程上打开的uri，AssetManager持有全局引用，打开之前不会被回收
+typedef struct {
+    jobject assetmgr;
+    AAssetManager *assets;
+    char *uri;
+} pendingsource;
+
+static pendingsource* newPendingSource(JNIEnv *env, jobject assetMgr, jstring uri){
+    pendingsource *p = new pendingsource();
+    p->assetmgr = env->NewGlobalRef(assetMgr);
+    p->assets = AAssetManager_fromJava(env, assetMgr);
+    const char *utf8 = env->GetStringUTFChars(uri, NULL);
+    p->uri = strdup(utf8);
+    env->ReleaseStringUTFChars(uri, utf8);
+    return p;
+}
+
+//运行在looper线程上，打开后删除pendingsource
+static datasource* openPendingSource(void *userdata){
+    pendingsource *p = (pendingsource*) userdata;
+    datasource *source = openUriSource(p->assets, p->uri);
+    JNIEnv *env = attachedEnv();
+    if (env){
+        env->DeleteGlobalRef(p->assetmgr);
     }
+    free(p->uri);
+    delete p;
+    return source;
 }
 
 //extern "C" 表示以下方法按C语言的方式进行编译
 extern "C"{
-    //jboolean JNI中的变量类型        JNIEnv* 引用JNIenv指针
-    jboolean Java_com_example_nativecodec_MainActivity_createStreamingMediaPlayer(JNIEnv* env,
-            jclass clazz, jobject assetMgr, jstring filename)
+    jint JNI_OnLoad(JavaVM *vm, void *reserved){
+        javavm = vm;
+        return JNI_VERSION_1_6;
+    }
+
+    //jlong JNI中的变量类型，返回播放器句柄        JNIEnv* 引用JNIenv指针
+    //立即返回，文件和解码器都在looper线程上打开，完成后在looper线程上回调listener.onPrepared，
+    //文件打不开时回调onPrepared(player, false)。listener可以为null
+    jlong Java_com_example_nativecodec_MainActivity_createStreamingMediaPlayer(JNIEnv* env,
+            jclass clazz, jobject assetMgr, jstring filename, jobject surface, jobject listener)
             {
-        LOGV("@@@ create");
+        LOGI("@@@ create");
 
-        //string转UTF-8
-        const char *utf8 = env->GetStringUTFChars(filename, NULL);
-        LOGV("opening %s", utf8);
-        //%s 格式化为字符串
+        pendingsource *source = newPendingSource(env, assetMgr, filename);
+        preparedlistener *l = newPreparedListener(env, listener);
 
-        off_t outStart, outLen;
-        int fd = AAsset_openFileDescriptor(AAssetManager_open(AAssetManager_fromJava(env, assetMgr), utf8, 0),
-                                           &outStart, &outLen);//打开视频文件
+        //从Java surface获取native window，引用交给播放器
+        ANativeWindow *window = surface ? ANativeWindow_fromSurface(env, surface) : NULL;
+        workerdata *d = createPlayer(openPendingSource, source, window,
+                                     l ? onPlayerPrepared : NULL, l);
+        return (jlong)(intptr_t) d;
+    }
 
-        env->ReleaseStringUTFChars(filename, utf8);
-        if (fd < 0){
-            LOGE("failed to open file: %s %d (%s)", utf8, fd, strerror(errno));
-            return JNI_FALSE;
-        }
-
-        data.fd = fd;
-
-        //用于保存当前播放用到的一些标志位
-        workerdata *d = &data;
-
-        AMediaExtractor *ex = AMediaExtractor_new();
-        media_status_t err = AMediaExtractor_setDataSourceFd(ex, d->fd,
-                static_cast<off64_t >(outStart),
-                static_cast<off64_t>(outLen));
-
-        close(d->fd);
-        if (err != AMEDIA_OK){
-            LOGV("setDataSource error: %d", err);
-            return JNI_FALSE;
-        }
-
-        //获取轨道数
-        int numtracks = AMediaExtractor_getTrackCount(ex);
-
-        //负责媒体文件的编码和解码工作
-        AMediaCodec *codec = NULL;
-
-        LOGV("input has %d tracks", numtracks);
-        for (int i = 0; i < numtracks; ++i) {
-            //MediaExtractor分离音频视频，然后通过getTrackFormat获取track的MediaFormat
-            AMediaFormat *format = AMediaExtractor_getTrackFormat(ex, i);
-            const char *s = AMediaFormat_toString(format);
-            LOGV("track %d format: %s", i, s);
-
-            const char *mime;   //  mime:"video/avc"：264格式的编解码
-            if (!AMediaFormat_getString(format, AMEDIAFORMAT_KEY_MIME, &mime)){
-                LOGV("no mime type");
-                return JNI_FALSE;
-            }else if (!strncmp(mime, "video/", 6)){
-                //selectTrack可以选择指定的track通道
-                AMediaExtractor_selectTrack(ex, i);
-                codec = AMediaCodec_createDecoderByType(mime);
-                //configure：对编码器(mediacodec)进行配置
-                //format:解码的媒体格式   d->window:绑定surface  crypto:加密算法 flags:加密的格式
-                AMediaCodec_configure(codec, format, d->window, NULL, 0);
-                d->ex = ex;//视频轨道
-                d->codec = codec;//解码器
-                d->renderstart = -1;//开始渲染时间
-                d->sawInputEOS = false;
-                d->sawOutputEOS = false;
-                d->isPlaying = false;
-                d->renderonce = true;
-                AMediaCodec_start(codec);//调用start进入执行状态,开始解码
-            }
-            AMediaFormat_delete(format);
+    //用openDataSource打开的数据源创建播放器，播放器持有自己的引用，同一个数据源可以创建多个播放器，
+    //其余和createStreamingMediaPlayer相同
+    jlong Java_com_example_nativecodec_MainActivity_createPlayerFromSource(JNIEnv* env, jclass clazz,
+            jlong source, jobject surface, jobject listener){
+        datasource *s = toSource(source);
+        if (!s){
+            return 0;
         }
+        s->acquire();
+        preparedlistener *l = newPreparedListener(env, listener);
+        ANativeWindow *window = surface ? ANativeWindow_fromSurface(env, surface) : NULL;
+        workerdata *d = createPlayer(s, window, l ? onPlayerPrepared : NULL, l);
+        return (jlong)(intptr_t) d;
+    }
+
+    //按性能配置(MainActivity.PROFILE_*)创建播放器，codecName不为null时优先用这个解码器，
+    //不存在或者configure失败时自动退回按mime选择，其余和createStreamingMediaPlayer相同
+    jlong Java_com_example_nativecodec_MainActivity_createPlayerWithProfile(JNIEnv* env, jclass clazz,
+            jobject assetMgr, jstring filename, jobject surface, jint profile, jstring codecName, jobject listener){
+        codecoptions options;
+        memset(&options, 0, sizeof(options));
+        options.profile = profile >= 0 && profile < kProfileCount ? profile : kProfileDefault;
+        if (codecName){
+            const char *utf8 = env->GetStringUTFChars(codecName, NULL);
+            snprintf(options.codecname, sizeof(options.codecname), "%s", utf8);
+            env->ReleaseStringUTFChars(codecName, utf8);
+        }
+        pendingsource *source = newPendingSource(env, assetMgr, filename);
+        preparedlistener *l = newPreparedListener(env, listener);
+        ANativeWindow *window = surface ? ANativeWindow_fromSurface(env, surface) : NULL;
+        workerdata *d = createPlayer(openPendingSource, source, window, l ? onPlayerPrepared : NULL, l,
+                                     0, NULL, &options);
+        return (jlong)(intptr_t) d;
+    }
 
-        mlooper = new mylooper();
-        mlooper->post(kMsgCodecBuffer, d);
+    //ByteBuffer输出模式的播放器：不输出到surface，解码出的帧通过frameListener交给Java分析，
+    //同时最多交出maxFramesInFlight帧，其余和createStreamingMediaPlayer相同
+    jlong Java_com_example_nativecodec_MainActivity_createFramePlayer(JNIEnv* env, jclass clazz,
+            jobject assetMgr, jstring filename, jint maxFramesInFlight, jobject frameListener, jobject listener){
+        LOGI("@@@ create frame player");
+        pendingsource *source = newPendingSource(env, assetMgr, filename);
+        preparedlistener *l = newPreparedListener(env, listener);
+
+        framelistener *frames = new framelistener();
+        memset(frames, 0, sizeof(*frames));
+        jclass listenerclass = env->GetObjectClass(frameListener);
+        frames->listener = env->NewGlobalRef(frameListener);
+        frames->onformatchanged = env->GetMethodID(listenerclass, "onFormatChanged", "(IIIII)V");
+        frames->onframe = env->GetMethodID(listenerclass, "onFrame", "(JJLjava/nio/ByteBuffer;JD)V");
+        framesink sink = {onFrameFormat, onFrameReady, frames, maxFramesInFlight};
+        workerdata *d = createPlayer(openPendingSource, source, NULL,
+                                     l ? onPlayerPrepared : NULL, l, 0, &sink);
+        return (jlong)(intptr_t) d;
+    }
+
+    //预加载播放列表的下一项：没有surface，解码好第一帧后等setNextPlayer交接，其余和createStreamingMediaPlayer相同
+    jlong Java_com_example_nativecodec_MainActivity_preloadStreamingMediaPlayer(JNIEnv* env, jclass clazz,
+            jobject assetMgr, jstring filename, jobject listener){
+        LOGI("@@@ preload");
+        pendingsource *source = newPendingSource(env, assetMgr, filename);
+        preparedlistener *l = newPreparedListener(env, listener);
+        workerdata *d = createPlayer(openPendingSource, source, NULL,
+                                     l ? onPlayerPrepared : NULL, l, kPlayerPreroll);
+        return (jlong)(intptr_t) d;
+    }
+
+    //player播完后由native层直接把surface交给next，next为0表示取消
+    void Java_com_example_nativecodec_MainActivity_setNextPlayer(JNIEnv* env, jclass clazz,
+            jlong player, jlong next){
+        workerdata *d = toPlayer(player);
+        if (d){
+            setNextPlayer(d, toPlayer(next));
+        }
+    }
 
-        return JNI_TRUE;
+    //归还onFrame交出的帧，之后不能再访问那个ByteBuffer
+    void Java_com_example_nativecodec_MainActivity_releaseFrame(JNIEnv* env, jclass clazz,
+            jlong player, jlong token){
+        workerdata *d = toPlayer(player);
+        if (d){
+            releaseFrame(d, token);
+        }
     }
 
     //设置流媒体播放器的播放状态
     void Java_com_example_nativecodec_MainActivity_setPlayingStreamingMediaPlayer(JNIEnv* env,
-            jclass clazz, jboolean isPlaying){
-        LOGV("@@@ playpause: %d", isPlaying);
-        if (mlooper){
-            mlooper->post(kMsgResume, &data);
+            jclass clazz, jlong player, jboolean isPlaying){
+        LOGI("@@@ playpause: %d", isPlaying);
+        workerdata *d = toPlayer(player);
+        if (d){
+            requestPlaying(d, isPlaying);
         }
     }
 
-    //关闭本地媒体系统
-    void Java_com_example_nativecodec_MainActivity_shutdown(JNIEnv* env, jclass clazz){
-        LOGV("@@@ shutdown");
-        if (mlooper){
-            mlooper->post(kMsgDecodeDone, &data, true);
-            mlooper->quit();
-            delete mlooper;
-            mlooper = NULL;
-        }
-        if (data.window){
-            ANativeWindow_release(data.window);
-            data.window = NULL;
+    //关闭播放器，返回后句柄失效
+    void Java_com_example_nativecodec_MainActivity_shutdown(JNIEnv* env, jclass clazz, jlong player){
+        LOGI("@@@ shutdown");
+        workerdata *d = toPlayer(player);
+        if (d){
+            //ByteBuffer输出模式的回调在releasePlayer返回后不会再调用
+            framelistener *frames = d->frames.onframe ? (framelistener*) d->frames.userdata : NULL;
+            releasePlayer(d);
+            if (frames){
+                deleteFrameListener(env, frames);
+            }
         }
     }
 
-    //设置surface
+    //切换surface，解码器不重建、播放位置不变；surface为null表示surface已销毁
     void Java_com_example_nativecodec_MainActivity_setSurface(JNIEnv *env,jclass clazz,
-            jobject surface){
-
-        //从Java surface获取native window
-        if (data.window){
-            ANativeWindow_release(data.window);
-            data.window = NULL;
+            jlong player, jobject surface){
+        workerdata *d = toPlayer(player);
+        if (!d){
+            return;
         }
-        data.window = ANativeWindow_fromSurface(env, surface);
-        LOGV("@@@ setsurface %p", data.window);
+        //从Java surface获取native window，引用交给播放器
+        ANativeWindow *window = surface ? ANativeWindow_fromSurface(env, surface) : NULL;
+        LOGI("@@@ setsurface %p", window);
+        requestSurface(d, window);
     }
 
     //转回流媒体播放器
-    void Java_com_example_nativecodec_MainActivity_rewindStreamingMediaPlayer(JNIEnv *env, jclass clazz)
+    void Java_com_example_nativecodec_MainActivity_rewindStreamingMediaPlayer(JNIEnv *env, jclass clazz,
+            jlong player)
     {
-        LOGV("@@@ rewind");
-        if (mlooper){
-            mlooper->post(kMsgSeek, &data);
+        LOGI("@@@ rewind");
+        workerdata *d = toPlayer(player);
+        if (d){
+            requestSeek(d, 0, kSeekNearestSync);
         }
     }
 
+    //跳到timeUs，mode为MainActivity.SEEK_NEAREST_SYNC或SEEK_ACCURATE
+    void Java_com_example_nativecodec_MainActivity_seekTo(JNIEnv *env, jclass clazz,
+            jlong player, jlong timeUs, jint mode){
+        workerdata *d = toPlayer(player);
+        if (d){
+            requestSeek(d, timeUs, mode);
+        }
+    }
+
+    //播放速度，负数为倒放：2倍以内全部解码，4倍以内丢掉不被参考的帧，更快或倒放时只解码关键帧
+    void Java_com_example_nativecodec_MainActivity_setPlaybackRate(JNIEnv *env, jclass clazz,
+            jlong player, jfloat rate){
+        workerdata *d = toPlayer(player);
+        if (d && rate != 0){
+            requestPlaybackRate(d, rate);
+        }
+    }
+
+    jlong Java_com_example_nativecodec_MainActivity_getDurationUs(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        //时长在打开时取自轨道格式，打开完成之前返回0
+        return d && d->prepared.load() ? d->index->durationUs.load() : 0;
+    }
+
+    //最近显示的帧的时间戳
+    jlong Java_com_example_nativecodec_MainActivity_getPositionUs(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        return d ? d->positionUs.load(std::memory_order_relaxed) : 0;
+    }
+
+    //最近一次seek从请求到目标帧显示的耗时，还在seek中返回-1
+    jlong Java_com_example_nativecodec_MainActivity_getSeekLatencyUs(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        if (!d){
+            return 0;
+        }
+        int64_t latencyNs = d->seeklatencyNs.load();
+        return latencyNs < 0 ? -1 : latencyNs / 1000;
+    }
+
+    //最近一次暂停从请求到生效的耗时，还没生效返回-1
+    jlong Java_com_example_nativecodec_MainActivity_getPauseLatencyUs(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        if (!d){
+            return 0;
+        }
+        int64_t latencyNs = d->pauselatencyNs.load();
+        return latencyNs < 0 ? -1 : latencyNs / 1000;
+    }
+
+    //从创建播放器到第一帧显示的耗时，还没显示返回-1
+    jlong Java_com_example_nativecodec_MainActivity_getFirstFrameLatencyUs(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        if (!d){
+            return -1;
+        }
+        int64_t latencyNs = d->firstframeNs.load();
+        return latencyNs < 0 ? -1 : latencyNs / 1000;
+    }
+
+    //最近的每帧解码耗时(从送入解码器到解码完成，微秒)，返回填入的个数
+    jint Java_com_example_nativecodec_MainActivity_getDecodeLatencies(JNIEnv *env, jclass clazz,
+            jlong player, jlongArray latencies){
+        workerdata *d = toPlayer(player);
+        if (!d){
+            return 0;
+        }
+        int max = env->GetArrayLength(latencies);
+        if (max > kMaxLatencySamples){
+            max = kMaxLatencySamples;
+        }
+        int64_t *values = new int64_t[max];
+        int n = copyDecodeLatencies(d, values, max);
+        env->SetLongArrayRegion(latencies, 0, n, (const jlong*) values);
+        delete[] values;
+        return n;
+    }
+
     //暂停播放
-    void Java_com_example_nativecodec_MainActivity_pauseStreamingMediaPlayer(JNIEnv *env, jclass clazz){
-        LOGV("@@@ pause");
-        if (mlooper){
-            mlooper->post(kMsgPause, &data);
+    void Java_com_example_nativecodec_MainActivity_pauseStreamingMediaPlayer(JNIEnv *env, jclass clazz,
+            jlong player){
+        LOGI("@@@ pause");
+        workerdata *d = toPlayer(player);
+        if (d){
+            requestPlaying(d, false);
+        }
+    }
+
+    //循环播放，回绕处不flush解码器
+    void Java_com_example_nativecodec_MainActivity_setLooping(JNIEnv *env, jclass clazz,
+            jlong player, jboolean looping){
+        workerdata *d = toPlayer(player);
+        if (d){
+            setLooping(d, looping);
+        }
+    }
+
+    //迟到超过该阈值的帧不渲染直接丢弃
+    void Java_com_example_nativecodec_MainActivity_setLateFrameThreshold(JNIEnv *env, jclass clazz,
+            jlong player, jlong thresholdUs){
+        workerdata *d = toPlayer(player);
+        if (d){
+            d->clock->setLateThresholdUs(thresholdUs);
+        }
+    }
+
+    //关闭后解码出的帧不等待显示时间直接释放，用于测试解码吞吐量
+    void Java_com_example_nativecodec_MainActivity_setPacingEnabled(JNIEnv *env, jclass clazz,
+            jlong player, jboolean paced){
+        workerdata *d = toPlayer(player);
+        if (d){
+            d->unpaced.store(!paced);
+        }
+    }
+
+    //性能计数器快照，各项的位置见PlayerStats.java，values由调用者分配并复用，轮询时不分配内存
+    void Java_com_example_nativecodec_MainActivity_getStats(JNIEnv *env, jclass clazz,
+            jlong player, jlongArray values){
+        int64_t snapshot[kStatCount] = {0};
+        workerdata *d = toPlayer(player);
+        if (d){
+            snapshotStats(d, snapshot);
         }
+        jsize n = env->GetArrayLength(values);
+        env->SetLongArrayRegion(values, 0, n < kStatCount ? n : kStatCount, (const jlong*) snapshot);
+    }
+
+    //实际使用的解码器组件名(API 28以上才取得到，否则为空字符串)，打开完成之前返回null
+    jstring Java_com_example_nativecodec_MainActivity_getCodecName(JNIEnv *env, jclass clazz, jlong player){
+        workerdata *d = toPlayer(player);
+        return d && d->prepared.load() ? env->NewStringUTF(d->codecname) : NULL;
+    }
+
+    //性能配置实际加上的key，逗号分隔的key=value，打开完成之前返回null
+    jstring Java_com_example_nativecodec_MainActivity_getCodecKeys(JNIEnv *env, jclass clazz, jlong player){
+        workerdata *d = toPlayer(player);
+        return d && d->prepared.load() ? env->NewStringUTF(d->codeckeys) : NULL;
+    }
+
+    //最后一帧是否已经输出
+    jboolean Java_com_example_nativecodec_MainActivity_isEndOfStream(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        return d && d->sawOutputEOS.load(std::memory_order_acquire) ? JNI_TRUE : JNI_FALSE;
+    }
+
+    //surface是否已经交给setNextPlayer设置的下一个播放器，之后才能关闭这个播放器
+    jboolean Java_com_example_nativecodec_MainActivity_isHandedOff(JNIEnv *env, jclass clazz,
+            jlong player){
+        workerdata *d = toPlayer(player);
+        return d && d->handedoff.load(std::memory_order_acquire) ? JNI_TRUE : JNI_FALSE;
+    }
+
+    //缩略图解码器，只解码关键帧，每个实例同一时间只能在一个线程上使用，失败返回0
+    jlong Java_com_example_nativecodec_MainActivity_openThumbnailer(JNIEnv *env, jclass clazz,
+            jobject assetMgr, jstring filename){
+        datasource *source = openSource(env, assetMgr, filename);
+        if (!source){
+            return 0;
+        }
+        thumbnailer *t = new thumbnailer();
+        bool opened = t->open(source);
+        source->release();
+        if (!opened){
+            delete t;
+            return 0;
+        }
+        return (jlong)(intptr_t) t;
+    }
+
+    //把不晚于timeUs的关键帧缩放后画进bitmap(ARGB_8888)，返回这一帧的时间戳，失败返回-1
+    jlong Java_com_example_nativecodec_MainActivity_decodeThumbnail(JNIEnv *env, jclass clazz,
+            jlong handle, jlong timeUs, jobject bitmap){
+        thumbnailer *t = (thumbnailer*)(intptr_t) handle;
+        AndroidBitmapInfo info;
+        if (!t || AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS
+                || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888){
+            return -1;
+        }
+        void *pixels = NULL;
+        if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS){
+            return -1;
+        }
+        int64_t ptsUs = t->decode(timeUs, (uint32_t*) pixels, info.width, info.height, info.stride);
+        AndroidBitmap_unlockPixels(env, bitmap);
+        return ptsUs;
+    }
+
+    void Java_com_example_nativecodec_MainActivity_closeThumbnailer(JNIEnv *env, jclass clazz, jlong handle){
+        delete (thumbnailer*)(intptr_t) handle;
+    }
+
+    //打开数据源，uri的格式见openSource；HTTP会同步请求第一块，不要在UI线程上调用。失败返回0
+    jlong Java_com_example_nativecodec_MainActivity_openDataSource(JNIEnv *env, jclass clazz,
+            jobject assetMgr, jstring uri){
+        return (jlong)(intptr_t) openSource(env, assetMgr, uri);
+    }
+
+    //释放调用者的引用，用它创建的播放器还在时数据源等播放器关闭后才关闭
+    void Java_com_example_nativecodec_MainActivity_closeDataSource(JNIEnv *env, jclass clazz, jlong source){
+        datasource *s = toSource(source);
+        if (s){
+            s->release();
+        }
+    }
+
+    //填入DataSourceStats.COUNT个计数器的当前值
+    void Java_com_example_nativecodec_MainActivity_getDataSourceStats(JNIEnv *env, jclass clazz,
+            jlong source, jlongArray stats){
+        datasource *s = toSource(source);
+        if (!s || env->GetArrayLength(stats) < kSourceStatCount){
+            return;
+        }
+        jlong values[kSourceStatCount];
+        s->snapshot(values);
+        env->SetLongArrayRegion(stats, 0, kSourceStatCount, values);
+    }
+
+    //把数据源转码到outputPath(MP4)，width/height/bitrate为0时保持原样，见transcodeconfig。
+    //立即返回，转码线程结束时回调listener.onTranscodeDone，listener可以为null。失败返回0
+    jlong Java_com_example_nativecodec_MainActivity_startTranscode(JNIEnv *env, jclass clazz,
+            jlong source, jstring outputPath, jint width, jint height, jint bitrate, jobject listener){
+        datasource *s = toSource(source);
+        if (!s){
+            return 0;
+        }
+        const char *path = env->GetStringUTFChars(outputPath, NULL);
+        int fd = open(path, O_CREAT | O_TRUNC | O_RDWR, 0644);
+        if (fd < 0){
+            LOGE("failed to open %s (%s)", path, strerror(errno));
+        }
+        env->ReleaseStringUTFChars(outputPath, path);
+        if (fd < 0){
+            return 0;
+        }
+        transcodeconfig config;
+        config.width = width;
+        config.height = height;
+        config.bitrate = bitrate;
+        config.iframeinterval = 1;
+        transcodelistener *l = NULL;
+        if (listener){
+            //转码线程上找不到应用的类，方法在这里先查好
+            l = new transcodelistener();
+            l->listener = env->NewGlobalRef(listener);
+            l->ondone = env->GetMethodID(env->GetObjectClass(listener), "onTranscodeDone", "(JZ)V");
+        }
+        transcoder *t = new transcoder();
+        if (!t->start(s, fd, &config, l ? onTranscodeDone : NULL, l)){
+            delete t;
+            if (l){
+                env->DeleteGlobalRef(l->listener);
+                delete l;
+            }
+            return 0;
+        }
+        return (jlong)(intptr_t) t;
+    }
+
+    //填入TranscodeStats.COUNT个计数器的当前值
+    void Java_com_example_nativecodec_MainActivity_getTranscodeStats(JNIEnv *env, jclass clazz,
+            jlong handle, jlongArray stats){
+        transcoder *t = (transcoder*)(intptr_t) handle;
+        if (!t || env->GetArrayLength(stats) < kTranscodeStatCount){
+            return;
+        }
+        jlong values[kTranscodeStatCount];
+        t->snapshot(values);
+        env->SetLongArrayRegion(stats, 0, kTranscodeStatCount, values);
+    }
+
+    //没结束的转码先取消，等转码线程退出后释放。不能在onTranscodeDone里调用
+    void Java_com_example_nativecodec_MainActivity_releaseTranscoder(JNIEnv *env, jclass clazz, jlong handle){
+        delete (transcoder*)(intptr_t) handle;
+    }
+
+    //空闲解码器池最多保留maxDecoders个解码器，0表示不使用
+    void Java_com_example_nativecodec_MainActivity_setDecoderPoolSize(JNIEnv *env, jclass clazz,
+            jint maxDecoders){
+        setDecoderPoolSize(maxDecoders);
+    }
+
+    //在后台线程预先创建count个解码器放进池里，分辨率不知道时传0
+    void Java_com_example_nativecodec_MainActivity_prewarmDecoders(JNIEnv *env, jclass clazz,
+            jstring mime, jint width, jint height, jint count){
+        const char *utf8 = env->GetStringUTFChars(mime, NULL);
+        prewarmDecoders(utf8, width, height, count);
+        env->ReleaseStringUTFChars(mime, utf8);
+    }
+
+    jint Java_com_example_nativecodec_MainActivity_getPooledDecoderCount(JNIEnv *env, jclass clazz){
+        return pooledDecoderCount();
+    }
+
+    //之后创建的播放器共享最多maxThreads个解码线程，0表示每个播放器一个线程
+    void Java_com_example_nativecodec_MainActivity_setThreadPolicy(JNIEnv *env, jclass clazz,
+            jint maxThreads){
+        setThreadPolicy(maxThreads);
     }
 
 }
@@ -0,0 +1,214 @@
+//
+// 播放时钟的实现。vsync时间由一个常驻的AChoreographer线程采样，只有在有时钟处于播放状态时才请求回调
+//
+
+#include "playbackclock.h"
+
+#include <dlfcn.h>
+#include <pthread.h>
+#include <time.h>
+
+#include <android/choreographer.h>
+#include <android/looper.h>
+#define TAG "NativeCodec-clock"
+#include "logging.h"
+
+//输出缓冲区最多提前这么久交给SurfaceFlinger，再早就先留在解码器里
+#define kReleaseAheadNs 50000000LL
+//默认迟到超过40ms的帧直接丢弃
+#define kDefaultLateThresholdNs 40000000LL
+//采样到vsync之前按60Hz估算
+#define kDefaultVsyncPeriodNs 16666667LL
+
+//timespec：纳秒，来源于time.h
+//CLOCK_MONOTONIC：从系统启动这一刻起开始计时,不受系统时间被用户改变的影响
+int64_t systemnanotime(){
+    timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+//AChoreographer_postFrameCallback64从API 29开始提供，32位下旧接口的long会溢出
+typedef void (*postframecallback64_t)(AChoreographer*, AChoreographer_frameCallback64, void*);
+
+static pthread_once_t vsynconce = PTHREAD_ONCE_INIT;
+static std::atomic<ALooper*> vsynclooper(NULL);
+static std::atomic<int> vsyncobservers(0);
+static std::atomic<int64_t> lastvsyncNs(0);
+static std::atomic<int64_t> vsyncperiodNs(kDefaultVsyncPeriodNs);
+//以下只在vsync线程上访问
+static AChoreographer *choreographer = NULL;
+static postframecallback64_t postFrameCallback64 = NULL;
+static bool callbackposted = false;
+
+static void scheduleVsync();
+
+static void onVsync(int64_t frameTimeNs){
+    int64_t last = lastvsyncNs.load(std::memory_order_relaxed);
+    int64_t period = vsyncperiodNs.load(std::memory_order_relaxed);
+    int64_t delta = frameTimeNs - last;
+    //只用相邻两个vsync的间隔修正周期，跳帧的间隔不参与
+    if (last > 0 && delta > period / 2 && delta < period * 3 / 2){
+        vsyncperiodNs.store(period + (delta - period) / 8, std::memory_order_relaxed);
+    }
+    lastvsyncNs.store(frameTimeNs, std::memory_order_relaxed);
+    callbackposted = false;
+    scheduleVsync();
+}
+
+static void frameCallback(long frameTimeNanos, void *data){
+    onVsync(sizeof(long) == sizeof(int64_t) ? frameTimeNanos : systemnanotime());
+}
+
+static void frameCallback64(int64_t frameTimeNanos, void *data){
+    onVsync(frameTimeNanos);
+}
+
+static void scheduleVsync(){
+    if (callbackposted || vsyncobservers.load(std::memory_order_relaxed) <= 0){
+        return;
+    }
+    callbackposted = true;
+    if (postFrameCallback64){
+        postFrameCallback64(choreographer, frameCallback64, NULL);
+    } else{
+        AChoreographer_postFrameCallback(choreographer, frameCallback, NULL);
+    }
+}
+
+static void* vsyncloop(void *p){
+    ALooper *l = ALooper_prepare(0);
+    ALooper_acquire(l);
+    choreographer = AChoreographer_getInstance();
+    postFrameCallback64 = (postframecallback64_t) dlsym(RTLD_DEFAULT, "AChoreographer_postFrameCallback64");
+    vsynclooper.store(l);
+    while (true){
+        //被ALooper_wake唤醒或处理完vsync回调后，检查是否需要继续请求vsync
+        ALooper_pollOnce(-1, NULL, NULL, NULL);
+        scheduleVsync();
+    }
+    return NULL;
+}
+
+static void startVsyncThread(){
+    pthread_t thread;
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    pthread_create(&thread, &attr, vsyncloop, NULL);
+    pthread_attr_destroy(&attr);
+}
+
+playbackclock::playbackclock(){
+    pthread_once(&vsynconce, startVsyncThread);
+    renderstart = -1;
+    startptsUs = 0;
+    anchorNs = -1;
+    rate = 1.0;
+    latethresholdNs.store(kDefaultLateThresholdNs);
+    playing = false;
+    master = NULL;
+    masterdata = NULL;
+}
+
+playbackclock::~playbackclock(){
+    setPlaying(false);
+}
+
+void playbackclock::reset() {
+    renderstart = -1;
+    anchorNs = -1;
+}
+
+void playbackclock::startAt(int64_t startNs) {
+    renderstart = -1;
+    anchorNs = startNs;
+}
+
+void playbackclock::setPlaying(bool p) {
+    if (p == playing){
+        return;
+    }
+    playing = p;
+    if (vsyncobservers.fetch_add(p ? 1 : -1) == 0 && p){
+        ALooper *l = vsynclooper.load();
+        if (l){
+            ALooper_wake(l);
+        }
+    }
+}
+
+void playbackclock::setRate(double r) {
+    rate = r;
+    renderstart = -1;
+}
+
+int64_t playbackclock::mediaTimeUs(int64_t nowNs) const {
+    if (renderstart < 0){
+        return -1;
+    }
+    return startptsUs + (int64_t) ((nowNs - renderstart) / 1000 * rate);
+}
+
+void playbackclock::setMaster(masterclock master, void *userdata) {
+    this->master = master;
+    masterdata = userdata;
+}
+
+void playbackclock::setLateThresholdUs(int64_t thresholdUs) {
+    latethresholdNs.store(thresholdUs * 1000);
+}
+
+framedecision playbackclock::onFrame(int64_t ptsUs, int64_t nowNs) {
+    framedecision decision;
+    if (renderstart < 0){
+        renderstart = anchorNs >= 0 ? anchorNs : nowNs;
+        startptsUs = ptsUs;
+        anchorNs = -1;
+    }
+    decision.mastered = false;
+    if (master && rate == 1.0){
+        int64_t masterUs = master(masterdata, nowNs);
+        if (masterUs >= 0){
+            renderstart = nowNs;
+            startptsUs = masterUs;
+            decision.mastered = true;
+        }
+    }
+    //倒放时时间戳递减，和负的速度相除仍然是正的间隔
+    int64_t dueNs = renderstart + (int64_t) ((ptsUs - startptsUs) * 1000 / rate);
+    int64_t earlyNs = dueNs - nowNs;
+    decision.dueNs = dueNs;
+    decision.lateNs = -earlyNs;
+
+    if (earlyNs < -latethresholdNs.load(std::memory_order_relaxed)){
+        decision.action = kFrameDrop;
+    } else if (earlyNs > kReleaseAheadNs){
+        decision.action = kFrameWait;
+        decision.waitNs = earlyNs - kReleaseAheadNs;
+    } else{
+        decision.action = kFrameRender;
+        decision.releaseNs = snapToVsync(dueNs, &decision.presentNs);
+    }
+    return decision;
+}
+
+//对齐到离目标时间最近的vsync，presentNs是这一帧要显示的vsync时刻。
+//返回的是传给releaseOutputBufferAtTime的期望显示时间，特意比presentNs早80%个周期：
+//SurfaceFlinger只显示期望时间不晚于下一次vsync预计显示时刻的缓冲区，vsync时刻有抖动，
+//正好等于presentNs时可能被判为太早而推迟一个周期；提前不到一个周期又不会被上一次vsync显示
+int64_t playbackclock::snapToVsync(int64_t dueNs, int64_t *presentNs) {
+    int64_t vsync = lastvsyncNs.load(std::memory_order_relaxed);
+    int64_t period = vsyncperiodNs.load(std::memory_order_relaxed);
+    if (vsync <= 0){
+        *presentNs = dueNs;
+        return dueNs;
+    }
+    int64_t before = vsync + (dueNs - vsync) / period * period;
+    if (before > dueNs){
+        before -= period;
+    }
+    int64_t after = before + period;
+    *presentNs = dueNs - before < after - dueNs ? before : after;
+    return *presentNs - period * 80 / 100;
+}
@@ -0,0 +1,64 @@
+//
+// 播放时钟：决定每一帧是等待、渲染还是丢弃，并把渲染时间对齐到显示器的vsync
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <atomic>
+
+//对某一帧的处理决定
+enum {
+    kFrameWait,     //还没到时间，先保留输出缓冲区
+    kFrameRender,   //在releaseNs时刻显示
+    kFrameDrop,     //迟到超过阈值，不渲染直接释放
+};
+
+typedef struct {
+    int action;
+    int64_t releaseNs;  //kFrameRender时传给AMediaCodec_releaseOutputBufferAtTime
+    int64_t presentNs;  //kFrameRender时这一帧实际显示的vsync时刻
+    int64_t waitNs;     //kFrameWait时距离可以提交的剩余时间
+    int64_t dueNs;      //按时钟这一帧应该显示的时刻
+    int64_t lateNs;     //决定时已经晚于dueNs多久，提前为负
+    bool mastered;      //dueNs按主时钟(音频)算出
+} framedecision;
+
+//主时钟：返回nowNs时刻应该显示的时间戳，暂时不可用时返回-1
+typedef int64_t (*masterclock)(void *userdata, int64_t nowNs);
+
+class playbackclock {
+    public:playbackclock();
+        ~playbackclock();
+
+        //下一帧重新作为时间基准，用于开始播放、恢复和seek之后
+        void reset();
+        //同reset，但下一帧在startNs显示而不是立即显示，用于接在上一个片段的最后一帧之后
+        void startAt(int64_t startNs);
+        void setPlaying(bool playing);
+        //播放速度，负数为倒放，下一帧重新作为时间基准
+        void setRate(double rate);
+        //按当前时间基准现在应该显示的时间戳，还没有基准时返回-1
+        int64_t mediaTimeUs(int64_t nowNs) const;
+        void setLateThresholdUs(int64_t thresholdUs);
+        //有音频时以音频播出的位置为准：每一帧都重新对齐到主时钟，主时钟不可用时按系统时间从最近一次对齐的位置继续走。
+        //只在1倍速时使用；要在开始播放之前设置
+        void setMaster(masterclock master, void *userdata);
+        framedecision onFrame(int64_t ptsUs, int64_t nowNs);
+
+    private:
+        //返回传给releaseOutputBufferAtTime的时间(比vsync早80%个周期)，presentNs为对齐后的vsync
+        int64_t snapToVsync(int64_t dueNs, int64_t *presentNs);
+        //作为时间基准的帧的显示时刻和时间戳，其余帧按和它的时间戳差除以速度排列
+        int64_t renderstart;
+        int64_t startptsUs;
+        int64_t anchorNs;
+        double rate;
+        std::atomic<int64_t> latethresholdNs;
+        bool playing;
+        masterclock master;
+        void *masterdata;
+};
+
+int64_t systemnanotime();
+
@@ -0,0 +1,1577 @@
+//
+// 播放器实例的解码逻辑。所有状态都在workerdata里，消息由looper线程串行处理
+//
+
+#include "player.h"
+#include "bitstream.h"
+#include "codecpool.h"
+#include "tracing.h"
+
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <dlfcn.h>
+#include <time.h>
+#include <limits.h>
+#include <sys/system_properties.h>
+#include <algorithm>
+#include <vector>
+
+#define TAG "NativeCodec"
+#include "logging.h"
+
+//预加载的播放器开始播放之前的预读字节数上限
+#define kPrerollHighWaterBytes (1024 * 1024)
+
+//快进快退：2倍以内全部解码，4倍以内丢掉不被参考的帧，更快或者倒放时只解码关键帧
+#define kMaxDecodeAllRate 2.0f
+#define kMaxReferenceRate 4.0f
+#define kMinPlaybackRate (1.0f / 16)
+#define kMaxPlaybackRate 64.0f
+//只解码关键帧时每秒最多解码15个关键帧，并且跳到按时钟100ms之后应该显示的位置，解码量不随速度增长
+#define kTrickFrameIntervalUs 66667LL
+#define kTrickLeadUs 100000LL
+//低延迟配置下送进解码器超过40ms还没有输出的样本不再算在上限里(解码器为了重排留着，或者丢掉了)，避免卡住
+#define kInflightExpireNs 40000000LL
+//同步模式下解码器既没有空的输入缓冲区也没有输出时，隔2ms再查，不在dequeue里阻塞looper线程
+#define kCodecPollNs 2000000LL
+
+//COLOR_FormatYUV420Flexible，ByteBuffer输出模式下要求解码器输出YUV420，具体排列见输出格式的color-format
+#define kColorFormatYUV420Flexible 0x7F420888
+//looper线程分配策略：maxsharedthreads为0时每个播放器独占一个looper线程，
+//否则所有播放器共享最多maxsharedthreads个线程，新播放器分给当前播放器最少的那个
+typedef struct {
+    mylooper *looper;
+    int players;
+} pooledlooper;
+
+static pthread_mutex_t poollock = PTHREAD_MUTEX_INITIALIZER;
+static int maxsharedthreads = 0;
+static std::vector<pooledlooper> looperpool;
+
+void setThreadPolicy(int maxThreads){
+    pthread_mutex_lock(&poollock);
+    maxsharedthreads = maxThreads > 0 ? maxThreads : 0;
+    pthread_mutex_unlock(&poollock);
+}
+
+static mylooper* acquireLooper(bool *shared){
+    pthread_mutex_lock(&poollock);
+    mylooper *l = NULL;
+    *shared = maxsharedthreads > 0;
+    if (*shared){
+        pooledlooper *least = NULL;
+        for (size_t i = 0; i < looperpool.size(); ++i) {
+            if (!least || looperpool[i].players < least->players){
+                least = &looperpool[i];
+            }
+        }
+        if (least && (least->players == 0 || (int) looperpool.size() >= maxsharedthreads)){
+            least->players++;
+            l = least->looper;
+        } else{
+            pooledlooper p = {new mylooper(), 1};
+            looperpool.push_back(p);
+            l = p.looper;
+        }
+    } else{
+        l = new mylooper();
+    }
+    pthread_mutex_unlock(&poollock);
+    return l;
+}
+
+static void releaseLooper(mylooper *l){
+    pthread_mutex_lock(&poollock);
+    bool last = true;
+    for (size_t i = 0; i < looperpool.size(); ++i) {
+        if (looperpool[i].looper == l){
+            last = --looperpool[i].players == 0;
+            if (last){
+                looperpool.erase(looperpool.begin() + i);
+            }
+            break;
+        }
+    }
+    pthread_mutex_unlock(&poollock);
+    if (last){
+        l->quit();
+        delete l;
+    }
+}
+
+__int64_t cpunanotime(clockid_t clock){
+    timespec now;
+    clock_gettime(clock, &now);
+    return now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+//AMediaCodec_setAsyncNotifyCallback从API 28开始提供，minSdk为27，所以运行时查找
+typedef media_status_t (*setasyncnotifycallback_t)(AMediaCodec*, AMediaCodecOnAsyncNotifyCallback, void*);
+
+static setasyncnotifycallback_t findSetAsyncNotifyCallback(){
+    //调试时可以用 adb shell setprop debug.nativecodec.sync 1 强制使用同步轮询模式做对比
+    char value[PROP_VALUE_MAX] = {0};
+    if (__system_property_get("debug.nativecodec.sync", value) > 0 && value[0] == '1'){
+        return NULL;
+    }
+    return (setasyncnotifycallback_t) dlsym(RTLD_DEFAULT, "AMediaCodec_setAsyncNotifyCallback");
+}
+
+//在looper线程上调用，输出每播放一秒的CPU时间和唤醒次数
+void reportCodecLoad(workerdata *d){
+    if (d->playedUs <= 0){
+        return;
+    }
+    double seconds = d->playedUs / 1000000.0;
+    LOGI("codec load (%s): played %.2fs, looper cpu %.2f ms/s, process cpu %.2f ms/s, wakeups %.1f/s",
+         d->async ? "async" : "sync", seconds,
+         cpunanotime(CLOCK_THREAD_CPUTIME_ID) / 1000000.0 / seconds,
+         (cpunanotime(CLOCK_PROCESS_CPUTIME_ID) - d->processcpustart) / 1000000.0 / seconds,
+         d->wakeups / seconds);
+    playerstats *s = &d->stats;
+    LOGI("frames: queued %lld, decoded %lld, rendered %lld, dropped %lld, late %lld",
+         (long long) s->get(kStatFramesQueued), (long long) s->get(kStatFramesDecoded),
+         (long long) s->get(kStatFramesRendered), (long long) s->get(kStatFramesDropped),
+         (long long) s->get(kStatFramesLate));
+    int64_t reads = s->get(kStatDemuxReads);
+    LOGI("demux: %lld samples, read %lld ms, avg occupancy %.1f/%d, starvations %lld, full waits %lld",
+         (long long) s->get(kStatSamplesRead), (long long) s->get(kStatReadUs) / 1000,
+         reads > 0 ? (double) s->get(kStatDemuxOccupancySum) / reads : 0.0, kDemuxSlots,
+         (long long) s->get(kStatDemuxStarvations), (long long) s->get(kStatDemuxFullWaits));
+}
+
+void snapshotStats(workerdata *d, int64_t *out){
+    d->stats.set(kStatLooperOverflows, d->looper->overflowCount());
+    d->stats.snapshot(out);
+}
+
+//以下两个函数要在持有eventlock时调用
+//记录样本送进解码器的时间，环形覆盖，解码器里同时存在的样本不会超过kMaxCodecBuffers
+static void recordQueued(workerdata *d, int64_t ptsUs){
+    d->queuedptsUs[d->queuednext] = ptsUs;
+    d->queuedNs[d->queuednext] = systemnanotime();
+    d->queuednext = (d->queuednext + 1) % kMaxCodecBuffers;
+}
+
+static void recordDecoded(workerdata *d, int64_t ptsUs){
+    for (int i = 0; i < kMaxCodecBuffers; ++i) {
+        if (d->queuedptsUs[i] == ptsUs){
+            d->queuedptsUs[i] = LLONG_MIN;
+            d->decodelatencyUs[d->latencycount % kMaxLatencySamples] =
+                    (int32_t) ((systemnanotime() - d->queuedNs[i]) / 1000);
+            d->latencycount++;
+            return;
+        }
+    }
+}
+
+static void clearQueued(workerdata *d){
+    for (int i = 0; i < kMaxCodecBuffers; ++i) {
+        d->queuedptsUs[i] = LLONG_MIN;
+    }
+}
+
+int copyDecodeLatencies(workerdata *d, int64_t *out, int max){
+    pthread_mutex_lock(&d->eventlock);
+    int64_t available = d->latencycount < kMaxLatencySamples ? d->latencycount : kMaxLatencySamples;
+    int n = available < max ? (int) available : max;
+    for (int i = 0; i < n; ++i) {
+        out[i] = d->decodelatencyUs[(d->latencycount - n + i) % kMaxLatencySamples];
+    }
+    pthread_mutex_unlock(&d->eventlock);
+    return n;
+}
+
+//把一个空闲的输入缓冲区填满样本数据并交给解码器
+//预读缓冲区为空时返回false，缓冲区留给下一次，预读线程读到样本后会重新投递消息
+//快进快退时不送进解码器的样本
+static bool skipSample(workerdata *d, const uint8_t *data, const demuxslot *sample){
+    if(sample->eos || d->trickmode == kTrickAll || (sample->flags & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC)){
+        return false;
+    }
+    return d->trickmode == kTrickKeyframes || !isReferenceSample(d->codectype, data, sample->size);
+}
+
+//只解码关键帧：送进一个关键帧后让预读线程直接跳到下一个要解码的关键帧，中间的样本不读
+static void jumpToNextKeyframe(workerdata *d, int64_t ptsUs){
+    float speed = d->rate < 0 ? -d->rate : d->rate;
+    //按时钟现在显示到的位置往后看一点，落后时直接跳过赶不上的关键帧
+    int64_t nowUs = d->clock->mediaTimeUs(systemnanotime());
+    int64_t stepUs = (int64_t) (kTrickFrameIntervalUs * speed);
+    int64_t leadUs = (int64_t) (kTrickLeadUs * speed);
+    int64_t nextUs;
+    if(d->rate > 0){
+        int64_t targetUs = ptsUs + stepUs;
+        if(nowUs >= 0 && nowUs + leadUs > targetUs){
+            targetUs = nowUs + leadUs;
+        }
+        nextUs = d->index->syncAtOrAfter(targetUs);
+        if(nextUs < 0 && !d->index->ready()){
+            //索引还没建好时交给extractor找关键帧
+            d->demux->seekTo(targetUs, AMEDIAEXTRACTOR_SEEK_NEXT_SYNC);
+            d->stats.add(kStatKeyframeJumps, 1);
+            return;
+        }
+    } else{
+        int64_t targetUs = ptsUs - stepUs;
+        if(nowUs >= 0 && nowUs - leadUs < targetUs){
+            targetUs = nowUs - leadUs;
+        }
+        nextUs = d->index->syncBefore(targetUs + 1);
+        if(nextUs < 0 && !d->index->ready() && targetUs >= 0){
+            //索引还没建好时交给extractor找目标之前的关键帧
+            d->demux->seekTo(targetUs, AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+            d->stats.add(kStatKeyframeJumps, 1);
+            return;
+        }
+        if(nextUs < 0){
+            //倒放到了第一个关键帧
+            d->trickdone = true;
+            return;
+        }
+    }
+    if(nextUs >= 0){
+        //正放时后面没有关键帧就顺序读到结尾，非关键帧都会被丢掉
+        d->demux->seekTo(nextUs, AMEDIAEXTRACTOR_SEEK_CLOSEST_SYNC);
+        d->stats.add(kStatKeyframeJumps, 1);
+    }
+}
+
+//解码器里还没有输出的样本达到上限时返回还要等多久，0表示可以送
+static int64_t inputThrottleNs(workerdata *d){
+    if(d->maxinputsinflight <= 0){
+        return 0;
+    }
+    int64_t nowNs = systemnanotime();
+    int64_t oldestNs = nowNs;
+    int inflight = 0;
+    pthread_mutex_lock(&d->eventlock);
+    for (int i = 0; i < kMaxCodecBuffers; ++i) {
+        if(d->queuedptsUs[i] != LLONG_MIN && nowNs - d->queuedNs[i] < kInflightExpireNs){
+            inflight++;
+            oldestNs = std::min(oldestNs, d->queuedNs[i]);
+        }
+    }
+    pthread_mutex_unlock(&d->eventlock);
+    return inflight < d->maxinputsinflight ? 0 : oldestNs + kInflightExpireNs - nowNs;
+}
+
+bool feedInput(workerdata *d, ssize_t bufidx){
+    if(d->trickdone){
+        return false;
+    }
+    //低延迟配置：缓冲区留给下一次，等解码器输出后再送
+    d->throttleNs = inputThrottleNs(d);
+    if(d->throttleNs > 0){
+        d->stats.add(kStatInputThrottled, 1);
+        return false;
+    }
+    size_t bufsize;
+    //取到缓冲区输入流
+    auto buf = AMediaCodec_getInputBuffer(d->codec, bufidx, &bufsize);
+    //从预读缓冲区取出下一个样本复制到输入缓冲区，快进快退时跳过的样本不送进解码器
+    demuxslot sample;
+    while(true){
+        if(!d->demux->read(buf, bufsize, &sample)){
+            //记下开始等样本的时间，等到后计入输入等待
+            if(d->starvedsinceNs == 0){
+                d->starvedsinceNs = systemnanotime();
+            }
+            return false;
+        }
+        if(!skipSample(d, buf, &sample)){
+            break;
+        }
+        d->stats.add(kStatSamplesSkipped, 1);
+    }
+    if(d->starvedsinceNs > 0){
+        d->stats.add(kStatInputWaitUs, (systemnanotime() - d->starvedsinceNs) / 1000);
+        d->starvedsinceNs = 0;
+    }
+    if(sample.eos){
+        d->sawInputEOS = true;
+        LOGD("EOS");
+    } else{
+        //异步模式下输出回调可能在queueInputBuffer返回之前到来，先记录
+        pthread_mutex_lock(&d->eventlock);
+        recordQueued(d, sample.ptsUs);
+        pthread_mutex_unlock(&d->eventlock);
+        d->stats.add(kStatFramesQueued, 1);
+    }
+
+    /**将缓冲区传递至解码器
+    //当MediaExtractor读不到数据时，则说明视频流已经到了结尾，此时使用MediaCodec.BUFFER_FLAG_END_OF_STREAM来告知解码器
+    //queueInputBuffer：往InputBuffer中填充解码前的数据
+    //queueInputBufferg格式（
+    // int index：数组的索引值
+    //int offset：写入buffer的起始位置
+    //int size：写入的输出的长度
+    //long presentationTimeUs：该数据显示的时间戳
+    //int flags：该数据的标记位，例如关键帧，结束帧等等)
+    */
+    TRACE_SCOPE("queue input");
+    AMediaCodec_queueInputBuffer(d->codec, bufidx, 0, sample.size, sample.ptsUs,
+            d->sawInputEOS ? AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM : 0);
+    if(d->trickmode == kTrickKeyframes && !d->sawInputEOS){
+        jumpToNextKeyframe(d, sample.ptsUs);
+    }
+    return true;
+}
+
+//ByteBuffer输出模式：把输出缓冲区交给调用者，不等时间戳。交出的帧达到上限时返回false，
+//waitNs置为-1，缓冲区留到调用者释放帧、releaseFrame重新投递消息之后再处理
+static bool deliverFrame(workerdata *d, ssize_t index, AMediaCodecBufferInfo *info){
+    if(d->framesinflight >= d->frames.maxinflight){
+        d->stats.add(kStatFrameBackpressure, 1);
+        d->waitNs = -1;
+        return false;
+    }
+    pthread_mutex_lock(&d->eventlock);
+    bool formatchanged = d->frameformatchanged;
+    d->frameformatchanged = false;
+    pthread_mutex_unlock(&d->eventlock);
+    if(formatchanged && d->frames.onformat){
+        AMediaFormat *format = AMediaCodec_getOutputFormat(d->codec);
+        d->frames.onformat(d, format, d->frames.userdata);
+        AMediaFormat_delete(format);
+    }
+    size_t capacity;
+    uint8_t *data = AMediaCodec_getOutputBuffer(d->codec, index, &capacity);
+    if(!data || info->offset + info->size > (int32_t) capacity){
+        LOGE("no output buffer %zd", index);
+        AMediaCodec_releaseOutputBuffer(d->codec, index, false);
+        return true;
+    }
+    int64_t nowNs = systemnanotime();
+    if(d->framesdelivered == 0){
+        d->firstdeliverNs = nowNs;
+    }
+    d->framesdelivered++;
+    double fps = nowNs > d->firstdeliverNs ?
+            (d->framesdelivered - 1) * 1000000000.0 / (nowNs - d->firstdeliverNs) : 0;
+    d->framesinflight++;
+    d->stats.add(kStatFramesRendered, 1);
+    //token的高32位是代数，seek之后归还的旧帧可以识别出来
+    int64_t token = ((int64_t) d->framegeneration << 32) | (uint32_t) index;
+    d->frames.onframe(d, token, (int32_t) index, data + info->offset, info->size,
+                      info->presentationTimeUs, fps, d->frames.userdata);
+    return true;
+}
+
+//把调用者已经释放的帧归还给解码器，在looper线程上调用
+static void returnReleasedFrames(workerdata *d){
+    int64_t tokens[kMaxCodecBuffers];
+    pthread_mutex_lock(&d->eventlock);
+    int count = d->releasedcount;
+    memcpy(tokens, d->releasedframes, count * sizeof(int64_t));
+    d->releasedcount = 0;
+    pthread_mutex_unlock(&d->eventlock);
+    for (int i = 0; i < count; ++i) {
+        if ((uint32_t) (tokens[i] >> 32) == d->framegeneration){
+            AMediaCodec_releaseOutputBuffer(d->codec, (int32_t) tokens[i], false);
+            d->framesinflight--;
+        }
+    }
+}
+
+static void playNext(workerdata *d);
+
+//倒放和只解码关键帧时预读线程自己跳着读，这时不循环
+static bool loopActive(workerdata *d){
+    return d->looping && d->trickmode != kTrickKeyframes;
+}
+
+//时间戳跨进新的一圈时记下回绕前后两帧的提交间隔，没有卡顿时和平时的帧间隔一样
+static void noteLoopBoundary(workerdata *d, int64_t ptsUs, int64_t releaseNs){
+    int64_t iteration = ptsUs / d->loopperiodUs;
+    if(d->loopiteration >= 0 && iteration > d->loopiteration){
+        d->stats.add(kStatLoops, 1);
+        if(releaseNs > 0 && d->loopreleaseNs > 0){
+            int64_t gapUs = (releaseNs - d->loopreleaseNs) / 1000;
+            d->stats.set(kStatLoopGapUs, gapUs);
+            if(gapUs > d->stats.get(kStatLoopGapMaxUs)){
+                d->stats.set(kStatLoopGapMaxUs, gapUs);
+            }
+            LOGD("loop %lld gap %lld us, frame interval %lld us", (long long) iteration, (long long) gapUs,
+                 (long long) d->frameintervalUs);
+        }
+    }
+    d->loopiteration = iteration;
+    d->loopreleaseNs = releaseNs;
+}
+
+//处理一个解码完成的输出缓冲区：由播放时钟决定等待、按vsync对齐渲染还是丢弃
+//返回false表示还没到显示时间，缓冲区要留到下一次再处理
+bool renderOutput(workerdata *d, ssize_t status, AMediaCodecBufferInfo *info){
+    TRACE_SCOPE("render output");
+    bool show = info->size != 0;
+    int64_t releaseNs = 0;
+    if(show && info->presentationTimeUs < d->skipuntilUs
+            && !(info->flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM)){
+        //精确seek：目标之前的帧只解码不显示
+        AMediaCodec_releaseOutputBuffer(d->codec, status, false);
+        return true;
+    }
+    if(show && d->preroll && !d->isPlaying){
+        //预加载：第一帧留在解码器里，交接时立即显示
+        d->waitNs = -1;
+        return false;
+    }
+    if(d->frames.onframe){
+        if(info->size == 0){
+            AMediaCodec_releaseOutputBuffer(d->codec, status, false);
+        } else if(!deliverFrame(d, status, info)){
+            return false;
+        }
+    } else if(d->unpaced.load()){
+        //吞吐量测试：不等待、不丢帧，解码出来就释放
+        AMediaCodec_releaseOutputBuffer(d->codec, status, info->size != 0);
+        if(info->size != 0){
+            d->stats.add(kStatFramesRendered, 1);
+        }
+    } else if(info->size != 0 && !d->renderonce){
+        framedecision decision = d->clock->onFrame(info->presentationTimeUs, systemnanotime());
+        if(decision.action == kFrameWait){
+            d->waitNs = decision.waitNs;
+            return false;
+        }
+        d->stats.recordLateness(decision.lateNs);
+        traceCounter("frame lateness us", decision.lateNs / 1000);
+        if(decision.action == kFrameRender){
+            //渲染，由SurfaceFlinger在对齐后的vsync时刻显示，不再阻塞looper线程
+            AMediaCodec_releaseOutputBufferAtTime(d->codec, status, decision.releaseNs);
+            d->stats.add(kStatFramesRendered, 1);
+            d->stats.recordDrift(decision.presentNs - decision.dueNs);
+            if(decision.mastered){
+                d->stats.set(kStatAvDriftUs, (decision.presentNs - decision.dueNs) / 1000);
+            }
+            if(d->takeoverfromNs > 0){
+                int64_t gapNs = decision.releaseNs - d->takeoverfromNs;
+                d->stats.set(kStatHandoverGapUs, gapNs / 1000);
+                LOGD("handover gap %lld us", (long long) gapNs / 1000);
+                d->takeoverfromNs = 0;
+            }
+            d->lastdueNs = decision.dueNs;
+            d->lastreleaseNs = decision.releaseNs;
+            releaseNs = decision.releaseNs;
+            if(decision.lateNs > 0){
+                d->stats.add(kStatFramesLate, 1);
+            }
+        } else{
+            //迟到太多，不渲染直接丢弃
+            AMediaCodec_releaseOutputBuffer(d->codec, status, false);
+            d->stats.add(kStatFramesDropped, 1);
+        }
+    } else{
+        //暂停状态下seek后显示的那一帧立即渲染，size为0的缓冲区不渲染
+        AMediaCodec_releaseOutputBuffer(d->codec, status, info->size != 0);
+        if(info->size != 0){
+            d->stats.add(kStatFramesRendered, 1);
+        }
+    }
+    if(show){
+        d->renderonce = false;
+        d->skipuntilUs = -1;
+        if(d->loopperiodUs > 0){
+            noteLoopBoundary(d, info->presentationTimeUs, releaseNs);
+            d->positionUs.store(info->presentationTimeUs % d->loopperiodUs, std::memory_order_relaxed);
+        } else{
+            d->positionUs.store(info->presentationTimeUs, std::memory_order_relaxed);
+        }
+        if(d->firstframeNs.load(std::memory_order_relaxed) < 0){
+            d->firstframeNs.store(systemnanotime() - d->createNs);
+        }
+        if(d->seekstartNs > 0){
+            d->seeklatencyNs.store(systemnanotime() - d->seekstartNs);
+            d->seekstartNs = 0;
+        }
+    }
+    if(info->flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM){
+        LOGD("output EOS");
+        d->sawOutputEOS.store(true, std::memory_order_release);
+    }
+
+    if (d->lastptsUs >= 0 && info->presentationTimeUs > d->lastptsUs){
+        d->playedUs += info->presentationTimeUs - d->lastptsUs;
+        d->frameintervalUs = info->presentationTimeUs - d->lastptsUs;
+        d->stats.set(kStatFrameIntervalUs, d->frameintervalUs);
+    }
+    d->lastptsUs = info->presentationTimeUs;
+    if (d->sawOutputEOS.load(std::memory_order_relaxed)){
+        reportCodecLoad(d);
+        if (loopActive(d)){
+            //打开循环之前eos样本已经预读出来了，从头开始
+            requestSeek(d, 0, kSeekNearestSync);
+        } else{
+            playNext(d);
+        }
+    }
+    return true;
+}
+
+//同一个播放器最多只有一条待处理的kMsgCodecBuffer，避免暂停恢复后出现两条解码链；
+//等待中的定时消息被立即投递的提前，新的输入输出缓冲区不用等到帧的显示时间才处理
+static void postCodecWork(workerdata *d){
+    d->looper->post(kMsgCodecBuffer, d, kPostCoalesce);
+}
+
+//还没到显示时间：不占用looper线程，到时间后再处理，期间其他消息照常处理
+static void waitForFrame(workerdata *d){
+    d->looper->postDelayed(kMsgCodecBuffer, d, d->waitNs, kPostCoalesce);
+}
+
+//同步模式下解码器暂时没有可用的缓冲区：过一会再查，期间其他消息照常处理
+static void pollCodec(workerdata *d){
+    d->looper->postDelayed(kMsgCodecBuffer, d, kCodecPollNs, kPostCoalesce);
+}
+
+//解码器里的样本达到上限：输出回调会重新投递，这里再保证最多等到最早的样本过期
+static void waitForInputSlot(workerdata *d){
+    d->looper->postDelayed(kMsgCodecBuffer, d, d->throttleNs, kPostCoalesce);
+}
+
+//异步模式：只处理解码器回调通知的可用缓冲区，没有可用缓冲区时不再轮询
+void doAsyncCodecWork(workerdata *d){
+    //ByteBuffer输出模式下交出的帧达到上限后不再处理输出，只继续送输入
+    bool outputblocked = false;
+    while (d->isPlaying || d->renderonce){
+        ssize_t inidx = -1;
+        codecoutput out;
+        out.index = -1;
+        pthread_mutex_lock(&d->eventlock);
+        if (d->inputcount > 0 && !d->sawInputEOS){
+            inidx = d->inputs[d->inputhead];
+        }
+        if (d->outputcount > 0 && !outputblocked){
+            out = d->outputs[d->outputhead];
+        }
+        pthread_mutex_unlock(&d->eventlock);
+
+        //预读缓冲区为空时输入缓冲区留在队列里
+        bool fed = inidx >= 0 && feedInput(d, inidx);
+        if (fed){
+            pthread_mutex_lock(&d->eventlock);
+            d->inputhead = (d->inputhead + 1) % kMaxCodecBuffers;
+            d->inputcount--;
+            pthread_mutex_unlock(&d->eventlock);
+        }
+        if (!fed && out.index < 0){
+            if (inidx >= 0 && d->throttleNs > 0){
+                waitForInputSlot(d);
+                return;
+            }
+            break;
+        }
+        if (out.index >= 0){
+            if (!renderOutput(d, out.index, &out.info)){
+                if (d->waitNs < 0){
+                    //等调用者释放帧后由releaseFrame重新投递
+                    outputblocked = true;
+                    continue;
+                }
+                //队首的帧还没到时间，留在队列里稍后再处理
+                waitForFrame(d);
+                return;
+            }
+            pthread_mutex_lock(&d->eventlock);
+            d->outputhead = (d->outputhead + 1) % kMaxCodecBuffers;
+            d->outputcount--;
+            pthread_mutex_unlock(&d->eventlock);
+        }
+    }
+}
+
+//以下回调运行在解码器内部线程，只入队并通知looper，不做耗时操作
+
+static void onAsyncInputAvailable(AMediaCodec *codec, void *userdata, int32_t index){
+    workerdata *d = (workerdata*) userdata;
+    pthread_mutex_lock(&d->eventlock);
+    if (d->inputcount < kMaxCodecBuffers){
+        d->inputs[(d->inputhead + d->inputcount) % kMaxCodecBuffers] = index;
+        d->inputcount++;
+    }
+    postCodecWork(d);
+    pthread_mutex_unlock(&d->eventlock);
+}
+
+static void onAsyncOutputAvailable(AMediaCodec *codec, void *userdata, int32_t index,
+        AMediaCodecBufferInfo *bufferInfo){
+    workerdata *d = (workerdata*) userdata;
+    pthread_mutex_lock(&d->eventlock);
+    if (d->outputcount < kMaxCodecBuffers){
+        codecoutput *out = &d->outputs[(d->outputhead + d->outputcount) % kMaxCodecBuffers];
+        out->index = index;
+        out->info = *bufferInfo;
+        d->outputcount++;
+    }
+    if (bufferInfo->size > 0){
+        recordDecoded(d, bufferInfo->presentationTimeUs);
+        d->stats.add(kStatFramesDecoded, 1);
+    }
+    postCodecWork(d);
+    pthread_mutex_unlock(&d->eventlock);
+}
+
+//预读线程在解码器等输入时读到了新样本
+static void onDemuxData(void *userdata){
+    postCodecWork((workerdata*) userdata);
+}
+
+static void onAsyncFormatChanged(AMediaCodec *codec, void *userdata, AMediaFormat *format){
+    LOGD("format changed to: %s", AMediaFormat_toString(format));
+    workerdata *d = (workerdata*) userdata;
+    pthread_mutex_lock(&d->eventlock);
+    d->frameformatchanged = true;
+    pthread_mutex_unlock(&d->eventlock);
+}
+
+static void onAsyncError(AMediaCodec *codec, void *userdata, media_status_t error,
+        int32_t actionCode, const char *detail){
+    LOGE("codec error %d (action %d): %s", error, actionCode, detail);
+}
+
+//API 28及以上使用回调驱动解码，API 27退回到同步轮询。要在configure之前调用，重新configure前也要重新设置
+static bool setupAsync(workerdata *d, AMediaCodec *codec){
+    static setasyncnotifycallback_t setAsyncNotifyCallback = findSetAsyncNotifyCallback();
+    if (!setAsyncNotifyCallback){
+        return false;
+    }
+    AMediaCodecOnAsyncNotifyCallback callback = {onAsyncInputAvailable,
+                                                 onAsyncOutputAvailable,
+                                                 onAsyncFormatChanged,
+                                                 onAsyncError};
+    return setAsyncNotifyCallback(codec, callback, d) == AMEDIA_OK;
+}
+
+void doCodecWork(workerdata *d){
+    if(d->frames.onframe){
+        returnReleasedFrames(d);
+    }
+    if(!d->isPlaying && !d->renderonce){
+        //暂停后解码链到此为止，恢复时重新投递
+        return;
+    }
+    if(d->async){
+        doAsyncCodecWork(d);
+        return;
+    }
+
+    /**
+     * ssize_t：有符号整形，在32位机器上等同于int,z 64位机器上等同于long int.
+     * queueInputBuffer和dequeueInputBuffer是一对方法，
+     * 应用场景是用于对输入的数据流进行编码或者解码处理的时候，通过各种方法获得一个ByteBuffer的数组,
+     * 然后调用dequeueInputBuffer方法提取出要处理的部分。处理完毕之后通过dequeueInputBuffer把ByteBuffer
+     * 放回队列中，就能释放内存。
+     * dequeueInputBuffer表示等待的时间（毫秒）
+     * size_t：有符号整形，表示操作数据块的大小
+     * */
+    //解码器没有空的输入缓冲区，或者输入已经结束、只等输出
+    bool inputblocked = d->sawInputEOS;
+    if(!d->sawInputEOS){
+        if(d->pendinginput < 0){
+            //获取缓冲区，不等待     dequeueInputBuffer：申请可用的InputBuffer
+            //阻塞会推迟looper线程上的控制消息，共享looper线程时还会阻塞其他播放器；没有时由pollCodec过一会再查
+            TRACE_SCOPE("dequeue input");
+            int64_t startNs = systemnanotime();
+            d->pendinginput = AMediaCodec_dequeueInputBuffer(d->codec, 0);
+            d->stats.add(kStatInputWaitUs, (systemnanotime() - startNs) / 1000);
+            LOGV("input buffer %zd", d->pendinginput);
+            inputblocked = d->pendinginput < 0;
+        }
+        if(d->pendinginput >= 0 && feedInput(d, d->pendinginput)){
+            d->pendinginput = -1;
+        }
+    }
+    //拿着输入缓冲区但没有样本可填
+    bool starved = d->pendinginput >= 0;
+    bool idle = false;
+
+    if(!d->sawOutputEOS.load(std::memory_order_relaxed)){
+        AMediaCodecBufferInfo info;
+        /**         缓冲区第一步
+         * dequeueOutputBuffer：读取已经解码后的数据
+         * dequeueOutputBuffer格式：
+         * @NonNull BufferInfo info：这个BufferInfo需要自己手动创建，调用后，会把该索引的数据的信息写在里面
+         * long timeoutUs：等待时间
+         */
+        ssize_t status;
+        if(d->pending.index >= 0){
+            //上一次没到显示时间的缓冲区
+            status = d->pending.index;
+            info = d->pending.info;
+            d->pending.index = -1;
+        } else{
+            int64_t startNs = systemnanotime();
+            {
+                TRACE_SCOPE("dequeue output");
+                status = AMediaCodec_dequeueOutputBuffer(d->codec, &info, 0);
+            }
+            d->stats.add(kStatOutputWaitUs, (systemnanotime() - startNs) / 1000);
+            if(status >= 0 && info.size > 0){
+                pthread_mutex_lock(&d->eventlock);
+                recordDecoded(d, info.presentationTimeUs);
+                pthread_mutex_unlock(&d->eventlock);
+                d->stats.add(kStatFramesDecoded, 1);
+            }
+        }
+        if(status >= 0){
+            if(!renderOutput(d, status, &info)){
+                d->pending.index = status;
+                d->pending.info = info;
+                if(d->waitNs < 0){
+                    //交出的帧达到上限，等调用者释放后由releaseFrame重新投递
+                    return;
+                }
+                waitForFrame(d);
+                return;
+            } else if(!d->isPlaying && !d->renderonce){
+                //暂停状态下要显示的那一帧已经显示
+                return;
+            }
+        } else if (status == AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED){
+            LOGV("output buffers changed");
+        } else if (status == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED){
+            auto format = AMediaCodec_getOutputFormat(d->codec);
+            LOGD("format changed to: %s", AMediaFormat_toString(format));
+            AMediaFormat_delete(format);
+            pthread_mutex_lock(&d->eventlock);
+            d->frameformatchanged = true;
+            pthread_mutex_unlock(&d->eventlock);
+        } else if (status == AMEDIACODEC_INFO_TRY_AGAIN_LATER){
+            //解码当前帧超时
+            LOGV("no output buffer right now");
+            idle = true;
+        } else{
+            LOGW("unexpected info code : %zd", status);
+        }
+    }
+
+    if(starved && idle){
+        //既没有样本也没有输出，不空转，等预读线程读到样本后由onDemuxData重新投递
+        if(d->throttleNs > 0){
+            waitForInputSlot(d);
+        }
+        return;
+    }
+    if(inputblocked && idle){
+        pollCodec(d);
+        return;
+    }
+    if(!d->sawInputEOS || !d->sawOutputEOS.load(std::memory_order_relaxed)){
+        //如果输入或者输出没有结束，就回调自己
+        postCodecWork(d);
+    }
+}
+
+//解码器flush或重新configure之后，从targetUs处重新开始解码，之前取到的缓冲区全部失效。
+//异步模式要在这之后再start，保证start之后的回调不会被清掉
+static void restartDecoding(workerdata *d, int64_t targetUs, int mode){
+    if(d->trickmode == kTrickKeyframes){
+        //只显示关键帧，没有精确seek；倒放时从目标之前的关键帧开始
+        mode = d->rate < 0 ? kSeekAccurate : kSeekNearestSync;
+    }
+    int64_t syncUs = mode == kSeekAccurate ? d->index->previousSync(targetUs)
+                                           : d->index->nearestSync(targetUs);
+    //预读的样本全部丢弃，预读线程seek后从新位置继续读
+    if(syncUs >= 0){
+        d->demux->seekTo(syncUs, AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+    } else{
+        //没有索引时交给extractor自己找关键帧
+        d->demux->seekTo(targetUs, mode == kSeekAccurate ?
+                AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC : AMEDIAEXTRACTOR_SEEK_CLOSEST_SYNC);
+    }
+    d->skipuntilUs = mode == kSeekAccurate && d->trickmode != kTrickKeyframes ? targetUs : -1;
+    if(d->audio){
+        //音频从视频第一帧显示的位置开始
+        d->audio->seekTo(d->skipuntilUs >= 0 || syncUs < 0 ? targetUs : syncUs);
+    }
+    d->trickdone = false;
+    pthread_mutex_lock(&d->eventlock);
+    clearQueued(d);
+    d->inputcount = 0;
+    d->outputcount = 0;
+    //交出去的帧随flush一起归还了解码器，之后释放的旧token都忽略
+    d->framegeneration++;
+    d->framesinflight = 0;
+    d->releasedcount = 0;
+    pthread_mutex_unlock(&d->eventlock);
+    d->framesdelivered = 0;
+    d->lastptsUs = -1;
+    //预读线程seek后从第0圈开始
+    d->loopiteration = -1;
+    d->loopreleaseNs = 0;
+    d->pending.index = -1;
+    d->pendinginput = -1;
+    d->starvedsinceNs = 0;
+    d->clock->reset();
+    d->sawInputEOS = false;
+    d->sawOutputEOS.store(false, std::memory_order_release);
+    if(!d->isPlaying){
+        d->renderonce = true;
+    }
+    postCodecWork(d);
+    LOGD("restart decoding at %lld (sync %lld)", (long long) targetUs, (long long) syncUs);
+}
+
+//占位的AImageReader只取出最新的图像并立即丢弃，让解码器的输出缓冲区能循环使用
+static void onPlaceholderImage(void *context, AImageReader *reader){
+    AImage *image = NULL;
+    if (AImageReader_acquireLatestImage(reader, &image) == AMEDIA_OK && image){
+        AImage_delete(image);
+    }
+}
+
+static ANativeWindow* placeholderWindow(workerdata *d){
+    if (!d->placeholder){
+        if (AImageReader_new(d->width, d->height, AIMAGE_FORMAT_PRIVATE, 2, &d->placeholder) != AMEDIA_OK){
+            LOGE("failed to create placeholder image reader %dx%d", d->width, d->height);
+            d->placeholder = NULL;
+            return NULL;
+        }
+        AImageReader_ImageListener listener = {NULL, onPlaceholderImage};
+        AImageReader_setImageListener(d->placeholder, &listener);
+    }
+    ANativeWindow *window = NULL;
+    AImageReader_getWindow(d->placeholder, &window);
+    return window;
+}
+
+//切换输出surface：能直接setOutputSurface时解码器不停；否则(configure时没有surface等)
+//重新configure，从当前显示的位置精确恢复
+static void switchSurface(workerdata *d, ANativeWindow *window){
+    int64_t startNs = systemnanotime();
+    //surface销毁后输出到占位的surface，解码器保持运行，回来时再直接切换
+    ANativeWindow *target = window ? window : placeholderWindow(d);
+    bool switched = !target && !d->surfacemode;
+    if (!switched && target && d->surfacemode){
+        switched = AMediaCodec_setOutputSurface(d->codec, target) == AMEDIA_OK;
+    }
+    if (!switched){
+        int64_t resumeUs = d->positionUs.load(std::memory_order_relaxed);
+        AMediaCodec_stop(d->codec);
+        if (d->async){
+            setupAsync(d, d->codec);
+        }
+        AMediaCodec_configure(d->codec, d->format, target, NULL, 0);
+        d->surfacemode = target != NULL;
+        restartDecoding(d, resumeUs, kSeekAccurate);
+        AMediaCodec_start(d->codec);
+        d->stats.add(kStatSurfaceReconfigures, 1);
+    }
+    if (d->window){
+        ANativeWindow_release(d->window);
+    }
+    d->window = window;
+    int64_t elapsedUs = (systemnanotime() - startNs) / 1000;
+    d->stats.add(kStatSurfaceSwitches, 1);
+    d->stats.add(kStatSurfaceSwitchUs, elapsedUs);
+    LOGI("surface switched to %p in %lld us (%s)", window, (long long) elapsedUs,
+         switched ? "setOutputSurface" : "reconfigure");
+}
+
+//播完后把surface交给播放列表的下一个播放器，在当前播放器的looper线程上调用
+static void playNext(workerdata *d){
+    pthread_mutex_lock(&d->eventlock);
+    workerdata *next = d->next;
+    //等最后一帧显示之后再断开surface，断开时还在队列里的帧可能被丢掉；
+    //不能在looper线程上睡眠等待，到时间由kMsgPlayNext再调用一次
+    bool waiting = next && d->lastdueNs > systemnanotime();
+    if (!waiting){
+        d->next = NULL;
+    }
+    pthread_mutex_unlock(&d->eventlock);
+    if (waiting){
+        d->looper->postAt(kMsgPlayNext, d, d->lastdueNs, kPostCoalesce);
+        return;
+    }
+    if (!next){
+        return;
+    }
+    //下一个片段的第一帧接在最后一帧之后一个帧间隔显示
+    int64_t startNs = d->lastdueNs > 0 ? d->lastdueNs + d->frameintervalUs * 1000 : 0;
+    ANativeWindow *window = d->window;
+    if (window){
+        //一个surface同一时间只能连接一个解码器，先切到占位surface
+        ANativeWindow_acquire(window);
+        switchSurface(d, NULL);
+    }
+    d->isPlaying = false;
+    d->clock->setPlaying(false);
+
+    pthread_mutex_lock(&next->eventlock);
+    next->pendingtakeoverstartNs = startNs;
+    next->pendingtakeoverfromNs = d->lastreleaseNs;
+    pthread_mutex_unlock(&next->eventlock);
+    //window的引用交给下一个播放器，先切surface再开始播放
+    requestSurface(next, window);
+    next->looper->post(kMsgTakeOver, next, kPostUrgent);
+    d->handedoff.store(true, std::memory_order_release);
+    LOGI("handing over to next player at %lld", (long long) startNs);
+}
+
+//打开失败或者没有视频轨道时的清理，之后的消息都忽略，由releasePlayer释放
+static void failOpen(workerdata *d, AMediaExtractor *ex){
+    closeExtractor(ex);
+    d->sawInputEOS = true;
+    d->sawOutputEOS.store(true, std::memory_order_release);
+    d->stats.set(kStatOpenUs, (systemnanotime() - d->createNs) / 1000);
+    if (d->onprepared){
+        d->onprepared(d, false, d->prepareddata);
+    }
+}
+
+//按当前的format配置解码器，失败时删除解码器返回NULL
+static AMediaCodec* configureDecoder(workerdata *d, AMediaCodec *codec){
+    if (!codec){
+        return NULL;
+    }
+    d->async = setupAsync(d, codec);
+    //预加载时配置到占位surface，交接时才能用setOutputSurface直接切换
+    ANativeWindow *target = d->window;
+    if (!target && d->preroll){
+        target = placeholderWindow(d);
+    }
+    d->surfacemode = target != NULL;
+    if (d->frames.onframe){
+        AMediaFormat_setInt32(d->format, AMEDIAFORMAT_KEY_COLOR_FORMAT, kColorFormatYUV420Flexible);
+    }
+    //configure：对编码器(mediacodec)进行配置
+    //format:解码的媒体格式   d->window:绑定surface  crypto:加密算法 flags:加密的格式
+    if (AMediaCodec_configure(codec, d->format, target, NULL, 0) == AMEDIA_OK){
+        return codec;
+    }
+    AMediaCodec_delete(codec);
+    d->stats.add(kStatCodecFallbacks, 1);
+    return NULL;
+}
+
+//依次尝试按名字指定的解码器、空闲解码器池里的、新建的；都失败时去掉性能配置的key再新建一次。
+//换成原始轨道格式时原来的d->format由调用者删除
+static AMediaCodec* openDecoder(workerdata *d, AMediaExtractor *ex, int track, const char *mime){
+    int64_t startNs = systemnanotime();
+    int profile = d->options.profile;
+    applyProfile(d->format, profile, d->codeckeys, sizeof(d->codeckeys));
+    AMediaCodec *codec = NULL;
+    bool pooled = false;
+    if (d->options.codecname[0]){
+        codec = configureDecoder(d, AMediaCodec_createCodecByName(d->options.codecname));
+        d->namedcodec = codec != NULL;
+        if (!codec){
+            LOGE("decoder %s unavailable, falling back to %s", d->options.codecname, mime);
+        }
+    }
+    if (!codec){
+        codec = claimDecoder(mime, d->width, d->height);
+        pooled = codec != NULL;
+        codec = configureDecoder(d, codec);
+        if (!codec && pooled){
+            LOGE("failed to configure %s decoder from pool", mime);
+        }
+    }
+    if (!codec){
+        pooled = false;
+        codec = configureDecoder(d, AMediaCodec_createDecoderByType(mime));
+    }
+    if (!codec && d->codeckeys[0]){
+        LOGE("failed to configure %s decoder with %s, retrying without profile", mime, d->codeckeys);
+        d->format = AMediaExtractor_getTrackFormat(ex, track);
+        d->codeckeys[0] = '\0';
+        profile = kProfileDefault;
+        codec = configureDecoder(d, AMediaCodec_createDecoderByType(mime));
+    }
+    if (codec){
+        codecName(codec, d->codecname, sizeof(d->codecname));
+        LOGI("decoder %s, profile %d %s", d->codecname, profile, d->codeckeys);
+    }
+    d->maxinputsinflight = profileMaxInputsInFlight(profile);
+    d->stats.set(kStatCodecProfile, profile);
+    d->stats.set(kStatCodecCreateUs, (systemnanotime() - startNs) / 1000);
+    d->stats.set(kStatCodecPooled, codec && pooled ? 1 : 0);
+    return codec;
+}
+
+//在looper线程上打开视频轨道并启动解码器，第一帧解码出来后显示
+static void openPlayer(workerdata *d){
+    if (d->opener){
+        d->source = d->opener(d->openerdata);
+        d->opener = NULL;
+        if (!d->source){
+            failOpen(d, NULL);
+            return;
+        }
+    }
+    AMediaExtractor *ex = openExtractor(d->source);
+    if (!ex){
+        failOpen(d, NULL);
+        return;
+    }
+
+    //获取轨道数
+    int numtracks = AMediaExtractor_getTrackCount(ex);
+
+    //负责媒体文件的编码和解码工作
+    AMediaCodec *codec = NULL;
+    int videotrack = -1;
+    int audiotrackindex = -1;
+
+    LOGD("input has %d tracks", numtracks);
+    for (int i = 0; i < numtracks; ++i) {
+        //MediaExtractor分离音频视频，然后通过getTrackFormat获取track的MediaFormat
+        AMediaFormat *format = AMediaExtractor_getTrackFormat(ex, i);
+        //toString放在参数里，日志去掉时不会调用
+        LOGD("track %d format: %s", i, AMediaFormat_toString(format));
+
+        const char *mime;   //  mime:"video/avc"：264格式的编解码
+        if (!AMediaFormat_getString(format, AMEDIAFORMAT_KEY_MIME, &mime)){
+            LOGW("no mime type");
+        }else if (!strncmp(mime, "audio/", 6)){
+            //第一条音频轨道，视频打开之后再打开
+            if (audiotrackindex < 0){
+                audiotrackindex = i;
+            }
+        }else if (!strncmp(mime, "video/", 6) && videotrack < 0){
+            //selectTrack可以选择指定的track通道
+            AMediaExtractor_selectTrack(ex, i);
+            videotrack = i;
+            //格式留着，切换surface需要重新configure、关闭时回收解码器要用
+            d->format = format;
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_WIDTH, &d->width);
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_HEIGHT, &d->height);
+            d->codectype = codecTypeForMime(mime);
+            codec = openDecoder(d, ex, i, mime);
+            LOGD("decoder runs in %s mode", d->async ? "async" : "sync");
+        }
+        if (format != d->format){
+            AMediaFormat_delete(format);
+        }
+    }
+
+    if (!codec){
+        LOGE(videotrack < 0 ? "no video track" : "no decoder");
+        if (d->format){
+            AMediaFormat_delete(d->format);
+            d->format = NULL;
+        }
+        failOpen(d, ex);
+        return;
+    }
+
+    d->demux = new demuxer(ex, &d->stats);//视频轨道，由预读线程读取
+    d->demux->setDataCallback(onDemuxData, d);
+    if (d->preroll){
+        //预加载只需要第一个GOP附近的数据，开始播放后恢复默认上限
+        d->demux->setHighWater(kPrerollHighWaterBytes);
+    }
+    //音频有自己的extractor、预读线程和解码线程，ByteBuffer输出模式只分析画面，不放声音
+    if (audiotrackindex >= 0 && !d->frames.onframe){
+        d->audio = new audiotrack(&d->stats);
+        if (d->audio->open(d->source, audiotrackindex)){
+            d->clock->setMaster(audiotrack::masterTime, d->audio);
+        } else{
+            delete d->audio;
+            d->audio = NULL;
+        }
+    }
+    d->clock->reset();//下一帧作为开始渲染时间
+    d->sawInputEOS = false;
+    d->sawOutputEOS.store(false, std::memory_order_release);
+    d->renderonce = true;
+    //异步回调可能在start之后立刻到来，要在codec赋值之后start
+    d->codec = codec;//解码器
+    AMediaCodec_start(codec);//调用start进入执行状态,开始解码
+    d->demux->start();
+    postCodecWork(d);
+
+    //关键帧索引只在打开时建立一次，在后台线程上扫描整个文件，不推迟第一帧；网络数据源不扫描
+    int64_t durationUs = 0;
+    AMediaFormat_getInt64(d->format, AMEDIAFORMAT_KEY_DURATION, &durationUs);
+    off64_t offset, length;
+    d->index->build(d->source, videotrack, durationUs, d->source->fd(&offset, &length) >= 0);
+
+    int64_t openUs = (systemnanotime() - d->createNs) / 1000;
+    d->stats.set(kStatOpenUs, openUs);
+    LOGI("opened in %lld us, decoder %s", (long long) openUs,
+         d->stats.get(kStatCodecPooled) ? "from pool" : "created");
+    d->prepared.store(true);
+    if (d->onprepared){
+        d->onprepared(d, true, d->prepareddata);
+    }
+}
+
+//把循环状态交给视频和音频的预读线程，两者用同一个周期：容器里视频和音频轨道时长中较长的那个
+static void applyLooping(workerdata *d){
+    bool loop = loopActive(d);
+    if(loop && d->loopperiodUs == 0){
+        int64_t durationUs = 0;
+        AMediaFormat_getInt64(d->format, AMEDIAFORMAT_KEY_DURATION, &durationUs);
+        if(d->audio){
+            durationUs = std::max(durationUs, d->audio->durationUs());
+        }
+        //容器里没有时长时由预读线程按时间戳推算，显示位置不取模
+        d->loopperiodUs = durationUs;
+        LOGI("loop period %lld us", (long long) durationUs);
+    }
+    d->demux->setLoop(loop, d->loopperiodUs);
+    if(d->audio){
+        d->audio->setLoop(loop, d->loopperiodUs);
+    }
+}
+
+//trace里显示的消息名，和kMsgCodecBuffer等的顺序一致
+static const char *kMsgNames[] = {
+        "msg codec buffer", "msg pause", "msg resume", "msg pause ack", "msg decode done", "msg seek",
+        "msg release", "msg set surface", "msg open", "msg play next", "msg take over", "msg set rate",
+        "msg set loop",
+};
+
+//此处重写了消息的处理方法
+void mylooper::handle(int what, void *obj) {
+    TRACE_SCOPE(what >= 0 && what < (int) (sizeof(kMsgNames) / sizeof(kMsgNames[0])) ? kMsgNames[what] : "msg");
+    if (obj){
+        workerdata *d = (workerdata*)obj;
+        if (d->released && what != kMsgRelease){
+            return;
+        }
+        //打开失败，只处理关闭
+        if (!d->codec && what != kMsgOpen && what != kMsgDecodeDone && what != kMsgRelease){
+            return;
+        }
+        d->wakeups++;
+    }
+    switch (what){
+        case kMsgCodecBuffer:
+            doCodecWork((workerdata*)obj);
+            break;
+
+        case kMsgOpen:
+            openPlayer((workerdata*)obj);
+            break;
+
+        case kMsgDecodeDone:{
+            workerdata *d = ((workerdata*)obj);
+            reportCodecLoad(d);
+            d->clock->setPlaying(false);
+            //先停音频，之后主时钟不再被调用
+            delete d->audio;
+            d->audio = NULL;
+            if (d->codec){
+                //stop之后不会再有回调，解码器交回空闲池给下一个播放器用
+                AMediaCodec_stop(d->codec);
+                if (d->namedcodec){
+                    //按名字指定的解码器不给按mime取用的播放器
+                    AMediaCodec_delete(d->codec);
+                } else{
+                    const char *mime = NULL;
+                    AMediaFormat_getString(d->format, AMEDIAFORMAT_KEY_MIME, &mime);
+                    recycleDecoder(d->codec, mime, d->width, d->height);
+                }
+                d->codec = NULL;
+            }
+            if (d->placeholder){
+                AImageReader_delete(d->placeholder);
+                d->placeholder = NULL;
+            }
+            if (d->format){
+                AMediaFormat_delete(d->format);
+                d->format = NULL;
+            }
+            //等预读线程退出，之后不会再有onDemuxData投递的消息
+            delete d->demux;
+            d->demux = NULL;
+            d->sawInputEOS = true;
+            d->sawOutputEOS.store(true, std::memory_order_release);
+            d->released = true;
+            //解码器已经stop，不会再有回调；等帧显示时间的定时消息取消，排在普通消息最后就没有该播放器的消息了
+            cancel(d);
+            post(kMsgRelease, d);
+            LOGI("关机");
+        }break;
+
+        case kMsgRelease:{
+            workerdata *d = (workerdata*)obj;
+            sem_post(&d->releasedsem);
+        }break;
+
+        case kMsgSeek:{
+            workerdata *d = (workerdata*)obj;
+            //取最新的seek目标，之前被覆盖的请求不再执行
+            pthread_mutex_lock(&d->eventlock);
+            int64_t targetUs = d->pendingseekUs;
+            int mode = d->pendingseekmode;
+            d->seekstartNs = d->pendingseekstartNs;
+            d->seekposted = false;
+            pthread_mutex_unlock(&d->eventlock);
+
+            AMediaCodec_flush(d->codec);
+            restartDecoding(d, targetUs, mode);
+            if(d->async){
+                //flush之后异步模式需要重新start才会继续回调
+                AMediaCodec_start(d->codec);
+            }
+        }break;
+
+        case kMsgSetRate:{
+            workerdata *d = (workerdata*)obj;
+            pthread_mutex_lock(&d->eventlock);
+            float rate = d->pendingrate;
+            d->rateposted = false;
+            pthread_mutex_unlock(&d->eventlock);
+            int mode = rate < 0 || rate > kMaxReferenceRate ? kTrickKeyframes
+                     : rate > kMaxDecodeAllRate ? kTrickReference : kTrickAll;
+            //进出只解码关键帧的方式时，解码器里按原来方式送进去的样本作废，从当前位置重新开始
+            bool restart = (mode == kTrickKeyframes) != (d->trickmode == kTrickKeyframes)
+                    || (mode == kTrickKeyframes && (rate < 0) != (d->rate < 0));
+            LOGI("playback rate %.2f -> %.2f, mode %d -> %d", d->rate, rate, d->trickmode, mode);
+            d->rate = rate;
+            d->trickmode = mode;
+            d->clock->setRate(rate);
+            if(d->looping){
+                applyLooping(d);
+            }
+            if(d->audio){
+                d->audio->setRate(rate, d->positionUs.load(std::memory_order_relaxed));
+            }
+            if(restart){
+                AMediaCodec_flush(d->codec);
+                restartDecoding(d, d->positionUs.load(std::memory_order_relaxed), kSeekAccurate);
+                if(d->async){
+                    AMediaCodec_start(d->codec);
+                }
+            } else if(d->isPlaying){
+                //等待中的帧按新的速度重新计算显示时间
+                postCodecWork(d);
+            }
+        }break;
+
+        case kMsgSetLoop:{
+            workerdata *d = (workerdata*)obj;
+            pthread_mutex_lock(&d->eventlock);
+            bool looping = d->pendinglooping;
+            pthread_mutex_unlock(&d->eventlock);
+            if (looping == d->looping){
+                break;
+            }
+            d->looping = looping;
+            applyLooping(d);
+            LOGI("looping %s", looping ? "on" : "off");
+            if (loopActive(d) && d->sawOutputEOS.load(std::memory_order_relaxed)){
+                //已经播完，从头开始
+                requestSeek(d, 0, kSeekNearestSync);
+            }
+        }break;
+
+        case kMsgSetSurface:{
+            workerdata *d = (workerdata*)obj;
+            //取最新的window，之前被覆盖的请求已经在requestSurface里释放
+            pthread_mutex_lock(&d->eventlock);
+            ANativeWindow *window = d->pendingwindow;
+            d->pendingwindow = NULL;
+            d->surfaceposted = false;
+            pthread_mutex_unlock(&d->eventlock);
+            if (window != d->window){
+                switchSurface(d, window);
+            } else if (window){
+                ANativeWindow_release(window);
+            }
+        }break;
+
+        case kMsgPlayNext:{
+            workerdata *d = (workerdata*)obj;
+            //设置下一个播放器时已经播完，或者最后一帧的显示时间到了，交接surface
+            if (d->sawOutputEOS.load(std::memory_order_relaxed)){
+                playNext(d);
+            }
+        }break;
+
+        case kMsgTakeOver:{
+            workerdata *d = (workerdata*)obj;
+            pthread_mutex_lock(&d->eventlock);
+            int64_t startNs = d->pendingtakeoverstartNs;
+            int64_t fromNs = d->pendingtakeoverfromNs;
+            pthread_mutex_unlock(&d->eventlock);
+            d->preroll = false;
+            d->demux->setHighWater(kDemuxHighWaterBytes);
+            if (!d->isPlaying){
+                d->takeoverfromNs = fromNs;
+                //还没来得及预加载好时已经过了预定时间，立即开始
+                if (startNs > systemnanotime()){
+                    d->clock->startAt(startNs);
+                } else{
+                    d->clock->reset();
+                }
+                d->clock->setPlaying(true);
+                d->isPlaying = true;
+                if (d->audio){
+                    d->audio->setPlaying(true);
+                }
+                postCodecWork(d);
+            }
+        }break;
+
+        case kMsgPause:{
+            workerdata *d = (workerdata*)obj;
+            pthread_mutex_lock(&d->eventlock);
+            int64_t requestNs = d->pausestartNs;
+            d->pausestartNs = 0;
+            pthread_mutex_unlock(&d->eventlock);
+            if (requestNs > 0){
+                //处理之后不再渲染新的帧，从请求到这里就是暂停生效的耗时
+                int64_t latencyNs = systemnanotime() - requestNs;
+                d->stats.set(kStatPauseLatencyUs, latencyNs / 1000);
+                d->pauselatencyNs.store(latencyNs);
+            }
+            if (d->isPlaying){
+                d->isPlaying = false;
+                d->clock->setPlaying(false);
+                if (d->audio){
+                    d->audio->setPlaying(false);
+                }
+            }
+        }break;
+
+        case kMsgResume:{
+            workerdata *d = (workerdata*)obj;
+            if (!d->isPlaying){
+                if (d->preroll){
+                    d->preroll = false;
+                    d->demux->setHighWater(kDemuxHighWaterBytes);
+                }
+                //暂停前提前提交的帧可能还没显示，下一帧接在它后面，快速切换暂停时不能越播越快
+                int64_t startNs = d->lastdueNs > 0 ? d->lastdueNs + d->frameintervalUs * 1000 : 0;
+                if (startNs > systemnanotime()){
+                    d->clock->startAt(startNs);
+                } else{
+                    d->clock->reset();
+                }
+                d->clock->setPlaying(true);
+                d->isPlaying = true;
+                if (d->audio){
+                    //吞吐量测试不按时间播放，声音对不上，不放
+                    d->audio->setPlaying(!d->unpaced.load());
+                }
+                postCodecWork(d);
+            }
+        }break;
+    }
+}
+
+static workerdata* newPlayer(datasource *source, sourceopener opener, void *openerdata,
+        ANativeWindow *window, preparedcallback callback, void *userdata, int flags,
+        const framesink *frames, const codecoptions *options){
+    //用于保存当前播放用到的一些标志位
+    workerdata *d = new workerdata();
+    d->createNs = systemnanotime();
+    d->firstframeNs.store(-1);
+    d->source = source;
+    d->opener = opener;
+    d->openerdata = openerdata;
+    d->window = window;
+    d->prepared.store(false);
+    d->onprepared = callback;
+    d->prepareddata = userdata;
+
+    d->looper = acquireLooper(&d->sharedlooper);
+    pthread_mutex_init(&d->eventlock, NULL);
+    d->demux = NULL;
+    d->codec = NULL;
+    d->async = false;
+    d->inputhead = d->inputcount = 0;
+    d->outputhead = d->outputcount = 0;
+    d->wakeups = 0;
+    d->playedUs = 0;
+    d->lastptsUs = -1;
+    d->processcpustart = cpunanotime(CLOCK_PROCESS_CPUTIME_ID);
+    d->pending.index = -1;
+    d->pendinginput = -1;
+    d->starvedsinceNs = 0;
+    d->queuednext = 0;
+    d->latencycount = 0;
+    clearQueued(d);
+    d->clock = new playbackclock();
+    d->audio = NULL;
+    d->index = new seekindex();
+    d->sawInputEOS = false;
+    d->sawOutputEOS.store(false, std::memory_order_release);
+    d->isPlaying = false;
+    d->renderonce = false;
+    d->skipuntilUs = -1;
+    d->seeklatencyNs.store(0);
+    d->pausestartNs = 0;
+    d->pauselatencyNs.store(0);
+    d->positionUs.store(0);
+    d->pendinglooping = false;
+    d->looping = false;
+    d->loopperiodUs = 0;
+    d->loopiteration = -1;
+    d->loopreleaseNs = 0;
+    d->surfacemode = d->window != NULL;
+    d->format = NULL;
+    d->width = d->height = 0;
+    d->placeholder = NULL;
+    d->surfaceposted = false;
+    d->pendingwindow = NULL;
+    d->rateposted = false;
+    d->pendingrate = 1.0f;
+    d->rate = 1.0f;
+    d->trickmode = kTrickAll;
+    d->codectype = kCodecOther;
+    d->trickdone = false;
+    if (frames){
+        d->frames = *frames;
+        //归还的token最多暂存kMaxCodecBuffers个，留一半给seek之前交出的旧帧
+        d->frames.maxinflight = std::min(std::max(frames->maxinflight, 1), kMaxCodecBuffers / 2);
+    } else{
+        memset(&d->frames, 0, sizeof(d->frames));
+    }
+    if (options){
+        d->options = *options;
+    } else{
+        memset(&d->options, 0, sizeof(d->options));
+    }
+    d->codecname[0] = '\0';
+    d->codeckeys[0] = '\0';
+    d->namedcodec = false;
+    d->maxinputsinflight = 0;
+    d->throttleNs = 0;
+    d->frameformatchanged = true;
+    d->framesinflight = 0;
+    d->framegeneration = 0;
+    d->releasedcount = 0;
+    d->firstdeliverNs = 0;
+    d->framesdelivered = 0;
+    d->preroll = (flags & kPlayerPreroll) != 0;
+    d->next = NULL;
+    d->handedoff.store(false);
+    d->lastdueNs = 0;
+    d->lastreleaseNs = 0;
+    d->frameintervalUs = 0;
+    d->pendingtakeoverstartNs = 0;
+    d->pendingtakeoverfromNs = 0;
+    d->takeoverfromNs = 0;
+    sem_init(&d->releasedsem, 0, 0);
+
+    //打开排在该播放器的第一条消息，之后的请求都在打开之后处理
+    d->looper->post(kMsgOpen, d, kPostUrgent);
+    return d;
+}
+
+workerdata* createPlayer(datasource *source, ANativeWindow *window,
+        preparedcallback callback, void *userdata, int flags, const framesink *frames,
+        const codecoptions *options){
+    return newPlayer(source, NULL, NULL, window, callback, userdata, flags, frames, options);
+}
+
+workerdata* createPlayer(sourceopener opener, void *openerdata, ANativeWindow *window,
+        preparedcallback callback, void *userdata, int flags, const framesink *frames,
+        const codecoptions *options){
+    return newPlayer(NULL, opener, openerdata, window, callback, userdata, flags, frames, options);
+}
+
+void requestSeek(workerdata *d, int64_t timeUs, int mode){
+    pthread_mutex_lock(&d->eventlock);
+    d->pendingseekUs = timeUs;
+    d->pendingseekmode = mode;
+    //seek耗时从最新的请求算起
+    d->pendingseekstartNs = systemnanotime();
+    d->seeklatencyNs.store(-1);
+    bool post = !d->seekposted;
+    d->seekposted = true;
+    pthread_mutex_unlock(&d->eventlock);
+    if (post){
+        d->looper->post(kMsgSeek, d, kPostUrgent);
+    }
+}
+
+void requestPlaying(workerdata *d, bool playing){
+    if (!playing){
+        pthread_mutex_lock(&d->eventlock);
+        d->pausestartNs = systemnanotime();
+        d->pauselatencyNs.store(-1);
+        pthread_mutex_unlock(&d->eventlock);
+    }
+    d->looper->post(playing ? kMsgResume : kMsgPause, d, kPostUrgent);
+}
+
+void setLooping(workerdata *d, bool looping){
+    pthread_mutex_lock(&d->eventlock);
+    d->pendinglooping = looping;
+    pthread_mutex_unlock(&d->eventlock);
+    //只取最新的请求
+    d->looper->post(kMsgSetLoop, d, kPostUrgent | kPostCoalesce);
+}
+
+void requestPlaybackRate(workerdata *d, float rate){
+    float speed = rate < 0 ? -rate : rate;
+    speed = std::min(std::max(speed, kMinPlaybackRate), kMaxPlaybackRate);
+    pthread_mutex_lock(&d->eventlock);
+    d->pendingrate = rate < 0 ? -speed : speed;
+    bool post = !d->rateposted;
+    d->rateposted = true;
+    pthread_mutex_unlock(&d->eventlock);
+    if (post){
+        d->looper->post(kMsgSetRate, d, kPostUrgent);
+    }
+}
+
+void requestSurface(workerdata *d, ANativeWindow *window){
+    if (d->frames.onframe){
+        //ByteBuffer输出模式没有surface
+        if (window){
+            ANativeWindow_release(window);
+        }
+        return;
+    }
+    pthread_mutex_lock(&d->eventlock);
+    //还没处理的请求被新的请求覆盖
+    if (d->pendingwindow){
+        ANativeWindow_release(d->pendingwindow);
+    }
+    d->pendingwindow = window;
+    bool post = !d->surfaceposted;
+    d->surfaceposted = true;
+    pthread_mutex_unlock(&d->eventlock);
+    if (post){
+        d->looper->post(kMsgSetSurface, d, kPostUrgent);
+    }
+}
+
+void setNextPlayer(workerdata *d, workerdata *next){
+    pthread_mutex_lock(&d->eventlock);
+    d->next = next;
+    pthread_mutex_unlock(&d->eventlock);
+    if (next){
+        d->looper->post(kMsgPlayNext, d, kPostUrgent);
+    }
+}
+
+void releaseFrame(workerdata *d, int64_t token){
+    pthread_mutex_lock(&d->eventlock);
+    if (d->releasedcount < kMaxCodecBuffers){
+        d->releasedframes[d->releasedcount++] = token;
+    }
+    postCodecWork(d);
+    pthread_mutex_unlock(&d->eventlock);
+}
+
+void releasePlayer(workerdata *d){
+    d->looper->post(kMsgDecodeDone, d, kPostUrgent);
+    sem_wait(&d->releasedsem);
+    releaseLooper(d->looper);
+    if (d->window){
+        ANativeWindow_release(d->window);
+    }
+    if (d->pendingwindow){
+        ANativeWindow_release(d->pendingwindow);
+    }
+    delete d->clock;
+    delete d->index;
+    if (d->source){
+        d->source->release();
+    }
+    sem_destroy(&d->releasedsem);
+    pthread_mutex_destroy(&d->eventlock);
+    delete d;
+}
+
+
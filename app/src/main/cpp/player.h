@@ -0,0 +1,292 @@
+//
+// 播放器实例：每个实例拥有自己的extractor、解码器、surface和时钟，looper线程按策略独占或共享
+//
+
+#pragma once
+
+#include <pthread.h>
+#include <semaphore.h>
+#include <sys/types.h>
+
+#include "audiotrack.h"
+#include "codecprofile.h"
+#include "datasource.h"
+#include "demuxer.h"
+#include "looper.h"
+#include "playbackclock.h"
+#include "playerstats.h"
+#include "seekindex.h"
+#include "media/NdkImageReader.h"
+#include "media/NdkMediaCodec.h"
+#include "media/NdkMediaExtractor.h"
+
+#include <android/native_window.h>
+
+//异步模式下解码器回调暂存的缓冲区个数上限，解码器实际使用的缓冲区远少于此
+#define kMaxCodecBuffers 64
+
+//解码耗时统计保留最近这么多帧
+#define kMaxLatencySamples 4096
+
+//异步回调交给looper线程处理的输出缓冲区
+typedef struct {
+    int32_t index;
+    AMediaCodecBufferInfo info;
+} codecoutput;
+
+//mylooper继承自looper
+//virtual：定义虚函数的关键字
+class mylooper: public looper{
+    virtual void handle(int what, void* obj);
+};
+
+struct workerdata;
+//打开完成的通知，运行在looper线程上，prepared为false表示打开失败
+typedef void (*preparedcallback)(struct workerdata *d, bool prepared, void *userdata);
+//在looper线程上打开数据源，返回的引用交给播放器，失败返回NULL。只调用一次，userdata由回调自己释放
+typedef datasource* (*sourceopener)(void *userdata);
+
+//ByteBuffer输出模式：不输出到surface，解码出的YUV帧直接交给调用者分析，回调都运行在looper线程上
+typedef struct {
+    //输出格式变化，第一帧之前至少调用一次；format只在回调期间有效
+    void (*onformat)(struct workerdata *d, AMediaFormat *format, void *userdata);
+    //data指向解码器的输出缓冲区，调用releaseFrame(d, token)之前一直有效；fps为从第一帧算起的持续帧率
+    void (*onframe)(struct workerdata *d, int64_t token, int32_t index, uint8_t *data, size_t size,
+                    int64_t ptsUs, double fps, void *userdata);
+    void *userdata;
+    //同时交给调用者、还没有释放的帧数上限，达到后解码器暂停输出
+    int maxinflight;
+} framesink;
+
+//定义一个结构体，并取名为workerdata。相当于自定义一个数据类型
+typedef struct workerdata {
+    //打开时用来建立extractor和关键帧索引，播放器持有一个引用；用opener创建时打开之前为NULL
+    datasource *source;
+    sourceopener opener;
+    void *openerdata;
+    //打开在looper线程上进行，完成后置位并回调onprepared；失败时解码器为NULL，之后的消息都忽略
+    std::atomic<bool> prepared;
+    preparedcallback onprepared;
+    void *prepareddata;
+    //当前的输出surface，NULL表示没有surface(输出到占位的placeholder或者不输出)
+    ANativeWindow* window;
+    //性能配置和指定的解码器，打开时使用
+    codecoptions options;
+    //实际使用的解码器的组件名和加上的key，打开完成之前写好
+    char codecname[128];
+    char codeckeys[128];
+    //用的是按名字指定的解码器，关闭时不放回空闲解码器池
+    bool namedcodec;
+    //送进解码器、还没有输出的样本数上限，0表示不限；因为上限没有送样本时还要等多久，0表示没有被限制
+    int maxinputsinflight;
+    int64_t throttleNs;
+    //解码器configure时是否带surface，带surface时才能用setOutputSurface直接切换
+    bool surfacemode;
+    //视频轨道格式，重新configure时使用
+    AMediaFormat *format;
+    int32_t width;
+    int32_t height;
+    //surface被销毁(比如切到后台)时解码器改为输出到这个不显示的AImageReader，不用重建解码器
+    AImageReader *placeholder;
+    //预读线程，拥有extractor
+    demuxer *demux;
+    AMediaCodec *codec;
+    playbackclock *clock;
+    //音频轨道，打开后作为clock的主时钟；没有音频、ByteBuffer输出模式或者打开失败时为NULL
+    audiotrack *audio;
+    seekindex *index;
+    playerstats stats;
+    bool sawInputEOS;
+    //只在looper线程上写，isEndOfStream从其他线程轮询：写用release，其他线程读用acquire
+    std::atomic<bool> sawOutputEOS;
+    bool isPlaying;
+    bool renderonce;
+
+    //处理这个播放器消息的looper，共享时同一线程上还有其他播放器
+    mylooper *looper;
+    bool sharedlooper;
+    //不按时间戳等待，解码出来就释放，用于测试解码吞吐量；JNI线程设置，looper线程读取
+    std::atomic<bool> unpaced;
+    //kMsgDecodeDone之后置位，此后该播放器残留的消息都忽略
+    bool released;
+    sem_t releasedsem;
+
+    //预加载：打开后解码好第一帧但不显示，直到kMsgTakeOver或者恢复播放
+    bool preroll;
+    //播放列表中的下一个播放器，播完后把surface交给它，由eventlock保护
+    struct workerdata *next;
+    //surface已经交给next、kMsgTakeOver已经投递；在这之前关闭会取消等最后一帧显示的定时交接
+    std::atomic<bool> handedoff;
+    //最近渲染的帧的显示时刻、提交时刻和时间戳间隔，交接时下一个片段接在后面
+    int64_t lastdueNs;
+    int64_t lastreleaseNs;
+    int64_t frameintervalUs;
+    //上一个片段交接过来的参数，由eventlock保护
+    int64_t pendingtakeoverstartNs;
+    int64_t pendingtakeoverfromNs;
+    //交接后第一帧显示时计算间隔，0表示不在交接中
+    int64_t takeoverfromNs;
+
+    //ByteBuffer输出模式，onframe为NULL时输出到surface
+    framesink frames;
+    //输出格式变化后要在下一帧之前通知调用者，由eventlock保护
+    bool frameformatchanged;
+    //交给调用者还没有释放的帧数，只在looper线程上访问
+    int framesinflight;
+    //flush或重新configure后加一，之前交出去的帧的token失效
+    uint32_t framegeneration;
+    //调用者释放的帧，由eventlock保护，looper线程上归还给解码器
+    int64_t releasedframes[kMaxCodecBuffers];
+    int releasedcount;
+    //持续帧率：第一帧交出的时间和之后交出的帧数
+    int64_t firstdeliverNs;
+    int64_t framesdelivered;
+
+    //异步回调模式：解码器线程只把可用的缓冲区序号放进队列，由looper线程处理
+    bool async;
+    pthread_mutex_t eventlock;
+    int32_t inputs[kMaxCodecBuffers];
+    int inputhead;
+    int inputcount;
+    codecoutput outputs[kMaxCodecBuffers];
+    int outputhead;
+    int outputcount;
+
+    //seek请求：快速拖动时只保留最新的目标，looper上最多只有一条kMsgSeek
+    bool seekposted;
+    int64_t pendingseekUs;
+    int pendingseekmode;
+    int64_t pendingseekstartNs;
+    //播放速度请求：只保留最新的速度，looper上最多只有一条kMsgSetRate
+    bool rateposted;
+    float pendingrate;
+    //当前播放速度，负数为倒放；trickmode由速度决定，控制哪些样本送进解码器
+    float rate;
+    int trickmode;
+    //H.264/H.265时能在送进解码器之前判断样本是否被参考
+    int codectype;
+    //只解码关键帧时已经送到了第一个关键帧(倒放)，不再送样本
+    bool trickdone;
+    //setSurface请求：只保留最新的window，looper上最多只有一条kMsgSetSurface
+    bool surfaceposted;
+    ANativeWindow *pendingwindow;
+
+    //精确seek时目标之前的帧只解码不显示，-1表示不跳过
+    int64_t skipuntilUs;
+    //从最新一次seek请求到目标帧显示的耗时，seek进行中为-1
+    int64_t seekstartNs;
+    std::atomic<int64_t> seeklatencyNs;
+    //暂停请求的时间，由eventlock保护；从请求到looper线程处理的耗时，还没处理为-1
+    int64_t pausestartNs;
+    std::atomic<int64_t> pauselatencyNs;
+    //最近显示的帧的时间戳，循环播放时是在这一圈里的位置
+    std::atomic<int64_t> positionUs;
+    //循环播放的请求，由eventlock保护；looping为looper线程上的当前状态，只解码关键帧时暂不循环
+    bool pendinglooping;
+    bool looping;
+    //每圈的时长，打开过循环之后不为0，预读线程送出的时间戳每圈加上这么多
+    int64_t loopperiodUs;
+    //最近显示的帧在第几圈(-1表示seek后还没有显示)和它的提交时刻，用来算回绕处的间隔
+    int64_t loopiteration;
+    int64_t loopreleaseNs;
+
+    //首帧耗时：从createPlayer开始到第一帧显示，还没显示时为-1
+    int64_t createNs;
+    std::atomic<int64_t> firstframeNs;
+    //解码耗时：样本送进解码器的时间，按时间戳和解码出的帧匹配，由eventlock保护
+    int64_t queuedptsUs[kMaxCodecBuffers];
+    int64_t queuedNs[kMaxCodecBuffers];
+    int queuednext;
+    int32_t decodelatencyUs[kMaxLatencySamples];
+    int64_t latencycount;
+
+    //还没到显示时间的输出缓冲区(同步模式)，index为-1表示没有
+    codecoutput pending;
+    //已经取到、但预读缓冲区为空还没填的输入缓冲区(同步模式)，-1表示没有
+    ssize_t pendinginput;
+    //预读缓冲区开始为空的时间，0表示没有在等样本
+    int64_t starvedsinceNs;
+    int64_t waitNs;
+
+    //解码线程负载统计：每播放一秒消耗的CPU时间和唤醒次数
+    int64_t wakeups;
+    int64_t processcpustart;
+    int64_t playedUs;
+    int64_t lastptsUs;
+} workerdata;
+
+//enum：枚举。所谓枚举是指将变量的值一一列举出来，变量只限于列举出来的值的范围内取值。
+enum {
+    kMsgCodecBuffer,
+    kMsgPause,
+    kMsgResume,
+    kMsgPauseAck,
+    kMsgDecodeDone,
+    kMsgSeek,
+    kMsgRelease,
+    kMsgSetSurface,
+    kMsgOpen,
+    kMsgPlayNext,
+    kMsgTakeOver,
+    kMsgSetRate,
+    kMsgSetLoop,
+};
+
+//createPlayer的flags
+enum {
+    //预加载播放列表的下一项：没有window时输出到占位surface，解码好第一帧后不显示，预读的数据量也更少
+    kPlayerPreroll = 1,
+};
+
+//快进快退时送进解码器的样本
+enum {
+    kTrickAll,          //全部解码，只按速度调整显示时间
+    kTrickReference,    //丢掉不被参考的帧，解码量随速度增长得更慢
+    kTrickKeyframes,    //只解码关键帧，按速度跳到后面(倒放时前面)的关键帧，解码量有上限
+};
+
+//seek方式，和MainActivity中的SEEK_*常量对应
+enum {
+    kSeekNearestSync,   //跳到最近的关键帧，最快
+    kSeekAccurate,      //从前一个关键帧开始解码，目标之前的帧不显示
+};
+
+//之后创建的播放器共享最多maxThreads个looper线程，0表示每个播放器独占一个线程
+void setThreadPolicy(int maxThreads);
+
+//立即返回，打开文件、创建解码器在looper线程上进行，完成后回调callback。source和window的引用交给播放器。
+//返回的播放器马上可以使用，打开完成之前发出的请求排在打开之后处理
+//frames不为NULL时使用ByteBuffer输出模式，window要为NULL；options为NULL时按mime选择解码器，不加性能配置
+workerdata* createPlayer(datasource *source, ANativeWindow *window,
+        preparedcallback callback, void *userdata, int flags = 0, const framesink *frames = NULL,
+        const codecoptions *options = NULL);
+//和上面相同，但数据源也在looper线程上由opener(openerdata)打开，调用者不会被本地文件、asset或者网络请求阻塞。
+//打不开时回调callback(d, false, userdata)
+workerdata* createPlayer(sourceopener opener, void *openerdata, ANativeWindow *window,
+        preparedcallback callback, void *userdata, int flags = 0, const framesink *frames = NULL,
+        const codecoptions *options = NULL);
+//d播完最后一帧后把surface交给next(用kPlayerPreroll创建)，next的第一帧接在d的最后一帧之后显示，
+//d已经播完时立即交接。next为NULL表示取消；关闭next之前要先取消。
+//交接要等d的最后一帧显示之后，d->handedoff置位之前不要关闭d
+void setNextPlayer(workerdata *d, workerdata *next);
+//ByteBuffer输出模式下归还onframe交出的帧，可以在任意线程调用，seek之后归还之前的帧会被忽略
+void releaseFrame(workerdata *d, int64_t token);
+//播放或暂停，可以在任意线程调用；和seek等控制消息一样排在解码消息前面处理
+void requestPlaying(workerdata *d, bool playing);
+//可以在任意线程调用，还没处理的seek请求会被新的请求覆盖
+void requestSeek(workerdata *d, int64_t timeUs, int mode);
+//播放速度，负数为倒放，绝对值限制在1/16~64倍。可以在任意线程调用，还没处理的请求会被新的请求覆盖
+void requestPlaybackRate(workerdata *d, float rate);
+//循环播放：播到结尾时不停，开头的GOP缓存在内存里，回绕时解码器不flush、时间戳接着往后排。
+//可以在任意线程调用，已经播完时从头开始
+void setLooping(workerdata *d, bool looping);
+//切换输出surface，window的引用交给播放器，NULL表示surface已销毁。可以在任意线程调用，
+//解码器不重建、播放位置不变
+void requestSurface(workerdata *d, ANativeWindow *window);
+//填入kStatCount个计数器的当前值，可以在任意线程调用
+void snapshotStats(workerdata *d, int64_t *out);
+//复制最近最多max帧的解码耗时(微秒)，返回个数
+int copyDecodeLatencies(workerdata *d, int64_t *out, int max);
+//等待looper处理完该播放器的所有消息后释放
+void releasePlayer(workerdata *d);
+
@@ -0,0 +1,39 @@
+//
+// 性能计数器的实现
+//
+
+#include "playerstats.h"
+
+#define kMs 1000000LL
+
+static const int64_t latenessedges[] = {0, 2 * kMs, 4 * kMs, 8 * kMs, 16 * kMs, 33 * kMs, 66 * kMs};
+static const int64_t driftedges[] = {-16 * kMs, -8 * kMs, -2 * kMs, 2 * kMs, 8 * kMs, 16 * kMs};
+
+//返回value落在的区间，edges为各区间的上界(含)
+static int bucketOf(int64_t value, const int64_t *edges, int count){
+    int i = 0;
+    while (i < count && value > edges[i]){
+        i++;
+    }
+    return i;
+}
+
+playerstats::playerstats(){
+    for (int i = 0; i < kStatCount; ++i) {
+        values[i].store(0, std::memory_order_relaxed);
+    }
+}
+
+void playerstats::recordLateness(int64_t lateNs) {
+    add(kStatLatenessHist + bucketOf(lateNs, latenessedges, 7), 1);
+}
+
+void playerstats::recordDrift(int64_t driftNs) {
+    add(kStatDriftHist + bucketOf(driftNs, driftedges, 6), 1);
+}
+
+void playerstats::snapshot(int64_t *out) const {
+    for (int i = 0; i < kStatCount; ++i) {
+        out[i] = values[i].load(std::memory_order_relaxed);
+    }
+}
@@ -0,0 +1,82 @@
+//
+// 每个播放器的性能计数器：解码线程用relaxed原子操作累加，任意线程可以随时读快照，读写都不加锁、不分配内存
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <atomic>
+
+//快照中各项的位置，和PlayerStats.java中的常量一一对应，只能在末尾追加
+enum {
+    kStatFramesQueued,      //送进解码器的样本数
+    kStatFramesDecoded,     //解码出的帧数
+    kStatFramesRendered,
+    kStatFramesDropped,     //迟到超过阈值没有渲染的帧
+    kStatFramesLate,        //渲染了但晚于预定时间的帧
+    kStatInputWaitUs,       //等输入缓冲区和等预读样本的时间
+    kStatOutputWaitUs,      //等输出缓冲区的时间(同步模式的dequeueOutputBuffer)
+    kStatReadUs,            //预读线程在extractor里读样本的时间
+    kStatSamplesRead,
+    kStatDemuxStarvations,
+    kStatDemuxFullWaits,
+    kStatDemuxCount,        //当前预读的样本数
+    kStatDemuxBytes,
+    kStatDemuxReads,        //从预读缓冲区取样本的次数
+    kStatDemuxOccupancySum, //每次取样本时缓冲的样本数之和，除以kStatDemuxReads就是平均占用
+    //迟到时间直方图：<=0、<=2、<=4、<=8、<=16、<=33、<=66、>66ms
+    kStatLatenessHist,
+    //显示时刻(对齐后的vsync)相对时钟预定时刻的偏差直方图：<=-16、<=-8、<=-2、<=2、<=8、<=16、>16ms
+    //没有音频时时钟就是系统时间，偏差来自对齐vsync；有音频时时钟是音频实际播出的位置，偏差就是音画不同步
+    kStatDriftHist = kStatLatenessHist + 8,
+    kStatSurfaceSwitches = kStatDriftHist + 7,
+    kStatSurfaceReconfigures,   //不能直接切换、重新configure解码器的次数
+    kStatSurfaceSwitchUs,       //切换surface花的总时间
+    kStatOpenUs,                //从createPlayer到打开完成的时间
+    kStatCodecCreateUs,         //取得解码器(从池里取或新建)的时间
+    kStatCodecPooled,           //解码器来自空闲解码器池时为1
+    kStatFrameBackpressure,     //ByteBuffer输出模式下交出的帧达到上限、解码器等调用者释放的次数
+    kStatHandoverGapUs,         //播放列表中上一个片段最后一帧到这个片段第一帧的显示间隔
+    kStatFrameIntervalUs,       //最近两帧的时间戳间隔，和上一项对比
+    kStatSamplesSkipped,        //快进快退时没有送进解码器就丢掉的样本数
+    kStatKeyframeJumps,         //只解码关键帧时跳到下一个关键帧的次数
+    kStatCodecProfile,          //实际生效的性能配置(kProfile*)，key被拒绝后退回kProfileDefault
+    kStatCodecFallbacks,        //configure失败、换下一个解码器的次数
+    kStatInputThrottled,        //低延迟配置下解码器里的样本达到上限、暂缓送样本的次数
+    kStatAudioUnderruns,        //AAudio回调时环形缓冲区里的PCM不够、补了静音的次数
+    kStatAudioXRuns,            //AAudio报告的设备缓冲区欠载次数，每次欠载后缓冲区加大一个burst
+    kStatAudioLatencyUs,        //写进AAudio的最后一帧到从设备播出的时间
+    kStatAudioCallbackUs,       //最长的一次AAudio数据回调耗时
+    kStatAvDriftUs,             //最近一帧视频的显示时刻相对音频播到同一时间戳的时刻，正数为视频晚
+    kStatPauseLatencyUs,        //最近一次暂停从请求到looper线程处理、不再渲染新帧的时间
+    kStatLoops,                 //循环播放回绕的次数
+    kStatLoopGapUs,             //最近一次回绕前后两帧的提交间隔，和kStatFrameIntervalUs对比
+    kStatLoopGapMaxUs,          //回绕前后两帧的最大提交间隔
+    kStatLoopCacheBytes,        //循环缓存占用的内存
+    kStatLoopCacheSeeks,        //seek目标在循环缓存里、没有seek extractor的次数
+    kStatAudioLoopCacheBytes,   //音频轨道的循环缓存占用的内存
+    kStatAudioLoopAlignUs,      //最近一次回绕处音频补的静音(正数)或丢掉的重叠部分(负数)
+    kStatLooperOverflows,       //looper的消息环满、消息进了溢出队列的次数；共享looper时是所有播放器的总和
+    kStatCount,
+};
+
+class playerstats {
+    public:playerstats();
+
+        void add(int stat, int64_t value){
+            values[stat].fetch_add(value, std::memory_order_relaxed);
+        }
+        void set(int stat, int64_t value){
+            values[stat].store(value, std::memory_order_relaxed);
+        }
+        int64_t get(int stat) const{
+            return values[stat].load(std::memory_order_relaxed);
+        }
+        void recordLateness(int64_t lateNs);
+        void recordDrift(int64_t driftNs);
+        void snapshot(int64_t *out) const;
+
+    private:
+        std::atomic<int64_t> values[kStatCount];
+};
+
@@ -0,0 +1,140 @@
+//
+// 关键帧索引的实现
+//
+
+#include "seekindex.h"
+
+#include <algorithm>
+
+#include "media/NdkMediaExtractor.h"
+#include "playbackclock.h"
+
+#define TAG "NativeCodec-index"
+#include "logging.h"
+
+void* seekindex::trampoline(void *p) {
+    ((seekindex*)p)->scan();
+    return NULL;
+}
+
+seekindex::seekindex(){
+    durationUs.store(0);
+    samplecount = 0;
+    source = NULL;
+    track = -1;
+    running = false;
+    quit.store(false);
+    built.store(false);
+}
+
+seekindex::~seekindex(){
+    quit.store(true, std::memory_order_release);
+    if (running){
+        pthread_join(worker, NULL);
+    }
+    if (source){
+        source->release();
+    }
+}
+
+void seekindex::build(datasource *source, int track, int64_t durationUs, bool scan) {
+    this->durationUs.store(durationUs, std::memory_order_release);
+    if (!scan || running){
+        return;
+    }
+    //扫描线程持有自己的引用，播放器先释放数据源也不影响
+    source->acquire();
+    this->source = source;
+    this->track = track;
+    running = true;
+    pthread_create(&worker, NULL, trampoline, this);
+}
+
+bool seekindex::ready() const {
+    return built.load(std::memory_order_acquire);
+}
+
+//在扫描线程上运行，播放器释放时提前结束
+void seekindex::scan() {
+    int64_t startNs = systemnanotime();
+    AMediaExtractor *ex = openExtractor(source);
+    if (!ex){
+        return;
+    }
+    AMediaExtractor_selectTrack(ex, track);
+
+    //只读样本的时间和标志位，不读样本数据
+    std::vector<int64_t> times;
+    size_t count = 0;
+    int64_t lastUs = 0;
+    bool complete = false;
+    while (!quit.load(std::memory_order_acquire)){
+        int64_t timeUs = AMediaExtractor_getSampleTime(ex);
+        if (timeUs < 0){
+            complete = true;
+            break;
+        }
+        if (AMediaExtractor_getSampleFlags(ex) & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC){
+            times.push_back(timeUs);
+        }
+        lastUs = std::max(lastUs, timeUs);
+        count++;
+        if (!AMediaExtractor_advance(ex)){
+            complete = true;
+            break;
+        }
+    }
+    closeExtractor(ex);
+    if (!complete){
+        return;
+    }
+
+    if (durationUs.load(std::memory_order_acquire) <= 0){
+        durationUs.store(lastUs, std::memory_order_release);
+    }
+    //B帧会让同步样本的时间戳不是单调的
+    std::sort(times.begin(), times.end());
+    synctimes.swap(times);
+    samplecount = count;
+    LOGD("indexed %zu samples, %zu sync samples in %lld us",
+         samplecount, synctimes.size(), (long long) ((systemnanotime() - startNs) / 1000));
+    built.store(!synctimes.empty(), std::memory_order_release);
+}
+
+int64_t seekindex::previousSync(int64_t timeUs) const {
+    if (!ready()){
+        return -1;
+    }
+    std::vector<int64_t>::const_iterator it = std::upper_bound(synctimes.begin(), synctimes.end(), timeUs);
+    return it == synctimes.begin() ? synctimes.front() : *(it - 1);
+}
+
+int64_t seekindex::nearestSync(int64_t timeUs) const {
+    if (!ready()){
+        return -1;
+    }
+    std::vector<int64_t>::const_iterator it = std::lower_bound(synctimes.begin(), synctimes.end(), timeUs);
+    if (it == synctimes.end()){
+        return synctimes.back();
+    }
+    if (it == synctimes.begin()){
+        return *it;
+    }
+    return timeUs - *(it - 1) <= *it - timeUs ? *(it - 1) : *it;
+}
+
+int64_t seekindex::syncAtOrAfter(int64_t timeUs) const {
+    if (!ready()){
+        return -1;
+    }
+    std::vector<int64_t>::const_iterator it = std::lower_bound(synctimes.begin(), synctimes.end(), timeUs);
+    return it == synctimes.end() ? -1 : *it;
+}
+
+int64_t seekindex::syncBefore(int64_t timeUs) const {
+    if (!ready()){
+        return -1;
+    }
+    std::vector<int64_t>::const_iterator it = std::lower_bound(synctimes.begin(), synctimes.end(), timeUs);
+    return it == synctimes.begin() ? -1 : *(it - 1);
+}
@@ -0,0 +1,55 @@
+//
+// 关键帧索引：打开文件后在后台线程上扫描一遍视频轨道的样本表，记录所有同步样本的时间戳
+//
+
+#pragma once
+
+#include <atomic>
+#include <pthread.h>
+#include <stdint.h>
+#include <sys/types.h>
+#include <vector>
+
+#include "datasource.h"
+
+class seekindex {
+    public:seekindex();
+        //扫描没完成时让它提前结束并等线程退出
+        ~seekindex();
+        seekindex(const seekindex&) = delete;
+        seekindex& operator=(const seekindex&) = delete;
+
+        //在后台线程上用单独的extractor扫描，不影响播放用的extractor的读取位置，立即返回。
+        //扫描要读整个文件，放在looper线程上会推迟第一帧，也会卡住共用looper的其他播放器。
+        //durationUs是轨道格式里的时长，没有时(<=0)扫描完用最后一个样本的时间。
+        //scan为false时不扫描，用于网络数据源，seek交给extractor自己找关键帧
+        void build(datasource *source, int track, int64_t durationUs, bool scan);
+        //扫描完成并且有关键帧；之前各查询都返回-1，调用者交给extractor找关键帧
+        bool ready() const;
+        //不晚于timeUs的最后一个关键帧，没有索引时返回-1
+        int64_t previousSync(int64_t timeUs) const;
+        //离timeUs最近的关键帧，没有索引时返回-1
+        int64_t nearestSync(int64_t timeUs) const;
+        //不早于timeUs的第一个关键帧和早于timeUs的最后一个关键帧，没有时返回-1，用于只解码关键帧的快进快退
+        int64_t syncAtOrAfter(int64_t timeUs) const;
+        int64_t syncBefore(int64_t timeUs) const;
+
+        //任意线程可读
+        std::atomic<int64_t> durationUs;
+        //扫描完成后才有效
+        size_t samplecount;
+
+    private:
+        static void* trampoline(void *p);
+        void scan();
+
+        datasource *source;
+        int track;
+        pthread_t worker;
+        bool running;
+        std::atomic<bool> quit;
+        //synctimes和samplecount写完之后才置位
+        std::atomic<bool> built;
+        std::vector<int64_t> synctimes;
+};
+
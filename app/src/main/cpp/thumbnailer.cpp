@@ -0,0 +1,207 @@
+//
+// 缩略图解码器的实现。每张缩略图：seek到关键帧，送一个样本和结束标志，取出第一帧后flush，
+// 解码器不停止、不重建
+//
+
+#include "thumbnailer.h"
+
+#include <string.h>
+
+#include "codecpool.h"
+
+#define TAG "NativeCodec-thumb"
+#include "logging.h"
+
+//COLOR_FormatYUV420Flexible
+#define kColorFormatYUV420Flexible 0x7F420888
+//COLOR_FormatYUV420Planar(I420)和COLOR_FormatYUV420SemiPlanar(NV12)，其他排列只取亮度显示灰度图
+#define kColorFormatYUV420Planar 19
+#define kColorFormatYUV420SemiPlanar 21
+//AMEDIAFORMAT_KEY_SLICE_HEIGHT从API 28开始提供
+#define kKeySliceHeight "slice-height"
+//等输入输出缓冲区的超时，以及一张缩略图最多等待的次数
+#define kDequeueTimeoutUs 10000
+#define kMaxDequeueAttempts 200
+
+thumbnailer::thumbnailer(){
+    ex = NULL;
+    codec = NULL;
+    format = NULL;
+    mime = NULL;
+    framewidth = frameheight = 0;
+    framestride = sliceheight = 0;
+    colorformat = 0;
+}
+
+thumbnailer::~thumbnailer(){
+    if (codec){
+        AMediaCodec_stop(codec);
+        recycleDecoder(codec, mime, framewidth, frameheight);
+    }
+    if (format){
+        AMediaFormat_delete(format);
+    }
+    closeExtractor(ex);
+}
+
+bool thumbnailer::open(datasource *source){
+    ex = openExtractor(source);
+    if (!ex){
+        LOGE("setDataSource failed");
+        return false;
+    }
+    int numtracks = AMediaExtractor_getTrackCount(ex);
+    for (int i = 0; i < numtracks && !codec; ++i) {
+        AMediaFormat *f = AMediaExtractor_getTrackFormat(ex, i);
+        const char *m;
+        if (AMediaFormat_getString(f, AMEDIAFORMAT_KEY_MIME, &m) && !strncmp(m, "video/", 6)){
+            AMediaExtractor_selectTrack(ex, i);
+            format = f;
+            mime = m;
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_WIDTH, &framewidth);
+            AMediaFormat_getInt32(format, AMEDIAFORMAT_KEY_HEIGHT, &frameheight);
+            //要求输出YUV420到ByteBuffer，不用surface
+            AMediaFormat_setInt32(format, AMEDIAFORMAT_KEY_COLOR_FORMAT, kColorFormatYUV420Flexible);
+            codec = claimDecoder(mime, framewidth, frameheight);
+            if (!codec){
+                codec = AMediaCodec_createDecoderByType(mime);
+            }
+            if (codec && (AMediaCodec_configure(codec, format, NULL, NULL, 0) != AMEDIA_OK
+                    || AMediaCodec_start(codec) != AMEDIA_OK)){
+                LOGE("failed to start %s decoder", mime);
+                AMediaCodec_delete(codec);
+                codec = NULL;
+            }
+        } else{
+            AMediaFormat_delete(f);
+        }
+    }
+    framestride = framewidth;
+    sliceheight = frameheight;
+    return codec != NULL;
+}
+
+//读当前位置的样本送进解码器
+bool thumbnailer::queueSample(){
+    for (int i = 0; i < kMaxDequeueAttempts; ++i) {
+        ssize_t index = AMediaCodec_dequeueInputBuffer(codec, kDequeueTimeoutUs);
+        if (index < 0){
+            continue;
+        }
+        size_t capacity;
+        uint8_t *buf = AMediaCodec_getInputBuffer(codec, index, &capacity);
+        ssize_t size = AMediaExtractor_readSampleData(ex, buf, capacity);
+        if (size < 0){
+            AMediaCodec_queueInputBuffer(codec, index, 0, 0, 0, AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM);
+            return false;
+        }
+        AMediaCodec_queueInputBuffer(codec, index, 0, size, AMediaExtractor_getSampleTime(ex), 0);
+        return true;
+    }
+    return false;
+}
+
+//关键帧后面紧跟结束标志，解码器不用等后面的帧就会输出
+bool thumbnailer::queueEndOfStream(){
+    for (int i = 0; i < kMaxDequeueAttempts; ++i) {
+        ssize_t index = AMediaCodec_dequeueInputBuffer(codec, kDequeueTimeoutUs);
+        if (index >= 0){
+            AMediaCodec_queueInputBuffer(codec, index, 0, 0, 0, AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+    }
+    return false;
+}
+
+void thumbnailer::readFormat(){
+    AMediaFormat *f = AMediaCodec_getOutputFormat(codec);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_WIDTH, &framewidth);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_HEIGHT, &frameheight);
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_COLOR_FORMAT, &colorformat);
+    framestride = framewidth;
+    sliceheight = frameheight;
+    AMediaFormat_getInt32(f, AMEDIAFORMAT_KEY_STRIDE, &framestride);
+    AMediaFormat_getInt32(f, kKeySliceHeight, &sliceheight);
+    AMediaFormat_delete(f);
+    LOGD("thumbnail source %dx%d stride %d slice height %d color %#x",
+         framewidth, frameheight, framestride, sliceheight, colorformat);
+}
+
+static inline uint8_t clamp255(int v){
+    return v < 0 ? 0 : (v > 255 ? 255 : v);
+}
+
+//最近邻缩放，BT.601有限范围转RGB。Bitmap的ARGB_8888在内存中按R、G、B、A排列
+void thumbnailer::convert(const uint8_t *yuv, size_t size, uint32_t *argb, int32_t width, int32_t height,
+        int32_t stride){
+    bool planar = colorformat == kColorFormatYUV420Planar;
+    bool semiplanar = colorformat == kColorFormatYUV420SemiPlanar;
+    size_t lumasize = (size_t) framestride * sliceheight;
+    if (lumasize + lumasize / 2 > size){
+        //缓冲区装不下色度平面，只用亮度
+        planar = semiplanar = false;
+    }
+    const uint8_t *u = yuv + lumasize;
+    const uint8_t *v = planar ? u + lumasize / 4 : u + 1;
+    int32_t chromastride = planar ? framestride / 2 : framestride;
+    int32_t chromastep = planar ? 1 : 2;
+    for (int32_t y = 0; y < height; ++y) {
+        int32_t sy = (int32_t) ((int64_t) y * frameheight / height);
+        uint32_t *row = (uint32_t*) ((uint8_t*) argb + (size_t) y * stride);
+        const uint8_t *luma = yuv + (size_t) sy * framestride;
+        for (int32_t x = 0; x < width; ++x) {
+            int32_t sx = (int32_t) ((int64_t) x * framewidth / width);
+            int c = (luma[sx] - 16) * 298;
+            int r, g, b;
+            if (planar || semiplanar){
+                size_t ci = (size_t) (sy / 2) * chromastride + (sx / 2) * chromastep;
+                int d = u[ci] - 128;
+                int e = v[ci] - 128;
+                r = (c + 409 * e + 128) >> 8;
+                g = (c - 100 * d - 208 * e + 128) >> 8;
+                b = (c + 516 * d + 128) >> 8;
+            } else{
+                r = g = b = (c + 128) >> 8;
+            }
+            row[x] = 0xFF000000u | ((uint32_t) clamp255(b) << 16) | ((uint32_t) clamp255(g) << 8) | clamp255(r);
+        }
+    }
+}
+
+int64_t thumbnailer::decode(int64_t timeUs, uint32_t *argb, int32_t width, int32_t height, int32_t stride){
+    if (!codec){
+        return -1;
+    }
+    AMediaExtractor_seekTo(ex, timeUs, AMEDIAEXTRACTOR_SEEK_PREVIOUS_SYNC);
+    if (!queueSample() || !queueEndOfStream()){
+        AMediaCodec_flush(codec);
+        return -1;
+    }
+    int64_t ptsUs = -1;
+    for (int i = 0; i < kMaxDequeueAttempts; ++i) {
+        AMediaCodecBufferInfo info;
+        ssize_t status = AMediaCodec_dequeueOutputBuffer(codec, &info, kDequeueTimeoutUs);
+        if (status == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED){
+            readFormat();
+            continue;
+        }
+        if (status < 0){
+            continue;
+        }
+        if (info.size > 0 && ptsUs < 0){
+            size_t capacity;
+            uint8_t *buf = AMediaCodec_getOutputBuffer(codec, status, &capacity);
+            if (buf && info.offset + info.size <= (int32_t) capacity){
+                convert(buf + info.offset, info.size, argb, width, height, stride);
+                ptsUs = info.presentationTimeUs;
+            }
+        }
+        AMediaCodec_releaseOutputBuffer(codec, status, false);
+        if (ptsUs >= 0 || (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM)){
+            break;
+        }
+    }
+    //结束标志之后要flush才能继续送样本
+    AMediaCodec_flush(codec);
+    return ptsUs;
+}
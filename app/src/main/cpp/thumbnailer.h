@@ -0,0 +1,44 @@
+//
+// 缩略图解码器：只解码关键帧，每个实例有自己的extractor和解码器，不同实例可以在不同线程上并行使用
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <sys/types.h>
+
+#include "datasource.h"
+#include "media/NdkMediaCodec.h"
+#include "media/NdkMediaExtractor.h"
+
+class thumbnailer {
+    public:thumbnailer();
+        thumbnailer& operator = (const thumbnailer& ) = delete;
+        thumbnailer(thumbnailer&) = delete;
+        //解码器交回空闲解码器池
+        ~thumbnailer();
+
+        //extractor持有数据源的引用，调用者的引用不受影响
+        bool open(datasource *source);
+        //解码不晚于timeUs的关键帧，缩放到width*height写入argb(ARGB_8888，每行stride字节)，
+        //返回这一帧的时间戳，失败返回-1。同一实例不能同时在多个线程上调用
+        int64_t decode(int64_t timeUs, uint32_t *argb, int32_t width, int32_t height, int32_t stride);
+
+    private:
+        bool queueSample();
+        bool queueEndOfStream();
+        void readFormat();
+        void convert(const uint8_t *yuv, size_t size, uint32_t *argb, int32_t width, int32_t height,
+                     int32_t stride);
+
+        AMediaExtractor *ex;
+        AMediaCodec *codec;
+        AMediaFormat *format;
+        const char *mime;
+        //输出格式
+        int32_t framewidth;
+        int32_t frameheight;
+        int32_t framestride;
+        int32_t sliceheight;
+        int32_t colorformat;
+};
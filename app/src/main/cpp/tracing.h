@@ -0,0 +1,53 @@
+//
+// ATrace的section和计数器，在systrace/Perfetto里(atrace类别app)显示解码链每一段花的时间。
+// 没有在抓trace时每次只多一次ATrace_isEnabled调用；NATIVECODEC_TRACE定义为0时在编译时全部去掉
+//
+
+#pragma once
+
+#include <dlfcn.h>
+#include <stdint.h>
+
+#include <android/trace.h>
+
+#ifndef NATIVECODEC_TRACE
+#define NATIVECODEC_TRACE 1
+#endif
+
+//构造时开始、析构时结束一个section，section要在同一个线程上开始和结束
+class tracescope {
+    public:explicit tracescope(const char *name){
+            active = NATIVECODEC_TRACE && ATrace_isEnabled();
+            if (active){
+                ATrace_beginSection(name);
+            }
+        }
+        ~tracescope(){
+            if (active){
+                ATrace_endSection();
+            }
+        }
+        tracescope& operator = (const tracescope& ) = delete;
+        tracescope(tracescope&) = delete;
+
+    private:
+        bool active;
+};
+
+#define TRACE_CONCAT2(a, b) a##b
+#define TRACE_CONCAT(a, b) TRACE_CONCAT2(a, b)
+//从这里到当前作用域结束
+#define TRACE_SCOPE(name) tracescope TRACE_CONCAT(tracescope, __LINE__)(name)
+
+//ATrace_setCounter从API 29开始提供，minSdk为27，所以运行时查找
+typedef void (*atracesetcounter_t)(const char *name, int64_t value);
+
+//计数器按名字区分，多个播放器同时运行时写的是同一条曲线
+static inline void traceCounter(const char *name, int64_t value){
+#if NATIVECODEC_TRACE
+    static atracesetcounter_t setCounter = (atracesetcounter_t) dlsym(RTLD_DEFAULT, "ATrace_setCounter");
+    if (setCounter && ATrace_isEnabled()){
+        setCounter(name, value);
+    }
+#endif
+}
@@ -0,0 +1,515 @@
+//
+// 转码的实现。一个线程上用同步模式轮流喂解码器、取解码器输出、取编码器输出，
+// 编码器跟不上时解码器拿不到输出surface的缓冲区就会停下，不需要额外的队列
+//
+
+#include "transcoder.h"
+
+#include <string.h>
+#include <unistd.h>
+
+#include "codecpool.h"
+#include "playbackclock.h"
+
+#define TAG "NativeCodec-transcode"
+#include "logging.h"
+#include "tracing.h"
+
+#define kEncoderMime "video/avc"
+//COLOR_FormatSurface
+#define kColorFormatSurface 0x7F000789
+//AMEDIAFORMAT_KEY_ROTATION从API 28开始提供
+#define kKeyRotation "rotation-degrees"
+//BUFFER_FLAG_KEY_FRAME，NDK里直到API 34才有常量
+#define kBufferFlagKeyFrame 1
+//源文件和参数都没有码率时用的码率
+#define kDefaultBitrate 4000000
+#define kDefaultFrameRate 30
+//取输出时没有别的事可做的等待时间
+#define kDequeueTimeoutUs 10000
+//GL缩放时等一帧从解码器送到AImageReader的时间
+#define kFrameTimeoutMs 500
+//这么久没有任何进展按失败结束
+#define kStallTimeoutNs 5000000000LL
+//音频样本缓冲区的默认大小，轨道格式里有max-input-size时用它
+#define kAudioBufferBytes (256 * 1024)
+
+transcoder::transcoder(){
+    source = NULL;
+    outfd = -1;
+    memset(&config, 0, sizeof(config));
+    callback = NULL;
+    userdata = NULL;
+    running = false;
+    cancelled = false;
+    for (int i = 0; i < kTranscodeStatCount; ++i) {
+        stats[i] = 0;
+    }
+    startNs = 0;
+    ex = NULL;
+    videoformat = NULL;
+    videomime = NULL;
+    srcwidth = srcheight = 0;
+    rotation = 0;
+    dstwidth = dstheight = 0;
+    decoder = NULL;
+    encoder = NULL;
+    encoderwindow = NULL;
+    scaler = NULL;
+    muxer = NULL;
+    videotrack = -1;
+    muxerstarted = false;
+    firstptsUs = -1;
+    inputdone = decoderdone = encoderdone = false;
+    failed = false;
+    lastprogressNs = 0;
+    audioex = NULL;
+    audioformat = NULL;
+    audiotrack = -1;
+}
+
+transcoder::~transcoder(){
+    cancel();
+    if (running){
+        pthread_join(worker, NULL);
+    } else{
+        cleanup();
+    }
+}
+
+bool transcoder::start(datasource *source, int outfd, const transcodeconfig *config,
+        transcodecallback callback, void *userdata){
+    //转码线程上才打开extractor，这里先持有引用
+    source->acquire();
+    this->source = source;
+    this->outfd = outfd;
+    this->config = *config;
+    this->callback = callback;
+    this->userdata = userdata;
+    startNs = systemnanotime();
+    stats[kTranscodeState] = kTranscodeRunning;
+    if (pthread_create(&worker, NULL, trampoline, this) != 0){
+        LOGE("failed to start transcode thread");
+        stats[kTranscodeState] = kTranscodeFailed;
+        return false;
+    }
+    running = true;
+    return true;
+}
+
+void transcoder::cancel(){
+    cancelled = true;
+}
+
+void transcoder::snapshot(int64_t *out){
+    for (int i = 0; i < kTranscodeStatCount; ++i) {
+        out[i] = stats[i].load();
+    }
+    if (out[kTranscodeState] == kTranscodeRunning){
+        out[kTranscodeElapsedUs] = (systemnanotime() - startNs) / 1000;
+    }
+}
+
+void* transcoder::trampoline(void *p){
+    transcoder *t = (transcoder*) p;
+    bool success = t->run();
+    t->cleanup();
+    t->stats[kTranscodeElapsedUs] = (systemnanotime() - t->startNs) / 1000;
+    t->stats[kTranscodeState] = success ? kTranscodeDone
+                                        : (t->cancelled ? kTranscodeCancelled : kTranscodeFailed);
+    LOGI("transcode %s: %lld frames, %lld us media in %lld us",
+         success ? "done" : "failed", (long long) t->stats[kTranscodeFramesEncoded].load(),
+         (long long) t->stats[kTranscodeMediaUs].load(), (long long) t->stats[kTranscodeElapsedUs].load());
+    if (t->callback){
+        t->callback(t, success, t->userdata);
+    }
+    return NULL;
+}
+
+bool transcoder::run(){
+    if (!openVideo()){
+        return false;
+    }
+    muxer = AMediaMuxer_new(outfd, AMEDIAMUXER_OUTPUT_FORMAT_MPEG_4);
+    if (!muxer){
+        LOGE("failed to create muxer");
+        return false;
+    }
+    if (!openEncoder() || !openDecoder()){
+        return false;
+    }
+    openAudio();
+
+    lastprogressNs = systemnanotime();
+    while (!encoderdone && !failed) {
+        if (cancelled){
+            return false;
+        }
+        bool progress = !inputdone && feedDecoder();
+        if (!decoderdone && drainDecoder(progress ? 0 : kDequeueTimeoutUs)){
+            progress = true;
+        }
+        if (drainEncoder(progress || !decoderdone ? 0 : kDequeueTimeoutUs)){
+            progress = true;
+        }
+        int64_t nowNs = systemnanotime();
+        if (progress){
+            lastprogressNs = nowNs;
+        } else if (nowNs - lastprogressNs > kStallTimeoutNs){
+            LOGE("transcode stalled (input %d decoder %d)", inputdone, decoderdone);
+            return false;
+        }
+    }
+    if (failed || !muxerstarted){
+        return false;
+    }
+    //视频写完后剩下的音频
+    writeAudio(INT64_MAX);
+    return !failed;
+}
+
+//各阶段按数据流的方向从前往后关闭，解码器要在缩放之前停止
+void transcoder::cleanup(){
+    if (decoder){
+        AMediaCodec_stop(decoder);
+        recycleDecoder(decoder, videomime, srcwidth, srcheight);
+        decoder = NULL;
+    }
+    delete scaler;
+    scaler = NULL;
+    if (encoder){
+        AMediaCodec_stop(encoder);
+        AMediaCodec_delete(encoder);
+        encoder = NULL;
+    }
+    if (encoderwindow){
+        ANativeWindow_release(encoderwindow);
+        encoderwindow = NULL;
+    }
+    if (muxer){
+        if (muxerstarted){
+            AMediaMuxer_stop(muxer);
+        }
+        AMediaMuxer_delete(muxer);
+        muxer = NULL;
+    }
+    if (outfd >= 0){
+        close(outfd);
+        outfd = -1;
+    }
+    if (audioformat){
+        AMediaFormat_delete(audioformat);
+        audioformat = NULL;
+    }
+    closeExtractor(audioex);
+    audioex = NULL;
+    if (videoformat){
+        AMediaFormat_delete(videoformat);
+        videoformat = NULL;
+    }
+    closeExtractor(ex);
+    ex = NULL;
+    if (source){
+        source->release();
+        source = NULL;
+    }
+}
+
+bool transcoder::openVideo(){
+    ex = openExtractor(source);
+    if (!ex){
+        LOGE("setDataSource failed");
+        return false;
+    }
+    int numtracks = AMediaExtractor_getTrackCount(ex);
+    for (int i = 0; i < numtracks && !videoformat; ++i) {
+        AMediaFormat *f = AMediaExtractor_getTrackFormat(ex, i);
+        const char *m;
+        if (AMediaFormat_getString(f, AMEDIAFORMAT_KEY_MIME, &m) && !strncmp(m, "video/", 6)){
+            AMediaExtractor_selectTrack(ex, i);
+            videoformat = f;
+            videomime = m;
+        } else{
+            AMediaFormat_delete(f);
+        }
+    }
+    if (!videoformat){
+        LOGE("no video track");
+        return false;
+    }
+    int64_t durationUs = 0;
+    AMediaFormat_getInt32(videoformat, AMEDIAFORMAT_KEY_WIDTH, &srcwidth);
+    AMediaFormat_getInt32(videoformat, AMEDIAFORMAT_KEY_HEIGHT, &srcheight);
+    AMediaFormat_getInt32(videoformat, kKeyRotation, &rotation);
+    AMediaFormat_getInt64(videoformat, AMEDIAFORMAT_KEY_DURATION, &durationUs);
+    stats[kTranscodeDurationUs] = durationUs;
+    if (srcwidth <= 0 || srcheight <= 0){
+        LOGE("bad video size %dx%d", srcwidth, srcheight);
+        return false;
+    }
+
+    dstwidth = config.width;
+    dstheight = config.height;
+    if (dstwidth <= 0 && dstheight <= 0){
+        dstwidth = srcwidth;
+        dstheight = srcheight;
+    } else if (dstwidth <= 0){
+        dstwidth = (int32_t) ((int64_t) srcwidth * dstheight / srcheight);
+    } else if (dstheight <= 0){
+        dstheight = (int32_t) ((int64_t) srcheight * dstwidth / srcwidth);
+    }
+    //AVC编码器要求偶数尺寸
+    dstwidth = dstwidth < 2 ? 2 : (dstwidth & ~1);
+    dstheight = dstheight < 2 ? 2 : (dstheight & ~1);
+
+    //源文件的码率：轨道格式里没有时用文件大小估算，包括音频
+    int32_t bitrate = 0;
+    AMediaFormat_getInt32(videoformat, AMEDIAFORMAT_KEY_BIT_RATE, &bitrate);
+    off64_t size = source->size();
+    if (bitrate <= 0 && size > 0 && durationUs > 0){
+        bitrate = (int32_t) (size * 8 * 1000000 / durationUs);
+    }
+    if (config.bitrate > 0 && (bitrate <= 0 || config.bitrate < bitrate)){
+        bitrate = config.bitrate;
+    }
+    config.bitrate = bitrate > 0 ? bitrate : kDefaultBitrate;
+    if (config.iframeinterval <= 0){
+        config.iframeinterval = 1;
+    }
+    LOGI("transcoding %s %dx%d (rotation %d) to %s %dx%d at %d bps", videomime, srcwidth, srcheight,
+         rotation, kEncoderMime, dstwidth, dstheight, config.bitrate);
+    return true;
+}
+
+bool transcoder::openEncoder(){
+    int32_t framerate = kDefaultFrameRate;
+    AMediaFormat_getInt32(videoformat, AMEDIAFORMAT_KEY_FRAME_RATE, &framerate);
+    AMediaFormat *f = AMediaFormat_new();
+    AMediaFormat_setString(f, AMEDIAFORMAT_KEY_MIME, kEncoderMime);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_WIDTH, dstwidth);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_HEIGHT, dstheight);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_COLOR_FORMAT, kColorFormatSurface);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_BIT_RATE, config.bitrate);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_FRAME_RATE, framerate);
+    AMediaFormat_setInt32(f, AMEDIAFORMAT_KEY_I_FRAME_INTERVAL, config.iframeinterval);
+    encoder = AMediaCodec_createEncoderByType(kEncoderMime);
+    bool ok = encoder
+            && AMediaCodec_configure(encoder, f, NULL, NULL, AMEDIACODEC_CONFIGURE_FLAG_ENCODE) == AMEDIA_OK
+            && AMediaCodec_createInputSurface(encoder, &encoderwindow) == AMEDIA_OK
+            && AMediaCodec_start(encoder) == AMEDIA_OK;
+    AMediaFormat_delete(f);
+    if (!ok){
+        LOGE("failed to start %s encoder %dx%d", kEncoderMime, dstwidth, dstheight);
+    }
+    return ok;
+}
+
+bool transcoder::openDecoder(){
+    //尺寸不变时解码器直接渲染到编码器的输入surface，否则先经过GL缩放
+    if (dstwidth != srcwidth || dstheight != srcheight){
+        scaler = new glscaler();
+        if (!scaler->open(encoderwindow, srcwidth, srcheight, dstwidth, dstheight)){
+            return false;
+        }
+    }
+    decoder = claimDecoder(videomime, srcwidth, srcheight);
+    if (!decoder){
+        decoder = AMediaCodec_createDecoderByType(videomime);
+    }
+    ANativeWindow *window = scaler ? scaler->inputWindow() : encoderwindow;
+    if (!decoder || AMediaCodec_configure(decoder, videoformat, window, NULL, 0) != AMEDIA_OK
+            || AMediaCodec_start(decoder) != AMEDIA_OK){
+        LOGE("failed to start %s decoder", videomime);
+        if (decoder){
+            AMediaCodec_delete(decoder);
+            decoder = NULL;
+        }
+        return false;
+    }
+    return true;
+}
+
+//音频轨用自己的extractor，没有音频或打不开时只输出视频
+void transcoder::openAudio(){
+    audioex = openExtractor(source);
+    if (!audioex){
+        return;
+    }
+    int numtracks = AMediaExtractor_getTrackCount(audioex);
+    for (int i = 0; i < numtracks && !audioformat; ++i) {
+        AMediaFormat *f = AMediaExtractor_getTrackFormat(audioex, i);
+        const char *m;
+        if (AMediaFormat_getString(f, AMEDIAFORMAT_KEY_MIME, &m) && !strncmp(m, "audio/", 6)){
+            AMediaExtractor_selectTrack(audioex, i);
+            audioformat = f;
+        } else{
+            AMediaFormat_delete(f);
+        }
+    }
+    if (!audioformat){
+        closeExtractor(audioex);
+        audioex = NULL;
+        return;
+    }
+    int32_t maxinput = 0;
+    AMediaFormat_getInt32(audioformat, AMEDIAFORMAT_KEY_MAX_INPUT_SIZE, &maxinput);
+    audiobuffer.resize(maxinput > 0 ? maxinput : kAudioBufferBytes);
+}
+
+bool transcoder::feedDecoder(){
+    TRACE_SCOPE("transcode feed");
+    ssize_t index = AMediaCodec_dequeueInputBuffer(decoder, 0);
+    if (index < 0){
+        return false;
+    }
+    size_t capacity;
+    uint8_t *buf = AMediaCodec_getInputBuffer(decoder, index, &capacity);
+    ssize_t size = AMediaExtractor_readSampleData(ex, buf, capacity);
+    if (size < 0){
+        AMediaCodec_queueInputBuffer(decoder, index, 0, 0, 0, AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM);
+        inputdone = true;
+        return true;
+    }
+    AMediaCodec_queueInputBuffer(decoder, index, 0, size, AMediaExtractor_getSampleTime(ex), 0);
+    AMediaExtractor_advance(ex);
+    return true;
+}
+
+bool transcoder::drainDecoder(int64_t timeoutUs){
+    TRACE_SCOPE("transcode decode");
+    AMediaCodecBufferInfo info;
+    ssize_t index = AMediaCodec_dequeueOutputBuffer(decoder, &info, timeoutUs);
+    if (index == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED || index == AMEDIACODEC_INFO_OUTPUT_BUFFERS_CHANGED){
+        return true;
+    }
+    if (index < 0){
+        return false;
+    }
+    bool render = info.size > 0;
+    AMediaCodec_releaseOutputBuffer(decoder, index, render);
+    if (render){
+        stats[kTranscodeFramesDecoded]++;
+        if (scaler){
+            //先取走编码器的输出，交换缓冲区时不用等编码器
+            drainEncoder(0);
+            if (!scaler->drawNext(kFrameTimeoutMs)){
+                LOGE("frame %lld did not reach the scaler", (long long) info.presentationTimeUs);
+            }
+        }
+    }
+    if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM){
+        decoderdone = true;
+        AMediaCodec_signalEndOfInputStream(encoder);
+    }
+    return true;
+}
+
+bool transcoder::drainEncoder(int64_t timeoutUs){
+    TRACE_SCOPE("transcode encode");
+    bool progress = false;
+    while (!encoderdone && !failed) {
+        AMediaCodecBufferInfo info;
+        ssize_t index = AMediaCodec_dequeueOutputBuffer(encoder, &info, progress ? 0 : timeoutUs);
+        if (index == AMEDIACODEC_INFO_TRY_AGAIN_LATER){
+            break;
+        }
+        progress = true;
+        if (index == AMEDIACODEC_INFO_OUTPUT_FORMAT_CHANGED){
+            failed = !startMuxer();
+            continue;
+        }
+        if (index < 0){
+            continue;
+        }
+        //SPS/PPS已经在输出格式的csd里
+        if (info.flags & AMEDIACODEC_BUFFER_FLAG_CODEC_CONFIG){
+            info.size = 0;
+        }
+        if (info.size > 0 && muxerstarted){
+            size_t capacity;
+            uint8_t *buf = AMediaCodec_getOutputBuffer(encoder, index, &capacity);
+            if (firstptsUs < 0){
+                firstptsUs = info.presentationTimeUs;
+            }
+            //音频按时间戳交错写在视频前面
+            writeAudio(info.presentationTimeUs);
+            if (AMediaMuxer_writeSampleData(muxer, videotrack, buf, &info) != AMEDIA_OK){
+                LOGE("failed to write video sample at %lld", (long long) info.presentationTimeUs);
+                failed = true;
+            }
+            stats[kTranscodeFramesEncoded]++;
+            stats[kTranscodeOutputBytes] += info.size;
+            stats[kTranscodeMediaUs] = info.presentationTimeUs - firstptsUs;
+        } else if (info.size > 0){
+            LOGE("encoder output before format change dropped");
+        }
+        AMediaCodec_releaseOutputBuffer(encoder, index, false);
+        if (info.flags & AMEDIACODEC_BUFFER_FLAG_END_OF_STREAM){
+            encoderdone = true;
+        }
+    }
+    return progress;
+}
+
+//编码器第一次给出输出格式时才知道csd，这时加入所有轨道并开始写文件
+bool transcoder::startMuxer(){
+    if (muxerstarted){
+        LOGE("encoder format changed after start");
+        return false;
+    }
+    AMediaFormat *f = AMediaCodec_getOutputFormat(encoder);
+    videotrack = AMediaMuxer_addTrack(muxer, f);
+    AMediaFormat_delete(f);
+    if (videotrack < 0){
+        LOGE("failed to add video track");
+        return false;
+    }
+    if (audioex){
+        audiotrack = AMediaMuxer_addTrack(muxer, audioformat);
+        if (audiotrack < 0){
+            LOGE("muxer does not accept the audio track, writing video only");
+            closeExtractor(audioex);
+            audioex = NULL;
+        }
+    }
+    if (rotation){
+        AMediaMuxer_setOrientationHint(muxer, rotation);
+    }
+    if (AMediaMuxer_start(muxer) != AMEDIA_OK){
+        LOGE("failed to start muxer");
+        return false;
+    }
+    muxerstarted = true;
+    return true;
+}
+
+//写完时间戳不晚于untilUs的音频样本
+void transcoder::writeAudio(int64_t untilUs){
+    while (audioex) {
+        int64_t ptsUs = AMediaExtractor_getSampleTime(audioex);
+        if (ptsUs < 0 || ptsUs > untilUs){
+            return;
+        }
+        ssize_t size = AMediaExtractor_readSampleData(audioex, audiobuffer.data(), audiobuffer.size());
+        if (size < 0){
+            LOGE("audio sample at %lld does not fit, dropping the rest of the audio", (long long) ptsUs);
+            closeExtractor(audioex);
+            audioex = NULL;
+            return;
+        }
+        AMediaCodecBufferInfo info;
+        info.offset = 0;
+        info.size = (int32_t) size;
+        info.presentationTimeUs = ptsUs;
+        info.flags = (AMediaExtractor_getSampleFlags(audioex) & AMEDIAEXTRACTOR_SAMPLE_FLAG_SYNC)
+                     ? kBufferFlagKeyFrame : 0;
+        if (AMediaMuxer_writeSampleData(muxer, audiotrack, audiobuffer.data(), &info) != AMEDIA_OK){
+            LOGE("failed to write audio sample at %lld", (long long) ptsUs);
+            failed = true;
+            return;
+        }
+        stats[kTranscodeAudioSamples]++;
+        stats[kTranscodeOutputBytes] += size;
+        AMediaExtractor_advance(audioex);
+    }
+}
@@ -0,0 +1,122 @@
+//
+// 转码：extractor -> 解码器 -> 编码器的输入surface(尺寸不同时经过GL缩放) -> AMediaMuxer。
+// 在自己的线程上不按时间尽快运行，帧数据不经过Java；音频样本不重新编码，直接写进muxer
+//
+
+#pragma once
+
+#include <stdint.h>
+#include <pthread.h>
+#include <atomic>
+#include <vector>
+
+#include "datasource.h"
+#include "glscaler.h"
+#include "media/NdkMediaCodec.h"
+#include "media/NdkMediaExtractor.h"
+#include "media/NdkMediaMuxer.h"
+
+//统计快照中各项的位置，和TranscodeStats.java中的常量一一对应，只能在末尾追加
+enum {
+    kTranscodeFramesDecoded,    //解码器交给编码器(或缩放)的帧数
+    kTranscodeFramesEncoded,    //写进muxer的视频样本数
+    kTranscodeAudioSamples,     //原样写进muxer的音频样本数
+    kTranscodeMediaUs,          //已经编码的视频时长
+    kTranscodeDurationUs,       //源视频轨的时长，不知道时为0
+    kTranscodeElapsedUs,        //从开始到现在(或结束)的时间，和kTranscodeMediaUs一起算转码速度
+    kTranscodeOutputBytes,      //写进muxer的样本字节数
+    kTranscodeState,            //kTranscodeRunning等
+    kTranscodeStatCount,
+};
+
+enum {
+    kTranscodeRunning,
+    kTranscodeDone,
+    kTranscodeFailed,
+    kTranscodeCancelled,
+};
+
+typedef struct {
+    //输出尺寸，按解码后未旋转的画面计。都为0时保持原尺寸，只有一个为0时按比例计算，取偶数
+    int32_t width;
+    int32_t height;
+    //码率上限(bps)，源文件码率更低时用源文件的码率，0表示用源文件的码率
+    int32_t bitrate;
+    //关键帧间隔(秒)
+    int32_t iframeinterval;
+} transcodeconfig;
+
+class transcoder;
+//转码结束时在转码线程上调用，不能在回调里删除transcoder
+typedef void (*transcodecallback)(transcoder *t, bool success, void *userdata);
+
+class transcoder {
+    public:transcoder();
+        transcoder& operator = (const transcoder& ) = delete;
+        transcoder(transcoder&) = delete;
+        //没结束时先取消，等转码线程退出
+        ~transcoder();
+
+        //开始转码到outfd(可写可seek的MP4文件)，fd交给transcoder关闭，extractor持有数据源的引用。
+        //立即返回，启动失败返回false，这时不会回调
+        bool start(datasource *source, int outfd, const transcodeconfig *config,
+                   transcodecallback callback, void *userdata);
+        //转码线程尽快停止，已经写出的文件不完整
+        void cancel();
+        void snapshot(int64_t *out);
+
+    private:
+        static void* trampoline(void *p);
+        bool run();
+        void cleanup();
+        bool openVideo();
+        bool openEncoder();
+        bool openDecoder();
+        void openAudio();
+        bool feedDecoder();
+        bool drainDecoder(int64_t timeoutUs);
+        bool drainEncoder(int64_t timeoutUs);
+        bool startMuxer();
+        void writeAudio(int64_t untilUs);
+
+        datasource *source;
+        int outfd;
+        transcodeconfig config;
+        transcodecallback callback;
+        void *userdata;
+        pthread_t worker;
+        bool running;
+        std::atomic<bool> cancelled;
+        std::atomic<int64_t> stats[kTranscodeStatCount];
+        int64_t startNs;
+
+        AMediaExtractor *ex;
+        AMediaFormat *videoformat;
+        const char *videomime;
+        int32_t srcwidth;
+        int32_t srcheight;
+        int32_t rotation;
+        int32_t dstwidth;
+        int32_t dstheight;
+        AMediaCodec *decoder;
+        AMediaCodec *encoder;
+        ANativeWindow *encoderwindow;
+        //尺寸不变时为NULL，解码器直接输出到编码器
+        glscaler *scaler;
+        AMediaMuxer *muxer;
+        ssize_t videotrack;
+        bool muxerstarted;
+        int64_t firstptsUs;
+        bool inputdone;
+        bool decoderdone;
+        bool encoderdone;
+        bool failed;
+        //最近一次有进展的时间，编码器一直没有输出时按失败结束
+        int64_t lastprogressNs;
+
+        //音频用单独的extractor按视频的进度读取
+        AMediaExtractor *audioex;
+        AMediaFormat *audioformat;
+        ssize_t audiotrack;
+        std::vector<uint8_t> audiobuffer;
+};
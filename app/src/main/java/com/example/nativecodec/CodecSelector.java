@@ -0,0 +1,62 @@
+package com.example.nativecodec;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+
+//在MediaCodecList里按mime找硬件或软件解码器的名字，交给MainActivity.createPlayerWithProfile
+final class CodecSelector {
+
+    private CodecSelector() {
+    }
+
+    //mp4样本描述的类型(Mp4SampleIndex.Track.format)对应的mime，不认识时返回null
+    static String mimeForFormat(String format) {
+        if ("avc1".equals(format) || "avc3".equals(format)) {
+            return "video/avc";
+        } else if ("hvc1".equals(format) || "hev1".equals(format)) {
+            return "video/hevc";
+        } else if ("vp09".equals(format)) {
+            return "video/x-vnd.on2.vp9";
+        } else if ("av01".equals(format)) {
+            return "video/av01";
+        } else if ("mp4v".equals(format)) {
+            return "video/mp4v-es";
+        }
+        return null;
+    }
+
+    //按系统的优先顺序第一个支持mime的硬件(hardware为false时软件)解码器，没有返回null
+    static String findDecoder(String mime, boolean hardware) {
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (info.isEncoder() || !supports(info, mime)) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && info.isAlias()) {
+                continue;
+            }
+            if (isHardware(info) == hardware) {
+                return info.getName();
+            }
+        }
+        return null;
+    }
+
+    //API 29之前没有isHardwareAccelerated，按名字判断：系统自带的软件解码器以OMX.google.或c2.android.开头
+    static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+
+    private static boolean supports(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
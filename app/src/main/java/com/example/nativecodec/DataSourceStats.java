@@ -0,0 +1,46 @@
+package com.example.nativecodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+//数据源计数器快照(MainActivity.getDataSourceStats)中各项的位置，和datasource.h中的kSource*一一对应
+final class DataSourceStats {
+    static final int BYTES_READ = 0;
+    static final int READS = 1;
+    static final int READ_US = 2;
+    static final int CACHE_HITS = 3;
+    static final int CACHE_MISSES = 4;
+    static final int FETCHED_BYTES = 5;
+    static final int FETCH_US = 6;
+    static final int ELAPSED_US = 7;
+    static final int COUNT = 8;
+
+    private static final String[] NAMES = {"bytesRead", "reads", "readUs", "cacheHits", "cacheMisses",
+            "fetchedBytes", "fetchUs", "elapsedUs"};
+
+    private DataSourceStats() {
+    }
+
+    //块缓存命中率，没有块缓存(本地文件)时为0
+    static double hitRatio(long[] stats) {
+        long lookups = stats[CACHE_HITS] + stats[CACHE_MISSES];
+        return lookups > 0 ? stats[CACHE_HITS] / (double) lookups : 0;
+    }
+
+    //从打开到现在平均每秒交给extractor的字节数
+    static double bytesPerSecond(long[] stats) {
+        return stats[ELAPSED_US] > 0 ? stats[BYTES_READ] * 1000000.0 / stats[ELAPSED_US] : 0;
+    }
+
+    static JSONObject toJson(long[] stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < NAMES.length; i++) {
+            json.put(NAMES[i], stats[i]);
+        }
+        json.put("hitRatio", hitRatio(stats));
+        json.put("bytesPerSecond", bytesPerSecond(stats));
+        //网络本身的吞吐量，不含等待读取请求的时间
+        json.put("fetchBytesPerSecond", stats[FETCH_US] > 0 ? stats[FETCHED_BYTES] * 1000000.0 / stats[FETCH_US] : 0);
+        return json;
+    }
+}
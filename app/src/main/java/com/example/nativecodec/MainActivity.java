@@ -3,10 +3,14 @@ package com.example.nativecodec;
 
 import android.app.Activity;
 import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaPlayer;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -19,27 +23,61 @@ import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 
 public class MainActivity extends Activity {
     static final String TAG = "NativeCodec";
 
+    //seek方式，和native层的kSeek*对应
+    static final int SEEK_NEAREST_SYNC = 0;     //跳到最近的关键帧
+    static final int SEEK_ACCURATE = 1;         //精确跳到目标帧
+    //解码器的性能配置，和native层的kProfile*对应
+    static final int PROFILE_DEFAULT = 0;       //轨道格式原样交给解码器
+    static final int PROFILE_LOW_LATENCY = 1;   //low-latency、实时优先级，解码器里只放很少的样本
+    static final int PROFILE_THROUGHPUT = 2;    //最高operating-rate、非实时优先级，用于批量处理
+    static final int PROFILE_POWER_SAVER = 3;   //operating-rate等于帧率、非实时优先级
+    //进度条刷新间隔
+    static final long PROGRESS_INTERVAL_MS = 200;
+
     String mSourceString = null;
 
     MediaFormat mediaFormat;
 
     SurfaceView mSurfaceView1;          //surface的view
     SurfaceHolder mSurfaceHolder1;      //一个接口，surface的监听器，提供访问和控制surfaceview背后的surface相关的方法
+    MyGLSurfaceView mGLView1;           //解码器输出到它的SurfaceTexture，再由GL画到屏幕上
 
     VideoSink mSelectedVideoSink;
     VideoSink mNativeCodecPlayerVideoSink;  //用于存放播放的视频
 
     SurfaceHolderVideoSink mSurfaceHolder1VideoSink;
+    GLViewVideoSink mGLView1VideoSink;
 
     TextView tv;
     SeekBar sb;
+    //正在拖动进度条时不用播放位置刷新进度条
+    boolean mTracking = false;
+    int mDurationMs = 0;
+    final Handler mHandler = new Handler();
+    //性能计数器快照和覆盖层文字，每次刷新复用
+    final long[] mStats = new long[PlayerStats.COUNT];
+    final StringBuilder mOverlay = new StringBuilder();
 
     boolean mCreated = false;
     boolean mIsPlaying = false;
+    //native层播放器句柄，0表示还没有创建。创建后立即可用，打开完成后才知道时长
+    long mPlayer = 0;
+    //从选中的片段开始依次无缝播放source_array中的片段，mPlayer是其中正在播放的一个
+    Playlist mPlaylist = null;
+    //点击播放的时间，用于输出从点击到打开完成、到首帧显示的耗时
+    long mClickMs = 0;
+    boolean mFirstFrameLogged = false;
 
 
     //Activity生命周期的开始
@@ -64,7 +102,10 @@ public class MainActivity extends Activity {
             @Override
             public void surfaceCreated(SurfaceHolder holder) {
                 Log.v(TAG, "surfaceCreated");
-                setSurface(holder.getSurface());
+                //从后台回来：切回这个surface，解码器和播放位置都保留
+                if (mPlayer != 0 && mNativeCodecPlayerVideoSink == mSurfaceHolder1VideoSink) {
+                    setSurface(mPlayer, holder.getSurface());
+                }
             }
 
             //加载    format格式
@@ -78,6 +119,26 @@ public class MainActivity extends Activity {
             @Override
             public void surfaceDestroyed(SurfaceHolder holder) {
                 Log.v(TAG, "surfaceDestroyed");
+                //surface销毁前让解码器改为输出到native层的占位surface
+                if (mPlayer != 0 && mNativeCodecPlayerVideoSink == mSurfaceHolder1VideoSink) {
+                    setSurface(mPlayer, null);
+                }
+            }
+        });
+
+        //SurfaceTexture在GL线程上创建，第一次显示或者EGL上下文重建后解码器要改为输出到新的Surface
+        mGLView1 = (MyGLSurfaceView) findViewById(R.id.glsurfaceview1);
+        mGLView1.setOnSurfaceTextureCreated(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPlayer != 0 && mNativeCodecPlayerVideoSink == mGLView1VideoSink) {
+                            mGLView1VideoSink.useAsSinkForNative(mPlayer);
+                        }
+                    }
+                });
             }
         });
 
@@ -120,9 +181,57 @@ public class MainActivity extends Activity {
         });
 
 
+        //输出方式：sink_array的第一项是SurfaceView，第二项是GL纹理
+        Spinner sinkSpinner = (Spinner) findViewById(R.id.sink_spinner);
+        ArrayAdapter<CharSequence> sinkAdapter = ArrayAdapter.createFromResource(
+                this, R.array.sink_array, android.R.layout.simple_spinner_item);
+        sinkAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        sinkSpinner.setAdapter(sinkAdapter);
+        sinkSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+                Log.v(TAG, "sink selected " + parent.getItemAtPosition(pos));
+                mSelectedVideoSink = pos == 0 ? mSurfaceHolder1VideoSink : mGLView1VideoSink;
+                switchSurface();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        //进度条：拖动时跳到最近的关键帧，松手时精确跳到目标位置
+        tv = (TextView) findViewById(R.id.tv);
+        sb = (SeekBar) findViewById(R.id.sb);
+        sb.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                //快速拖动时native层只执行最新的一个seek请求
+                if (fromUser && mCreated) {
+                    seekTo(mPlayer, progress * 1000L, SEEK_NEAREST_SYNC);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                mTracking = true;
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                mTracking = false;
+                if (mCreated) {
+                    seekTo(mPlayer, seekBar.getProgress() * 1000L, SEEK_ACCURATE);
+                }
+            }
+        });
+
+        //提前在后台创建一个解码器，第一次点击播放时不用等解码器创建；关闭的播放器的解码器也会放回池里
+        prewarmDecoders(MediaFormat.MIMETYPE_VIDEO_AVC, 0, 0, 1);
+
         mSurfaceHolder1VideoSink = new SurfaceHolderVideoSink(mSurfaceHolder1);
+        mGLView1VideoSink = new GLViewVideoSink(mGLView1);
         mSelectedVideoSink = mSurfaceHolder1VideoSink;
-        Log.i("@@@", "glview pause");
         switchSurface();
 
         //初始化按钮单击处理
@@ -136,16 +245,16 @@ public class MainActivity extends Activity {
                         if (mSelectedVideoSink == null) {
                             return;
                         }
-                        mSelectedVideoSink.useAsSinkForNative();
                         mNativeCodecPlayerVideoSink = mSelectedVideoSink;
                     }
                     if (mSourceString != null) {
-                        mCreated = createStreamingMediaPlayer(getResources().getAssets(), mSourceString);
+                        mClickMs = SystemClock.uptimeMillis();
+                        createPlayer();
                     }
                 }
                 if (mCreated) {
                     mIsPlaying = !mIsPlaying;
-                    setPlayingStreamingMediaPlayer(mIsPlaying);
+                    setPlayingStreamingMediaPlayer(mPlayer, mIsPlaying);
                 }
             }
         });
@@ -156,8 +265,8 @@ public class MainActivity extends Activity {
 
             @Override
             public void onClick(View view) {
-                if (mNativeCodecPlayerVideoSink != null) {
-                    rewindStreamingMediaPlayer();  //此语句用于视频倒带
+                if (mCreated) {
+                    rewindStreamingMediaPlayer(mPlayer);  //此语句用于视频倒带
                 }
             }
 
@@ -167,8 +276,8 @@ public class MainActivity extends Activity {
         ((Button) findViewById(R.id.pause_native)).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (mNativeCodecPlayerVideoSink != null) {
-                    pauseStreamingMediaPlayer();
+                if (mCreated) {
+                    pauseStreamingMediaPlayer(mPlayer);
                 }
             }
         });
@@ -181,52 +290,233 @@ public class MainActivity extends Activity {
 
     void switchSurface(){
         if (mCreated && mNativeCodecPlayerVideoSink != mSelectedVideoSink){
-            //关闭并在其他surface上重新创建
-            Log.i("@@@", "shutting down player");
-            shutdown();
-            mCreated = false;
-            mSelectedVideoSink.useAsSinkForNative();
+            //直接切换解码器的输出surface，不重建播放器，播放位置和播放状态不变
+            Log.i("@@@", "switching surface");
             mNativeCodecPlayerVideoSink = mSelectedVideoSink;
-            if (mSourceString != null){
-                Log.i("@@@", "recreating player");
-                //读取文件
-                mCreated = createStreamingMediaPlayer(getResources().getAssets(), mSourceString);
-                mIsPlaying = false;
+            mNativeCodecPlayerVideoSink.useAsSinkForNative(mPlayer);
+        }
+        //先切换解码器再改可见性：隐藏的view销毁surface时解码器已经不用它，
+        //显示的view的surface创建好之后由各自的回调交给解码器
+        boolean gl = mSelectedVideoSink == mGLView1VideoSink;
+        mSurfaceView1.setVisibility(gl ? View.GONE : View.VISIBLE);
+        mGLView1.setVisibility(gl ? View.VISIBLE : View.GONE);
+    }
+
+    //创建native播放器，打开文件和创建解码器在native的looper线程上进行，不阻塞UI线程。
+    //打开完成之前发出的播放、seek等请求在打开之后按顺序处理
+    void createPlayer(){
+        mFirstFrameLogged = false;
+        mPlaylist = new Playlist(getResources().getAssets(), mHandler, clipsFrom(mSourceString),
+                new PlayerListener() {
+                    @Override
+                    public void onPrepared(long player, boolean success) {
+                        onPlayerPrepared(player, success);
+                    }
+                });
+        mPlayer = mPlaylist.start(mNativeCodecPlayerVideoSink.getSurface());
+        mCreated = mPlayer != 0;
+    }
+
+    //source_array中从clip开始到末尾的片段
+    List<String> clipsFrom(String clip){
+        List<String> all = Arrays.asList(getResources().getStringArray(R.array.source_array));
+        int start = all.indexOf(clip);
+        if (start < 0){
+            List<String> clips = new ArrayList<String>();
+            clips.add(clip);
+            return clips;
+        }
+        return all.subList(start, all.size());
+    }
+
+    //时长来自打开时建立的关键帧索引
+    void onPlayerPrepared(long player, boolean success){
+        if (player != mPlayer){
+            //已经关闭的播放器
+            return;
+        }
+        if (!success){
+            Log.e(TAG, "failed to open " + mSourceString);
+            mPlaylist.release();
+            mPlayer = 0;
+            mCreated = false;
+            mIsPlaying = false;
+            return;
+        }
+        Log.i(TAG, "click to prepared " + (SystemClock.uptimeMillis() - mClickMs) + "ms");
+        updateDuration();
+    }
+
+    void updateDuration(){
+        mDurationMs = (int) (getDurationUs(mPlayer) / 1000);
+        sb.setMax(mDurationMs);
+    }
+
+    //关闭前把最终的计数器快照输出到日志，和上报用的是同一份数据
+    void shutdownPlayer(){
+        getStats(mPlayer, mStats);
+        try {
+            Log.i(TAG, "player stats " + PlayerStats.toJson(mStats));
+        } catch (JSONException e) {
+            Log.e(TAG, "failed to format stats", e);
+        }
+        mPlaylist.release();
+    }
+
+    //定时用播放位置刷新进度条，时间和性能计数器显示在tv上
+    final Runnable mProgressUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mCreated && mPlaylist.poll()){
+                //切到了播放列表的下一项，预加载的片段通常已经打开完成，否则等onPlayerPrepared更新时长
+                mPlayer = mPlaylist.current();
+                mCreated = mPlayer != 0;
+                mIsPlaying = mCreated;
+                Log.i(TAG, "playlist advanced to player " + mPlayer);
+                updateDuration();
+            }
+            if (mCreated){
+                //首帧耗时从createPlayer算起，和点击几乎同时
+                long firstFrameUs = getFirstFrameLatencyUs(mPlayer);
+                if (!mFirstFrameLogged && firstFrameUs >= 0){
+                    mFirstFrameLogged = true;
+                    getStats(mPlayer, mStats);
+                    Log.i(TAG, "click to first frame " + firstFrameUs / 1000 + "ms, decoder "
+                            + (mStats[PlayerStats.CODEC_POOLED] != 0 ? "from pool" : "created")
+                            + " in " + mStats[PlayerStats.CODEC_CREATE_US] / 1000 + "ms");
+                }
+                int positionMs = (int) (getPositionUs(mPlayer) / 1000);
+                if (!mTracking){
+                    sb.setProgress(positionMs);
+                }
+                getStats(mPlayer, mStats);
+                mOverlay.setLength(0);
+                appendTime(mOverlay, positionMs);
+                mOverlay.append(" / ");
+                appendTime(mOverlay, mDurationMs);
+                mOverlay.append('\n');
+                PlayerStats.appendOverlay(mStats, mOverlay);
+                tv.setText(mOverlay);
             }
+            mHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    static void appendTime(StringBuilder sb, int ms){
+        int seconds = ms / 1000;
+        sb.append(seconds / 60).append(':');
+        if (seconds % 60 < 10){
+            sb.append('0');
         }
+        sb.append(seconds % 60);
     }
 
     /** 在活动即将暂停时调用 */
     @Override
     protected void onPause(){
+        mHandler.removeCallbacks(mProgressUpdater);
+        mGLView1.onPause();
         mIsPlaying = false;
-        setPlayingStreamingMediaPlayer(false);
+        if (mCreated) {
+            setPlayingStreamingMediaPlayer(mPlayer, false);
+        }
         super.onPause();
     }
 
     @Override
     protected void onResume(){
         super.onResume();
+        mGLView1.onResume();
+        mHandler.post(mProgressUpdater);
 
     }
 
     /** 当活动即将销毁时调用 */
     @Override
     protected void onDestroy(){
-        shutdown();
+        if (mCreated) {
+            shutdownPlayer();
+        }
+        mPlayer = 0;
+        mPlaylist = null;
         mCreated = false;
+        mGLView1VideoSink.release();
         super.onDestroy();
     }
 
     //create 创建 Streaming 流媒体 Media  Player播放
-    //createStreamingMediaPlayer创建流媒体播放
-    //以下为native方法
-    public static native boolean  createStreamingMediaPlayer(AssetManager asstMgr, String filename);
-    public static native void setPlayingStreamingMediaPlayer(boolean isPlaying);
-    public static native void shutdown();
-    public static native void setSurface(Surface surface);
-    public static native void rewindStreamingMediaPlayer();
-    public static native void pauseStreamingMediaPlayer();
+    //createStreamingMediaPlayer创建流媒体播放，立即返回播放器句柄，文件和解码器都在native的looper线程上打开，
+    //不阻塞调用线程；打开完成或者文件打不开时在native线程上回调listener，listener可以为null
+    //以下为native方法，除setThreadPolicy和解码器池外都以句柄作为第一个参数
+    public static native long createStreamingMediaPlayer(AssetManager asstMgr, String filename, Surface surface,
+            PlayerListener listener);
+    //用openDataSource打开的数据源创建播放器，同一个数据源可以创建多个播放器，不用每次重新打开文件
+    public static native long createPlayerFromSource(long source, Surface surface, PlayerListener listener);
+    //按性能配置创建播放器，codecName为null时按mime选择解码器，指定的解码器不存在或者configure失败时自动退回
+    public static native long createPlayerWithProfile(AssetManager asstMgr, String filename, Surface surface,
+            int profile, String codecName, PlayerListener listener);
+    //ByteBuffer输出模式：不输出到surface，解码出的帧通过frameListener交给Java分析，同时最多交出maxFramesInFlight帧
+    public static native long createFramePlayer(AssetManager asstMgr, String filename, int maxFramesInFlight,
+            FrameListener frameListener, PlayerListener listener);
+    public static native void releaseFrame(long player, long token);
+    //预加载播放列表的下一项：打开并解码好第一帧后停住，没有surface，由setNextPlayer交接后开始播放
+    public static native long preloadStreamingMediaPlayer(AssetManager asstMgr, String filename,
+            PlayerListener listener);
+    //player播完后在native层把surface交给next并开始播放next，next为0表示取消
+    public static native void setNextPlayer(long player, long next);
+    //交接要等player的最后一帧显示之后，返回true之前关闭player会取消交接
+    public static native boolean isHandedOff(long player);
+    public static native void setPlayingStreamingMediaPlayer(long player, boolean isPlaying);
+    public static native void shutdown(long player);
+    public static native void setSurface(long player, Surface surface);
+    public static native void rewindStreamingMediaPlayer(long player);
+    public static native void seekTo(long player, long timeUs, int mode);
+    //播放速度，负数为倒放，0被忽略；快进快退时解码量有上限，不会跟不上
+    public static native void setPlaybackRate(long player, float rate);
+    public static native long getDurationUs(long player);
+    public static native long getPositionUs(long player);
+    public static native long getSeekLatencyUs(long player);
+    //最近一次暂停从请求到生效的耗时，还没生效返回-1
+    public static native long getPauseLatencyUs(long player);
+    public static native void pauseStreamingMediaPlayer(long player);
+    //循环播放：开头的GOP缓存在内存里，回绕时不flush解码器、画面不停顿
+    public static native void setLooping(long player, boolean looping);
+    public static native void setLateFrameThreshold(long player, long thresholdUs);
+    public static native void setPacingEnabled(long player, boolean paced);
+    public static native void getStats(long player, long[] stats);
+    //实际使用的解码器名字(API 28以上)和性能配置加上的key，打开完成之前返回null
+    public static native String getCodecName(long player);
+    public static native String getCodecKeys(long player);
+    public static native boolean isEndOfStream(long player);
+    public static native long getFirstFrameLatencyUs(long player);
+    public static native int getDecodeLatencies(long player, long[] latencies);
+    //之后创建的播放器共享最多maxThreads个解码线程，0表示每个播放器独占一个线程
+    public static native void setThreadPolicy(int maxThreads);
+    //缩略图解码器，只解码关键帧，每个实例同一时间只能在一个线程上使用，失败返回0
+    public static native long openThumbnailer(AssetManager asstMgr, String filename);
+    //把不晚于timeUs的关键帧缩放后画进bitmap(ARGB_8888)，返回这一帧的时间戳，失败返回-1
+    public static native long decodeThumbnail(long thumbnailer, long timeUs, Bitmap bitmap);
+    public static native void closeThumbnailer(long thumbnailer);
+    //数据源：uri为asset路径(可以带asset:///前缀)、file://或/开头的本地路径(比如getFilesDir()下的文件)、
+    //或者http://开头的地址。HTTP会同步请求第一块，不要在UI线程上调用。失败返回0
+    public static native long openDataSource(AssetManager asstMgr, String uri);
+    //用它创建的播放器还没关闭时，数据源等播放器关闭后才真正关闭
+    public static native void closeDataSource(long source);
+    //stats至少要有DataSourceStats.COUNT个元素
+    public static native void getDataSourceStats(long source, long[] stats);
+    //把数据源转码成H.264的MP4写到outputPath，音频原样复制。width/height都为0时保持原尺寸，只给一个时按比例，
+    //bitrate为码率上限，0表示用源文件的码率。立即返回，失败返回0
+    public static native long startTranscode(long source, String outputPath, int width, int height, int bitrate,
+            TranscodeListener listener);
+    //stats至少要有TranscodeStats.COUNT个元素
+    public static native void getTranscodeStats(long transcoder, long[] stats);
+    //没结束时先取消，会等转码线程退出。不能在onTranscodeDone里调用
+    public static native void releaseTranscoder(long transcoder);
+    //空闲解码器池最多保留maxDecoders个解码器，0表示不使用池
+    public static native void setDecoderPoolSize(int maxDecoders);
+    //在后台线程预先创建count个解码器，分辨率不知道时传0
+    public static native void prewarmDecoders(String mime, int width, int height, int count);
+    public static native int getPooledDecoderCount();
 
     //程序启动时加载native-lib库
     static {
@@ -234,13 +524,37 @@ public class MainActivity extends Activity {
     }
 
 
+    //打开完成的通知，在native的looper线程上调用，success为false时要调用shutdown释放句柄
+    interface PlayerListener {
+        void onPrepared(long player, boolean success);
+    }
+
+    //ByteBuffer输出模式的回调，在native的looper线程上调用
+    interface FrameListener {
+        //输出格式变化，第一帧之前至少调用一次，colorFormat为MediaCodecInfo.CodecCapabilities.COLOR_*
+        void onFormatChanged(int width, int height, int stride, int sliceHeight, int colorFormat);
+        //frame直接包装解码器的输出缓冲区，调用releaseFrame(player, token)之前有效，之后不能再访问。
+        //同一个输出缓冲区每次都是同一个ByteBuffer对象，position和limit不会重置，要用绝对位置读取。
+        //交出的帧达到上限后解码器暂停输出，fps为从第一帧算起的持续帧率
+        void onFrame(long player, long token, ByteBuffer frame, long ptsUs, double fps);
+    }
+
+    //转码结束的通知，在native的转码线程上调用，成功或失败都要调用releaseTranscoder
+    interface TranscodeListener {
+        void onTranscodeDone(long transcoder, boolean success);
+    }
+
     //videosink提取了surface和SurfaceTexure之间的区别
     //或者说是surfaveholder和GLSurfaceView
     static abstract class VideoSink{
 
         //abstract抽象类
         abstract void setFixedSize(int width, int height);
-        abstract void useAsSinkForNative();
+        abstract Surface getSurface();
+        abstract void useAsSinkForNative(long player);
+        //Activity销毁时释放sink自己创建的Surface
+        void release(){
+        }
     }
 
     //SurfaceHolderVideoSink在此处继承是为了调用setFixedSize的宽高
@@ -257,12 +571,66 @@ public class MainActivity extends Activity {
             mSurfaceHolder.setFixedSize(width, height);
         }
 
-        //通过useAsSinkForNative调用setSurface(),将方法传入到native-lib中
         @Override
-        void useAsSinkForNative(){
+        Surface getSurface(){
+            return mSurfaceHolder.getSurface();
+        }
+
+        //通过useAsSinkForNative调用setSurface(),将方法传入到native-lib中。
+        //surface还没创建好时先输出到native层的占位surface，surfaceCreated里再交给解码器
+        @Override
+        void useAsSinkForNative(long player){
             Surface s = mSurfaceHolder.getSurface();
             Log.i("@@@", "setting surface" + s);
-            setSurface(s);
+            setSurface(player, s.isValid() ? s : null);
+        }
+    }
+
+    //GLSurfaceView的SurfaceTexture：解码出的帧先到纹理，有新帧时MyRenderer画一次
+    static class GLViewVideoSink extends VideoSink{
+
+        private final MyGLSurfaceView mMyGLSurfaceView;
+        //每个SurfaceTexture只创建一个Surface，SurfaceTexture重建或者sink销毁时释放。只在UI线程上访问
+        private SurfaceTexture mTexture;
+        private Surface mSurface;
+
+        GLViewVideoSink(MyGLSurfaceView myGLSurfaceView){
+            mMyGLSurfaceView = myGLSurfaceView;
+        }
+
+        //纹理的大小跟着解码器的输出
+        @Override
+        void setFixedSize(int width, int height){
+        }
+
+        //GL线程还没创建SurfaceTexture时返回null，解码器先输出到占位surface
+        @Override
+        Surface getSurface(){
+            SurfaceTexture st = mMyGLSurfaceView.getSurfaceTexture();
+            if (st != mTexture) {
+                //EGL上下文重建后换了SurfaceTexture，旧的Surface已经没用了
+                release();
+                mTexture = st;
+                mSurface = st != null ? new Surface(st) : null;
+            }
+            return mSurface;
+        }
+
+        //native层持有window的引用，Java的Surface留着给播放列表的下一个播放器用
+        @Override
+        void useAsSinkForNative(long player){
+            Surface s = getSurface();
+            Log.i("@@@", "setting texture surface " + s);
+            setSurface(player, s);
+        }
+
+        @Override
+        void release(){
+            if (mSurface != null) {
+                mSurface.release();
+            }
+            mSurface = null;
+            mTexture = null;
         }
     }
 
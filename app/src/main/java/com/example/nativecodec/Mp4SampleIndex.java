@@ -0,0 +1,327 @@
+package com.example.nativecodec;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//纯Java的MP4样本表解析器，不依赖android.*，单元测试(Mp4SampleIndexTest)直接在主机JVM上运行。
+//只读取顶层box的头部找到moov，把moov映射到内存后直接读stbl中的各个表，不读取也不复制样本数据。
+//不处理编辑列表(edts)和分片MP4(moof)，显示时间就是样本表中的dts加上ctts偏移
+final class Mp4SampleIndex {
+
+    private static final int MOOV = fourcc('m', 'o', 'o', 'v');
+    private static final int TRAK = fourcc('t', 'r', 'a', 'k');
+    private static final int MDIA = fourcc('m', 'd', 'i', 'a');
+    private static final int MINF = fourcc('m', 'i', 'n', 'f');
+    private static final int STBL = fourcc('s', 't', 'b', 'l');
+    private static final int TKHD = fourcc('t', 'k', 'h', 'd');
+    private static final int MDHD = fourcc('m', 'd', 'h', 'd');
+    private static final int HDLR = fourcc('h', 'd', 'l', 'r');
+    private static final int STSD = fourcc('s', 't', 's', 'd');
+    private static final int STTS = fourcc('s', 't', 't', 's');
+    private static final int CTTS = fourcc('c', 't', 't', 's');
+    private static final int STSS = fourcc('s', 't', 's', 's');
+    private static final int STSZ = fourcc('s', 't', 's', 'z');
+    private static final int STSC = fourcc('s', 't', 's', 'c');
+    private static final int STCO = fourcc('s', 't', 'c', 'o');
+    private static final int CO64 = fourcc('c', 'o', '6', '4');
+
+    //一个轨道的样本索引，第i个样本的信息在各数组的第i项
+    static final class Track {
+        int trackId;
+        String handler;     //vide、soun等
+        String format;      //stsd第一个条目的类型，如avc1、mp4a
+        int width;          //tkhd中的显示尺寸，音频轨道为0
+        int height;
+        long timescale;
+        long durationUs;
+        int sampleCount;
+        long[] offsets;     //在文件中的偏移，相对于parse时传入的offset
+        int[] sizes;
+        long[] ptsUs;
+        //关键帧的样本序号(从0开始，升序)，null表示每个样本都是关键帧
+        int[] syncSamples;
+
+        boolean isSync(int sample) {
+            return syncSamples == null || Arrays.binarySearch(syncSamples, sample) >= 0;
+        }
+
+        //索引数组占用的堆内存(不含对象头)
+        long footprintBytes() {
+            long bytes = (long) sampleCount * (8 + 4 + 8);
+            if (syncSamples != null) {
+                bytes += (long) syncSamples.length * 4;
+            }
+            return bytes;
+        }
+    }
+
+    final List<Track> tracks = new ArrayList<>();
+
+    private Mp4SampleIndex() {
+    }
+
+    //返回第一个handler类型匹配的轨道，没有返回null
+    Track findTrack(String handler) {
+        for (Track track : tracks) {
+            if (handler.equals(track.handler)) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    static Mp4SampleIndex parse(String path) throws IOException {
+        try (FileInputStream in = new FileInputStream(path)) {
+            FileChannel channel = in.getChannel();
+            return parse(channel, 0, channel.size());
+        }
+    }
+
+    //offset和length用于asset等嵌在大文件中的情况(AssetFileDescriptor的startOffset和length)
+    static Mp4SampleIndex parse(FileChannel channel, long offset, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long pos = 0;
+        while (length - pos >= 8) {
+            header.clear();
+            if (channel.read(header, offset + pos) < 8) {
+                break;
+            }
+            long size = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.position() < 16) {
+                    throw new IOException("truncated box header at " + pos);
+                }
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - pos;
+            }
+            if (size < headerSize || size > length - pos) {
+                throw new IOException("bad box " + fourccString(type) + " at " + pos);
+            }
+            if (type == MOOV) {
+                if (size - headerSize > Integer.MAX_VALUE) {
+                    throw new IOException("moov too large: " + size);
+                }
+                ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + pos + headerSize, size - headerSize);
+                Mp4SampleIndex index = new Mp4SampleIndex();
+                index.parseBoxes(moov, 0, moov.limit(), null, null);
+                return index;
+            }
+            pos += size;
+        }
+        throw new IOException("no moov box");
+    }
+
+    //stbl中各个表的位置(box内容的起止)，等整个trak读完再生成索引
+    private static final class SampleTables {
+        int stts = -1, sttsEnd;
+        int ctts = -1, cttsEnd;
+        int stss = -1, stssEnd;
+        int stsz = -1, stszEnd;
+        int stsc = -1, stscEnd;
+        int stco = -1, stcoEnd;
+        boolean co64;
+    }
+
+    private void parseBoxes(ByteBuffer buf, int pos, int end, Track track, SampleTables tables)
+            throws IOException {
+        while (end - pos >= 8) {
+            long size = buf.getInt(pos) & 0xffffffffL;
+            int type = buf.getInt(pos + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = buf.getLong(pos + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < headerSize || size > end - pos) {
+                throw new IOException("bad box " + fourccString(type) + " in moov at " + pos);
+            }
+            int body = pos + headerSize;
+            int boxEnd = (int) (pos + size);
+
+            if (type == TRAK) {
+                Track t = new Track();
+                SampleTables st = new SampleTables();
+                parseBoxes(buf, body, boxEnd, t, st);
+                buildSamples(buf, t, st);
+                tracks.add(t);
+            } else if (track == null) {
+                //trak之外的box(mvhd、udta等)不需要
+            } else if (type == MDIA || type == MINF || type == STBL) {
+                parseBoxes(buf, body, boxEnd, track, tables);
+            } else if (type == TKHD) {
+                boolean v1 = buf.get(body) == 1;
+                track.trackId = buf.getInt(body + (v1 ? 20 : 12));
+                //宽高是16.16定点数，位于box末尾
+                int dimensions = v1 ? 88 : 76;
+                if (boxEnd - body >= dimensions + 8) {
+                    track.width = buf.getInt(body + dimensions) >>> 16;
+                    track.height = buf.getInt(body + dimensions + 4) >>> 16;
+                }
+            } else if (type == MDHD) {
+                if (buf.get(body) == 1) {
+                    track.timescale = buf.getInt(body + 20) & 0xffffffffL;
+                    track.durationUs = toUs(buf.getLong(body + 24), track.timescale);
+                } else {
+                    track.timescale = buf.getInt(body + 12) & 0xffffffffL;
+                    track.durationUs = toUs(buf.getInt(body + 16) & 0xffffffffL, track.timescale);
+                }
+            } else if (type == HDLR) {
+                track.handler = fourccString(buf.getInt(body + 8));
+            } else if (type == STSD) {
+                if (buf.getInt(body + 4) > 0 && boxEnd - body >= 16) {
+                    track.format = fourccString(buf.getInt(body + 12));
+                }
+            } else if (type == STTS) {
+                tables.stts = body;
+                tables.sttsEnd = boxEnd;
+            } else if (type == CTTS) {
+                tables.ctts = body;
+                tables.cttsEnd = boxEnd;
+            } else if (type == STSS) {
+                tables.stss = body;
+                tables.stssEnd = boxEnd;
+            } else if (type == STSZ) {
+                tables.stsz = body;
+                tables.stszEnd = boxEnd;
+            } else if (type == STSC) {
+                tables.stsc = body;
+                tables.stscEnd = boxEnd;
+            } else if (type == STCO || type == CO64) {
+                tables.stco = body;
+                tables.stcoEnd = boxEnd;
+                tables.co64 = type == CO64;
+            }
+            pos = boxEnd;
+        }
+    }
+
+    //检查表的条目没有超出box，返回条目个数
+    private static int entryCount(ByteBuffer buf, int body, int end, int headerSize, int entrySize)
+            throws IOException {
+        int count = buf.getInt(body + headerSize - 4);
+        if (count < 0 || (long) count * entrySize > end - body - headerSize) {
+            throw new IOException("sample table overruns its box: " + count + " entries");
+        }
+        return count;
+    }
+
+    private static void buildSamples(ByteBuffer buf, Track track, SampleTables t) throws IOException {
+        //缺少必须的表(比如只有分片的轨道)时样本数为0
+        if (t.stsz < 0 || t.stsc < 0 || t.stco < 0 || t.stts < 0 || track.timescale <= 0) {
+            track.offsets = new long[0];
+            track.sizes = new int[0];
+            track.ptsUs = new long[0];
+            return;
+        }
+
+        //stsz：固定大小时没有逐个样本的表
+        int fixedSize = buf.getInt(t.stsz + 4);
+        int count = buf.getInt(t.stsz + 8);
+        if (count < 0 || (fixedSize == 0 && (long) count * 4 > t.stszEnd - t.stsz - 12)) {
+            throw new IOException("bad stsz sample count " + count);
+        }
+        int[] sizes = new int[count];
+        if (fixedSize != 0) {
+            Arrays.fill(sizes, fixedSize);
+        } else {
+            for (int i = 0; i < count; i++) {
+                sizes[i] = buf.getInt(t.stsz + 12 + i * 4);
+            }
+        }
+
+        //stsc和stco/co64：按块展开，块内的样本紧挨着存放
+        long[] offsets = new long[count];
+        int chunkCount = entryCount(buf, t.stco, t.stcoEnd, 8, t.co64 ? 8 : 4);
+        int stscCount = entryCount(buf, t.stsc, t.stscEnd, 8, 12);
+        int sample = 0;
+        for (int e = 0; e < stscCount && sample < count; e++) {
+            int entry = t.stsc + 8 + e * 12;
+            int firstChunk = buf.getInt(entry) - 1;
+            int samplesPerChunk = buf.getInt(entry + 4);
+            int lastChunk = e + 1 < stscCount ? buf.getInt(entry + 12) - 1 : chunkCount;
+            lastChunk = Math.min(lastChunk, chunkCount);
+            for (int chunk = Math.max(firstChunk, 0); chunk < lastChunk && sample < count; chunk++) {
+                long offset = t.co64 ? buf.getLong(t.stco + 8 + chunk * 8)
+                        : buf.getInt(t.stco + 8 + chunk * 4) & 0xffffffffL;
+                for (int k = 0; k < samplesPerChunk && sample < count; k++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample] & 0xffffffffL;
+                    sample++;
+                }
+            }
+        }
+        if (sample < count) {
+            throw new IOException("stsc/stco describe " + sample + " of " + count + " samples");
+        }
+
+        //stts给出解码时间，ctts(可选)给出显示时间相对解码时间的偏移
+        long[] ptsUs = new long[count];
+        int sttsCount = entryCount(buf, t.stts, t.sttsEnd, 8, 8);
+        int cttsCount = t.ctts < 0 ? 0 : entryCount(buf, t.ctts, t.cttsEnd, 8, 8);
+        int cttsEntry = 0;
+        int cttsLeft = cttsCount > 0 ? buf.getInt(t.ctts + 8) : 0;
+        long dts = 0;
+        sample = 0;
+        for (int e = 0; e < sttsCount && sample < count; e++) {
+            int runLength = buf.getInt(t.stts + 8 + e * 8);
+            long delta = buf.getInt(t.stts + 12 + e * 8) & 0xffffffffL;
+            for (int k = 0; k < runLength && sample < count; k++) {
+                long cts = 0;
+                while (cttsLeft == 0 && ++cttsEntry < cttsCount) {
+                    cttsLeft = buf.getInt(t.ctts + 8 + cttsEntry * 8);
+                }
+                if (cttsLeft > 0) {
+                    cts = buf.getInt(t.ctts + 12 + cttsEntry * 8);
+                    cttsLeft--;
+                }
+                ptsUs[sample++] = toUs(dts + cts, track.timescale);
+                dts += delta;
+            }
+        }
+        //stts比样本少时剩下的样本沿用最后的时间
+        for (; sample < count; sample++) {
+            ptsUs[sample] = toUs(dts, track.timescale);
+        }
+
+        //stss：没有这个表时每个样本都是关键帧
+        if (t.stss >= 0) {
+            int syncCount = entryCount(buf, t.stss, t.stssEnd, 8, 4);
+            int[] sync = new int[syncCount];
+            for (int i = 0; i < syncCount; i++) {
+                sync[i] = buf.getInt(t.stss + 8 + i * 4) - 1;
+            }
+            track.syncSamples = sync;
+        }
+
+        track.sampleCount = count;
+        track.sizes = sizes;
+        track.offsets = offsets;
+        track.ptsUs = ptsUs;
+    }
+
+    private static long toUs(long time, long timescale) {
+        return time / timescale * 1000000 + time % timescale * 1000000 / timescale;
+    }
+
+    private static int fourcc(char a, char b, char c, char d) {
+        return (a << 24) | (b << 16) | (c << 8) | d;
+    }
+
+    private static String fourccString(int type) {
+        char[] chars = {(char) ((type >>> 24) & 0xff), (char) ((type >>> 16) & 0xff),
+                (char) ((type >>> 8) & 0xff), (char) (type & 0xff)};
+        return new String(chars);
+    }
+}
@@ -3,8 +3,10 @@ package com.example.nativecodec;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Debug;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -12,6 +14,7 @@ import android.util.Log;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -31,9 +34,12 @@ public class MyGLSurfaceView extends GLSurfaceView {
 
     private void init(){
         setEGLContextClientVersion(2);
-        mRenderer = new MyRenderer();
+        //暂停时保留EGL上下文，SurfaceTexture和解码器连着的Surface不用重建
+        setPreserveEGLContextOnPause(true);
+        mRenderer = new MyRenderer(this);
         setRenderer(mRenderer);
-        Log.i("@@@", "setrenderer");
+        //只在有新帧(onFrameAvailable)时绘制
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
     }
 
     @Override
@@ -48,14 +54,37 @@ public class MyGLSurfaceView extends GLSurfaceView {
         mRenderer.onResume();
     }
 
+    //GL线程创建之前为null
     public SurfaceTexture getSurfaceTexture(){
-        return mRenderer.getSurfaceTexturn();
+        return mRenderer.getSurfaceTexture();
+    }
+
+    //SurfaceTexture创建或者重新创建后在GL线程上调用，之前交给解码器的Surface已经失效
+    void setOnSurfaceTextureCreated(Runnable listener){
+        mRenderer.setOnSurfaceTextureCreated(listener);
+    }
+
+    //基准测试对比用：改回原来的画法，持续绘制、每帧从客户端内存指定顶点和计算矩阵、每次调用后检查错误
+    void setLegacyRendering(final boolean legacy){
+        setRenderMode(legacy ? RENDERMODE_CONTINUOUSLY : RENDERMODE_WHEN_DIRTY);
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.setLegacy(legacy);
+            }
+        });
+    }
+
+    //stats至少要有RenderStats.COUNT个元素
+    void getRenderStats(long[] stats){
+        mRenderer.getStats(stats);
     }
 }
 
 class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvailableListener{
 
-    public MyRenderer(){
+    public MyRenderer(GLSurfaceView view){
+        mView = view;
         mVertices = ByteBuffer.allocateDirect(mVerticesData.length
                 * FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
         mVertices.put(mVerticesData).position(0);
@@ -69,17 +98,92 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
         mLastTime = SystemClock.elapsedRealtimeNanos();
     }
 
+    void setOnSurfaceTextureCreated(Runnable listener){
+        mOnSurfaceTextureCreated = listener;
+    }
+
+    //在GL线程上调用
+    void setLegacy(boolean legacy){
+        mLegacy = legacy;
+        mStateDirty = true;
+    }
+
+    synchronized void getStats(long[] stats){
+        System.arraycopy(mStats, 0, stats, 0, RenderStats.COUNT);
+    }
 
     @Override
     public void onDrawFrame(GL10 glUnused) {
+        //上一次进入onDrawFrame之后GL线程用的CPU时间，包括GLSurfaceView的eglSwapBuffers
+        long cpuNs = Debug.threadCpuTimeNanos();
+        long spentNs = mLastCpuNs >= 0 ? cpuNs - mLastCpuNs : 0;
+        mLastCpuNs = cpuNs;
+
+        boolean latched = false;
         synchronized (this){   //synchronized Java中的一种同步锁
             if (updateSurface){
                 mSurface.updateTexImage();
 
                 mSurface.getTransformMatrix(mSTMatrix);
                 updateSurface = false;
+                latched = true;
             }
+            mStats[RenderStats.FRAMES_LATCHED] += latched ? 1 : 0;
+            mStats[RenderStats.DRAWS]++;
+            mStats[RenderStats.CPU_NS] += spentNs;
+        }
+
+        if (mLegacy){
+            drawLegacy();
+            return;
+        }
+        if (mStateDirty){
+            applyState();
         }
+        //变换矩阵通常每帧都一样，只在变化时上传
+        if (!Arrays.equals(mSTMatrix, mUploadedSTMatrix)){
+            GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
+            System.arraycopy(mSTMatrix, 0, mUploadedSTMatrix, 0, 16);
+        }
+        beginGpuTimer();
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0, 4);
+        endGpuTimer();
+        checkGlError("glDrawArrays");
+    }
+
+    //按需绘制用到的GL状态，只有一个程序和一个顶点缓冲区，设置一次之后一直有效
+    private void applyState(){
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, mTextureID);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
+                VERTICES_DATA_STRIDE_BYTES, VERTICES_DATA_POS_OFFSET * FLOAT_SIZE_BYTES);
+        GLES20.glEnableVertexAttribArray(maPositionHandle);
+        GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false,
+                VERTICES_DATA_STRIDE_BYTES, VERTICES_DATA_UV_OFFSET * FLOAT_SIZE_BYTES);
+        GLES20.glEnableVertexAttribArray(maTextureHandle);
+        checkGlError("applyState");
+
+        //视频平放在画面中间，不做动画
+        Matrix.setIdentityM(mMMatrix, 0);
+        Matrix.multiplyMM(mMVPMatrix, 0, mVmatrix, 0, mMMatrix, 0);
+        Matrix.multiplyMM(mMVPMatrix, 0, mProjMatrix, 0, mMVPMatrix, 0);
+        GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
+        System.arraycopy(mSTMatrix, 0, mUploadedSTMatrix, 0, 16);
+        mStateDirty = false;
+    }
+
+    //原来的画法，每帧重新设置所有状态
+    private void drawLegacy(){
+        beginGpuTimer();
+        GLES20.glEnable(GLES20.GL_BLEND);
+        //顶点从客户端内存读取，不能绑着顶点缓冲区
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         //忽略传入的GL10接口，并使用GLES20代替类的静态方法
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
@@ -124,6 +228,7 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0, 4);
         checkGlError("glDrawArrays");
+        endGpuTimer();
     }
 
     @Override
@@ -133,13 +238,13 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
         GLES20.glViewport(0, 0,width, height);
         mRatio = (float) width / height;
         Matrix.frustumM(mProjMatrix, 0, -mRatio, mRatio, -1, 1, 3, 7);
+        mStateDirty = true;
     }
 
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
 
         //设置Alpha混合和Android背景颜色
-        GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
         GLES20.glClearColor(0.643f, 0.776f, 0.223f, 1.0f);
 
@@ -165,18 +270,22 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
             throw new RuntimeException("Could not get attrib location for uMVPMatrix");
         }
 
-        muSTMatrixHandle = GLES20.glGetUniformLocation(mProgram,"uSTMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (muMVPMatrixHandle == -1){
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
-        }
-
         muSTMatrixHandle = GLES20.glGetUniformLocation(mProgram,"uSTMatrix");
         checkGlError("glGetUniformLocation uSTMatrix");
         if (muSTMatrixHandle == -1){
             throw new RuntimeException("Could not get attrib location for uSTMatrix");
         }
 
+        //四个顶点一次性放进顶点缓冲区，之后每帧不用再传
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mVertexBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        mVertices.position(0);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVerticesData.length * FLOAT_SIZE_BYTES, mVertices,
+                GLES20.GL_STATIC_DRAW);
+        checkGlError("glBufferData");
+
         //每次创建曲面时都必须创建纹理
         int[] textures = new int[1];
         GLES20.glGenTextures(1, textures, 0);
@@ -204,27 +313,99 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
                 GLES20.GL_CLAMP_TO_EDGE);
         checkGlError("glTexParameteri mTextureID");
 
-        //创建提供textureID的SurfaceTexture,并将其传递给相机
-        mSurface = new SurfaceTexture(mTextureID);
-        mSurface.setOnFrameAvailableListener(this);
+        createGpuTimer();
 
         Matrix.setLookAtM(mVmatrix, 0, 0, 0, 4f,
                 0f, 0f, 0f,0f,1.0f, 0.0f);
+        mStateDirty = true;
+
+        //EGL上下文丢失后重新创建：旧的SurfaceTexture连着的纹理已经不存在
+        SurfaceTexture old = mSurface;
+        //创建提供textureID的SurfaceTexture,并将其传递给解码器
+        SurfaceTexture surface = new SurfaceTexture(mTextureID);
+        surface.setOnFrameAvailableListener(this);
 
         //synchronized，可以确保线程互斥的访问同步代码
         synchronized (this){
+            mSurface = surface;
             updateSurface = false;
         }
+        if (old != null){
+            old.release();
+        }
+        Runnable listener = mOnSurfaceTextureCreated;
+        if (listener != null){
+            listener.run();
+        }
     }
 
 
 
     @Override
     public void onFrameAvailable(SurfaceTexture surface) {
-        //为简单起见，SurfaceTexture在有新数据可用时在此处调用。
-        //调用可能来自某个随机线程，因此请放心使用同步。
-        // 此处无法进行OpenGL调用。
-        updateSurface = true;
+        //调用来自SurfaceTexture的回调线程，和GL线程之间要同步。
+        // 此处无法进行OpenGL调用，只标记有新帧并请求绘制一次
+        synchronized (this){
+            updateSurface = true;
+            mStats[RenderStats.FRAMES_AVAILABLE]++;
+        }
+        mView.requestRender();
+    }
+
+    //GL_EXT_disjoint_timer_query需要ES 3.0的查询接口，没有时不统计GPU时间
+    private void createGpuTimer(){
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        mGpuTimer = version != null && version.startsWith("OpenGL ES 3")
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+        mQueryHead = mQueryCount = 0;
+        if (mGpuTimer){
+            GLES30.glGenQueries(GPU_QUERIES, mQueries, 0);
+            //清除之前可能残留的disjoint标志
+            GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mDisjoint, 0);
+        }
+        Log.i(TAG, "GPU timer " + (mGpuTimer ? "enabled" : "unavailable") + ", " + version);
+    }
+
+    //查询结果要过几帧才有，每帧先收取已经完成的，所有查询都在等结果时这一帧不计时
+    private void beginGpuTimer(){
+        if (!mGpuTimer){
+            return;
+        }
+        collectGpuTimes();
+        mTiming = mQueryCount < GPU_QUERIES;
+        if (mTiming){
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[(mQueryHead + mQueryCount) % GPU_QUERIES]);
+        }
+    }
+
+    private void endGpuTimer(){
+        if (mTiming){
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mQueryCount++;
+            mTiming = false;
+        }
+    }
+
+    private void collectGpuTimes(){
+        while (mQueryCount > 0) {
+            int query = mQueries[mQueryHead];
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+            if (mQueryResult[0] == 0){
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+            //期间GPU频率变化或者被抢占时结果不可靠，丢掉
+            GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mDisjoint, 0);
+            if (mDisjoint[0] == 0){
+                synchronized (this){
+                    mStats[RenderStats.GPU_NS] += mQueryResult[0] & 0xffffffffL;
+                    mStats[RenderStats.GPU_SAMPLES]++;
+                }
+            }
+            mQueryHead = (mQueryHead + 1) % GPU_QUERIES;
+            mQueryCount--;
+        }
     }
 
     private int loadShader(int shaderType, String source){
@@ -275,8 +456,11 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
 
 
 
-
+    //glGetError会让驱动同步，release版本只在原来的画法里检查
     private void checkGlError(String op){
+        if (!BuildConfig.DEBUG && !mLegacy){
+            return;
+        }
         int error;
         while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR){
             Log.e(TAG, op + ": glError " + error);
@@ -323,26 +507,51 @@ class MyRenderer implements GLSurfaceView.Renderer, SurfaceTexture.OnFrameAvaila
     private float[] mMMatrix = new float[16];
     private float[] mVmatrix = new float[16];
     private float[] mSTMatrix = new float[16];
+    //最近一次上传的uSTMatrix
+    private float[] mUploadedSTMatrix = new float[16];
 
+    private final GLSurfaceView mView;
     private int mProgram;
     private int mTextureID;
+    private int mVertexBuffer;
     private int muMVPMatrixHandle;
     private int muSTMatrixHandle;
     private int maPositionHandle;
     private int maTextureHandle;
+    //视口、画法变化或者上下文重建后要重新设置GL状态
+    private boolean mStateDirty = true;
+    private boolean mLegacy = false;
 
     private float mRatio = 1.0f;
-    private SurfaceTexture mSurface;
+    //在GL线程上创建，UI线程读取
+    private volatile SurfaceTexture mSurface;
+    private volatile Runnable mOnSurfaceTextureCreated;
+    //以下两项由this保护
     private boolean updateSurface = false;
+    private final long[] mStats = new long[RenderStats.COUNT];
     private long mLastTime = -1;
     private long mRunTime = 0;
+    private long mLastCpuNs = -1;
+
+    //GPU计时：循环使用的查询对象，mQueryHead开始的mQueryCount个在等结果
+    private static final int GPU_QUERIES = 4;
+    private boolean mGpuTimer;
+    private boolean mTiming;
+    private final int[] mQueries = new int[GPU_QUERIES];
+    private int mQueryHead;
+    private int mQueryCount;
+    private final int[] mQueryResult = new int[1];
+    private final int[] mDisjoint = new int[1];
 
     private static final String TAG = "MyRenderer";
 
     //Magic key
     private static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+    //GL_EXT_disjoint_timer_query
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
 
-    public SurfaceTexture getSurfaceTexturn(){
+    public SurfaceTexture getSurfaceTexture(){
         return mSurface;
     }
 
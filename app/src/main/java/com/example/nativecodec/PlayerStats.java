@@ -0,0 +1,126 @@
+package com.example.nativecodec;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+//native层性能计数器快照(MainActivity.getStats)中各项的位置，和playerstats.h中的kStat*一一对应。
+//同一份快照用于界面上的覆盖层、基准测试和上报
+final class PlayerStats {
+    static final int FRAMES_QUEUED = 0;
+    static final int FRAMES_DECODED = 1;
+    static final int FRAMES_RENDERED = 2;
+    static final int FRAMES_DROPPED = 3;
+    static final int FRAMES_LATE = 4;
+    static final int INPUT_WAIT_US = 5;
+    static final int OUTPUT_WAIT_US = 6;
+    static final int READ_US = 7;
+    static final int SAMPLES_READ = 8;
+    static final int DEMUX_STARVATIONS = 9;
+    static final int DEMUX_FULL_WAITS = 10;
+    static final int DEMUX_COUNT = 11;
+    static final int DEMUX_BYTES = 12;
+    static final int DEMUX_READS = 13;
+    static final int DEMUX_OCCUPANCY_SUM = 14;
+    static final int LATENESS_HIST = 15;
+    static final int DRIFT_HIST = 23;
+    static final int SURFACE_SWITCHES = 30;
+    static final int SURFACE_RECONFIGURES = 31;
+    static final int SURFACE_SWITCH_US = 32;
+    static final int OPEN_US = 33;
+    static final int CODEC_CREATE_US = 34;
+    static final int CODEC_POOLED = 35;
+    static final int FRAME_BACKPRESSURE = 36;
+    static final int HANDOVER_GAP_US = 37;
+    static final int FRAME_INTERVAL_US = 38;
+    static final int SAMPLES_SKIPPED = 39;
+    static final int KEYFRAME_JUMPS = 40;
+    static final int CODEC_PROFILE = 41;
+    static final int CODEC_FALLBACKS = 42;
+    static final int INPUT_THROTTLED = 43;
+    static final int AUDIO_UNDERRUNS = 44;
+    static final int AUDIO_XRUNS = 45;
+    static final int AUDIO_LATENCY_US = 46;
+    static final int AUDIO_CALLBACK_US = 47;
+    static final int AV_DRIFT_US = 48;
+    static final int PAUSE_LATENCY_US = 49;
+    static final int LOOPS = 50;
+    static final int LOOP_GAP_US = 51;
+    static final int LOOP_GAP_MAX_US = 52;
+    static final int LOOP_CACHE_BYTES = 53;
+    static final int LOOP_CACHE_SEEKS = 54;
+    static final int AUDIO_LOOP_CACHE_BYTES = 55;
+    static final int AUDIO_LOOP_ALIGN_US = 56;
+    static final int LOOPER_OVERFLOWS = 57;
+    static final int COUNT = 58;
+
+    //直方图各区间的上界
+    static final String[] LATENESS_BUCKETS = {"<=0ms", "<=2ms", "<=4ms", "<=8ms", "<=16ms", "<=33ms", "<=66ms", ">66ms"};
+    static final String[] DRIFT_BUCKETS = {"<=-16ms", "<=-8ms", "<=-2ms", "<=2ms", "<=8ms", "<=16ms", ">16ms"};
+
+    private static final String[] NAMES = {"framesQueued", "framesDecoded", "framesRendered",
+            "framesDropped", "framesLate", "inputWaitUs", "outputWaitUs", "readUs", "samplesRead",
+            "demuxStarvations", "demuxFullWaits", "demuxCount", "demuxBytes", "demuxReads",
+            "demuxOccupancySum"};
+    //直方图之后的各项
+    private static final String[] TAIL_NAMES = {"surfaceSwitches", "surfaceReconfigures", "surfaceSwitchUs",
+            "openUs", "codecCreateUs", "codecPooled", "frameBackpressure",
+            "handoverGapUs", "frameIntervalUs", "samplesSkipped", "keyframeJumps",
+            "codecProfile", "codecFallbacks", "inputThrottled", "audioUnderruns", "audioXRuns",
+            "audioLatencyUs", "audioCallbackUs", "avDriftUs", "pauseLatencyUs",
+            "loops", "loopGapUs", "loopGapMaxUs", "loopCacheBytes", "loopCacheSeeks", "audioLoopCacheBytes",
+            "audioLoopAlignUs"};
+
+    private PlayerStats() {
+    }
+
+    static JSONObject toJson(long[] stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < NAMES.length; i++) {
+            json.put(NAMES[i], stats[i]);
+        }
+        JSONArray lateness = new JSONArray();
+        for (int i = 0; i < LATENESS_BUCKETS.length; i++) {
+            lateness.put(stats[LATENESS_HIST + i]);
+        }
+        json.put("latenessHist", lateness);
+        JSONArray drift = new JSONArray();
+        for (int i = 0; i < DRIFT_BUCKETS.length; i++) {
+            drift.put(stats[DRIFT_HIST + i]);
+        }
+        json.put("driftHist", drift);
+        for (int i = 0; i < TAIL_NAMES.length; i++) {
+            json.put(TAIL_NAMES[i], stats[SURFACE_SWITCHES + i]);
+        }
+        return json;
+    }
+
+    //覆盖层显示的文字，追加到sb后面，sb由调用者复用
+    static void appendOverlay(long[] stats, StringBuilder sb) {
+        sb.append("decoded ").append(stats[FRAMES_DECODED])
+                .append(" rendered ").append(stats[FRAMES_RENDERED])
+                .append(" dropped ").append(stats[FRAMES_DROPPED])
+                .append(" late ").append(stats[FRAMES_LATE]).append('\n');
+        sb.append("wait in ").append(stats[INPUT_WAIT_US] / 1000)
+                .append("ms out ").append(stats[OUTPUT_WAIT_US] / 1000)
+                .append("ms read ").append(stats[READ_US] / 1000).append("ms\n");
+        sb.append("demux ").append(stats[DEMUX_COUNT]).append(" samples ")
+                .append(stats[DEMUX_BYTES] / 1024).append("KB starved ")
+                .append(stats[DEMUX_STARVATIONS]).append('\n');
+        sb.append("late");
+        for (int i = 0; i < LATENESS_BUCKETS.length; i++) {
+            sb.append(' ').append(stats[LATENESS_HIST + i]);
+        }
+        sb.append("\ndrift");
+        for (int i = 0; i < DRIFT_BUCKETS.length; i++) {
+            sb.append(' ').append(stats[DRIFT_HIST + i]);
+        }
+        //没有音频轨道时这几项一直是0
+        if (stats[AUDIO_LATENCY_US] > 0) {
+            sb.append("\naudio latency ").append(stats[AUDIO_LATENCY_US] / 1000)
+                    .append("ms underruns ").append(stats[AUDIO_UNDERRUNS])
+                    .append(" xruns ").append(stats[AUDIO_XRUNS])
+                    .append(" a/v ").append(stats[AV_DRIFT_US] / 1000).append("ms");
+        }
+    }
+}
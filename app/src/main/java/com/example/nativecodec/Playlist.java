@@ -0,0 +1,129 @@
+package com.example.nativecodec;
+
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+//无缝播放列表：当前片段播放时预加载下一个片段(打开文件、创建解码器、解码好第一帧)，
+//当前片段播完后由native层在looper线程上直接把surface交给下一个播放器，不经过UI线程。
+//只在listener所在的handler线程上使用，同一时间最多预加载一个片段
+class Playlist {
+    static final String TAG = "NativeCodec";
+
+    private final AssetManager mAssets;
+    private final Handler mHandler;
+    private final MainActivity.PlayerListener mListener;
+    private final ArrayDeque<String> mClips;
+    private Surface mSurface;
+    private long mCurrent = 0;
+    private long mNext = 0;
+
+    //listener收到每个播放器(包括预加载的)打开完成的通知，在handler线程上调用
+    Playlist(AssetManager assets, Handler handler, List<String> clips, MainActivity.PlayerListener listener) {
+        mAssets = assets;
+        mHandler = handler;
+        mListener = listener;
+        mClips = new ArrayDeque<String>(clips);
+    }
+
+    //开始播放第一个片段，返回它的句柄，没有片段时返回0；打不开时通过listener通知
+    long start(Surface surface) {
+        mSurface = surface;
+        String clip = mClips.poll();
+        if (clip == null) {
+            return 0;
+        }
+        mCurrent = MainActivity.createStreamingMediaPlayer(mAssets, clip, surface, newListener());
+        preloadNext();
+        return mCurrent;
+    }
+
+    long current() {
+        return mCurrent;
+    }
+
+    //定时调用：当前片段播完时切到下一个片段，返回true表示当前播放器变了
+    boolean poll() {
+        if (mCurrent == 0 || !MainActivity.isEndOfStream(mCurrent)) {
+            return false;
+        }
+        if (mNext != 0) {
+            //native层等最后一帧显示之后才把surface交给下一个播放器，交出之前关闭会取消交接
+            if (!MainActivity.isHandedOff(mCurrent)) {
+                return false;
+            }
+            MainActivity.shutdown(mCurrent);
+            mCurrent = mNext;
+            mNext = 0;
+            preloadNext();
+            return true;
+        }
+        String clip = mClips.poll();
+        if (clip == null) {
+            return false;
+        }
+        //下一个片段预加载失败，关闭当前播放器让出surface后重新打开
+        MainActivity.shutdown(mCurrent);
+        mCurrent = MainActivity.createStreamingMediaPlayer(mAssets, clip, mSurface, newListener());
+        if (mCurrent != 0) {
+            MainActivity.setPlayingStreamingMediaPlayer(mCurrent, true);
+        }
+        preloadNext();
+        return true;
+    }
+
+    void release() {
+        if (mCurrent != 0) {
+            //先断开交接，避免关闭过程中把surface交给已经关闭的播放器
+            MainActivity.setNextPlayer(mCurrent, 0);
+            MainActivity.shutdown(mCurrent);
+            mCurrent = 0;
+        }
+        if (mNext != 0) {
+            MainActivity.shutdown(mNext);
+            mNext = 0;
+        }
+        mClips.clear();
+    }
+
+    private void preloadNext() {
+        if (mCurrent == 0 || mNext != 0) {
+            return;
+        }
+        String clip = mClips.poll();
+        if (clip == null) {
+            return;
+        }
+        mNext = MainActivity.preloadStreamingMediaPlayer(mAssets, clip, newListener());
+        if (mNext != 0) {
+            MainActivity.setNextPlayer(mCurrent, mNext);
+        } else {
+            Log.e(TAG, "failed to preload " + clip);
+        }
+    }
+
+    //打开完成的通知转到handler线程，预加载失败时取消交接
+    private MainActivity.PlayerListener newListener() {
+        return new MainActivity.PlayerListener() {
+            @Override
+            public void onPrepared(final long player, final boolean success) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!success && player == mNext) {
+                            Log.e(TAG, "preloaded player failed to open");
+                            MainActivity.setNextPlayer(mCurrent, 0);
+                            MainActivity.shutdown(mNext);
+                            mNext = 0;
+                        }
+                        mListener.onPrepared(player, success);
+                    }
+                });
+            }
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.nativecodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+//GL输出(MyGLSurfaceView.getRenderStats)计数器快照中各项的位置，都是从GL上下文创建起累计的
+final class RenderStats {
+    static final int FRAMES_AVAILABLE = 0;  //SurfaceTexture收到的帧数
+    static final int FRAMES_LATCHED = 1;    //updateTexImage取到新帧的次数，也就是显示出来的帧数
+    static final int DRAWS = 2;             //onDrawFrame的次数
+    static final int CPU_NS = 3;            //GL线程的CPU时间，包括eglSwapBuffers
+    static final int GPU_NS = 4;            //有GPU计时的那些绘制的GPU时间之和
+    static final int GPU_SAMPLES = 5;       //有GPU计时的绘制次数，设备不支持时为0
+    static final int COUNT = 6;
+
+    private static final String[] NAMES = {"framesAvailable", "framesLatched", "draws", "cpuNs", "gpuNs",
+            "gpuSamples"};
+
+    private RenderStats() {
+    }
+
+    //两次快照之间的增量，结果写进end
+    static void subtract(long[] end, long[] start) {
+        for (int i = 0; i < COUNT; i++) {
+            end[i] -= start[i];
+        }
+    }
+
+    //每显示一帧平均的GPU时间，按有计时的绘制推算全部绘制；没有GPU计时时为-1
+    static double gpuUsPerFrame(long[] stats) {
+        if (stats[GPU_SAMPLES] == 0 || stats[FRAMES_LATCHED] == 0) {
+            return -1;
+        }
+        double perDrawNs = stats[GPU_NS] / (double) stats[GPU_SAMPLES];
+        return perDrawNs * stats[DRAWS] / stats[FRAMES_LATCHED] / 1000;
+    }
+
+    static JSONObject toJson(long[] stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < NAMES.length; i++) {
+            json.put(NAMES[i], stats[i]);
+        }
+        long frames = stats[FRAMES_LATCHED];
+        json.put("drawsPerFrame", frames > 0 ? stats[DRAWS] / (double) frames : 0);
+        json.put("cpuUsPerFrame", frames > 0 ? stats[CPU_NS] / 1000.0 / frames : 0);
+        json.put("gpuUsPerFrame", gpuUsPerFrame(stats));
+        return json;
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.nativecodec;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//时间轴缩略图：只解码关键帧，N个工作线程各自持有native的缩略图解码器并行解码，不经过播放器的doCodecWork。
+//缩放后的Bitmap放进按字节数限制的内存LRU，同时写进磁盘缓存，键为文件标识+关键帧时间戳+尺寸
+class ThumbnailEngine {
+    static final String TAG = "NativeCodecThumb";
+
+    private static final String DISK_DIR = "thumbnails";
+    private static final int JPEG_QUALITY = 80;
+
+    //缩略图回调，在工作线程上调用
+    interface Callback {
+        //bitmap属于缓存，不能recycle或修改
+        void onThumbnail(Request request, int index, long timeUs, Bitmap bitmap);
+        //所有缩略图完成或者请求取消后调用一次
+        void onFinished(Request request);
+    }
+
+    //一个片段的一组缩略图，用户滑走时调用cancel，还没开始解码的缩略图不再解码
+    static final class Request {
+        final String clip;
+        final long[] timesUs;
+        final int width;
+        final int height;
+        final Callback callback;
+        private final AtomicInteger mRemaining;
+        private final AtomicInteger mCompleted = new AtomicInteger();
+        private final long mStartNs = SystemClock.elapsedRealtimeNanos();
+        private volatile long mFinishNs;
+        private volatile boolean mCancelled;
+
+        private Request(String clip, long[] timesUs, int width, int height, Callback callback) {
+            this.clip = clip;
+            this.timesUs = timesUs;
+            this.width = width;
+            this.height = height;
+            this.callback = callback;
+            mRemaining = new AtomicInteger(timesUs.length);
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        int completed() {
+            return mCompleted.get();
+        }
+
+        //从提交到完成(还没完成时到现在)每秒得到的缩略图张数
+        double thumbnailsPerSecond() {
+            long end = mFinishNs != 0 ? mFinishNs : SystemClock.elapsedRealtimeNanos();
+            return end > mStartNs ? mCompleted.get() * 1e9 / (end - mStartNs) : 0;
+        }
+    }
+
+    //工作队列里的一张缩略图
+    private static final class Task {
+        final Request request;
+        final int index;
+
+        Task(Request request, int index) {
+            this.request = request;
+            this.index = index;
+        }
+    }
+
+    //片段的标识和关键帧时间戳，同一个关键帧附近的请求都用这个关键帧作为键
+    private static final class ClipInfo {
+        final String identity;
+        final long[] syncTimesUs;   //升序，null表示不知道关键帧位置
+
+        ClipInfo(String identity, long[] syncTimesUs) {
+            this.identity = identity;
+            this.syncTimesUs = syncTimesUs;
+        }
+
+        //不晚于timeUs的最后一个关键帧，解码器实际解码的也是这一帧
+        long snap(long timeUs) {
+            if (syncTimesUs == null || syncTimesUs.length == 0) {
+                return timeUs;
+            }
+            int i = Arrays.binarySearch(syncTimesUs, timeUs);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return syncTimesUs[Math.max(i, 0)];
+        }
+    }
+
+    private final AssetManager mAssets;
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    private final AtomicLong mDiskBytes = new AtomicLong();
+    private final LruCache<String, Bitmap> mMemory;
+    //样本表在锁外解析，几个工作线程同时解析同一个片段时留下先放进去的那个
+    private final ConcurrentHashMap<String, ClipInfo> mClips = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<>();
+    private final Thread[] mWorkers;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mDecoded = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mDecodeNs = new AtomicLong();
+
+    ThumbnailEngine(Context context, int decoders, int maxMemoryBytes, long maxDiskBytes) {
+        mAssets = context.getAssets();
+        mDiskDir = new File(context.getCacheDir(), DISK_DIR);
+        mDiskDir.mkdirs();
+        mMaxDiskBytes = maxDiskBytes;
+        mDiskBytes.set(diskUsage());
+        mMemory = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mWorkers = new Thread[Math.max(decoders, 1)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "ThumbnailWorker" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    //提交一组缩略图，按timesUs的顺序排队，由所有工作线程并行解码
+    Request request(String clip, long[] timesUs, int width, int height, Callback callback) {
+        Request request = new Request(clip, timesUs, width, height, callback);
+        if (timesUs.length == 0) {
+            request.mFinishNs = request.mStartNs;
+            callback.onFinished(request);
+            return request;
+        }
+        for (int i = 0; i < timesUs.length; i++) {
+            mQueue.add(new Task(request, i));
+        }
+        return request;
+    }
+
+    //停止工作线程，还在排队的缩略图都不再解码
+    void shutdown() throws InterruptedException {
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Thread worker : mWorkers) {
+            worker.join();
+        }
+        mQueue.clear();
+    }
+
+    void clearMemory() {
+        mMemory.evictAll();
+    }
+
+    void clearDisk() {
+        File[] files = mDiskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDiskBytes.set(0);
+    }
+
+    //命中率、解码速度和缓存占用
+    JSONObject toJson() throws JSONException {
+        long memoryHits = mMemoryHits.get();
+        long diskHits = mDiskHits.get();
+        long decoded = mDecoded.get();
+        long lookups = memoryHits + diskHits + decoded + mFailed.get();
+        JSONObject json = new JSONObject();
+        json.put("memoryHits", memoryHits);
+        json.put("diskHits", diskHits);
+        json.put("decoded", decoded);
+        json.put("failed", mFailed.get());
+        json.put("cancelled", mCancelled.get());
+        json.put("hitRate", lookups > 0 ? (double) (memoryHits + diskHits) / lookups : 0);
+        //单个解码器每秒解码的张数，乘以工作线程数约为总的解码能力
+        json.put("decodesPerSecond", mDecodeNs.get() > 0 ? decoded * 1e9 / mDecodeNs.get() : 0);
+        json.put("memoryBytes", mMemory.size());
+        json.put("diskBytes", mDiskBytes.get());
+        return json;
+    }
+
+    private void work() {
+        //每个工作线程只保留当前片段的解码器，换片段时关闭
+        String openClip = null;
+        long decoder = 0;
+        try {
+            while (true) {
+                Task task = mQueue.take();
+                Request request = task.request;
+                if (request.isCancelled()) {
+                    mCancelled.incrementAndGet();
+                    finishOne(request);
+                    continue;
+                }
+                if (!request.clip.equals(openClip)) {
+                    if (decoder != 0) {
+                        MainActivity.closeThumbnailer(decoder);
+                    }
+                    openClip = request.clip;
+                    decoder = MainActivity.openThumbnailer(mAssets, openClip);
+                }
+                Bitmap bitmap = load(request, task.index, decoder);
+                if (bitmap != null && !request.isCancelled()) {
+                    request.mCompleted.incrementAndGet();
+                    request.callback.onThumbnail(request, task.index, request.timesUs[task.index], bitmap);
+                }
+                finishOne(request);
+            }
+        } catch (InterruptedException e) {
+            //shutdown
+        } finally {
+            if (decoder != 0) {
+                MainActivity.closeThumbnailer(decoder);
+            }
+        }
+    }
+
+    private void finishOne(Request request) {
+        if (request.mRemaining.decrementAndGet() == 0) {
+            request.mFinishNs = SystemClock.elapsedRealtimeNanos();
+            request.callback.onFinished(request);
+        }
+    }
+
+    //依次查内存、磁盘，都没有时解码
+    private Bitmap load(Request request, int index, long decoder) {
+        ClipInfo clip = clipInfo(request.clip);
+        if (clip == null) {
+            mFailed.incrementAndGet();
+            return null;
+        }
+        long syncUs = clip.snap(request.timesUs[index]);
+        String key = clip.identity + "@" + syncUs + "/" + request.width + "x" + request.height;
+        Bitmap bitmap = mMemory.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+        File file = new File(mDiskDir, hash(key) + ".jpg");
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                //按最近使用的时间淘汰
+                file.setLastModified(System.currentTimeMillis());
+                mDiskHits.incrementAndGet();
+                mMemory.put(key, bitmap);
+                return bitmap;
+            }
+        }
+        if (decoder == 0) {
+            mFailed.incrementAndGet();
+            return null;
+        }
+        bitmap = Bitmap.createBitmap(request.width, request.height, Bitmap.Config.ARGB_8888);
+        long start = SystemClock.elapsedRealtimeNanos();
+        long ptsUs = MainActivity.decodeThumbnail(decoder, syncUs, bitmap);
+        mDecodeNs.addAndGet(SystemClock.elapsedRealtimeNanos() - start);
+        if (ptsUs < 0) {
+            Log.e(TAG, "failed to decode " + key);
+            mFailed.incrementAndGet();
+            return null;
+        }
+        mDecoded.incrementAndGet();
+        mMemory.put(key, bitmap);
+        writeDisk(file, bitmap);
+        return bitmap;
+    }
+
+    //文件标识为asset路径+在apk中的位置和长度，关键帧位置来自Java的样本表解析
+    private ClipInfo clipInfo(String clip) {
+        ClipInfo info = mClips.get(clip);
+        if (info != null) {
+            return info;
+        }
+        try {
+            AssetFileDescriptor afd = mAssets.openFd(clip);
+            String identity = clip + ":" + afd.getStartOffset() + ":" + afd.getLength();
+            long[] syncTimesUs = null;
+            try (FileInputStream in = afd.createInputStream()) {
+                Mp4SampleIndex.Track video = Mp4SampleIndex.parse(in.getChannel(), afd.getStartOffset(),
+                        afd.getLength()).findTrack("vide");
+                if (video != null) {
+                    syncTimesUs = syncTimes(video);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "no sample table for " + clip + ", thumbnails keyed by requested time", e);
+            } finally {
+                afd.close();
+            }
+            info = new ClipInfo(identity, syncTimesUs);
+            ClipInfo existing = mClips.putIfAbsent(clip, info);
+            return existing != null ? existing : info;
+        } catch (IOException e) {
+            Log.e(TAG, "failed to open " + clip, e);
+            return null;
+        }
+    }
+
+    private static long[] syncTimes(Mp4SampleIndex.Track video) {
+        long[] times;
+        if (video.syncSamples == null) {
+            times = video.ptsUs.clone();
+        } else {
+            times = new long[video.syncSamples.length];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = video.ptsUs[video.syncSamples[i]];
+            }
+        }
+        //有B帧时显示时间和解码顺序不同
+        Arrays.sort(times);
+        return times;
+    }
+
+    private void writeDisk(File file, Bitmap bitmap) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write " + file, e);
+            temp.delete();
+            return;
+        }
+        //先写临时文件再改名，其他线程不会读到写了一半的文件
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        if (mDiskBytes.addAndGet(file.length()) > mMaxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    //删除最久没有用过的文件，直到占用降到上限的四分之三
+    private synchronized void trimDisk() {
+        File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (int i = 0; i < files.length && total > mMaxDiskBytes * 3 / 4; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+        mDiskBytes.set(total);
+    }
+
+    private long diskUsage() {
+        long total = 0;
+        File[] files = mDiskDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
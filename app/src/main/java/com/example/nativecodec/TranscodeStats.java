@@ -0,0 +1,49 @@
+package com.example.nativecodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+//转码计数器快照(MainActivity.getTranscodeStats)中各项的位置，和transcoder.h中的kTranscode*一一对应
+final class TranscodeStats {
+    static final int FRAMES_DECODED = 0;
+    static final int FRAMES_ENCODED = 1;
+    static final int AUDIO_SAMPLES = 2;
+    static final int MEDIA_US = 3;
+    static final int DURATION_US = 4;
+    static final int ELAPSED_US = 5;
+    static final int OUTPUT_BYTES = 6;
+    static final int STATE = 7;
+    static final int COUNT = 8;
+
+    //STATE的取值
+    static final int STATE_RUNNING = 0;
+    static final int STATE_DONE = 1;
+    static final int STATE_FAILED = 2;
+    static final int STATE_CANCELLED = 3;
+
+    private static final String[] NAMES = {"framesDecoded", "framesEncoded", "audioSamples", "mediaUs",
+            "durationUs", "elapsedUs", "outputBytes", "state"};
+
+    private TranscodeStats() {
+    }
+
+    //转码速度，按实时播放的倍数计
+    static double speed(long[] stats) {
+        return stats[ELAPSED_US] > 0 ? stats[MEDIA_US] / (double) stats[ELAPSED_US] : 0;
+    }
+
+    //输出文件的平均码率(bps)，包括音频
+    static double bitrate(long[] stats) {
+        return stats[MEDIA_US] > 0 ? stats[OUTPUT_BYTES] * 8 * 1000000.0 / stats[MEDIA_US] : 0;
+    }
+
+    static JSONObject toJson(long[] stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < NAMES.length; i++) {
+            json.put(NAMES[i], stats[i]);
+        }
+        json.put("speed", speed(stats));
+        json.put("bitrate", bitrate(stats));
+        return json;
+    }
+}
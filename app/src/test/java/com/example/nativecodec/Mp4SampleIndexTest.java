@@ -0,0 +1,227 @@
+package com.example.nativecodec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+//Mp4SampleIndex在主机JVM上的单元测试：./gradlew :app:testDebugUnitTest
+//工作目录是app模块，测试片段直接从assets读取
+public class Mp4SampleIndexTest {
+    private static final String CLIP = "src/main/assets/clips/testfile.mp4";
+    //合成文件的样本数(30fps约一个半小时)，每30帧一个关键帧，每块10个样本
+    private static final int SYNTHETIC_SAMPLES = 150000;
+    private static final int SYNTHETIC_GOP = 30;
+    private static final int SYNTHETIC_PER_CHUNK = 10;
+    private static final int SYNTHETIC_CHUNK_BYTES = SYNTHETIC_PER_CHUNK * 4000;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void parsesTestClip() throws IOException {
+        Mp4SampleIndex index = Mp4SampleIndex.parse(CLIP);
+        Mp4SampleIndex.Track video = index.findTrack("vide");
+        assertNotNull(video);
+        assertEquals("avc1", video.format);
+        assertEquals(480, video.width);
+        assertEquals(360, video.height);
+        assertEquals(240, video.sampleCount);
+        assertEquals(3, video.syncSamples.length);
+        assertEquals(0, video.syncSamples[0]);
+        assertTrue(video.isSync(0));
+        assertFalse(video.isSync(1));
+        assertEquals(10000000, video.durationUs);
+
+        //音频轨道没有stss，每个样本都是关键帧
+        Mp4SampleIndex.Track audio = index.findTrack("soun");
+        assertNotNull(audio);
+        assertNull(audio.syncSamples);
+        assertTrue(audio.isSync(audio.sampleCount - 1));
+    }
+
+    //大文件：样本表展开正确，解析只分配索引的各个数组，moov是映射的，不复制到堆上
+    @Test
+    public void parsesLargeSampleTable() throws IOException {
+        File file = mTemp.newFile("synthetic-index.mp4");
+        writeSyntheticMp4(file, SYNTHETIC_SAMPLES);
+
+        long allocatedBefore = allocatedBytes();
+        Mp4SampleIndex index = Mp4SampleIndex.parse(file.getPath());
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Mp4SampleIndex.Track video = index.findTrack("vide");
+        assertNotNull(video);
+        assertEquals(SYNTHETIC_SAMPLES, video.sampleCount);
+        assertEquals(SYNTHETIC_SAMPLES / SYNTHETIC_GOP, video.syncSamples.length);
+        assertTrue(video.isSync(SYNTHETIC_GOP * 100));
+        assertFalse(video.isSync(SYNTHETIC_GOP * 100 + 1));
+
+        //块内的样本紧挨着存放，下一块从固定的位置开始
+        assertEquals(0, video.offsets[0]);
+        assertEquals(40000, video.offsets[1]);
+        assertEquals(40000 + 2001, video.offsets[2]);
+        assertEquals(SYNTHETIC_CHUNK_BYTES, video.offsets[SYNTHETIC_PER_CHUNK]);
+        long lastChunk = (SYNTHETIC_SAMPLES - 1) / SYNTHETIC_PER_CHUNK;
+        assertEquals(lastChunk * SYNTHETIC_CHUNK_BYTES, video.offsets[(int) lastChunk * SYNTHETIC_PER_CHUNK]);
+
+        //显示时间 = 解码时间(每帧3000/90000秒) + ctts偏移
+        assertEquals(0, video.ptsUs[0]);
+        assertEquals(66666, video.ptsUs[1]);
+        assertEquals(166666, video.ptsUs[4]);
+        int last = SYNTHETIC_SAMPLES - 1;
+        assertEquals((long) (last + last % 3) * 100000 / 3, video.ptsUs[last]);
+
+        long footprint = (long) SYNTHETIC_SAMPLES * (8 + 4 + 8) + SYNTHETIC_SAMPLES / SYNTHETIC_GOP * 4;
+        assertEquals(footprint, video.footprintBytes());
+        //GC前后的堆占用误差有几MB，用本线程分配的字节数，只有HotSpot提供
+        if (allocated >= 0) {
+            assertTrue("parse allocated " + allocated + " bytes, arrays need " + footprint,
+                    allocated < footprint + 256 * 1024);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutMoov() throws IOException {
+        File file = mTemp.newFile("no-moov.mp4");
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(table);
+        out.writeBytes("isom");
+        out.writeInt(0);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(box("ftyp", table));
+        }
+        Mp4SampleIndex.parse(file.getPath());
+    }
+
+    //当前线程累计分配的堆内存，JVM不支持时返回-1
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //写一个只有ftyp和moov的视频文件：30fps，每30帧一个关键帧，带B帧的ctts偏移，每块10个样本
+    private static void writeSyntheticMp4(File file, int samples) throws IOException {
+        int chunks = (samples + SYNTHETIC_PER_CHUNK - 1) / SYNTHETIC_PER_CHUNK;
+        int syncs = (samples + SYNTHETIC_GOP - 1) / SYNTHETIC_GOP;
+
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(table);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeInt(samples);
+        out.writeInt(3000);
+        byte[] stts = box("stts", table);
+
+        out.writeInt(0);
+        out.writeInt(samples);
+        for (int i = 0; i < samples; i++) {
+            out.writeInt(1);
+            out.writeInt((i % 3) * 3000);
+        }
+        byte[] ctts = box("ctts", table);
+
+        out.writeInt(0);
+        out.writeInt(syncs);
+        for (int i = 0; i < syncs; i++) {
+            out.writeInt(i * SYNTHETIC_GOP + 1);
+        }
+        byte[] stss = box("stss", table);
+
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(samples);
+        for (int i = 0; i < samples; i++) {
+            out.writeInt(i % SYNTHETIC_GOP == 0 ? 40000 : 2000 + i % 1000);
+        }
+        byte[] stsz = box("stsz", table);
+
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(SYNTHETIC_PER_CHUNK);
+        out.writeInt(1);
+        byte[] stsc = box("stsc", table);
+
+        out.writeInt(0);
+        out.writeInt(chunks);
+        for (int i = 0; i < chunks; i++) {
+            out.writeLong((long) i * SYNTHETIC_CHUNK_BYTES);
+        }
+        byte[] co64 = box("co64", table);
+
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeInt(16);
+        out.writeBytes("avc1");
+        out.writeLong(0);
+        byte[] stsd = box("stsd", table);
+
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(90000);
+        out.writeInt(samples * 3000);
+        out.writeInt(0);
+        byte[] mdhd = box("mdhd", table);
+
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeBytes("vide");
+        out.write(new byte[13]);
+        byte[] hdlr = box("hdlr", table);
+
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.write(new byte[68]);
+        byte[] tkhd = box("tkhd", table);
+
+        byte[] stbl = box("stbl", table, stsd, stts, ctts, stss, stsz, stsc, co64);
+        byte[] minf = box("minf", table, stbl);
+        byte[] mdia = box("mdia", table, mdhd, hdlr, minf);
+        byte[] trak = box("trak", table, tkhd, mdia);
+        byte[] moov = box("moov", table, trak);
+        out.writeBytes("isom");
+        out.writeInt(0);
+        byte[] ftyp = box("ftyp", table);
+
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(ftyp);
+            stream.write(moov);
+        }
+    }
+
+    //用table里已经写好的内容加上children生成一个box，然后清空table
+    private static byte[] box(String type, ByteArrayOutputStream table, byte[]... children)
+            throws IOException {
+        for (byte[] child : children) {
+            table.write(child);
+        }
+        byte[] body = table.toByteArray();
+        table.reset();
+        ByteArrayOutputStream box = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream out = new DataOutputStream(box);
+        out.writeInt(body.length + 8);
+        out.writeBytes(type);
+        out.write(body);
+        return box.toByteArray();
+    }
+}